@@ -0,0 +1,279 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks do JMH das operaçoes de BenchmarkWorkloads, sobre um arquivo de bolsa sintetico gerado pelo
+ * BagFileGenerator com {@link Bag#rows} linhas.
+ * <p>
+ * O JMH nao aceita benchmarks no pacote padrao, e as classes do pacote padrao nao podem ser usadas de um pacote
+ * nomeado. Por isso o gerador e as operaçoes sao obtidos por reflexao, apenas na preparaçao; cada @Benchmark chama a
+ * operaçao direto, pela interface {@link Callable}.
+ * <p>
+ * Os tempos das operaçoes sobre a amostra e das buscas sao por item, com {@link OperationsPerInvocation}; os das
+ * operaçoes sobre o arquivo inteiro (build, aggregate, aggregate-columnar e merge) sao por passada pelo arquivo.
+ * Exemplo: java -jar target/benchmarks.jar -p rows=10000000 BagBenchmark.lookupWarm
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BagBenchmark {
+
+    /**
+     * Quantidade de linhas da amostra, igual a BenchmarkWorkloads.SAMPLE_SIZE.
+     */
+    private static final int SAMPLE_SIZE = 100_000;
+
+    /**
+     * Quantidade de buscas de lookup-warm, igual a BenchmarkWorkloads.WARM_LOOKUPS.
+     */
+    private static final int WARM_LOOKUPS = 1_000_000;
+
+    /**
+     * Quantidade de buscas de search-warm, igual a BenchmarkWorkloads.WARM_SEARCHES.
+     */
+    private static final int WARM_SEARCHES = 100_000;
+
+    /**
+     * Quantidade de buscas de search-cold, igual a BenchmarkWorkloads.COLD_LOOKUPS.
+     */
+    private static final int COLD_LOOKUPS = 100;
+
+    /**
+     * Quantidade de buscas das operaçoes concurrent-N, igual a BenchmarkWorkloads.CONCURRENT_LOOKUPS.
+     */
+    private static final int CONCURRENT_LOOKUPS = 200_000;
+
+    /**
+     * Arquivo de bolsa e operaçao medida por um @Benchmark, escolhida pelo nome do metodo: parseView mede a
+     * operaçao parse-view.
+     */
+    @State(Scope.Benchmark)
+    public static class Bag {
+
+        /**
+         * Quantidade de linhas do arquivo de bolsa, por exemplo 1000000, 10000000 ou 50000000.
+         */
+        @Param("1000000")
+        public long rows;
+
+        /**
+         * Quantidade de threads de leitura da geraçao do indice e da agregaçao; com 0, uma por processador.
+         */
+        @Param("0")
+        public int threads;
+
+        /**
+         * Pasta dos arquivos gerados pelas operaçoes.
+         */
+        private Path workDir;
+
+        /**
+         * Instancia de BenchmarkWorkloads.
+         */
+        private Closeable workloads;
+
+        /**
+         * Operaçao medida.
+         */
+        Callable<Long> workload;
+
+        /**
+         * Gera o arquivo de bolsa, se ainda nao existir, e prepara a operaçao do @Benchmark.
+         *
+         * @param params Parametros do JMH, com o nome do @Benchmark.
+         * @throws Exception
+         */
+        @Setup(Level.Trial)
+        @SuppressWarnings("unchecked")
+        public void setup(BenchmarkParams params) throws Exception {
+            File bagFile = bagFile(rows);
+            workDir = Files.createTempDirectory("familybag-jmh");
+            int readThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            Class<?> type = Class.forName("BenchmarkWorkloads");
+            workloads = (Closeable) invoke(() -> type.getConstructor(File.class, File.class, int.class)
+                    .newInstance(bagFile, workDir.toFile(), readThreads));
+            String benchmark = params.getBenchmark();
+            String name = workloadName(benchmark.substring(benchmark.lastIndexOf('.') + 1));
+            workload = (Callable<Long>) invoke(() -> type.getMethod("workload", String.class)
+                    .invoke(workloads, name));
+        }
+
+        /**
+         * Fecha as operaçoes e remove os arquivos gerados por elas. O arquivo de bolsa e mantido para os proximos
+         * forks.
+         *
+         * @throws IOException
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            try {
+                if (workloads != null) {
+                    workloads.close();
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(workDir)) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+
+        /**
+         * Nome da operaçao medida por um @Benchmark: o nome do metodo, com as palavras separadas por hifen.
+         *
+         * @param method Nome do metodo.
+         * @return Nome da operaçao.
+         */
+        String workloadName(String method) {
+            StringBuilder name = new StringBuilder();
+            for (char c : method.toCharArray()) {
+                if (Character.isUpperCase(c)) {
+                    name.append('-').append(Character.toLowerCase(c));
+                } else {
+                    name.append(c);
+                }
+            }
+            return name.toString();
+        }
+    }
+
+    /**
+     * Operaçao concurrent-N, com N buscas em andamento ao mesmo tempo.
+     */
+    @State(Scope.Benchmark)
+    public static class ConcurrentBag extends Bag {
+
+        /**
+         * Quantidade de buscas em andamento ao mesmo tempo.
+         */
+        @Param({"1", "16", "256", "4096"})
+        public int concurrency;
+
+        @Override
+        String workloadName(String method) {
+            return "concurrent-" + concurrency;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_SIZE)
+    public long parse(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_SIZE)
+    public long parseView(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_SIZE)
+    public long sortObjects(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE_SIZE)
+    public long sortRadix(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long build(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long aggregate(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long aggregateColumnar(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long merge(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WARM_LOOKUPS)
+    public long lookupWarm(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WARM_SEARCHES)
+    public long searchWarm(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLD_LOOKUPS)
+    public long searchCold(Bag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONCURRENT_LOOKUPS)
+    public long searchConcurrent(ConcurrentBag bag) throws Exception {
+        return bag.workload.call();
+    }
+
+    /**
+     * Arquivo de bolsa sintetico com uma quantidade de linhas, na pasta temporaria do sistema. E gerado uma unica vez,
+     * em um arquivo temporario trocado atomicamente, e reaproveitado pelos forks e execuçoes seguintes.
+     *
+     * @param rows Quantidade de linhas.
+     * @return Arquivo de bolsa.
+     * @throws Exception
+     */
+    private static File bagFile(long rows) throws Exception {
+        Path dir = Files.createDirectories(Path.of(System.getProperty("java.io.tmpdir"), "familybag-jmh"));
+        Path bagFile = dir.resolve("bag-" + rows + ".csv");
+        if (!Files.exists(bagFile)) {
+            Path tempFile = Files.createTempFile(dir, "bag-" + rows, ".tmp");
+            invoke(() -> Class.forName("BagFileGenerator").getMethod("generate", File.class, long.class, long.class)
+                    .invoke(null, tempFile.toFile(), rows, 1L));
+            Files.move(tempFile, bagFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return bagFile.toFile();
+    }
+
+    /**
+     * Executa uma chamada por reflexao, devolvendo a exceçao original em vez da InvocationTargetException.
+     *
+     * @param call Chamada.
+     * @return Resultado da chamada.
+     * @throws Exception
+     */
+    private static Object invoke(Callable<Object> call) throws Exception {
+        try {
+            return call.call();
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Agrega o valor das parcelas do arquivo de bolsa por UF, municipio e mes, lendo o arquivo inteiro uma unica vez.
+ * <p>
+ * O arquivo e dividido em trechos como no {@link IndexBuilder} e cada thread le o seu trecho com o
+ * {@link BagFileScanner}. O valor e convertido direto dos bytes para centavos ({@link BagFileScanner#valueCents()}) e
+ * somado em uma {@link GroupTable} da propria thread, cuja chave sao os bytes das colunas agrupadas. Nenhum objeto e
+ * criado por linha, entao a leitura e limitada pelo disco, e nao pelo coletor de lixo. No fim as tabelas das threads
+ * sao somadas em uma so.
+ * <p>
+ * Se o arquivo informado for a copia colunar do arquivo de bolsa ({@link ColumnarBag}), a agregaçao le apenas as
+ * colunas agrupadas e a coluna de valor, e a chave de cada linha sao os numeros dos valores nos dicionarios.
+ */
+public class BagAggregator {
+
+    /**
+     * Nomes dos campos que podem ser agrupados.
+     */
+    private static final String[] FIELD_NAMES = {"uf", "city", "cityName", "month"};
+
+    /**
+     * Coluna do arquivo de bolsa de cada campo: UF, codigo SIAFI do municipio, nome do municipio e mes e ano.
+     */
+    private static final int[] FIELD_COLUMNS = {0, 1, 2, 11};
+
+    /**
+     * Campos agrupados por padrao.
+     */
+    private static final String DEFAULT_GROUP_BY = "uf,cityName,month";
+
+    /**
+     * Tamanho maximo da chave de um grupo.
+     */
+    private static final int MAX_KEY_SIZE = 4096;
+
+    /**
+     * Tamanho do buffer de escrita da saida.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE = "Use <Arquivo de bolsa ou colunar> [--by=campo1,campo2] [--threads=N], com"
+            + " campos uf, city, cityName ou month. Padrao: --by=" + DEFAULT_GROUP_BY;
+
+    /**
+     * Agrega o arquivo de bolsa e exibe na saida uma linha por grupo, em ordem de chave, com as colunas agrupadas, a
+     * quantidade de parcelas e a soma dos valores no formato do arquivo de bolsa, separadas por tabulaçao.
+     *
+     * @param args Use <Arquivo de bolsa ou colunar> [--by=campo1,campo2] [--threads=N]. O arquivo colunar e gerado
+     *             pelo {@link ColumnarBagBuilder}. Os campos sao uf, city (codigo SIAFI do municipio), cityName e
+     *             month. Por padrao sao usadas tantas threads quantos forem os processadores.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+        String groupBy = DEFAULT_GROUP_BY;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--by=")) {
+                groupBy = args[i].substring("--by=".length());
+            } else if (args[i].startsWith("--threads=")) {
+                try {
+                    threads = Integer.parseInt(args[i].substring("--threads=".length()));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    System.err.println("[ERRO] - O valor de --threads= deve ser um inteiro positivo: " + USAGE);
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("[ERRO] - Argumento desconhecido '" + args[i] + "': " + USAGE);
+                System.exit(1);
+            }
+        }
+        String[] fields = groupBy.split(",");
+        int[] columns = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            int field = Arrays.asList(FIELD_NAMES).indexOf(fields[i]);
+            if (field < 0) {
+                System.err.println("[ERRO] - Campo desconhecido '" + fields[i] + "': " + USAGE);
+                System.exit(1);
+            }
+            columns[i] = FIELD_COLUMNS[field];
+        }
+
+        try (FileChannel bagChannel = new RandomAccessFile(args[0], "r").getChannel()) {
+            long t1 = System.currentTimeMillis();
+            GroupTable groups;
+            if (ColumnarBag.isColumnarBag(new File(args[0]))) {
+                groups = aggregate(new ColumnarBag(new File(args[0])), columns, threads);
+            } else {
+                groups = aggregate(bagChannel, columns, threads);
+            }
+            Integer[] order = new Integer[groups.size()];
+            String[] keys = new String[groups.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+                keys[i] = groups.keyAt(i);
+            }
+            Arrays.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+
+            long lineCount = 0;
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(FileDescriptor.out), StandardCharsets.ISO_8859_1), WRITE_BUFFER_SIZE)) {
+                out.write(String.join("\t", fields) + "\tcount\tsum\n");
+                for (int group : order) {
+                    out.write(keys[group]);
+                    out.write('\t');
+                    out.write(Long.toString(groups.countAt(group)));
+                    out.write('\t');
+                    out.write(formatCents(groups.sumAt(group)));
+                    out.write('\n');
+                    lineCount += groups.countAt(group);
+                }
+            }
+            long duration = System.currentTimeMillis() - t1;
+            System.err.println("[INFO] - " + lineCount + " linhas agregadas em " + groups.size() + " grupos em "
+                    + duration + " milissegundos.");
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Agrega o arquivo de bolsa inteiro em paralelo.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param columns    Colunas agrupadas, na ordem da chave.
+     * @param threads    Quantidade de threads de leitura.
+     * @return Grupos, com a chave formada pelas colunas separadas por tabulaçao.
+     * @throws IOException
+     */
+    public static GroupTable aggregate(FileChannel bagChannel, int[] columns, int threads) throws IOException {
+        long[] limits = BagFile.splitRanges(bagChannel, BagFile.dataStart(bagChannel), bagChannel.size(), threads);
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<GroupTable>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long rangeStart = limits[i];
+                long rangeEnd = limits[i + 1];
+                results.add(readers.submit(() -> aggregateRange(bagChannel, rangeStart, rangeEnd, columns)));
+            }
+            GroupTable groups = IndexBuilder.await(results.get(0));
+            for (int i = 1; i < results.size(); i++) {
+                groups.addAll(IndexBuilder.await(results.get(i)));
+            }
+            return groups;
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    /**
+     * Agrega a copia colunar do arquivo de bolsa em paralelo, dividindo as linhas entre as threads.
+     * <p>
+     * A chave de cada linha tem 4 bytes por coluna agrupada: o numero do valor no dicionario ou o mes como AAAAMM. Os
+     * grupos sao convertidos para a chave em texto apenas no fim, um por grupo.
+     *
+     * @param bag     Arquivo colunar.
+     * @param columns Colunas agrupadas, na ordem da chave. Devem ser colunas de dicionario ou de mes.
+     * @param threads Quantidade de threads.
+     * @return Grupos, com a chave formada pelas colunas separadas por tabulaçao, como em
+     * {@link #aggregate(FileChannel, int[], int)}.
+     * @throws IOException
+     */
+    public static GroupTable aggregate(ColumnarBag bag, int[] columns, int threads) throws IOException {
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        GroupTable codeGroups;
+        try {
+            List<Future<GroupTable>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long rowStart = bag.rowCount() * i / threads;
+                long rowEnd = bag.rowCount() * (i + 1) / threads;
+                results.add(readers.submit(() -> aggregateRows(bag, rowStart, rowEnd, columns)));
+            }
+            codeGroups = IndexBuilder.await(results.get(0));
+            for (int i = 1; i < results.size(); i++) {
+                codeGroups.addAll(IndexBuilder.await(results.get(i)));
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+
+        GroupTable groups = new GroupTable();
+        for (int group = 0; group < codeGroups.size(); group++) {
+            ByteBuffer codes = ByteBuffer.wrap(codeGroups.keyBytesAt(group));
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    key.append('\t');
+                }
+                int code = codes.getInt();
+                key.append(ColumnarBag.COLUMN_KINDS[columns[i]] == ColumnarBag.MONTH ? ColumnarBag.formatMonth(code)
+                        : bag.dictionaryValue(columns[i], code));
+            }
+            byte[] keyBytes = key.toString().getBytes(StandardCharsets.ISO_8859_1);
+            groups.add(keyBytes, keyBytes.length, codeGroups.sumAt(group), codeGroups.countAt(group));
+        }
+        return groups;
+    }
+
+    /**
+     * Agrega um intervalo de linhas da copia colunar.
+     *
+     * @param bag      Arquivo colunar.
+     * @param rowStart Primeira linha.
+     * @param rowEnd   Linha final, exclusive.
+     * @param columns  Colunas agrupadas.
+     * @return Grupos do intervalo, com a chave formada pelos numeros dos valores.
+     */
+    private static GroupTable aggregateRows(ColumnarBag bag, long rowStart, long rowEnd, int[] columns) {
+        GroupTable groups = new GroupTable();
+        byte[] key = new byte[columns.length * Integer.BYTES];
+        boolean[] months = new boolean[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            months[i] = ColumnarBag.COLUMN_KINDS[columns[i]] == ColumnarBag.MONTH;
+        }
+        for (long row = rowStart; row < rowEnd; row++) {
+            for (int i = 0; i < columns.length; i++) {
+                int code = months[i] ? bag.month(columns[i], row) : bag.code(columns[i], row);
+                key[i * 4] = (byte) (code >>> 24);
+                key[i * 4 + 1] = (byte) (code >>> 16);
+                key[i * 4 + 2] = (byte) (code >>> 8);
+                key[i * 4 + 3] = (byte) code;
+            }
+            groups.add(key, key.length, bag.valueCents(row), 1);
+        }
+        return groups;
+    }
+
+    /**
+     * Agrega um trecho do arquivo de bolsa.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param start      Inicio do trecho.
+     * @param end        Fim do trecho, exclusive.
+     * @param columns    Colunas agrupadas.
+     * @return Grupos do trecho.
+     * @throws IOException
+     */
+    private static GroupTable aggregateRange(FileChannel bagChannel, long start, long end, int[] columns)
+            throws IOException {
+        BagFileScanner scanner = new BagFileScanner(bagChannel, start, end);
+        GroupTable groups = new GroupTable();
+        byte[] key = new byte[MAX_KEY_SIZE];
+        while (scanner.next()) {
+            int length = 0;
+            for (int i = 0; i < columns.length && length >= 0; i++) {
+                if (i > 0 && length < key.length) {
+                    key[length++] = '\t';
+                }
+                length = scanner.copyColumn(columns[i], key, length);
+            }
+            if (length < 0) {
+                throw new IOException("Linha sem as colunas agrupadas, ou com chave maior que " + MAX_KEY_SIZE
+                        + " bytes, na posiçao " + scanner.position() + ".");
+            }
+            groups.add(key, length, scanner.valueCents(), 1);
+        }
+        return groups;
+    }
+
+    /**
+     * Formata um valor em centavos no formato do arquivo de bolsa, com ponto de milhar e virgula decimal.
+     *
+     * @param cents Valor em centavos.
+     * @return Valor formatado, por exemplo 1.234,56.
+     */
+    public static String formatCents(long cents) {
+        String units = Long.toString(Math.abs(cents / 100));
+        StringBuilder formatted = new StringBuilder(units.length() + 8);
+        if (cents < 0) {
+            formatted.append('-');
+        }
+        for (int i = 0; i < units.length(); i++) {
+            if (i > 0 && (units.length() - i) % 3 == 0) {
+                formatted.append('.');
+            }
+            formatted.append(units.charAt(i));
+        }
+        long decimals = Math.abs(cents % 100);
+        return formatted.append(',').append(decimals < 10 ? "0" : "").append(decimals).toString();
+    }
+}
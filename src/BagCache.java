@@ -0,0 +1,414 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Buscador de cadastros de bolsa de longa duraçao com cache dos NIS mais buscados.
+ * <p>
+ * O cache guarda, para cada NIS, a linha do arquivo de bolsa e o {@link FamilyBag} decodificado na primeira vez que e
+ * pedido. NIS que nao estao no indice tambem sao guardados, como resposta negativa. O cache e limitado pela quantidade
+ * de itens e por uma estimativa da memoria usada, e remove primeiro o item usado ha mais tempo (LRU).
+ * <p>
+ * Para que uma varredura de NIS buscados uma unica vez nao tire do cache os NIS buscados com frequencia, um item novo
+ * so entra no lugar do item que seria removido se tiver sido buscado mais vezes do que ele, segundo um
+ * {@link FrequencySketch} (politica TinyLFU). Todas as buscas, com acerto ou nao, alimentam a frequencia.
+ * <p>
+ * No maximo uma vez a cada {@link #CHECK_INTERVAL} milissegundos o tamanho e a data de modificaçao do indice e do
+ * arquivo de bolsa sao conferidos. Se algum mudou, o cache e esvaziado e os arquivos sao abertos de novo.
+ */
+public class BagCache implements Closeable {
+
+    /**
+     * Intervalo minimo, em milissegundos, entre duas conferencias dos arquivos.
+     */
+    public static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * Memoria estimada de um item sem linha: chave, item e no do mapa.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * Memoria estimada dos objetos de um cadastro decodificado e da linha, sem contar o texto: o {@link FamilyBag} e
+     * os 13 objetos String.
+     */
+    private static final int FAMILY_BAG_OVERHEAD = 13 * 40 + 64;
+
+    /**
+     * Arquivo de indice.
+     */
+    private final File indexFile;
+
+    /**
+     * Arquivo de bolsa.
+     */
+    private final File bagFile;
+
+    /**
+     * Quantidade maxima de itens.
+     */
+    private final int maxEntries;
+
+    /**
+     * Memoria maxima estimada, em bytes.
+     */
+    private final long maxWeight;
+
+    /**
+     * Itens do cache, do usado ha mais tempo para o mais recente.
+     */
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Frequencia recente de cada NIS.
+     */
+    private final FrequencySketch sketch;
+
+    /**
+     * Protege a troca do buscador: as buscas usam a trava de leitura e a reabertura dos arquivos a de escrita.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Buscador dos arquivos atuais, ou null se a ultima reabertura falhou.
+     */
+    private BagSearcher searcher;
+
+    /**
+     * Metricas das buscas feitas no indice, mantidas quando os arquivos sao reabertos.
+     */
+    private final LookupMetrics metrics = new LookupMetrics();
+
+    /**
+     * Tamanho e data de modificaçao dos arquivos quando foram abertos.
+     */
+    private long[] fileStamp;
+
+    /**
+     * Momento a partir do qual os arquivos devem ser conferidos de novo.
+     */
+    private volatile long nextCheck;
+
+    /**
+     * Memoria estimada dos itens do cache.
+     */
+    private long weight;
+
+    /**
+     * Buscas respondidas pelo cache.
+     */
+    private long hits;
+
+    /**
+     * Buscas que precisaram do indice.
+     */
+    private long misses;
+
+    /**
+     * Itens removidos para dar lugar a outros.
+     */
+    private long evictions;
+
+    /**
+     * Itens que nao entraram no cache pela politica de admissao.
+     */
+    private long rejections;
+
+    /**
+     * Vezes em que o cache foi esvaziado por mudança nos arquivos.
+     */
+    private long invalidations;
+
+    /**
+     * Construtor. Abre os arquivos como {@link BagSearcher}.
+     *
+     * @param indexFile  {@link #indexFile}
+     * @param bagFile    {@link #bagFile}
+     * @param maxEntries {@link #maxEntries}. Com 0 nada e guardado, mas os arquivos continuam sendo conferidos.
+     * @param maxWeight  {@link #maxWeight}
+     * @throws IOException se os arquivos nao puderem ser abertos ou nao corresponderem.
+     */
+    public BagCache(File indexFile, File bagFile, int maxEntries, long maxWeight) throws IOException {
+        this.indexFile = indexFile;
+        this.bagFile = bagFile;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.sketch = new FrequencySketch(maxEntries);
+        this.fileStamp = fileStamp();
+        this.searcher = new BagSearcher(indexFile, bagFile, metrics);
+        this.nextCheck = System.currentTimeMillis() + CHECK_INTERVAL;
+    }
+
+    /**
+     * Busca o cadastro de bolsa de um NIS.
+     *
+     * @param nis NIS com 14 digitos.
+     * @return Cadastro encontrado, ou null se o NIS nao estiver no indice.
+     * @throws IOException
+     * @throws IllegalArgumentException se o NIS nao tiver 14 digitos.
+     */
+    public FamilyBag find(String nis) throws IOException {
+        return lookup(BinaryIndex.packNis(nis)).familyBag();
+    }
+
+    /**
+     * Busca a linha do arquivo de bolsa de um NIS.
+     *
+     * @param nis NIS empacotado.
+     * @return Linha encontrada, ou null se o NIS nao estiver no indice.
+     * @throws IOException
+     */
+    public String findLine(long nis) throws IOException {
+        return lookup(nis).line;
+    }
+
+    /**
+     * Le todas as linhas do arquivo de bolsa de um NIS ({@link BagSearcher#findAll(long, BagSearcher.LineHandler)}).
+     * Estas buscas nao passam pelo cache.
+     *
+     * @param nis     NIS empacotado.
+     * @param handler Recebe cada linha lida.
+     * @return Quantidade de linhas lidas.
+     * @throws IOException
+     */
+    public int findAll(long nis, BagSearcher.LineHandler handler) throws IOException {
+        checkFiles();
+        lock.readLock().lock();
+        try {
+            if (searcher == null) {
+                throw new IOException("Os arquivos nao puderam ser reabertos.");
+            }
+            return searcher.findAll(nis, handler);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Busca o item de um NIS no cache ou, se nao estiver, no indice, e tenta guarda-lo no cache.
+     *
+     * @param nis NIS empacotado.
+     * @return Item do NIS.
+     * @throws IOException
+     */
+    private Entry lookup(long nis) throws IOException {
+        checkFiles();
+        lock.readLock().lock();
+        try {
+            if (searcher == null) {
+                throw new IOException("Os arquivos nao puderam ser reabertos.");
+            }
+            synchronized (entries) {
+                sketch.increment(nis);
+                Entry entry = entries.get(nis);
+                if (entry != null) {
+                    hits++;
+                    return entry;
+                }
+                misses++;
+            }
+            Entry entry = new Entry(searcher.findLine(nis));
+            synchronized (entries) {
+                admit(nis, entry);
+            }
+            return entry;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Guarda um item no cache, removendo os itens usados ha mais tempo enquanto os limites forem ultrapassados. Se
+     * algum dos itens que seriam removidos foi buscado tantas vezes quanto o novo ou mais, o novo e descartado e nenhum
+     * item e removido.
+     *
+     * @param nis   NIS empacotado.
+     * @param entry Item do NIS.
+     */
+    private void admit(long nis, Entry entry) {
+        if (entries.containsKey(nis)) {
+            return;
+        }
+        if (maxEntries == 0 || entry.weight > maxWeight) {
+            rejections++;
+            return;
+        }
+        // Primeiro escolhe as vitimas, sem remover nada: o novo item so entra se foi buscado mais vezes do que cada
+        // uma delas.
+        int frequency = sketch.frequency(nis);
+        int victims = 0;
+        long freedWeight = 0;
+        Iterator<Map.Entry<Long, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() - victims >= maxEntries || weight - freedWeight + entry.weight > maxWeight) {
+            Map.Entry<Long, Entry> victim = eldest.next();
+            if (frequency <= sketch.frequency(victim.getKey())) {
+                rejections++;
+                return;
+            }
+            victims++;
+            freedWeight += victim.getValue().weight;
+        }
+        eldest = entries.entrySet().iterator();
+        for (int i = 0; i < victims; i++) {
+            eldest.next();
+            eldest.remove();
+        }
+        weight -= freedWeight;
+        evictions += victims;
+        entries.put(nis, entry);
+        weight += entry.weight;
+    }
+
+    /**
+     * Confere se o indice ou o arquivo de bolsa mudaram desde que foram abertos. Se mudaram, esvazia o cache e abre os
+     * arquivos de novo.
+     *
+     * @throws IOException se os arquivos nao puderem ser reabertos.
+     */
+    private void checkFiles() throws IOException {
+        if (System.currentTimeMillis() < nextCheck) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (now < nextCheck) {
+                return;
+            }
+            long[] currentStamp = fileStamp();
+            if (searcher != null && Arrays.equals(currentStamp, fileStamp)) {
+                nextCheck = now + CHECK_INTERVAL;
+                return;
+            }
+            synchronized (entries) {
+                if (!entries.isEmpty() || searcher != null) {
+                    invalidations++;
+                }
+                entries.clear();
+                weight = 0;
+            }
+            if (searcher != null) {
+                searcher.close();
+                searcher = null;
+            }
+            // Se a reabertura falhar, o proximo acesso tenta de novo.
+            searcher = new BagSearcher(indexFile, bagFile, metrics);
+            fileStamp = currentStamp;
+            nextCheck = now + CHECK_INTERVAL;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Tamanho e data de modificaçao do indice e do arquivo de bolsa.
+     */
+    private long[] fileStamp() {
+        return new long[]{indexFile.length(), indexFile.lastModified(), bagFile.length(), bagFile.lastModified()};
+    }
+
+    /**
+     * Identificaçao do indice aberto ({@link BagSearcher#indexInfo()}), depois de conferir se os arquivos mudaram.
+     *
+     * @return Identificaçao do indice.
+     * @throws IOException se os arquivos nao puderem ser reabertos.
+     */
+    public String indexInfo() throws IOException {
+        checkFiles();
+        lock.readLock().lock();
+        try {
+            if (searcher == null) {
+                throw new IOException("Os arquivos nao puderam ser reabertos.");
+            }
+            return searcher.indexInfo();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Metricas das buscas que passaram do cache para o indice.
+     */
+    public LookupMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Quantidade de itens no cache.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return Resumo dos contadores do cache, no formato chave=valor separado por espaços.
+     */
+    public String stats() {
+        synchronized (entries) {
+            return "entries=" + entries.size() + " weight=" + weight + " hits=" + hits + " misses=" + misses
+                    + " evictions=" + evictions + " rejections=" + rejections + " invalidations=" + invalidations;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (searcher != null) {
+                searcher.close();
+                searcher = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Item do cache.
+     */
+    private static class Entry {
+
+        /**
+         * Linha do arquivo de bolsa, ou null se o NIS nao estiver no indice.
+         */
+        private final String line;
+
+        /**
+         * Memoria estimada do item, contando o cadastro decodificado.
+         */
+        private final int weight;
+
+        /**
+         * Cadastro decodificado, criado na primeira vez que e pedido.
+         */
+        private volatile FamilyBag familyBag;
+
+        /**
+         * Construtor.
+         *
+         * @param line {@link #line}
+         */
+        private Entry(String line) {
+            this.line = line;
+            // A linha e os campos decodificados ocupam um byte por caractere (ISO-8859-1).
+            this.weight = ENTRY_OVERHEAD + (line != null ? 2 * line.length() + FAMILY_BAG_OVERHEAD : 0);
+        }
+
+        /**
+         * @return Cadastro decodificado, ou null se o NIS nao estiver no indice.
+         */
+        private FamilyBag familyBag() {
+            if (familyBag == null && line != null) {
+                familyBag = FamilyBag.fromLine(line);
+            }
+            return familyBag;
+        }
+    }
+}
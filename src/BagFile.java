@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Operaçoes de leitura do arquivo de bolsa.
+ * <p>
+ * As leituras sao posicionais ({@link FileChannel#read(ByteBuffer, long)}), sem mover o ponteiro do arquivo, entao o
+ * mesmo canal pode ser compartilhado entre threads.
+ */
+public class BagFile {
+
+    /**
+     * Tamanho inicial da leitura de uma linha. Maior que uma linha tipica do arquivo de bolsa.
+     */
+    private static final int LINE_READ_SIZE = 512;
+
+    /**
+     * Distancia maxima entre duas linhas para que sejam lidas juntas em
+     * {@link #readLines(FileChannel, long[], BagSearcher.LineHandler)}.
+     */
+    private static final int COALESCE_GAP = 64 * 1024;
+
+    /**
+     * Tamanho reservado para a ultima linha de um grupo lido junto.
+     */
+    private static final int MAX_LINE_SIZE = 1024;
+
+    /**
+     * Le a linha que comeca na posiçao informada, sem a quebra de linha.
+     * <p>
+     * Os bytes sao convertidos um a um para caracteres (ISO-8859-1), como faz {@link java.io.RandomAccessFile#readLine()}.
+     *
+     * @param channel  Canal do arquivo de bolsa.
+     * @param position Posiçao do inicio da linha.
+     * @return Linha lida, ou null se a posiçao estiver no fim do arquivo.
+     * @throws IOException
+     */
+    public static String readLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LINE_READ_SIZE);
+        int scanned = 0;
+        while (true) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0 && buffer.position() == 0) {
+                return null;
+            }
+            byte[] bytes = buffer.array();
+            int end = buffer.position();
+            int lineEnd = lineEnd(bytes, scanned, end);
+            if (lineEnd >= 0) {
+                return toLine(bytes, 0, lineEnd);
+            }
+            if (read < 0) {
+                return toLine(bytes, 0, end);
+            }
+            scanned = end;
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    /**
+     * Le as linhas de varias posiçoes, em sequencia no disco.
+     * <p>
+     * Posiçoes separadas por menos de {@link #COALESCE_GAP} bytes sao lidas juntas, em uma unica leitura.
+     *
+     * @param channel         Canal do arquivo de bolsa.
+     * @param sortedPositions Posiçoes das linhas, em ordem crescente.
+     * @param handler         Recebe cada linha lida, na ordem das posiçoes.
+     * @throws IOException
+     */
+    public static void readLines(FileChannel channel, long[] sortedPositions, BagSearcher.LineHandler handler)
+            throws IOException {
+        readCoalesced(channel, sortedPositions,
+                (reader, position, readAhead) -> handler.handle(reader.readLine(position, readAhead)));
+    }
+
+    /**
+     * Le os cadastros de varias posiçoes, em sequencia no disco, como em
+     * {@link #readLines(FileChannel, long[], BagSearcher.LineHandler)}, mas sem converter as linhas em String.
+     * <p>
+     * Cada cadastro e entregue como uma {@link FamilyBagView} sobre a janela de leitura, reaproveitada a cada linha:
+     * a visao so e valida durante a chamada ao handler.
+     *
+     * @param channel         Canal do arquivo de bolsa.
+     * @param sortedPositions Posiçoes das linhas, em ordem crescente.
+     * @param handler         Recebe cada cadastro lido, na ordem das posiçoes.
+     * @throws IOException
+     */
+    public static void readRecords(FileChannel channel, long[] sortedPositions, BagSearcher.RecordHandler handler)
+            throws IOException {
+        FamilyBagView view = new FamilyBagView();
+        readCoalesced(channel, sortedPositions, (reader, position, readAhead) -> {
+            if (reader.readRecord(position, readAhead, view) != null) {
+                handler.handle(view);
+            }
+        });
+    }
+
+    /**
+     * Percorre posiçoes em ordem crescente, juntando em uma unica leitura as posiçoes separadas por menos de
+     * {@link #COALESCE_GAP} bytes.
+     *
+     * @param channel         Canal do arquivo de bolsa.
+     * @param sortedPositions Posiçoes das linhas, em ordem crescente.
+     * @param visitor         Le a linha de cada posiçao.
+     * @throws IOException
+     */
+    private static void readCoalesced(FileChannel channel, long[] sortedPositions, PositionVisitor visitor)
+            throws IOException {
+        SequentialReader reader = new SequentialReader(channel);
+        int groupEnd = 0;
+        for (int i = 0; i < sortedPositions.length; i++) {
+            // Estendendo o grupo de posiçoes proximas que cabem em uma leitura.
+            if (groupEnd <= i) {
+                groupEnd = i + 1;
+                while (groupEnd < sortedPositions.length
+                        && sortedPositions[groupEnd] - sortedPositions[groupEnd - 1] < COALESCE_GAP
+                        && sortedPositions[groupEnd] - sortedPositions[i] + MAX_LINE_SIZE
+                        < SequentialReader.WINDOW_SIZE) {
+                    groupEnd++;
+                }
+            }
+            int readAhead = (int) (sortedPositions[groupEnd - 1] - sortedPositions[i]) + MAX_LINE_SIZE;
+            visitor.visit(reader, sortedPositions[i], readAhead);
+        }
+    }
+
+    /**
+     * Posiçao da primeira linha de dados, logo apos a linha de cabecalho.
+     *
+     * @param channel Canal do arquivo de bolsa.
+     * @return Posiçao da primeira linha de dados.
+     * @throws IOException
+     */
+    public static long dataStart(FileChannel channel) throws IOException {
+        return nextLineStart(channel, 1);
+    }
+
+    /**
+     * Divide um trecho do arquivo em partes de tamanho parecido, todas começando no inicio de uma linha.
+     *
+     * @param channel Canal do arquivo de bolsa.
+     * @param start   Inicio do trecho, no inicio de uma linha.
+     * @param end     Fim do trecho, exclusive.
+     * @param parts   Quantidade de partes.
+     * @return Limites das partes: a parte i vai de limits[i] ate limits[i + 1], exclusive. Partes podem ser vazias.
+     * @throws IOException
+     */
+    public static long[] splitRanges(FileChannel channel, long start, long end, int parts) throws IOException {
+        long[] limits = new long[parts + 1];
+        limits[0] = start;
+        limits[parts] = end;
+        for (int i = 1; i < parts; i++) {
+            long target = start + (end - start) * i / parts;
+            limits[i] = Math.min(end, Math.max(limits[i - 1], nextLineStart(channel, target)));
+        }
+        return limits;
+    }
+
+    /**
+     * Primeiro inicio de linha a partir de uma posiçao.
+     *
+     * @param channel  Canal do arquivo de bolsa.
+     * @param position Posiçao.
+     * @return A propria posiçao, se ela for inicio de linha, ou o inicio da linha seguinte.
+     * @throws IOException
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        if (position <= 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(LINE_READ_SIZE);
+        long current = position - 1;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, current);
+            if (read < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return current + i + 1;
+                }
+            }
+            current += read;
+        }
+    }
+
+    /**
+     * Le a linha que comeca em um trecho ja lido do arquivo, se ela terminar dentro do trecho.
+     *
+     * @param bytes  Trecho lido.
+     * @param offset Inicio da linha no trecho.
+     * @param limit  Fim do trecho, exclusive.
+     * @return Linha lida, sem a quebra de linha, ou null se a quebra de linha nao estiver no trecho.
+     */
+    static String lineAt(byte[] bytes, int offset, int limit) {
+        int end = lineEnd(bytes, offset, limit);
+        return end >= 0 ? toLine(bytes, offset, end) : null;
+    }
+
+    /**
+     * Procura a quebra de linha em um trecho ja lido do arquivo.
+     *
+     * @param bytes Trecho lido.
+     * @param from  Inicio da busca.
+     * @param limit Fim do trecho, exclusive.
+     * @return Posiçao do '\n' no trecho, ou -1 se ele nao estiver no trecho.
+     */
+    private static int lineEnd(byte[] bytes, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Converte os bytes de uma linha em String, descartando o '\r' final.
+     *
+     * @param bytes Bytes lidos.
+     * @param start Inicio da linha.
+     * @param end   Fim da linha, exclusive.
+     * @return Linha.
+     */
+    private static String toLine(byte[] bytes, int start, int end) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Le a linha de uma posiçao com o leitor sequencial.
+     */
+    private interface PositionVisitor {
+
+        /**
+         * Le a linha de uma posiçao.
+         *
+         * @param reader    Leitor sequencial compartilhado pelas posiçoes.
+         * @param position  Posiçao do inicio da linha.
+         * @param readAhead Quantidade de bytes a ler se a linha nao estiver na janela atual.
+         * @throws IOException
+         */
+        void visit(SequentialReader reader, long position, int readAhead) throws IOException;
+    }
+
+    /**
+     * Leitor de linhas em posiçoes crescentes do arquivo de bolsa.
+     * <p>
+     * As leituras sao feitas em uma janela de ate {@link #WINDOW_SIZE} bytes. Enquanto as posiçoes pedidas estiverem
+     * dentro da janela atual nao ha nova leitura no arquivo, entao linhas proximas sao lidas com uma unica leitura e o
+     * disco e percorrido em sequencia.
+     */
+    public static class SequentialReader {
+
+        /**
+         * Tamanho maximo da janela de leitura.
+         */
+        public static final int WINDOW_SIZE = 1024 * 1024;
+
+        /**
+         * Canal do arquivo de bolsa.
+         */
+        private final FileChannel channel;
+
+        /**
+         * Janela de leitura.
+         */
+        private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+
+        /**
+         * Posiçao no arquivo do primeiro byte da janela.
+         */
+        private long windowStart;
+
+        /**
+         * Construtor.
+         *
+         * @param channel {@link #channel}
+         */
+        public SequentialReader(FileChannel channel) {
+            this.channel = channel;
+            this.window.limit(0);
+        }
+
+        /**
+         * Le a linha que comeca na posiçao informada, sem a quebra de linha.
+         *
+         * @param position  Posiçao do inicio da linha. Deve ser maior ou igual a posiçao da chamada anterior.
+         * @param readAhead Quantidade de bytes a partir da posiçao que devem ser lidos se a linha nao estiver na
+         *                  janela atual. Deve cobrir as proximas linhas que serao pedidas, limitada a
+         *                  {@link #WINDOW_SIZE}.
+         * @return Linha lida, ou null se a posiçao estiver no fim do arquivo.
+         * @throws IOException
+         */
+        public String readLine(long position, int readAhead) throws IOException {
+            int end = fillWindow(position, readAhead);
+            if (end < 0) {
+                // Linha maior que a janela ou no fim do arquivo.
+                return BagFile.readLine(channel, position);
+            }
+            return toLine(window.array(), (int) (position - windowStart), end);
+        }
+
+        /**
+         * Le o cadastro que comeca na posiçao informada, sem converter a linha em String.
+         * <p>
+         * Se a linha estiver na janela, a visao aponta direto para os bytes da janela e so e valida ate a proxima
+         * leitura deste leitor.
+         *
+         * @param position  Posiçao do inicio da linha. Deve ser maior ou igual a posiçao da chamada anterior.
+         * @param readAhead Quantidade de bytes a partir da posiçao que devem ser lidos se a linha nao estiver na
+         *                  janela atual, como em {@link #readLine(long, int)}.
+         * @param view      Visao reaproveitada, posicionada sobre a linha lida.
+         * @return A propria visao, ou null se a posiçao estiver no fim do arquivo.
+         * @throws IOException
+         */
+        public FamilyBagView readRecord(long position, int readAhead, FamilyBagView view) throws IOException {
+            int end = fillWindow(position, readAhead);
+            if (end < 0) {
+                // Linha maior que a janela ou no fim do arquivo.
+                String line = BagFile.readLine(channel, position);
+                if (line == null) {
+                    return null;
+                }
+                byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+                return view.wrap(ByteBuffer.wrap(bytes), 0, bytes.length);
+            }
+            int offset = (int) (position - windowStart);
+            return view.wrap(window, offset, end - offset);
+        }
+
+        /**
+         * Garante que a linha da posiçao informada esteja na janela, lendo uma nova janela se preciso.
+         *
+         * @param position  Posiçao do inicio da linha.
+         * @param readAhead Quantidade de bytes a partir da posiçao que devem ser lidos se a linha nao estiver na
+         *                  janela atual.
+         * @return Posiçao do '\n' da linha na janela, ou -1 se a linha nao couber na janela ou estiver no fim do
+         * arquivo.
+         * @throws IOException
+         */
+        private int fillWindow(long position, int readAhead) throws IOException {
+            int end = findInWindow(position);
+            if (end < 0) {
+                window.clear();
+                window.limit(Math.max(LINE_READ_SIZE, Math.min(readAhead, WINDOW_SIZE)));
+                windowStart = position;
+                while (window.hasRemaining() && channel.read(window, windowStart + window.position()) >= 0) {
+                    // Preenchendo a janela.
+                }
+                window.flip();
+                end = findInWindow(position);
+            }
+            return end;
+        }
+
+        /**
+         * Procura a linha na janela atual.
+         *
+         * @param position Posiçao do inicio da linha.
+         * @return Posiçao do '\n' da linha na janela, ou -1 se a linha nao estiver inteira na janela.
+         */
+        private int findInWindow(long position) {
+            long offset = position - windowStart;
+            if (offset < 0 || offset >= window.limit()) {
+                return -1;
+            }
+            return lineEnd(window.array(), (int) offset, window.limit());
+        }
+    }
+}
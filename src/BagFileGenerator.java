@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Gera arquivos de bolsa sinteticos, no mesmo formato dos arquivos do Portal da Transparencia, para medir o desempenho
+ * da geraçao do indice e das buscas ({@link Benchmark}) em arquivos de tamanho conhecido.
+ * <p>
+ * Os NIS sao sorteados de um conjunto com um terço da quantidade de linhas, entao a maioria dos NIS aparece em mais de
+ * uma linha, como nos arquivos reais. O mesmo seed gera sempre o mesmo arquivo.
+ */
+public class BagFileGenerator {
+
+    /**
+     * Seed padrao do gerador de numeros aleatorios.
+     */
+    private static final long DEFAULT_SEED = 1;
+
+    /**
+     * Cabeçalho do arquivo de bolsa.
+     */
+    private static final String HEADER = "UF\tCódigo SIAFI Município\tNome Município\tCódigo Função\tCódigo Subfunção"
+            + "\tCódigo Programa\tCódigo Ação\tNIS Favorecido\tNome Favorecido\tFonte-Finalidade\tValor Parcela"
+            + "\tMês Competência";
+
+    /**
+     * UFs sorteadas.
+     */
+    private static final String[] UFS = {"AC", "AL", "AM", "BA", "CE", "DF", "ES", "GO", "MA", "MG", "MS", "MT", "PA",
+            "PB", "PE", "PI", "PR", "RJ", "RN", "RO", "RR", "RS", "SC", "SE", "SP", "TO"};
+
+    /**
+     * Nomes sorteados para os favorecidos.
+     */
+    private static final String[] NAMES = {"MARIA", "JOSÉ", "ANA", "JOÃO", "FRANCISCA", "ANTÔNIO", "LUÍZA", "CONCEIÇÃO"};
+
+    /**
+     * Sobrenomes sorteados para os favorecidos.
+     */
+    private static final String[] SURNAMES = {"DA SILVA", "DOS SANTOS", "DE OLIVEIRA", "DE SOUSA", "PEREIRA",
+            "FERREIRA", "DE ARAÚJO", "GONÇALVES"};
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE = "Use <Arquivo de saida> <Quantidade de linhas[k|m]> [--seed=N]";
+
+    /**
+     * Gera um arquivo de bolsa sintetico.
+     *
+     * @param args Use <Arquivo de saida> <Quantidade de linhas[k|m]> [--seed=N]. Por exemplo, 1m, 10m e 50m geram
+     *             arquivos de 1, 10 e 50 milhoes de linhas.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+        long lines = 0;
+        long seed = DEFAULT_SEED;
+        try {
+            String count = args[1].toLowerCase();
+            long multiplier = count.endsWith("k") ? 1000 : count.endsWith("m") ? 1000_000 : 1;
+            if (multiplier > 1) {
+                count = count.substring(0, count.length() - 1);
+            }
+            lines = Long.parseLong(count) * multiplier;
+            if (args.length == 3) {
+                if (!args[2].startsWith("--seed=")) {
+                    throw new NumberFormatException(args[2]);
+                }
+                seed = Long.parseLong(args[2].substring("--seed=".length()));
+            }
+        } catch (NumberFormatException e) {
+            lines = 0;
+        }
+        if (lines <= 0) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+
+        long t1 = System.currentTimeMillis();
+        try {
+            generate(new File(args[0]), lines, seed);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar escrever o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+        long duration = System.currentTimeMillis() - t1;
+        System.out.println("[INFO] - " + lines + " linhas geradas em " + duration + " milissegundos.");
+    }
+
+    /**
+     * Gera um arquivo de bolsa sintetico.
+     *
+     * @param file  Arquivo de saida.
+     * @param lines Quantidade de linhas, sem contar o cabeçalho.
+     * @param seed  Seed do gerador de numeros aleatorios.
+     * @throws IOException
+     */
+    public static void generate(File file, long lines, long seed) throws IOException {
+        Random random = new Random(seed);
+        // Os NIS do conjunto sao derivados do indice por uma permutaçao, assim nao e preciso guardar o conjunto.
+        long distinctNis = Math.max(1, lines / 3);
+        long nisSeed = random.nextLong() | 1;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.ISO_8859_1), 1024 * 1024)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            StringBuilder line = new StringBuilder(256);
+            for (long i = 0; i < lines; i++) {
+                int city = 1000 + random.nextInt(9000);
+                long cents = 3000 + random.nextInt(200_000);
+                long nis = Math.floorMod((Math.floorMod(random.nextLong(), distinctNis) + 1) * nisSeed,
+                        90_000_000_000L) + 10_000_000_000L;
+
+                line.setLength(0);
+                line.append(UFS[random.nextInt(UFS.length)]).append('\t');
+                line.append(city).append('\t');
+                line.append("MUNICÍPIO ").append(city).append('\t');
+                line.append("08\t0244\t1335\t8442\t");
+                appendPadded(line, nis, BinaryIndex.NIS_LENGTH).append('\t');
+                line.append(NAMES[random.nextInt(NAMES.length)]).append(' ')
+                        .append(SURNAMES[random.nextInt(SURNAMES.length)]).append('\t');
+                line.append("CAIXA-Programa Bolsa Família").append('\t');
+                appendValue(line, cents).append('\t');
+                appendPadded(line, 1 + random.nextInt(12), 2).append("/2015");
+                line.append('\n');
+                writer.append(line);
+            }
+        }
+    }
+
+    /**
+     * Acrescenta um numero com zeros a esquerda.
+     *
+     * @param line   Linha em montagem.
+     * @param value  Numero nao negativo.
+     * @param digits Quantidade de digitos.
+     * @return A propria linha.
+     */
+    private static StringBuilder appendPadded(StringBuilder line, long value, int digits) {
+        String text = Long.toString(value);
+        for (int i = text.length(); i < digits; i++) {
+            line.append('0');
+        }
+        return line.append(text);
+    }
+
+    /**
+     * Acrescenta um valor em centavos no formato dos arquivos de bolsa, como 1.234,56.
+     *
+     * @param line  Linha em montagem.
+     * @param cents Valor em centavos.
+     * @return A propria linha.
+     */
+    private static StringBuilder appendValue(StringBuilder line, long cents) {
+        long reais = cents / 100;
+        if (reais >= 1000) {
+            line.append(reais / 1000).append('.');
+            appendPadded(line, reais % 1000, 3);
+        } else {
+            line.append(reais);
+        }
+        line.append(',');
+        return appendPadded(line, cents % 100, 2);
+    }
+}
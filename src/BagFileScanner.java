@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Leitor de um trecho do arquivo de bolsa direto dos bytes, sem criar String por linha.
+ * <p>
+ * O trecho e lido em um {@link ByteBuffer} direto de {@link #BUFFER_SIZE} bytes. A cada {@link #next()} o leitor
+ * encontra o fim da linha e o inicio de cada coluna, guardando apenas as posiçoes no buffer. As colunas sao lidas sob
+ * demanda, como o NIS em {@link #nis()}, que e convertido direto para long.
+ * <p>
+ * A posiçao de cada linha no arquivo e calculada pelo proprio leitor. Linhas vazias sao ignoradas.
+ */
+public class BagFileScanner {
+
+    /**
+     * Tamanho do buffer de leitura.
+     */
+    private static final int BUFFER_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Quantidade de colunas do arquivo de bolsa.
+     */
+    public static final int COLUMN_COUNT = 12;
+
+    /**
+     * Coluna do NIS do favorecido.
+     */
+    public static final int NIS_COLUMN = 7;
+
+    /**
+     * Coluna do valor da parcela.
+     */
+    public static final int VALUE_COLUMN = 10;
+
+    /**
+     * Canal do arquivo de bolsa.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Fim do trecho, exclusive.
+     */
+    private final long end;
+
+    /**
+     * Buffer de leitura.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Posiçao no arquivo do primeiro byte do buffer.
+     */
+    private long bufferStart;
+
+    /**
+     * Posiçao no arquivo do primeiro byte ainda nao lido para o buffer.
+     */
+    private long readPosition;
+
+    /**
+     * Inicio da linha seguinte no buffer.
+     */
+    private int nextLine;
+
+    /**
+     * Inicio de cada coluna da linha atual no buffer. A posiçao {@link #COLUMN_COUNT} guarda o fim da linha mais um,
+     * assim a coluna i termina em {@code columnStarts[i + 1] - 1}.
+     */
+    private final int[] columnStarts = new int[COLUMN_COUNT + 1];
+
+    /**
+     * Quantidade de colunas encontradas na linha atual.
+     */
+    private int columnCount;
+
+    /**
+     * Construtor.
+     *
+     * @param channel Canal do arquivo de bolsa.
+     * @param start   Inicio do trecho, no inicio de uma linha.
+     * @param end     Fim do trecho, exclusive, no inicio de uma linha ou no fim do arquivo.
+     */
+    public BagFileScanner(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.end = end;
+        this.bufferStart = start;
+        this.readPosition = start;
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Avança para a proxima linha do trecho.
+     *
+     * @return <true>, se ha uma nova linha, ou <false> no fim do trecho.
+     * @throws IOException se uma linha for maior que o buffer.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int lineStart = nextLine;
+            int limit = buffer.limit();
+            int column = 0;
+            columnStarts[0] = lineStart;
+            int i = lineStart;
+            while (i < limit) {
+                byte b = buffer.get(i++);
+                if (b == '\t') {
+                    if (++column < COLUMN_COUNT) {
+                        columnStarts[column] = i;
+                    }
+                } else if (b == '\n') {
+                    break;
+                }
+            }
+
+            boolean lineComplete = i > lineStart && buffer.get(i - 1) == '\n';
+            if (!lineComplete && readPosition < end) {
+                // Linha incompleta no fim do buffer: recarregando a partir do inicio dela.
+                refill(lineStart);
+                continue;
+            }
+            if (i == lineStart) {
+                return false;
+            }
+
+            nextLine = i;
+            int lineEnd = lineComplete ? i - 1 : i;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd == lineStart) {
+                // Linha vazia.
+                continue;
+            }
+            columnCount = Math.min(column + 1, COLUMN_COUNT);
+            columnStarts[columnCount] = lineEnd + 1;
+            return true;
+        }
+    }
+
+    /**
+     * @return Posiçao no arquivo do inicio da linha atual.
+     */
+    public long position() {
+        return bufferStart + columnStarts[0];
+    }
+
+    /**
+     * @return Quantidade de colunas da linha atual.
+     */
+    public int columnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Converte o NIS da linha atual para long.
+     *
+     * @return NIS empacotado como em {@link BinaryIndex#packNis(CharSequence)}.
+     * @throws IOException se a linha nao tiver a coluna de NIS ou se ela nao tiver {@link BinaryIndex#NIS_LENGTH}
+     *                     digitos.
+     */
+    public long nis() throws IOException {
+        if (columnCount <= NIS_COLUMN) {
+            throw new IOException("Linha sem a coluna de NIS na posiçao " + position() + ".");
+        }
+        int start = columnStarts[NIS_COLUMN];
+        int end = columnStarts[NIS_COLUMN + 1] - 1;
+        if (end - start != BinaryIndex.NIS_LENGTH) {
+            throw new IOException("NIS invalido na posiçao " + position() + ".");
+        }
+        long nis = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("NIS invalido na posiçao " + position() + ".");
+            }
+            nis = nis * 10 + digit;
+        }
+        return nis;
+    }
+
+    /**
+     * Converte o valor da linha atual, no formato brasileiro (1.234,56), para centavos, sem criar String. Os pontos
+     * de milhar sao ignorados e a parte decimal pode ter 0, 1 ou 2 digitos.
+     *
+     * @return Valor em centavos.
+     * @throws IOException se a linha nao tiver a coluna de valor ou se ela nao for um valor valido.
+     */
+    public long valueCents() throws IOException {
+        if (columnCount <= VALUE_COLUMN) {
+            throw new IOException("Linha sem a coluna de valor na posiçao " + position() + ".");
+        }
+        int i = columnStarts[VALUE_COLUMN];
+        int end = columnStarts[VALUE_COLUMN + 1] - 1;
+        boolean negative = i < end && buffer.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long units = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                if (decimals >= 0) {
+                    decimals++;
+                }
+                units = units * 10 + (b - '0');
+                digits++;
+            } else if (b == ',' && decimals < 0) {
+                decimals = 0;
+            } else if (b != '.' || decimals >= 0) {
+                digits = 0;
+                break;
+            }
+        }
+        if (digits == 0 || digits > 17 || decimals > 2) {
+            throw new IOException("Valor invalido na posiçao " + position() + ".");
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            units *= 10;
+        }
+        return negative ? -units : units;
+    }
+
+    /**
+     * Copia os bytes de uma coluna da linha atual.
+     *
+     * @param column      Numero da coluna.
+     * @param destination Destino.
+     * @param offset      Posiçao de escrita no destino.
+     * @return Posiçao logo apos a coluna copiada, ou -1 se a linha nao tiver a coluna ou ela nao couber no destino.
+     */
+    public int copyColumn(int column, byte[] destination, int offset) {
+        if (column >= columnCount) {
+            return -1;
+        }
+        int start = columnStarts[column];
+        int length = columnStarts[column + 1] - 1 - start;
+        if (offset + length > destination.length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            destination[offset + i] = buffer.get(start + i);
+        }
+        return offset + length;
+    }
+
+    /**
+     * Le uma coluna da linha atual como texto. Os bytes sao convertidos um a um para caracteres (ISO-8859-1), como em
+     * {@link BagFile#readLine(FileChannel, long)}.
+     *
+     * @param column Numero da coluna.
+     * @return Valor da coluna, ou null se a linha nao tiver a coluna.
+     */
+    public String column(int column) {
+        if (column >= columnCount) {
+            return null;
+        }
+        int start = columnStarts[column];
+        char[] chars = new char[columnStarts[column + 1] - 1 - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (buffer.get(start + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Compara uma coluna da linha atual com um texto, sem criar String.
+     *
+     * @param column Numero da coluna.
+     * @param value  Texto comparado.
+     * @return <true>, se a linha tem a coluna e ela e igual ao texto.
+     */
+    public boolean columnEquals(int column, String value) {
+        if (column >= columnCount) {
+            return false;
+        }
+        int start = columnStarts[column];
+        if (columnStarts[column + 1] - 1 - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if ((buffer.get(start + i) & 0xFF) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Descarta as linhas ja lidas do buffer e completa o buffer com os bytes seguintes do trecho.
+     *
+     * @param keepFrom Posiçao no buffer a partir da qual os bytes ainda sao necessarios.
+     * @throws IOException se a linha atual nao couber no buffer.
+     */
+    private void refill(int keepFrom) throws IOException {
+        if (keepFrom == 0 && buffer.limit() == buffer.capacity()) {
+            throw new IOException("Linha maior que " + BUFFER_SIZE + " bytes na posiçao " + bufferStart + ".");
+        }
+        buffer.position(keepFrom);
+        buffer.compact();
+        bufferStart += keepFrom;
+        nextLine = 0;
+        int space = (int) Math.min(buffer.remaining(), end - readPosition);
+        buffer.limit(buffer.position() + space);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, readPosition);
+            if (read < 0) {
+                // Arquivo menor que o trecho informado.
+                readPosition = end;
+                break;
+            }
+            readPosition += read;
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Buscador de cadastros de bolsa reutilizavel.
+ * <p>
+ * O arquivo de indice e o arquivo de bolsa sao abertos uma unica vez no construtor. O indice fica mapeado em memoria
+ * e o arquivo de bolsa e lido com leituras posicionais, entao {@link #find(String)} pode ser chamado por varias
+ * threads ao mesmo tempo.
+ * <p>
+ * Cada busca por NIS e registrada no {@link LookupMetrics}: latencia, sondagens no indice e bytes lidos do arquivo de
+ * bolsa.
+ */
+public class BagSearcher implements Closeable {
+
+    /**
+     * Indice mapeado em memoria.
+     */
+    private final MappedIndex index;
+
+    /**
+     * Canal do arquivo de bolsa.
+     */
+    private final FileChannel bagChannel;
+
+    /**
+     * Metricas das buscas.
+     */
+    private final LookupMetrics metrics;
+
+    /**
+     * Construtor. Abre os arquivos e, se o indice registrar o checksum do arquivo de bolsa (binario ou em blocos),
+     * confere se ele foi gerado a partir do arquivo de bolsa. Se o indice registra o trecho indexado, linhas
+     * acrescentadas ao arquivo de bolsa depois da geraçao do indice sao aceitas: elas apenas nao sao encontradas ate o
+     * indice ser atualizado.
+     *
+     * @param indexFile Arquivo de indice, texto, binario ou em blocos.
+     * @param bagFile   Arquivo de bolsa.
+     * @throws IOException se os arquivos nao puderem ser abertos ou nao corresponderem.
+     */
+    public BagSearcher(File indexFile, File bagFile) throws IOException {
+        this(indexFile, bagFile, new LookupMetrics());
+    }
+
+    /**
+     * Construtor com metricas compartilhadas, para que elas continuem somando quando os arquivos sao reabertos.
+     *
+     * @param indexFile Arquivo de indice, texto, binario ou em blocos.
+     * @param bagFile   Arquivo de bolsa.
+     * @param metrics   {@link #metrics}
+     * @throws IOException se os arquivos nao puderem ser abertos ou nao corresponderem.
+     */
+    public BagSearcher(File indexFile, File bagFile, LookupMetrics metrics) throws IOException {
+        this.index = MappedIndex.open(indexFile);
+        this.metrics = metrics;
+        this.index.setProbeCounter(metrics.getProbeCounter());
+        this.bagChannel = new RandomAccessFile(bagFile, "r").getChannel();
+        if (index.getSourceChecksum() >= 0) {
+            long indexedLength = index.getIndexedLength() > 0 ? index.getIndexedLength() : bagChannel.size();
+            if (indexedLength > bagChannel.size()
+                    || index.getSourceChecksum() != BinaryIndex.checksum(bagChannel, indexedLength)) {
+                bagChannel.close();
+                throw new IOException("O arquivo de indice nao corresponde ao arquivo de bolsa.");
+            }
+        }
+    }
+
+    /**
+     * Busca o cadastro de bolsa de um NIS.
+     *
+     * @param nis NIS com 14 digitos.
+     * @return Cadastro encontrado, ou null se o NIS nao estiver no indice.
+     * @throws IOException
+     * @throws IllegalArgumentException se o NIS nao tiver 14 digitos.
+     */
+    public FamilyBag find(String nis) throws IOException {
+        String line = findLine(BinaryIndex.packNis(nis));
+        return line != null ? FamilyBag.fromLine(line) : null;
+    }
+
+    /**
+     * Busca a linha do arquivo de bolsa de um NIS.
+     *
+     * @param nis NIS empacotado.
+     * @return Linha encontrada, ou null se o NIS nao estiver no indice.
+     * @throws IOException
+     */
+    public String findLine(long nis) throws IOException {
+        long start = System.nanoTime();
+        long position = index.find(nis);
+        String line = position >= 0 ? BagFile.readLine(bagChannel, position) : null;
+        metrics.lookup(System.nanoTime() - start, line != null, line != null ? line.length() + 1 : 0);
+        return line;
+    }
+
+    /**
+     * Busca no indice a posiçao da linha de um NIS, sem ler o arquivo de bolsa.
+     *
+     * @param nis NIS empacotado.
+     * @return Posiçao da linha no arquivo de bolsa, ou -1 se o NIS nao estiver no indice.
+     */
+    public long findPosition(long nis) {
+        return index.find(nis);
+    }
+
+    /**
+     * Busca todos os cadastros de bolsa de um NIS, um por linha do arquivo de bolsa, em ordem de posiçao.
+     *
+     * @param nis NIS com 14 digitos.
+     * @return Cadastros encontrados, vazio se o NIS nao estiver no indice.
+     * @throws IOException
+     * @throws IllegalArgumentException se o NIS nao tiver 14 digitos.
+     */
+    public List<FamilyBag> findAll(String nis) throws IOException {
+        List<FamilyBag> familyBags = new ArrayList<>();
+        findAll(BinaryIndex.packNis(nis), line -> familyBags.add(FamilyBag.fromLine(line)));
+        return familyBags;
+    }
+
+    /**
+     * Le todas as linhas do arquivo de bolsa de um NIS, em ordem de posiçao, juntando as leituras de linhas proximas
+     * como em {@link #readLines(long[], LineHandler)}.
+     *
+     * @param nis     NIS empacotado.
+     * @param handler Recebe cada linha lida.
+     * @return Quantidade de linhas lidas.
+     * @throws IOException
+     */
+    public int findAll(long nis, LineHandler handler) throws IOException {
+        long start = System.nanoTime();
+        long[] positions = findAllPositions(nis);
+        long[] bytes = new long[1];
+        readLines(positions, line -> {
+            bytes[0] += line.length() + 1;
+            handler.handle(line);
+        });
+        metrics.lookup(System.nanoTime() - start, positions.length > 0, bytes[0]);
+        return positions.length;
+    }
+
+    /**
+     * Busca as posiçoes de todas as linhas de um NIS.
+     * <p>
+     * O indice esta ordenado por NIS e posiçao, entao os itens do NIS sao consecutivos a partir do primeiro encontrado
+     * pela busca binaria e ja estao em ordem de posiçao.
+     *
+     * @param nis NIS empacotado.
+     * @return Posiçoes no arquivo de bolsa, em ordem crescente, vazio se o NIS nao estiver no indice.
+     */
+    public long[] findAllPositions(long nis) {
+        if (!index.mightContain(nis)) {
+            return new long[0];
+        }
+        long[] positions = new long[16];
+        int count = 0;
+        long end = index.end();
+        for (long slot = index.lowerBound(nis, index.first()); slot < end && index.keyAt(slot) == nis;
+             slot = index.next(slot)) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count++] = index.positionAt(slot);
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * Busca as posiçoes de varios NIS de uma vez.
+     * <p>
+     * Como os NIS estao em ordem, cada busca binaria comeca no ponto do indice onde a anterior parou, e o intervalo
+     * buscado diminui a cada NIS.
+     *
+     * @param sortedNis NIS empacotados, em ordem crescente.
+     * @return Posiçao no arquivo de bolsa de cada NIS, na mesma ordem, ou -1 para os NIS que nao estao no indice.
+     */
+    public long[] findPositions(long[] sortedNis) {
+        long[] positions = new long[sortedNis.length];
+        long end = index.end();
+        long slot = index.first();
+        for (int i = 0; i < sortedNis.length; i++) {
+            if (!index.mightContain(sortedNis[i])) {
+                positions[i] = -1;
+                continue;
+            }
+            slot = index.lowerBound(sortedNis[i], slot);
+            positions[i] = slot < end && index.keyAt(slot) == sortedNis[i] ? index.positionAt(slot) : -1;
+        }
+        return positions;
+    }
+
+    /**
+     * Le as linhas do arquivo de bolsa de varias posiçoes, em sequencia no disco.
+     * <p>
+     * Posiçoes proximas sao lidas juntas, em uma unica leitura ({@link BagFile#readLines}).
+     *
+     * @param sortedPositions Posiçoes das linhas, em ordem crescente.
+     * @param handler         Recebe cada linha lida, na ordem das posiçoes.
+     * @throws IOException
+     */
+    public void readLines(long[] sortedPositions, LineHandler handler) throws IOException {
+        BagFile.readLines(bagChannel, sortedPositions, handler);
+    }
+
+    /**
+     * Le os cadastros de varias posiçoes como em {@link #readLines(long[], LineHandler)}, mas entregando cada um como
+     * uma {@link FamilyBagView} sobre os bytes lidos, sem criar Strings ({@link BagFile#readRecords}).
+     *
+     * @param sortedPositions Posiçoes das linhas, em ordem crescente.
+     * @param handler         Recebe cada cadastro lido, na ordem das posiçoes.
+     * @throws IOException
+     */
+    public void readRecords(long[] sortedPositions, RecordHandler handler) throws IOException {
+        BagFile.readRecords(bagChannel, sortedPositions, handler);
+    }
+
+    /**
+     * Identificaçao do indice aberto, para conferir se ele e o indice esperado, como o shard de um {@link ShardMap}.
+     *
+     * @return Checksum do arquivo de bolsa, tamanho do trecho indexado, quantidade de registros e menor NIS do indice,
+     * separados por tabulaçao. Os campos que o formato do indice nao registra valem -1 (0 no trecho indexado), e o
+     * menor NIS vale -1 em um indice vazio.
+     */
+    public String indexInfo() {
+        long first = index.first();
+        long firstNis = first < index.end() ? index.keyAt(first) : -1;
+        return index.getSourceChecksum() + "\t" + index.getIndexedLength() + "\t" + index.getRecordCount() + "\t"
+                + firstNis;
+    }
+
+    /**
+     * @return Metricas das buscas.
+     */
+    public LookupMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        bagChannel.close();
+    }
+
+    /**
+     * Recebe as linhas lidas do arquivo de bolsa.
+     */
+    public interface LineHandler {
+
+        /**
+         * Trata uma linha lida.
+         *
+         * @param line Linha do arquivo de bolsa, sem a quebra de linha.
+         * @throws IOException
+         */
+        void handle(String line) throws IOException;
+    }
+
+    /**
+     * Recebe os cadastros lidos do arquivo de bolsa sem conversao para String.
+     */
+    public interface RecordHandler {
+
+        /**
+         * Trata um cadastro lido.
+         *
+         * @param familyBag Visao do cadastro, valida apenas durante a chamada.
+         * @throws IOException
+         */
+        void handle(FamilyBagView familyBag) throws IOException;
+    }
+}
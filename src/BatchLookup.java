@@ -0,0 +1,134 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classe de execuçao para busca de muitos NIS de uma vez.
+ * <p>
+ * Os NIS sao lidos, ordenados e resolvidos em uma unica passada pelo indice ({@link BagSearcher#findPositions}).
+ * Depois as linhas encontradas sao lidas em ordem de posiçao no arquivo de bolsa, para que a leitura do disco seja
+ * sequencial. Por isso a saida sai na ordem do arquivo de bolsa, e nao na ordem da entrada.
+ * <p>
+ * Os cadastros sao escritos direto dos bytes lidos ({@link FamilyBagView}), sem criar Strings por linha ou por campo.
+ */
+public class BatchLookup {
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE =
+            "Use <Arquivo de indice> <Arquivo de bolsa> <Arquivo de NIS ou - para a entrada padrao> [--format=tsv|json]";
+
+    /**
+     * Tamanho do buffer de escrita da saida.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Busca os cadastros de bolsa de uma lista de NIS e exibe o resultado na saida, um cadastro por linha.
+     * <p>
+     * A lista tem um NIS por linha. Com --format=tsv (padrao) cada cadastro sai como a linha do arquivo de bolsa;
+     * com --format=json, como um objeto JSON por linha. Os NIS invalidos ou nao encontrados sao apenas contados.
+     *
+     * @param args Use <Arquivo de indice> <Arquivo de bolsa> <Arquivo de NIS ou -> [--format=tsv|json]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+        boolean json = false;
+        if (args.length == 4) {
+            if (args[3].equals("--format=json")) {
+                json = true;
+            } else if (!args[3].equals("--format=tsv")) {
+                System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+                System.exit(1);
+            }
+        }
+
+        BagSearcher searcher = null;
+        try {
+            searcher = new BagSearcher(new File(args[0]), new File(args[1]));
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+
+        try {
+            long t1 = System.currentTimeMillis();
+            AtomicInteger invalid = new AtomicInteger();
+            long[] nisList = readNisList(args[2], invalid);
+            if (invalid.get() > 0) {
+                System.err.println("[INFO] - " + invalid + " NIS invalidos ignorados.");
+            }
+            // Ordenados e sem repetiçao, para a passada unica pelo indice.
+            Arrays.sort(nisList);
+            nisList = Arrays.stream(nisList).distinct().toArray();
+            long[] positions = searcher.findPositions(nisList);
+            long[] foundPositions = Arrays.stream(positions).filter(p -> p >= 0).sorted().toArray();
+
+            boolean jsonFormat = json;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                    WRITE_BUFFER_SIZE)) {
+                searcher.readRecords(foundPositions, familyBag -> {
+                    if (jsonFormat) {
+                        familyBag.writeJson(out);
+                    } else {
+                        familyBag.writeTsv(out);
+                    }
+                    out.write('\n');
+                });
+            }
+            searcher.close();
+
+            long duration = System.currentTimeMillis() - t1;
+            System.err.println("[INFO] - " + nisList.length + " NIS buscados, " + foundPositions.length
+                    + " encontrados, em " + duration + " milissegundos.");
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Le uma lista de NIS, um por linha, descartando as linhas vazias e os NIS invalidos, que sao apenas contados.
+     * Tambem usado pelo {@link ShardRouter}.
+     *
+     * @param path    Caminho do arquivo, ou - para a entrada padrao.
+     * @param invalid Contador dos NIS invalidos.
+     * @return NIS empacotados, na ordem do arquivo.
+     * @throws IOException
+     */
+    static long[] readNisList(String path, AtomicInteger invalid) throws IOException {
+        InputStream in = path.equals("-") ? System.in : new FileInputStream(path);
+        long[] nisList = new long[1024];
+        int size = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    long nis = BinaryIndex.packNis(line);
+                    if (size == nisList.length) {
+                        nisList = Arrays.copyOf(nisList, size * 2);
+                    }
+                    nisList[size++] = nis;
+                } catch (IllegalArgumentException e) {
+                    invalid.incrementAndGet();
+                }
+            }
+        }
+        return Arrays.copyOf(nisList, size);
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Mede o desempenho das etapas de geraçao do indice e das buscas sobre um arquivo de bolsa, de preferencia gerado por
+ * {@link BagFileGenerator} com um tamanho conhecido.
+ * <p>
+ * Cada mediçao roda algumas iteraçoes de aquecimento, para que a JVM compile o codigo medido, e depois as iteraçoes
+ * medidas. O resultado e o tempo por operaçao da iteraçao mediana, com o menor e o maior tempo. Os resultados das
+ * operaçoes sao acumulados em {@link #sink} para que a JVM nao elimine o codigo medido.
+ * <p>
+ * As mediçoes sao as operaçoes de {@link BenchmarkWorkloads}, com o mesmo nome. A search-cold nao descarta as paginas
+ * do cache do sistema operacional; para medir o disco frio, limpe o cache do sistema (por exemplo,
+ * echo 3 > /proc/sys/vm/drop_caches) e use --iterations=1 --warmup=0. A search-concurrent mede as buscas concorrentes
+ * com 1, 16, 256 e 4096 buscas em andamento ao mesmo tempo (concurrent-N); o tempo por operaçao mostra como a vazao
+ * escala com a concorrencia dos clientes.
+ * <p>
+ * Esta classe roda sem dependencias, com o mesmo javac e java do resto do codigo. As mesmas operaçoes tambem sao
+ * medidas pelo JMH, com o perfil jmh do pom.xml (pasta jmh), que cuida do aquecimento, dos forks e da estatistica.
+ */
+public class Benchmark {
+
+    /**
+     * Quantidades de buscas em andamento ao mesmo tempo nas mediçoes de busca concorrente.
+     */
+    private static final int[] CONCURRENCY_LEVELS = {1, 16, 256, 4096};
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE = "Use <Arquivo de bolsa> [--iterations=N] [--warmup=N] [--threads=N]"
+            + " [--only=nome1,nome2]";
+
+    /**
+     * Acumula os resultados das operaçoes medidas.
+     */
+    private static volatile long sink;
+
+    /**
+     * Executa as mediçoes.
+     *
+     * @param args Use <Arquivo de bolsa> [--iterations=N] [--warmup=N] [--threads=N] [--only=nome1,nome2]. Com
+     *             --only, apenas as mediçoes listadas sao executadas.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+        int iterations = 5;
+        int warmup = 3;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> only = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith("--iterations=")) {
+                    iterations = Integer.parseInt(args[i].substring("--iterations=".length()));
+                } else if (args[i].startsWith("--warmup=")) {
+                    warmup = Integer.parseInt(args[i].substring("--warmup=".length()));
+                } else if (args[i].startsWith("--threads=")) {
+                    threads = Integer.parseInt(args[i].substring("--threads=".length()));
+                } else if (args[i].startsWith("--only=")) {
+                    only = Arrays.asList(args[i].substring("--only=".length()).split(","));
+                } else {
+                    throw new NumberFormatException(args[i]);
+                }
+            }
+            if (iterations < 1 || warmup < 0 || threads < 1) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+
+        File bagFile = new File(args[0]);
+        File workDir = null;
+        try {
+            workDir = Files.createTempDirectory("familybag-benchmark").toFile();
+            run(bagFile, workDir, iterations, warmup, threads, only);
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (Exception e) {
+            System.err.println("[ERRO] - Erro durante as mediçoes: " + e.getMessage());
+            System.exit(2);
+        } finally {
+            deleteTree(workDir);
+        }
+    }
+
+    /**
+     * Prepara os dados e executa as mediçoes.
+     *
+     * @param bagFile    Arquivo de bolsa.
+     * @param workDir    Pasta dos arquivos gerados pelas mediçoes.
+     * @param iterations Quantidade de iteraçoes medidas.
+     * @param warmup     Quantidade de iteraçoes de aquecimento.
+     * @param threads    Quantidade de threads de leitura da geraçao do indice e da agregaçao.
+     * @param only       Mediçoes executadas, ou null para todas.
+     * @throws Exception
+     */
+    private static void run(File bagFile, File workDir, int iterations, int warmup, int threads, List<String> only)
+            throws Exception {
+        try (BenchmarkWorkloads workloads = new BenchmarkWorkloads(bagFile, workDir, threads)) {
+            System.out.println("[INFO] - Arquivo com " + workloads.getBagSize() + " bytes, cerca de "
+                    + workloads.getEstimatedLines() + " linhas.");
+            for (String name : BenchmarkWorkloads.NAMES) {
+                if (isSelected(name, only)) {
+                    measure(name, workloads.operations(name), iterations, warmup, workloads.workload(name));
+                }
+            }
+            if (isSelected("search-concurrent", only)) {
+                ConcurrentBagSearcher searcher = workloads.concurrentSearcher();
+                System.out.println("[INFO] - Buscas concorrentes em " + (searcher.isVirtualThreads()
+                        ? "threads virtuais" : threads + " threads de plataforma") + ".");
+                for (int concurrency : CONCURRENCY_LEVELS) {
+                    String name = BenchmarkWorkloads.CONCURRENT_PREFIX + concurrency;
+                    measure(name, workloads.operations(name), iterations, warmup, workloads.workload(name));
+                }
+                System.out.println("[INFO] - " + searcher.stats());
+            }
+        }
+    }
+
+    /**
+     * Executa uma mediçao e imprime o resultado.
+     *
+     * @param name       Nome da mediçao.
+     * @param operations Quantidade de operaçoes de cada iteraçao.
+     * @param iterations Quantidade de iteraçoes medidas.
+     * @param warmup     Quantidade de iteraçoes de aquecimento.
+     * @param task       Operaçao medida.
+     * @throws Exception
+     */
+    private static void measure(String name, long operations, int iterations, int warmup, Callable<Long> task)
+            throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            sink += task.call();
+        }
+        long[] durations = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long t1 = System.nanoTime();
+            sink += task.call();
+            durations[i] = System.nanoTime() - t1;
+        }
+        Arrays.sort(durations);
+        System.out.printf("[INFO] - %-12s %12.1f ns/op (min %.1f, max %.1f) em %d iteraçoes de %d operaçoes.%n",
+                name, (double) durations[iterations / 2] / operations, (double) durations[0] / operations,
+                (double) durations[iterations - 1] / operations, iterations, operations);
+    }
+
+    /**
+     * @param name Nome da mediçao.
+     * @param only Mediçoes executadas, ou null para todas.
+     * @return <true>, se a mediçao deve ser executada.
+     */
+    private static boolean isSelected(String name, List<String> only) {
+        return only == null || only.contains(name);
+    }
+
+    /**
+     * Remove uma pasta e todo o seu conteudo.
+     *
+     * @param file Pasta ou arquivo.
+     */
+    private static void deleteTree(File file) {
+        if (file == null) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
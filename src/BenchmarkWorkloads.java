@@ -0,0 +1,575 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Operaçoes medidas pelo {@link Benchmark} e pelos benchmarks do JMH (pasta jmh), sobre um arquivo de bolsa.
+ * <p>
+ * A amostra das primeiras linhas e lida na construçao. O que cada operaçao precisa alem disso (o indice, os arquivos
+ * temporarios do merge, a copia colunar ou o {@link ConcurrentBagSearcher}) e gerado por {@link #workload(String)},
+ * antes de devolver a operaçao, e reaproveitado pelas operaçoes seguintes. Cada operaçao devolve um valor derivado do
+ * resultado, para que a JVM nao elimine o codigo medido.
+ * <p>
+ * As operaçoes sao:
+ * <p>
+ * - parse: {@link FamilyBag#fromLine(String)} sobre as primeiras linhas do arquivo.
+ * - parse-view: {@link FamilyBagView} sobre os bytes das mesmas linhas, lendo o NIS e o valor sem criar Strings.
+ * - sort-objects: ordenaçao de {@link IndexItem} com {@link Arrays#sort(Object[])}.
+ * - sort-radix: ordenaçao do {@link RunBuffer}, usada na geraçao do indice.
+ * - build: geraçao completa do indice ({@link IndexBuilder}), sem gravar o indice final.
+ * - aggregate: soma dos valores por UF, municipio e mes do arquivo inteiro ({@link BagAggregator}).
+ * - aggregate-columnar: a mesma soma sobre a copia colunar do arquivo ({@link ColumnarBag}).
+ * - merge: merge dos arquivos temporarios de nivel 0 ({@link RunMerger}), sem gravar o indice final.
+ * - lookup-warm: busca no indice mapeado ({@link MappedIndex#find(long)}), com as paginas ja em memoria.
+ * - search-warm: busca e leitura da linha ({@link BagSearcher#find(String)}), com as paginas ja em memoria.
+ * - search-cold: abertura dos arquivos e uma busca, como em cada execuçao de {@link FindBagSearch}.
+ * - concurrent-N: buscas assincronas no {@link ConcurrentBagSearcher}, com N buscas em andamento ao mesmo tempo.
+ */
+public class BenchmarkWorkloads implements Closeable {
+
+    /**
+     * Operaçoes, na ordem em que sao medidas, sem as buscas concorrentes.
+     */
+    public static final List<String> NAMES = Arrays.asList("parse", "parse-view", "sort-objects", "sort-radix",
+            "build", "aggregate", "aggregate-columnar", "merge", "lookup-warm", "search-warm", "search-cold");
+
+    /**
+     * Prefixo das operaçoes de busca concorrente, seguido da quantidade de buscas em andamento.
+     */
+    public static final String CONCURRENT_PREFIX = "concurrent-";
+
+    /**
+     * Quantidade de linhas do inicio do arquivo usadas nas mediçoes em memoria e como NIS buscados.
+     */
+    public static final int SAMPLE_SIZE = 100_000;
+
+    /**
+     * Quantidade de buscas de cada operaçao de busca com as paginas em memoria no indice.
+     */
+    public static final int WARM_LOOKUPS = 1_000_000;
+
+    /**
+     * Quantidade de buscas de cada operaçao de busca com leitura da linha.
+     */
+    public static final int WARM_SEARCHES = WARM_LOOKUPS / 10;
+
+    /**
+     * Quantidade de buscas de cada operaçao com abertura dos arquivos.
+     */
+    public static final int COLD_LOOKUPS = 100;
+
+    /**
+     * Quantidade de buscas de cada operaçao de busca concorrente.
+     */
+    public static final int CONCURRENT_LOOKUPS = 200_000;
+
+    /**
+     * Quantidade de arquivos temporarios gerados para a mediçao do merge.
+     */
+    private static final int MERGE_RUNS = 16;
+
+    /**
+     * Memoria de ordenaçao usada na geraçao do indice.
+     */
+    private static final long SORT_MEMORY = 256L * 1024 * 1024;
+
+    /**
+     * Arquivo de bolsa.
+     */
+    private final File bagFile;
+
+    /**
+     * Pasta dos arquivos gerados pelas operaçoes.
+     */
+    private final File workDir;
+
+    /**
+     * Quantidade de threads de leitura da geraçao do indice e da agregaçao.
+     */
+    private final int threads;
+
+    /**
+     * Arquivo de bolsa aberto.
+     */
+    private final RandomAccessFile bag;
+
+    /**
+     * Canal do arquivo de bolsa.
+     */
+    private final FileChannel bagChannel;
+
+    /**
+     * Primeiras linhas do arquivo, sem o cabeçalho.
+     */
+    private final List<String> sample;
+
+    /**
+     * NIS empacotado das linhas da amostra.
+     */
+    private final long[] sampleNis;
+
+    /**
+     * Posiçao das linhas da amostra.
+     */
+    private final long[] samplePositions;
+
+    /**
+     * Quantidade estimada de linhas do arquivo, pela media da amostra.
+     */
+    private final long estimatedLines;
+
+    /**
+     * Arquivo de indice das buscas, ou null se ainda nao foi gerado.
+     */
+    private File indexFile;
+
+    /**
+     * NIS buscados, sorteados da amostra.
+     */
+    private final long[] keys;
+
+    /**
+     * Buscadores abertos pelas operaçoes, fechados em {@link #close()}.
+     */
+    private final List<Closeable> searchers = new ArrayList<>();
+
+    /**
+     * Arquivos temporarios do merge, ou null se ainda nao foram gerados.
+     */
+    private List<File> runs;
+
+    /**
+     * Copia colunar do arquivo, ou null se ainda nao foi gerada.
+     */
+    private ColumnarBag columnar;
+
+    /**
+     * Buscador concorrente, ou null se ainda nao foi aberto.
+     */
+    private ConcurrentBagSearcher concurrentSearcher;
+
+    /**
+     * Abre o arquivo de bolsa e le a amostra.
+     *
+     * @param bagFile {@link #bagFile}
+     * @param workDir {@link #workDir}
+     * @param threads {@link #threads}
+     * @throws IOException se o arquivo nao puder ser lido ou nao tiver linhas.
+     */
+    public BenchmarkWorkloads(File bagFile, File workDir, int threads) throws IOException {
+        this.bagFile = bagFile;
+        this.workDir = workDir;
+        this.threads = threads;
+        sample = readSample(bagFile);
+        if (sample.isEmpty()) {
+            throw new IOException("O arquivo de bolsa nao tem linhas.");
+        }
+        bag = new RandomAccessFile(bagFile, "r");
+        bagChannel = bag.getChannel();
+        sampleNis = new long[sample.size()];
+        samplePositions = new long[sample.size()];
+        BagFileScanner scanner = new BagFileScanner(bagChannel, BagFile.dataStart(bagChannel), bagChannel.size());
+        for (int i = 0; i < sampleNis.length && scanner.next(); i++) {
+            sampleNis[i] = scanner.nis();
+            samplePositions[i] = scanner.position();
+        }
+        long sampleBytes = samplePositions[samplePositions.length - 1] - samplePositions[0];
+        estimatedLines = sampleBytes > 0 ? bagChannel.size() * (sampleNis.length - 1) / sampleBytes
+                : sampleNis.length;
+        keys = randomKeys(sampleNis, WARM_LOOKUPS);
+    }
+
+    /**
+     * @return Tamanho do arquivo de bolsa em bytes.
+     * @throws IOException
+     */
+    public long getBagSize() throws IOException {
+        return bagChannel.size();
+    }
+
+    /**
+     * @return {@link #estimatedLines}
+     */
+    public long getEstimatedLines() {
+        return estimatedLines;
+    }
+
+    /**
+     * Quantidade de operaçoes de cada execuçao de uma operaçao, para o tempo por operaçao.
+     *
+     * @param name Nome da operaçao.
+     * @return Quantidade de operaçoes.
+     * @throws IOException
+     */
+    public long operations(String name) throws IOException {
+        switch (name) {
+            case "parse":
+            case "parse-view":
+            case "sort-objects":
+            case "sort-radix":
+                return sample.size();
+            case "build":
+            case "aggregate":
+            case "merge":
+                return estimatedLines;
+            case "aggregate-columnar":
+                return columnar().rowCount();
+            case "lookup-warm":
+                return WARM_LOOKUPS;
+            case "search-warm":
+                return WARM_SEARCHES;
+            case "search-cold":
+                return COLD_LOOKUPS;
+            default:
+                concurrency(name);
+                return CONCURRENT_LOOKUPS;
+        }
+    }
+
+    /**
+     * Prepara o que uma operaçao precisa e a devolve.
+     *
+     * @param name Nome da operaçao.
+     * @return Operaçao, que devolve um valor derivado do resultado.
+     * @throws IOException
+     * @throws IllegalArgumentException se a operaçao nao existir.
+     */
+    public Callable<Long> workload(String name) throws IOException {
+        switch (name) {
+            case "parse":
+                return () -> {
+                    long result = 0;
+                    for (String line : sample) {
+                        result += FamilyBag.fromLine(line).hashCode();
+                    }
+                    return result;
+                };
+            case "parse-view":
+                return parseView();
+            case "sort-objects":
+                IndexItem[] items = new IndexItem[sampleNis.length];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = new IndexItem(sampleNis[i], samplePositions[i]);
+                }
+                return () -> {
+                    IndexItem[] copy = items.clone();
+                    Arrays.sort(copy);
+                    return copy[0].getPosition();
+                };
+            case "sort-radix":
+                RunBuffer buffer = new RunBuffer(sampleNis.length);
+                return () -> {
+                    buffer.clear();
+                    for (int i = 0; i < sampleNis.length; i++) {
+                        buffer.add(sampleNis[i], samplePositions[i]);
+                    }
+                    buffer.sort();
+                    return buffer.positionAt(0);
+                };
+            case "build":
+                return () -> {
+                    File tempDir = new File(workDir, "build");
+                    DiscardingOutput output = new DiscardingOutput();
+                    new IndexBuilder(tempDir, threads, IndexCreator.DEFAULT_FAN_IN, SORT_MEMORY)
+                            .build(bagChannel, output);
+                    tempDir.delete();
+                    return output.result;
+                };
+            case "aggregate":
+                return () -> (long) BagAggregator.aggregate(bagChannel, new int[]{0, 2, 11}, threads).size();
+            case "aggregate-columnar":
+                ColumnarBag columnarBag = columnar();
+                return () -> (long) BagAggregator.aggregate(columnarBag, new int[]{0, 2, 11}, threads).size();
+            case "merge":
+                List<File> mergeRuns = runs();
+                return () -> {
+                    DiscardingOutput output = new DiscardingOutput();
+                    RunMerger.merge(mergeRuns, output);
+                    return output.result;
+                };
+            case "lookup-warm":
+                MappedIndex index = MappedIndex.open(indexFile());
+                return () -> {
+                    long result = 0;
+                    for (long key : keys) {
+                        result += index.find(key);
+                    }
+                    return result;
+                };
+            case "search-warm":
+                String[] nisTexts = nisTexts(WARM_SEARCHES);
+                BagSearcher searcher = new BagSearcher(indexFile(), bagFile);
+                searchers.add(searcher);
+                return () -> {
+                    long result = 0;
+                    for (String nis : nisTexts) {
+                        result += searcher.find(nis).hashCode();
+                    }
+                    return result;
+                };
+            case "search-cold":
+                String[] coldNis = nisTexts(COLD_LOOKUPS);
+                File coldIndex = indexFile();
+                return () -> {
+                    long result = 0;
+                    for (String nis : coldNis) {
+                        try (BagSearcher coldSearcher = new BagSearcher(coldIndex, bagFile)) {
+                            result += coldSearcher.find(nis).hashCode();
+                        }
+                    }
+                    return result;
+                };
+            default:
+                return concurrent(concurrency(name));
+        }
+    }
+
+    /**
+     * Buscador concorrente das operaçoes concurrent-N, aberto na primeira chamada.
+     *
+     * @return Buscador concorrente.
+     * @throws IOException
+     */
+    public ConcurrentBagSearcher concurrentSearcher() throws IOException {
+        if (concurrentSearcher == null) {
+            concurrentSearcher = new ConcurrentBagSearcher(indexFile(), bagFile,
+                    ConcurrentBagSearcher.DEFAULT_MAX_PENDING, threads);
+            searchers.add(concurrentSearcher);
+        }
+        return concurrentSearcher;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Closeable searcher : searchers) {
+                searcher.close();
+            }
+        } finally {
+            bag.close();
+        }
+    }
+
+    /**
+     * Leitura do NIS e do valor das linhas da amostra com o {@link FamilyBagView}, com as linhas em um unico vetor,
+     * como na janela de leitura de BagFile.readRecords.
+     *
+     * @return Operaçao.
+     */
+    private Callable<Long> parseView() {
+        ByteArrayOutputStream sampleBytes = new ByteArrayOutputStream();
+        int[] lineStarts = new int[sample.size() + 1];
+        for (int i = 0; i < sample.size(); i++) {
+            lineStarts[i] = sampleBytes.size();
+            byte[] line = sample.get(i).getBytes(StandardCharsets.ISO_8859_1);
+            sampleBytes.write(line, 0, line.length);
+            sampleBytes.write('\n');
+        }
+        lineStarts[sample.size()] = sampleBytes.size();
+        ByteBuffer sampleBuffer = ByteBuffer.wrap(sampleBytes.toByteArray());
+        FamilyBagView view = new FamilyBagView();
+        return () -> {
+            long result = 0;
+            for (int i = 0; i < sample.size(); i++) {
+                view.wrap(sampleBuffer, lineStarts[i], lineStarts[i + 1] - lineStarts[i] - 1);
+                result += view.nisAsLong() + view.valueCents();
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Buscas assincronas com uma quantidade fixa de buscas em andamento. Cada cliente so envia uma nova busca quando
+     * uma das suas termina, como em um servidor com um numero fixo de conexoes.
+     *
+     * @param concurrency Quantidade de buscas em andamento ao mesmo tempo.
+     * @return Operaçao.
+     * @throws IOException
+     */
+    private Callable<Long> concurrent(int concurrency) throws IOException {
+        ConcurrentBagSearcher searcher = concurrentSearcher();
+        int lookups = Math.min(CONCURRENT_LOOKUPS, keys.length);
+        return () -> {
+            Semaphore inFlight = new Semaphore(concurrency);
+            AtomicLong result = new AtomicLong();
+            for (int i = 0; i < lookups; i++) {
+                inFlight.acquire();
+                searcher.findLine(keys[i]).whenComplete((line, error) -> {
+                    result.addAndGet(line != null ? line.length() : -1);
+                    inFlight.release();
+                });
+            }
+            inFlight.acquire(concurrency);
+            return result.get();
+        };
+    }
+
+    /**
+     * @param name Nome de uma operaçao de busca concorrente.
+     * @return Quantidade de buscas em andamento ao mesmo tempo.
+     * @throws IllegalArgumentException se a operaçao nao existir.
+     */
+    private static int concurrency(String name) {
+        try {
+            if (name.startsWith(CONCURRENT_PREFIX)) {
+                int concurrency = Integer.parseInt(name.substring(CONCURRENT_PREFIX.length()));
+                if (concurrency > 0) {
+                    return concurrency;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Tratado abaixo.
+        }
+        throw new IllegalArgumentException("Operaçao desconhecida: " + name);
+    }
+
+    /**
+     * Indice binario das buscas, com fence, gerado na primeira chamada.
+     *
+     * @return Arquivo de indice.
+     * @throws IOException
+     */
+    private File indexFile() throws IOException {
+        if (indexFile == null) {
+            File file = new File(workDir, "index.bin");
+            IndexOutput output = new FenceIndex.Writer(
+                    new BinaryIndexWriter(file, BinaryIndex.checksum(bagChannel, bagChannel.size())),
+                    file, IndexCreator.DEFAULT_FENCE_BLOCK, true);
+            new IndexBuilder(new File(workDir, "index"), threads, IndexCreator.DEFAULT_FAN_IN, SORT_MEMORY)
+                    .build(bagChannel, output);
+            indexFile = file;
+        }
+        return indexFile;
+    }
+
+    /**
+     * Copia colunar do arquivo, gerada na primeira chamada.
+     *
+     * @return Copia colunar.
+     * @throws IOException
+     */
+    private ColumnarBag columnar() throws IOException {
+        if (columnar == null) {
+            File columnarFile = new File(workDir, "bag.col");
+            new ColumnarBagBuilder(new File(workDir, "columnar"), threads).build(bagChannel, columnarFile);
+            columnar = new ColumnarBag(columnarFile);
+        }
+        return columnar;
+    }
+
+    /**
+     * Arquivos temporarios de nivel 0 do merge, gerados na primeira chamada lendo o arquivo de bolsa inteiro.
+     *
+     * @return Arquivos gerados.
+     * @throws IOException
+     */
+    private List<File> runs() throws IOException {
+        if (runs != null) {
+            return runs;
+        }
+        File runDir = new File(workDir, "runs");
+        runDir.mkdirs();
+        int runSize = (int) Math.max(1024, Math.min(1 << 30, estimatedLines / MERGE_RUNS + 1));
+        List<File> files = new ArrayList<>();
+        RunBuffer run = new RunBuffer(runSize);
+        BagFileScanner scanner = new BagFileScanner(bagChannel, BagFile.dataStart(bagChannel), bagChannel.size());
+        boolean more = true;
+        while (more) {
+            more = scanner.next();
+            if (more) {
+                run.add(scanner.nis(), scanner.position());
+            }
+            if (run.isFull() || (!more && run.size() > 0)) {
+                run.sort();
+                File file = new File(runDir, "run_" + files.size() + ".bin");
+                try (IndexOutput out = new BinaryIndexWriter(file, 0)) {
+                    for (int i = 0; i < run.size(); i++) {
+                        out.write(run.nisAt(i), run.positionAt(i));
+                    }
+                }
+                files.add(file);
+                run.clear();
+            }
+        }
+        runs = files;
+        return runs;
+    }
+
+    /**
+     * @param count Quantidade de NIS.
+     * @return Os primeiros NIS sorteados, como texto.
+     */
+    private String[] nisTexts(int count) {
+        String[] nisTexts = new String[Math.min(count, keys.length)];
+        for (int i = 0; i < nisTexts.length; i++) {
+            nisTexts[i] = BinaryIndex.unpackNis(keys[i]);
+        }
+        return nisTexts;
+    }
+
+    /**
+     * Le as primeiras {@link #SAMPLE_SIZE} linhas do arquivo de bolsa, sem o cabeçalho.
+     *
+     * @param bagFile Arquivo de bolsa.
+     * @return Linhas lidas.
+     * @throws IOException
+     */
+    private static List<String> readSample(File bagFile) throws IOException {
+        List<String> sample = new ArrayList<>(SAMPLE_SIZE);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(bagFile), "ISO-8859-1"))) {
+            reader.readLine();
+            String line;
+            while (sample.size() < SAMPLE_SIZE && (line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    sample.add(line);
+                }
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Sorteia NIS buscados a partir dos NIS da amostra.
+     *
+     * @param sampleNis NIS da amostra.
+     * @param count     Quantidade de NIS.
+     * @return NIS sorteados.
+     */
+    private static long[] randomKeys(long[] sampleNis, int count) {
+        Random random = new Random(1);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = sampleNis[random.nextInt(sampleNis.length)];
+        }
+        return keys;
+    }
+
+    /**
+     * Destino de indice que descarta os itens, para medir a geraçao sem a escrita do indice final.
+     */
+    private static class DiscardingOutput implements IndexOutput {
+
+        /**
+         * Valor derivado dos itens recebidos.
+         */
+        private long result;
+
+        @Override
+        public void write(long nis, long position) {
+            result += nis ^ position;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
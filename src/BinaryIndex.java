@@ -0,0 +1,289 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Definiçao do formato binario do arquivo de indice.
+ * <p>
+ * O arquivo comeca com um cabecalho de {@link #HEADER_SIZE} bytes:
+ * <p>
+ * - magic (int): {@link #MAGIC}.
+ * - versao (int): {@link #VERSION}.
+ * - quantidade de registros (long).
+ * - checksum do arquivo de bolsa (long), calculado por {@link #checksum(FileChannel, long)} sobre o trecho indexado.
+ * - tamanho do trecho indexado do arquivo de bolsa (long), a partir do inicio. Permite indexar depois apenas as linhas
+ * acrescentadas ao arquivo. Na versao 1 este campo era reservado e vale 0.
+ * <p>
+ * Em seguida vem os registros, todos com {@link #RECORD_SIZE} bytes: o NIS de 14 digitos empacotado em um long e a
+ * posiçao da linha no arquivo de bolsa. Como os registros tem tamanho fixo, o registro i esta sempre na posiçao
+ * {@code HEADER_SIZE + i * RECORD_SIZE}.
+ */
+public class BinaryIndex {
+
+    /**
+     * Identificador do formato, "FBIX" em ASCII.
+     */
+    public static final int MAGIC = 0x46424958;
+
+    /**
+     * Versao do formato.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Tamanho do cabecalho em bytes.
+     */
+    public static final int HEADER_SIZE = 32;
+
+    /**
+     * Tamanho de cada registro em bytes.
+     */
+    public static final int RECORD_SIZE = 16;
+
+    /**
+     * Quantidade de digitos de um NIS.
+     */
+    public static final int NIS_LENGTH = 14;
+
+    /**
+     * Quantidade de bytes lidos do inicio e do fim do arquivo de bolsa para o checksum.
+     */
+    private static final int CHECKSUM_SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Tamanho do buffer de leitura de {@link #updateFullChecksum(CRC32, FileChannel, long, long)}.
+     */
+    private static final int FULL_CHECKSUM_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Verifica se o arquivo esta no formato binario, lendo o seu magic.
+     *
+     * @param file Arquivo de indice.
+     * @return <true>, se o arquivo comeca com {@link #MAGIC}.
+     * @throws IOException
+     */
+    public static boolean isBinaryIndex(RandomAccessFile file) throws IOException {
+        return file.length() >= HEADER_SIZE && readInt(file.getChannel(), 0) == MAGIC;
+    }
+
+    /**
+     * Verifica se o arquivo esta no formato binario, lendo o seu magic.
+     *
+     * @param file Arquivo de indice.
+     * @return <true>, se o arquivo comeca com {@link #MAGIC}.
+     * @throws IOException
+     */
+    public static boolean isBinaryIndex(File file) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            return isBinaryIndex(accessFile);
+        }
+    }
+
+    /**
+     * Empacota um NIS de 14 digitos em um long.
+     *
+     * @param nis NIS.
+     * @return NIS como long.
+     * @throws IllegalArgumentException se o NIS nao tiver exatamente 14 digitos.
+     */
+    public static long packNis(CharSequence nis) {
+        if (nis.length() != NIS_LENGTH) {
+            throw new IllegalArgumentException("NIS invalido: " + nis);
+        }
+        long value = 0;
+        for (int i = 0; i < NIS_LENGTH; i++) {
+            char c = nis.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("NIS invalido: " + nis);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Converte um NIS empacotado de volta para os seus 14 digitos.
+     *
+     * @param nis NIS como long.
+     * @return NIS com 14 digitos, completado com zeros a esquerda.
+     */
+    public static String unpackNis(long nis) {
+        char[] digits = new char[NIS_LENGTH];
+        for (int i = NIS_LENGTH - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + nis % 10);
+            nis /= 10;
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Le a quantidade de registros do cabecalho, validando o magic e a versao.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @return Quantidade de registros.
+     * @throws IOException se o cabecalho for invalido.
+     */
+    public static long readRecordCount(FileChannel channel) throws IOException {
+        ByteBuffer header = readHeader(channel);
+        return header.getLong(8);
+    }
+
+    /**
+     * Le o checksum do arquivo de bolsa gravado no cabecalho, validando o magic e a versao.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @return Checksum do arquivo de bolsa.
+     * @throws IOException se o cabecalho for invalido.
+     */
+    public static long readSourceChecksum(FileChannel channel) throws IOException {
+        ByteBuffer header = readHeader(channel);
+        return header.getLong(16);
+    }
+
+    /**
+     * Le o tamanho do trecho indexado do arquivo de bolsa gravado no cabecalho, validando o magic e a versao.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @return Tamanho do trecho indexado, ou 0 se o indice for da versao 1.
+     * @throws IOException se o cabecalho for invalido.
+     */
+    public static long readIndexedLength(FileChannel channel) throws IOException {
+        ByteBuffer header = readHeader(channel);
+        return header.getLong(24);
+    }
+
+    /**
+     * Monta o cabecalho do arquivo.
+     *
+     * @param recordCount    Quantidade de registros.
+     * @param sourceChecksum Checksum do arquivo de bolsa.
+     * @param indexedLength  Tamanho do trecho indexado do arquivo de bolsa.
+     * @return Cabecalho pronto para escrita.
+     */
+    static ByteBuffer buildHeader(long recordCount, long sourceChecksum, long indexedLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(recordCount);
+        header.putLong(sourceChecksum);
+        header.putLong(indexedLength);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Calcula o checksum do arquivo de bolsa.
+     * <p>
+     * Para nao reler arquivos de varios GB, o checksum e um CRC32 do tamanho do arquivo, dos primeiros e dos ultimos
+     * {@link #CHECKSUM_SAMPLE_SIZE} bytes. Isso identifica um arquivo de bolsa trocado, truncado ou com linhas
+     * acrescentadas, mas nao linhas alteradas no meio do arquivo; para isso use {@link #updateFullChecksum}.
+     *
+     * @param channel Canal do arquivo de bolsa.
+     * @param length  Tamanho do trecho considerado, a partir do inicio do arquivo.
+     * @return Checksum.
+     * @throws IOException
+     */
+    public static long checksum(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_SAMPLE_SIZE);
+        buffer.putLong(length);
+        buffer.flip();
+        crc.update(buffer);
+
+        long headSize = Math.min(length, CHECKSUM_SAMPLE_SIZE);
+        updateChecksum(crc, channel, buffer, 0, headSize);
+        long tailStart = Math.max(headSize, length - CHECKSUM_SAMPLE_SIZE);
+        updateChecksum(crc, channel, buffer, tailStart, length - tailStart);
+        return crc.getValue();
+    }
+
+    /**
+     * Acrescenta ao CRC32 um trecho inteiro do arquivo, lido em sequencia. Ao contrario de
+     * {@link #checksum(FileChannel, long)}, cobre todos os bytes do trecho.
+     *
+     * @param crc     Checksum em calculo.
+     * @param channel Canal do arquivo.
+     * @param start   Inicio do trecho.
+     * @param end     Fim do trecho, exclusive.
+     * @throws IOException
+     */
+    public static void updateFullChecksum(CRC32 crc, FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(FULL_CHECKSUM_BUFFER_SIZE);
+        for (long position = start; position < end; position += buffer.limit()) {
+            updateChecksum(crc, channel, buffer, position, Math.min(end - position, buffer.capacity()));
+        }
+    }
+
+    /**
+     * Le o cabecalho e valida o magic e a versao.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @return Cabecalho lido.
+     * @throws IOException se o cabecalho for invalido.
+     */
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Arquivo de indice binario invalido.");
+        }
+        if (header.getInt(4) < 1 || header.getInt(4) > VERSION) {
+            throw new IOException("Versao de indice binario nao suportada: " + header.getInt(4));
+        }
+        return header;
+    }
+
+    /**
+     * Le um inteiro de uma posiçao do arquivo.
+     *
+     * @param channel  Canal do arquivo.
+     * @param position Posiçao.
+     * @return Inteiro lido.
+     * @throws IOException
+     */
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(channel, buffer, position);
+        return buffer.getInt(0);
+    }
+
+    /**
+     * Acrescenta um trecho do arquivo ao checksum.
+     *
+     * @param crc      Checksum em calculo.
+     * @param channel  Canal do arquivo.
+     * @param buffer   Buffer de leitura.
+     * @param position Inicio do trecho.
+     * @param size     Tamanho do trecho.
+     * @throws IOException
+     */
+    private static void updateChecksum(CRC32 crc, FileChannel channel, ByteBuffer buffer, long position, long size)
+            throws IOException {
+        buffer.clear();
+        buffer.limit((int) size);
+        readFully(channel, buffer, position);
+        buffer.flip();
+        crc.update(buffer);
+    }
+
+    /**
+     * Preenche o buffer lendo o arquivo a partir de uma posiçao.
+     *
+     * @param channel  Canal do arquivo.
+     * @param buffer   Buffer a ser preenchido ate o seu limite.
+     * @param position Posiçao inicial.
+     * @throws IOException se o arquivo terminar antes.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Fim de arquivo inesperado.");
+            }
+            position += read;
+        }
+    }
+}
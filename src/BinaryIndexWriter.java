@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Escreve o indice no formato binario descrito em {@link BinaryIndex}.
+ * <p>
+ * O cabecalho so e preenchido no {@link #close()}, quando a quantidade de registros ja e conhecida. O CRC32 dos
+ * registros e calculado durante a escrita, para conferir o arquivo depois sem le-lo duas vezes ({@link RunManifest}).
+ */
+public class BinaryIndexWriter implements IndexOutput {
+
+    /**
+     * Quantidade de registros acumulados antes de cada escrita no arquivo.
+     */
+    private static final int RECORDS_PER_WRITE = 16 * 1024;
+
+    /**
+     * Canal do arquivo de saida.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Buffer de escrita dos registros.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Checksum do arquivo de bolsa a ser gravado no cabecalho.
+     */
+    private final long sourceChecksum;
+
+    /**
+     * Tamanho do trecho indexado do arquivo de bolsa a ser gravado no cabecalho.
+     */
+    private final long indexedLength;
+
+    /**
+     * Quantidade de registros escritos.
+     */
+    private long recordCount;
+
+    /**
+     * CRC32 dos registros escritos, sem o cabecalho.
+     */
+    private final CRC32 recordsChecksum = new CRC32();
+
+    /**
+     * Construtor de arquivos sem trecho indexado conhecido, como os arquivos temporarios da geraçao.
+     *
+     * @param file           Arquivo de saida.
+     * @param sourceChecksum {@link #sourceChecksum}
+     * @throws IOException
+     */
+    public BinaryIndexWriter(File file, long sourceChecksum) throws IOException {
+        this(file, sourceChecksum, 0);
+    }
+
+    /**
+     * Construtor.
+     *
+     * @param file           Arquivo de saida.
+     * @param sourceChecksum {@link #sourceChecksum}
+     * @param indexedLength  {@link #indexedLength}
+     * @throws IOException
+     */
+    public BinaryIndexWriter(File file, long sourceChecksum, long indexedLength) throws IOException {
+        this(file, sourceChecksum, indexedLength,
+                ByteBuffer.allocateDirect(RECORDS_PER_WRITE * BinaryIndex.RECORD_SIZE));
+    }
+
+    /**
+     * Construtor com um buffer de escrita reaproveitado entre arquivos, para nao alocar um buffer direto por arquivo.
+     *
+     * @param file           Arquivo de saida.
+     * @param sourceChecksum {@link #sourceChecksum}
+     * @param indexedLength  {@link #indexedLength}
+     * @param buffer         {@link #buffer}. A capacidade deve ser multipla de {@link BinaryIndex#RECORD_SIZE} e o
+     *                       buffer nao pode ser usado por outro arquivo ate o {@link #close()}.
+     * @throws IOException
+     */
+    public BinaryIndexWriter(File file, long sourceChecksum, long indexedLength, ByteBuffer buffer)
+            throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.sourceChecksum = sourceChecksum;
+        this.indexedLength = indexedLength;
+        this.buffer = buffer;
+        this.buffer.clear();
+        this.channel.position(BinaryIndex.HEADER_SIZE);
+    }
+
+    @Override
+    public void write(long nis, long position) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.putLong(nis);
+        buffer.putLong(position);
+        recordCount++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            flush();
+            ByteBuffer header = BinaryIndex.buildHeader(recordCount, sourceChecksum, indexedLength);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return CRC32 dos registros gravados, sem o cabecalho. Completo apenas depois do {@link #close()}.
+     */
+    public long getRecordsChecksum() {
+        return recordsChecksum.getValue();
+    }
+
+    /**
+     * Grava no arquivo os registros acumulados no buffer.
+     *
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        recordsChecksum.update(buffer);
+        buffer.rewind();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
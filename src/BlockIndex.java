@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Definiçao do formato comprimido em blocos do arquivo de indice.
+ * <p>
+ * Os itens, ja em ordem de NIS e posiçao, sao agrupados em blocos de cerca de {@link #DEFAULT_BLOCK_SIZE} bytes. Dentro
+ * de um bloco cada item ocupa dois numeros de tamanho variavel ({@link #putVarLong(byte[], int, long)}): a diferença
+ * entre o seu NIS e o NIS do item anterior do bloco, que e pequena ou zero por causa da ordenaçao, e a diferença entre a
+ * sua posiçao e a menor posiçao do bloco. Um item costuma ocupar de 6 a 8 bytes, contra mais de 30 no indice texto e
+ * 16 no indice binario.
+ * <p>
+ * A cada {@link #RESTART_INTERVAL} itens ha um ponto de reinicio: o NIS do item e gravado como diferença para o
+ * primeiro NIS do bloco, e nao para o item anterior, e o fim do bloco guarda a posiçao de cada ponto de reinicio
+ * (int, relativa ao inicio do bloco). Assim a busca dentro de um bloco e binaria sobre os pontos de reinicio e so
+ * decodifica os itens de um grupo, sem descomprimir o bloco inteiro.
+ * <p>
+ * O arquivo comeca com um cabecalho de {@link #HEADER_SIZE} bytes:
+ * <p>
+ * - magic (int): {@link #MAGIC}.
+ * - versao (int): {@link #VERSION}.
+ * - quantidade de registros (long).
+ * - checksum do arquivo de bolsa (long), como em {@link BinaryIndex}.
+ * - tamanho do trecho indexado do arquivo de bolsa (long).
+ * - posiçao do diretorio de blocos (long).
+ * - quantidade de blocos (int).
+ * - tamanho alvo dos blocos (int).
+ * <p>
+ * Em seguida vem os blocos e, no fim do arquivo, o diretorio, com {@link #DIRECTORY_ENTRY_SIZE} bytes por bloco: o
+ * primeiro NIS, o numero do primeiro registro, a posiçao do bloco no arquivo e a menor posiçao no arquivo de bolsa, todos
+ * long. O diretorio e carregado em memoria e a busca le apenas um bloco.
+ */
+public class BlockIndex {
+
+    /**
+     * Identificador do formato, "FBCX" em ASCII.
+     */
+    public static final int MAGIC = 0x46424358;
+
+    /**
+     * Versao do formato.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Tamanho do cabecalho em bytes.
+     */
+    public static final int HEADER_SIZE = 48;
+
+    /**
+     * Tamanho de cada entrada do diretorio de blocos em bytes.
+     */
+    public static final int DIRECTORY_ENTRY_SIZE = 32;
+
+    /**
+     * Tamanho alvo padrao de cada bloco em bytes.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Quantidade de itens entre dois pontos de reinicio de um bloco.
+     */
+    public static final int RESTART_INTERVAL = 32;
+
+    /**
+     * Tamanho maximo de um numero de tamanho variavel.
+     */
+    public static final int MAX_VAR_LONG_SIZE = 10;
+
+    /**
+     * Verifica se o arquivo esta no formato em blocos, lendo o seu magic.
+     *
+     * @param file Arquivo de indice.
+     * @return <true>, se o arquivo comeca com {@link #MAGIC}.
+     * @throws IOException
+     */
+    public static boolean isBlockIndex(RandomAccessFile file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        BinaryIndex.readFully(file.getChannel(), magic, 0);
+        return magic.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Le o cabecalho e valida o magic e a versao.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @return Cabecalho lido, com os campos nas posiçoes descritas em {@link BlockIndex}.
+     * @throws IOException se o cabecalho for invalido.
+     */
+    static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        BinaryIndex.readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Arquivo de indice em blocos invalido.");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Versao de indice em blocos nao suportada: " + header.getInt(4));
+        }
+        return header;
+    }
+
+    /**
+     * Monta o cabecalho do arquivo.
+     *
+     * @param recordCount     Quantidade de registros.
+     * @param sourceChecksum  Checksum do arquivo de bolsa.
+     * @param indexedLength   Tamanho do trecho indexado do arquivo de bolsa.
+     * @param directoryOffset Posiçao do diretorio de blocos.
+     * @param blockCount      Quantidade de blocos.
+     * @param blockSize       Tamanho alvo dos blocos.
+     * @return Cabecalho pronto para escrita.
+     */
+    static ByteBuffer buildHeader(long recordCount, long sourceChecksum, long indexedLength, long directoryOffset,
+                                  int blockCount, int blockSize) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(recordCount);
+        header.putLong(sourceChecksum);
+        header.putLong(indexedLength);
+        header.putLong(directoryOffset);
+        header.putInt(blockCount);
+        header.putInt(blockSize);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Escreve um numero nao negativo com tamanho variavel: 7 bits por byte, do menos para o mais significativo, com o
+     * bit mais alto ligado em todos os bytes menos o ultimo.
+     *
+     * @param buffer   Destino.
+     * @param position Posiçao de escrita.
+     * @param value    Numero nao negativo.
+     * @return Posiçao logo apos o numero.
+     */
+    public static int putVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Tamanho de um numero escrito por {@link #putVarLong(byte[], int, long)}.
+     *
+     * @param value Numero nao negativo.
+     * @return Quantidade de bytes.
+     */
+    public static int varLongSize(long value) {
+        return Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 6) / 7);
+    }
+}
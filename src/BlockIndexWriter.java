@@ -0,0 +1,210 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Escreve o indice no formato comprimido em blocos descrito em {@link BlockIndex}.
+ * <p>
+ * Os itens de um bloco ficam em memoria ate o bloco completar o tamanho alvo, ja que a menor posiçao do bloco so e
+ * conhecida no fim. O diretorio de blocos e o cabecalho sao gravados no {@link #close()}.
+ */
+public class BlockIndexWriter implements IndexOutput {
+
+    /**
+     * Canal do arquivo de saida.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Checksum do arquivo de bolsa a ser gravado no cabecalho.
+     */
+    private final long sourceChecksum;
+
+    /**
+     * Tamanho do trecho indexado do arquivo de bolsa a ser gravado no cabecalho.
+     */
+    private final long indexedLength;
+
+    /**
+     * Tamanho alvo dos blocos.
+     */
+    private final int blockSize;
+
+    /**
+     * Bloco codificado.
+     */
+    private final byte[] block;
+
+    /**
+     * NIS dos itens do bloco atual.
+     */
+    private long[] keys = new long[4096];
+
+    /**
+     * Posiçoes dos itens do bloco atual.
+     */
+    private long[] positions = new long[4096];
+
+    /**
+     * Quantidade de itens do bloco atual.
+     */
+    private int blockCount;
+
+    /**
+     * Tamanho maximo do bloco atual codificado, supondo que a menor posiçao do bloco e 0.
+     */
+    private int blockBytes;
+
+    /**
+     * Diretorio de blocos: primeiro NIS, primeiro registro, posiçao no arquivo e menor posiçao de cada bloco.
+     */
+    private long[] directory = new long[4 * 1024];
+
+    /**
+     * Quantidade de blocos gravados.
+     */
+    private int directorySize;
+
+    /**
+     * Quantidade de registros escritos.
+     */
+    private long recordCount;
+
+    /**
+     * Posiçao no arquivo do proximo bloco.
+     */
+    private long offset = BlockIndex.HEADER_SIZE;
+
+    /**
+     * Construtor.
+     *
+     * @param file           Arquivo de saida.
+     * @param sourceChecksum {@link #sourceChecksum}
+     * @param indexedLength  {@link #indexedLength}
+     * @param blockSize      {@link #blockSize}
+     * @throws IOException
+     */
+    public BlockIndexWriter(File file, long sourceChecksum, long indexedLength, int blockSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.sourceChecksum = sourceChecksum;
+        this.indexedLength = indexedLength;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize + 2 * BlockIndex.MAX_VAR_LONG_SIZE + Integer.BYTES];
+    }
+
+    @Override
+    public void write(long nis, long position) throws IOException {
+        int entryBytes = entrySize(nis, position);
+        if (blockCount > 0 && blockBytes + entryBytes > blockSize) {
+            flushBlock();
+            entryBytes = entrySize(nis, position);
+        }
+        if (blockCount == keys.length) {
+            keys = Arrays.copyOf(keys, blockCount * 2);
+            positions = Arrays.copyOf(positions, blockCount * 2);
+        }
+        keys[blockCount] = nis;
+        positions[blockCount] = position;
+        blockCount++;
+        blockBytes += entryBytes;
+        recordCount++;
+    }
+
+    /**
+     * Tamanho maximo de um item acrescentado ao bloco atual, supondo que a menor posiçao do bloco e 0 e contando a
+     * posiçao do ponto de reinicio, se o item for um.
+     *
+     * @param nis      NIS empacotado.
+     * @param position Posiçao da linha no arquivo de bolsa.
+     * @return Quantidade de bytes.
+     */
+    private int entrySize(long nis, long position) {
+        if (blockCount % BlockIndex.RESTART_INTERVAL == 0) {
+            return BlockIndex.varLongSize(blockCount == 0 ? 0 : nis - keys[0]) + BlockIndex.varLongSize(position)
+                    + Integer.BYTES;
+        }
+        return BlockIndex.varLongSize(nis - keys[blockCount - 1]) + BlockIndex.varLongSize(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            if (blockCount > 0) {
+                flushBlock();
+            }
+            long directoryOffset = offset;
+            ByteBuffer buffer = ByteBuffer.allocate(directorySize * Long.BYTES);
+            buffer.asLongBuffer().put(directory, 0, directorySize);
+            writeFully(buffer, directoryOffset);
+            writeFully(BlockIndex.buildHeader(recordCount, sourceChecksum, indexedLength, directoryOffset,
+                    directorySize / 4, blockSize), 0);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Codifica e grava o bloco atual, registrando-o no diretorio.
+     *
+     * @throws IOException
+     */
+    private void flushBlock() throws IOException {
+        long base = Long.MAX_VALUE;
+        for (int i = 0; i < blockCount; i++) {
+            base = Math.min(base, positions[i]);
+        }
+        int restarts = (blockCount + BlockIndex.RESTART_INTERVAL - 1) / BlockIndex.RESTART_INTERVAL;
+        int[] restartOffsets = new int[restarts];
+        int size = 0;
+        for (int i = 0; i < blockCount; i++) {
+            long previous;
+            if (i % BlockIndex.RESTART_INTERVAL == 0) {
+                restartOffsets[i / BlockIndex.RESTART_INTERVAL] = size;
+                previous = keys[0];
+            } else {
+                previous = keys[i - 1];
+            }
+            size = BlockIndex.putVarLong(block, size, keys[i] - previous);
+            size = BlockIndex.putVarLong(block, size, positions[i] - base);
+        }
+        for (int restartOffset : restartOffsets) {
+            block[size++] = (byte) (restartOffset >>> 24);
+            block[size++] = (byte) (restartOffset >>> 16);
+            block[size++] = (byte) (restartOffset >>> 8);
+            block[size++] = (byte) restartOffset;
+        }
+
+        if (directorySize + 4 > directory.length) {
+            directory = Arrays.copyOf(directory, directory.length * 2);
+        }
+        directory[directorySize++] = keys[0];
+        directory[directorySize++] = recordCount - blockCount;
+        directory[directorySize++] = offset;
+        directory[directorySize++] = base;
+
+        writeFully(ByteBuffer.wrap(block, 0, size), offset);
+        offset += size;
+        blockCount = 0;
+        blockBytes = 0;
+    }
+
+    /**
+     * Grava um buffer inteiro a partir de uma posiçao do arquivo.
+     *
+     * @param buffer   Dados.
+     * @param position Posiçao de escrita.
+     * @throws IOException
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Filtro de Bloom dos NIS de um arquivo de indice, carregado em memoria na frente do indice.
+ * <p>
+ * Responde se um NIS pode estar no indice. Um NIS que esta no indice sempre passa pelo filtro; um NIS ausente e
+ * recusado, exceto em uma fraçao de falsos positivos escolhida na geraçao. Assim a maior parte das buscas por NIS
+ * ausentes termina com alguns acessos a memoria, sem busca binaria e sem ler o indice ou o arquivo de bolsa.
+ * <p>
+ * Com n NIS distintos e taxa de falsos positivos p, o filtro usa m = -n ln(p) / ln(2)^2 bits e k = m / n ln(2)
+ * posiçoes por NIS, calculadas por hash duplo (h1 + i * h2) a partir de uma mistura do NIS. Para p = 1% sao cerca de
+ * 9,6 bits (1,2 bytes) por NIS e 7 posiçoes.
+ * <p>
+ * O arquivo fica ao lado do indice, com o sufixo {@link #FILE_SUFFIX}, e tem um cabecalho de {@link #HEADER_SIZE}
+ * bytes:
+ * <p>
+ * - magic (int): {@link #MAGIC}.
+ * - versao (int): {@link #VERSION}.
+ * - quantidade de posiçoes por NIS (int).
+ * - reservado (int).
+ * - tamanho do arquivo de indice (long).
+ * - quantidade de bits (long).
+ * - checksum do arquivo de indice (long), calculado por {@link BinaryIndex#checksum(FileChannel, long)} sobre o
+ * proprio indice, como no {@link FenceIndex}. Com o tamanho, descarta um filtro que nao corresponde mais ao indice,
+ * mesmo que o indice tenha sido gerado de novo com o mesmo tamanho; um filtro de outro indice recusaria NIS que estao
+ * no indice atual. Na versao 1 este campo nao existia.
+ * <p>
+ * Em seguida vem os bits, em palavras long.
+ */
+public class BloomFilter {
+
+    /**
+     * Identificador do formato, "FBBL" em ASCII.
+     */
+    public static final int MAGIC = 0x4642424C;
+
+    /**
+     * Versao do formato.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Tamanho do cabecalho em bytes.
+     */
+    public static final int HEADER_SIZE = 40;
+
+    /**
+     * Sufixo do arquivo do filtro, acrescentado ao caminho do indice.
+     */
+    public static final String FILE_SUFFIX = ".bloom";
+
+    /**
+     * Taxa padrao de falsos positivos.
+     */
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * Quantidade maxima de posiçoes por NIS.
+     */
+    private static final int MAX_HASHES = 16;
+
+    /**
+     * Quantidade maxima de bits (1 GB), para que o filtro caiba em um unico buffer na gravaçao e na leitura.
+     */
+    private static final long MAX_BITS = 1L << 33;
+
+    /**
+     * Semente da mistura do NIS, diferente da usada na divisao em shards ({@link ShardMap#hashShard}).
+     */
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Bits do filtro.
+     */
+    private final long[] words;
+
+    /**
+     * Quantidade de bits do filtro.
+     */
+    private final long bitCount;
+
+    /**
+     * Quantidade de posiçoes por NIS.
+     */
+    private final int hashCount;
+
+    /**
+     * Construtor.
+     *
+     * @param words     {@link #words}
+     * @param bitCount  {@link #bitCount}
+     * @param hashCount {@link #hashCount}
+     */
+    private BloomFilter(long[] words, long bitCount, int hashCount) {
+        this.words = words;
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Arquivo do filtro de um arquivo de indice.
+     *
+     * @param indexFile Arquivo de indice.
+     * @return Arquivo do filtro.
+     */
+    public static File fileFor(File indexFile) {
+        return new File(indexFile.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Gera o filtro de um arquivo de indice ja completo, em duas passadas pelo indice mapeado: a primeira conta os
+     * NIS distintos, para dimensionar o filtro, e a segunda marca os bits. O filtro e gravado em um arquivo
+     * temporario e trocado atomicamente.
+     *
+     * @param indexFile         Arquivo de indice, em qualquer formato.
+     * @param falsePositiveRate Taxa de falsos positivos, maior que 0 e menor que 1.
+     * @return Quantidade de NIS distintos do filtro.
+     * @throws IOException
+     */
+    public static long create(File indexFile, double falsePositiveRate) throws IOException {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("Taxa de falsos positivos invalida: " + falsePositiveRate);
+        }
+        long indexChecksum;
+        try (FileChannel indexChannel = new RandomAccessFile(indexFile, "r").getChannel()) {
+            indexChecksum = BinaryIndex.checksum(indexChannel, indexChannel.size());
+        }
+        MappedIndex index = MappedIndex.open(indexFile);
+        long end = index.end();
+        long distinct = 0;
+        long previousKey = -1;
+        for (long slot = index.first(); slot < end; slot = index.next(slot)) {
+            long nis = index.keyAt(slot);
+            if (nis != previousKey) {
+                distinct++;
+                previousKey = nis;
+            }
+        }
+
+        double bitsPerKey = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long bitCount = Math.min(MAX_BITS, Math.max(Long.SIZE, (long) Math.ceil(distinct * bitsPerKey)));
+        bitCount = (bitCount + Long.SIZE - 1) / Long.SIZE * Long.SIZE;
+        int hashCount = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKey * Math.log(2))));
+        BloomFilter filter = new BloomFilter(new long[(int) (bitCount / Long.SIZE)], bitCount, hashCount);
+        previousKey = -1;
+        for (long slot = index.first(); slot < end; slot = index.next(slot)) {
+            long nis = index.keyAt(slot);
+            if (nis != previousKey) {
+                filter.add(nis);
+                previousKey = nis;
+            }
+        }
+
+        File bloomFile = fileFor(indexFile);
+        File tempFile = new File(bloomFile.getPath() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + filter.words.length * Long.BYTES);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(hashCount);
+        buffer.putInt(0);
+        buffer.putLong(indexFile.length());
+        buffer.putLong(bitCount);
+        buffer.putLong(indexChecksum);
+        buffer.asLongBuffer().put(filter.words);
+        buffer.clear();
+        try (FileChannel channel = new RandomAccessFile(tempFile, "rw").getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(tempFile.toPath(), bloomFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return distinct;
+    }
+
+    /**
+     * Carrega o filtro de um arquivo de indice, se ele existir e corresponder ao indice: mesmo tamanho e mesmo
+     * checksum.
+     *
+     * @param indexFile    Arquivo de indice.
+     * @param indexChannel Canal do arquivo de indice, usado no checksum.
+     * @return Filtro carregado, ou null se nao houver um filtro valido.
+     * @throws IOException
+     */
+    public static BloomFilter load(File indexFile, FileChannel indexChannel) throws IOException {
+        File bloomFile = fileFor(indexFile);
+        if (!bloomFile.exists() || bloomFile.length() < HEADER_SIZE) {
+            return null;
+        }
+        try (FileChannel channel = new RandomAccessFile(bloomFile, "r").getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            BinaryIndex.readFully(channel, header, 0);
+            long indexLength = indexChannel.size();
+            int hashCount = header.getInt(8);
+            long bitCount = header.getLong(24);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(16) != indexLength
+                    || hashCount < 1 || hashCount > MAX_HASHES || bitCount <= 0 || bitCount % Long.SIZE != 0
+                    || bitCount > MAX_BITS || channel.size() != HEADER_SIZE + bitCount / Byte.SIZE
+                    || header.getLong(32) != BinaryIndex.checksum(indexChannel, indexLength)) {
+                return null;
+            }
+            ByteBuffer bits = ByteBuffer.allocate((int) (bitCount / Byte.SIZE));
+            BinaryIndex.readFully(channel, bits, HEADER_SIZE);
+            bits.flip();
+            long[] words = new long[(int) (bitCount / Long.SIZE)];
+            bits.asLongBuffer().get(words);
+            return new BloomFilter(words, bitCount, hashCount);
+        }
+    }
+
+    /**
+     * Confere se um NIS pode estar no indice.
+     *
+     * @param nis NIS empacotado.
+     * @return false se o NIS certamente nao esta no indice; true se pode estar.
+     */
+    public boolean mightContain(long nis) {
+        long hash1 = mix(nis ^ SEED);
+        long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Tamanho do filtro em memoria, em bytes.
+     */
+    public long getSizeInBytes() {
+        return bitCount / Byte.SIZE;
+    }
+
+    /**
+     * Marca os bits de um NIS.
+     *
+     * @param nis NIS empacotado.
+     */
+    private void add(long nis) {
+        long hash1 = mix(nis ^ SEED);
+        long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Mistura final do MurmurHash3, que espalha os bits de NIS proximos.
+     *
+     * @param value Valor.
+     * @return Valor misturado.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metricas da geraçao do indice pelo {@link IndexBuilder}.
+ * <p>
+ * Os contadores sao {@link LongAdder}, atualizados uma vez por arquivo temporario ou por merge, nunca por linha, entao
+ * podem ficar sempre ligados. Os tempos sao acumulados em nanossegundos e expostos em milissegundos por JMX
+ * ({@link BuildMetricsMXBean}) e em segundos no formato do Prometheus ({@link MetricsServer}).
+ */
+public class BuildMetrics implements BuildMetricsMXBean, MetricsSource {
+
+    /**
+     * Linhas lidas do arquivo de bolsa.
+     */
+    private final LongAdder rowsScanned = new LongAdder();
+
+    /**
+     * Arquivos temporarios de nivel 0 gravados.
+     */
+    private final LongAdder runsWritten = new LongAdder();
+
+    /**
+     * Bytes gravados em arquivos temporarios.
+     */
+    private final LongAdder bytesSpilled = new LongAdder();
+
+    /**
+     * Merges feitos, incluindo o final.
+     */
+    private final LongAdder mergePasses = new LongAdder();
+
+    /**
+     * Tempo de relogio da etapa de leitura.
+     */
+    private final LongAdder scanNanos = new LongAdder();
+
+    /**
+     * Tempo de ordenaçao dos blocos, somando as threads.
+     */
+    private final LongAdder sortNanos = new LongAdder();
+
+    /**
+     * Tempo de gravaçao dos arquivos de nivel 0, somando as threads.
+     */
+    private final LongAdder runWriteNanos = new LongAdder();
+
+    /**
+     * Tempo dos merges intermediarios.
+     */
+    private final LongAdder mergeNanos = new LongAdder();
+
+    /**
+     * Tempo de relogio do merge final.
+     */
+    private final LongAdder finalMergeNanos = new LongAdder();
+
+    /**
+     * Registra um arquivo temporario de nivel 0 gravado.
+     *
+     * @param rows       Linhas do arquivo.
+     * @param bytes      Tamanho do arquivo.
+     * @param sortTime   Tempo de ordenaçao do bloco, em nanossegundos.
+     * @param writeTime  Tempo de gravaçao do arquivo, em nanossegundos.
+     */
+    public void runWritten(long rows, long bytes, long sortTime, long writeTime) {
+        rowsScanned.add(rows);
+        runsWritten.increment();
+        bytesSpilled.add(bytes);
+        sortNanos.add(sortTime);
+        runWriteNanos.add(writeTime);
+    }
+
+    /**
+     * Registra um merge intermediario, que gera um arquivo temporario.
+     *
+     * @param bytes Tamanho do arquivo gerado.
+     * @param time  Duraçao do merge, em nanossegundos.
+     */
+    public void merged(long bytes, long time) {
+        mergePasses.increment();
+        bytesSpilled.add(bytes);
+        mergeNanos.add(time);
+    }
+
+    /**
+     * Registra o fim da etapa de leitura.
+     *
+     * @param time Duraçao da etapa, em nanossegundos.
+     */
+    public void scanFinished(long time) {
+        scanNanos.add(time);
+    }
+
+    /**
+     * Registra o merge final, que gera o indice.
+     *
+     * @param time Duraçao do merge, em nanossegundos.
+     */
+    public void finalMerged(long time) {
+        mergePasses.increment();
+        finalMergeNanos.add(time);
+    }
+
+    @Override
+    public long getRowsScanned() {
+        return rowsScanned.sum();
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        long nanos = scanNanos.sum();
+        return nanos > 0 ? rowsScanned.sum() * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public long getRunsWritten() {
+        return runsWritten.sum();
+    }
+
+    @Override
+    public long getBytesSpilled() {
+        return bytesSpilled.sum();
+    }
+
+    @Override
+    public long getMergePasses() {
+        return mergePasses.sum();
+    }
+
+    @Override
+    public long getScanMillis() {
+        return scanNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getSortMillis() {
+        return sortNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getRunWriteMillis() {
+        return runWriteNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getMergeMillis() {
+        return mergeNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public long getFinalMergeMillis() {
+        return finalMergeNanos.sum() / 1_000_000;
+    }
+
+    /**
+     * @return Resumo das metricas em uma linha, para o log.
+     */
+    public String summary() {
+        return String.format("%.0f linhas/s na leitura, %d arquivos temporarios, %.1f MB gravados em arquivos"
+                        + " temporarios, %d merges; leitura %d ms, ordenaçao %d ms, gravaçao %d ms, merges %d ms,"
+                        + " merge final %d ms", getRowsPerSecond(), getRunsWritten(), getBytesSpilled() / 1e6,
+                getMergePasses(), getScanMillis(), getSortMillis(), getRunWriteMillis(), getMergeMillis(),
+                getFinalMergeMillis());
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        MetricsServer.appendMetric(out, "findbag_build_rows_scanned_total", "counter",
+                "Linhas lidas do arquivo de bolsa.", getRowsScanned());
+        MetricsServer.appendMetric(out, "findbag_build_rows_per_second", "gauge",
+                "Linhas lidas por segundo na etapa de leitura.", getRowsPerSecond());
+        MetricsServer.appendMetric(out, "findbag_build_runs_written_total", "counter",
+                "Arquivos temporarios de nivel 0 gravados.", getRunsWritten());
+        MetricsServer.appendMetric(out, "findbag_build_spilled_bytes_total", "counter",
+                "Bytes gravados em arquivos temporarios.", getBytesSpilled());
+        MetricsServer.appendMetric(out, "findbag_build_merge_passes_total", "counter",
+                "Merges feitos, incluindo o final.", getMergePasses());
+        out.append("# HELP findbag_build_phase_seconds_total Tempo de cada etapa da geraçao.\n");
+        out.append("# TYPE findbag_build_phase_seconds_total counter\n");
+        appendPhase(out, "scan", scanNanos);
+        appendPhase(out, "sort", sortNanos);
+        appendPhase(out, "run_write", runWriteNanos);
+        appendPhase(out, "merge", mergeNanos);
+        appendPhase(out, "final_merge", finalMergeNanos);
+    }
+
+    /**
+     * Escreve o tempo de uma etapa no formato do Prometheus.
+     *
+     * @param out   Destino do texto.
+     * @param phase Nome da etapa.
+     * @param nanos Tempo da etapa, em nanossegundos.
+     */
+    private static void appendPhase(StringBuilder out, String phase, LongAdder nanos) {
+        out.append("findbag_build_phase_seconds_total{phase=\"").append(phase).append("\"} ").append(nanos.sum() / 1e9)
+                .append('\n');
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Metricas da geraçao do indice expostas por JMX. Ver {@link BuildMetrics}.
+ */
+public interface BuildMetricsMXBean {
+
+    /**
+     * @return Quantidade de linhas lidas do arquivo de bolsa.
+     */
+    long getRowsScanned();
+
+    /**
+     * @return Linhas lidas por segundo na etapa de leitura.
+     */
+    double getRowsPerSecond();
+
+    /**
+     * @return Quantidade de arquivos temporarios de nivel 0 gravados.
+     */
+    long getRunsWritten();
+
+    /**
+     * @return Bytes gravados em arquivos temporarios, de todos os niveis.
+     */
+    long getBytesSpilled();
+
+    /**
+     * @return Quantidade de merges feitos, incluindo o merge final.
+     */
+    long getMergePasses();
+
+    /**
+     * @return Tempo de relogio da etapa de leitura, em milissegundos.
+     */
+    long getScanMillis();
+
+    /**
+     * @return Soma do tempo de ordenaçao dos blocos, em milissegundos, somando todas as threads.
+     */
+    long getSortMillis();
+
+    /**
+     * @return Soma do tempo de gravaçao dos arquivos temporarios de nivel 0, em milissegundos, somando todas as
+     * threads.
+     */
+    long getRunWriteMillis();
+
+    /**
+     * @return Soma do tempo dos merges intermediarios, em milissegundos.
+     */
+    long getMergeMillis();
+
+    /**
+     * @return Tempo de relogio do merge final, em milissegundos.
+     */
+    long getFinalMergeMillis();
+}
@@ -0,0 +1,474 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Copia colunar do arquivo de bolsa, mapeada em memoria, gerada uma unica vez pelo {@link ColumnarBagBuilder}.
+ * <p>
+ * Cada coluna do arquivo de bolsa fica em um trecho proprio do arquivo, com um valor por linha, e uma consulta que usa
+ * uma ou duas colunas le apenas esses trechos. As colunas sao guardadas conforme o seu tipo ({@link #COLUMN_KINDS}):
+ * <p>
+ * - {@link #DICTIONARY}: colunas com poucos valores distintos, como UF, municipio e codigos. Cada linha guarda o numero
+ * do valor em um dicionario ordenado, com 1, 2 ou 4 bytes conforme o tamanho do dicionario. Como o dicionario esta em
+ * ordem, a ordem dos numeros e a ordem dos valores.
+ * - {@link #LONG}: NIS empacotado ({@link BinaryIndex#packNis(CharSequence)}), valor em centavos
+ * ({@link BagFileScanner#valueCents()}) e posiçao da linha no arquivo de bolsa, com 8 bytes por linha.
+ * - {@link #MONTH}: mes e ano como o int AAAAMM, com 4 bytes por linha.
+ * - {@link #STRING}: nome do favorecido, com muitos valores distintos. Os bytes dos nomes ficam em sequencia e um
+ * segundo trecho guarda a posiçao do inicio de cada nome, um long por linha e mais um no fim.
+ * <p>
+ * O arquivo comeca com um cabecalho de {@link #HEADER_SIZE} bytes:
+ * <p>
+ * - magic (int): {@link #MAGIC}.
+ * - versao (int): {@link #VERSION}.
+ * - quantidade de linhas (long).
+ * - checksum do arquivo de bolsa (long), como em {@link BinaryIndex}.
+ * - tamanho do trecho convertido do arquivo de bolsa (long).
+ * - quantidade de colunas (int).
+ * - reservado (int).
+ * <p>
+ * Em seguida vem o diretorio, com {@link #DIRECTORY_ENTRY_SIZE} bytes por coluna: o tipo (int), a largura de cada
+ * valor em bytes (int), a posiçao e o tamanho dos dados (long) e a posiçao do trecho auxiliar (long), que e o
+ * dicionario ou a tabela de posiçoes dos nomes. Todos os trechos começam em posiçoes multiplas de 8, entao nenhum valor
+ * atravessa o limite entre dois pedaços mapeados. O dicionario tem a quantidade de valores (int) e cada valor com o seu
+ * tamanho (short) e os seus bytes em ISO-8859-1; ele e carregado em memoria.
+ * <p>
+ * O {@link FamilyBag} de uma linha so e montado quando o cadastro inteiro e pedido ({@link #familyBag(long)}).
+ */
+public class ColumnarBag {
+
+    /**
+     * Identificador do formato, "FBCL" em ASCII.
+     */
+    public static final int MAGIC = 0x4642434C;
+
+    /**
+     * Versao do formato.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Tamanho do cabecalho em bytes.
+     */
+    public static final int HEADER_SIZE = 40;
+
+    /**
+     * Tamanho de cada entrada do diretorio de colunas em bytes.
+     */
+    public static final int DIRECTORY_ENTRY_SIZE = 32;
+
+    /**
+     * Coluna guardada como numero de um valor do dicionario.
+     */
+    public static final int DICTIONARY = 0;
+
+    /**
+     * Coluna guardada como long.
+     */
+    public static final int LONG = 1;
+
+    /**
+     * Coluna de mes e ano guardada como o int AAAAMM.
+     */
+    public static final int MONTH = 2;
+
+    /**
+     * Coluna de texto livre.
+     */
+    public static final int STRING = 3;
+
+    /**
+     * Coluna da posiçao da linha no arquivo de bolsa, depois das colunas do arquivo.
+     */
+    public static final int POSITION_COLUMN = BagFileScanner.COLUMN_COUNT;
+
+    /**
+     * Tipo de cada coluna: as colunas do arquivo de bolsa, na ordem do arquivo, e a posiçao da linha.
+     */
+    public static final int[] COLUMN_KINDS = {DICTIONARY, DICTIONARY, DICTIONARY, DICTIONARY, DICTIONARY, DICTIONARY,
+            DICTIONARY, LONG, STRING, DICTIONARY, LONG, MONTH, LONG};
+
+    /**
+     * Quantidade de bits do tamanho de cada pedaço mapeado.
+     */
+    private static final int CHUNK_BITS = 30;
+
+    /**
+     * Mascara da posiçao dentro de um pedaço.
+     */
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    /**
+     * Pedaços mapeados do arquivo.
+     */
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * Quantidade de linhas.
+     */
+    private final long rowCount;
+
+    /**
+     * Checksum do arquivo de bolsa gravado no cabecalho.
+     */
+    private final long sourceChecksum;
+
+    /**
+     * Tamanho do trecho convertido do arquivo de bolsa.
+     */
+    private final long indexedLength;
+
+    /**
+     * Largura em bytes dos valores de cada coluna.
+     */
+    private final int[] widths = new int[COLUMN_KINDS.length];
+
+    /**
+     * Posiçao dos dados de cada coluna.
+     */
+    private final long[] dataOffsets = new long[COLUMN_KINDS.length];
+
+    /**
+     * Posiçao do trecho auxiliar de cada coluna.
+     */
+    private final long[] auxiliaryOffsets = new long[COLUMN_KINDS.length];
+
+    /**
+     * Dicionario de cada coluna do tipo {@link #DICTIONARY}, em ordem.
+     */
+    private final String[][] dictionaries = new String[COLUMN_KINDS.length][];
+
+    /**
+     * Construtor. Mapeia o arquivo e carrega os dicionarios.
+     *
+     * @param file Arquivo colunar.
+     * @throws IOException se o arquivo nao puder ser aberto ou nao estiver no formato colunar.
+     */
+    public ColumnarBag(File file) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = accessFile.getChannel();
+            long length = channel.size();
+            int headerSize = HEADER_SIZE + COLUMN_KINDS.length * DIRECTORY_ENTRY_SIZE;
+            if (length < headerSize) {
+                throw new IOException("Arquivo colunar invalido.");
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            BinaryIndex.readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Arquivo colunar invalido.");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Versao de arquivo colunar nao suportada: " + header.getInt(4));
+            }
+            if (header.getInt(32) != COLUMN_KINDS.length) {
+                throw new IOException("Quantidade de colunas invalida: " + header.getInt(32));
+            }
+            this.rowCount = header.getLong(8);
+            this.sourceChecksum = header.getLong(16);
+            this.indexedLength = header.getLong(24);
+
+            int chunkCount = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+            this.chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long start = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, CHUNK_MASK + 1));
+            }
+
+            for (int column = 0; column < COLUMN_KINDS.length; column++) {
+                int entry = HEADER_SIZE + column * DIRECTORY_ENTRY_SIZE;
+                if (header.getInt(entry) != COLUMN_KINDS[column]) {
+                    throw new IOException("Tipo invalido da coluna " + column + ".");
+                }
+                widths[column] = header.getInt(entry + 4);
+                dataOffsets[column] = header.getLong(entry + 8);
+                long dataLength = header.getLong(entry + 16);
+                auxiliaryOffsets[column] = header.getLong(entry + 24);
+                if (dataOffsets[column] + dataLength > length || auxiliaryOffsets[column] > length) {
+                    throw new IOException("Arquivo colunar truncado.");
+                }
+                if (COLUMN_KINDS[column] == DICTIONARY) {
+                    dictionaries[column] = readDictionary(auxiliaryOffsets[column]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Quantidade de linhas.
+     */
+    public long rowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return {@link #sourceChecksum}
+     */
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    /**
+     * @return {@link #indexedLength}
+     */
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    /**
+     * Verifica se o arquivo esta no formato colunar, lendo o seu magic.
+     *
+     * @param file Arquivo.
+     * @return <true>, se o arquivo comeca com {@link #MAGIC}.
+     * @throws IOException
+     */
+    public static boolean isColumnarBag(File file) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            return accessFile.length() >= HEADER_SIZE && accessFile.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Numero do valor do dicionario de uma linha.
+     *
+     * @param column Coluna do tipo {@link #DICTIONARY}.
+     * @param row    Numero da linha.
+     * @return Numero do valor no dicionario.
+     */
+    public int code(int column, long row) {
+        long position = dataOffsets[column] + row * widths[column];
+        MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_BITS)];
+        int offset = (int) (position & CHUNK_MASK);
+        switch (widths[column]) {
+            case 1:
+                return chunk.get(offset) & 0xFF;
+            case 2:
+                return chunk.getShort(offset) & 0xFFFF;
+            default:
+                return chunk.getInt(offset);
+        }
+    }
+
+    /**
+     * @param column Coluna do tipo {@link #DICTIONARY}.
+     * @return Quantidade de valores do dicionario.
+     */
+    public int dictionarySize(int column) {
+        return dictionaries[column].length;
+    }
+
+    /**
+     * @param column Coluna do tipo {@link #DICTIONARY}.
+     * @param code   Numero do valor.
+     * @return Valor do dicionario.
+     */
+    public String dictionaryValue(int column, int code) {
+        return dictionaries[column][code];
+    }
+
+    /**
+     * Procura um valor no dicionario de uma coluna. Uma consulta por valor compara apenas os numeros das linhas.
+     *
+     * @param column Coluna do tipo {@link #DICTIONARY}.
+     * @param value  Valor procurado.
+     * @return Numero do valor, ou -1 se nenhuma linha tiver o valor.
+     */
+    public int codeOf(int column, String value) {
+        int code = Arrays.binarySearch(dictionaries[column], value);
+        return code >= 0 ? code : -1;
+    }
+
+    /**
+     * Valor de uma coluna do tipo {@link #LONG}.
+     *
+     * @param column Coluna.
+     * @param row    Numero da linha.
+     * @return Valor.
+     */
+    public long longAt(int column, long row) {
+        long position = dataOffsets[column] + row * Long.BYTES;
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * @param row Numero da linha.
+     * @return NIS empacotado.
+     */
+    public long nis(long row) {
+        return longAt(BagFileScanner.NIS_COLUMN, row);
+    }
+
+    /**
+     * @param row Numero da linha.
+     * @return Valor em centavos.
+     */
+    public long valueCents(long row) {
+        return longAt(BagFileScanner.VALUE_COLUMN, row);
+    }
+
+    /**
+     * @param row Numero da linha.
+     * @return Posiçao da linha no arquivo de bolsa.
+     */
+    public long position(long row) {
+        return longAt(POSITION_COLUMN, row);
+    }
+
+    /**
+     * Mes e ano de uma linha.
+     *
+     * @param column Coluna do tipo {@link #MONTH}.
+     * @param row    Numero da linha.
+     * @return Mes e ano como AAAAMM.
+     */
+    public int month(int column, long row) {
+        long position = dataOffsets[column] + row * Integer.BYTES;
+        return chunks[(int) (position >>> CHUNK_BITS)].getInt((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * Texto de uma coluna do tipo {@link #STRING}.
+     *
+     * @param column Coluna.
+     * @param row    Numero da linha.
+     * @return Texto.
+     */
+    public String string(int column, long row) {
+        long start = longAt(auxiliaryOffsets[column] + row * Long.BYTES);
+        long end = longAt(auxiliaryOffsets[column] + (row + 1) * Long.BYTES);
+        char[] chars = new char[(int) (end - start)];
+        long position = dataOffsets[column] + start;
+        for (int i = 0; i < chars.length; i++, position++) {
+            chars[i] = (char) (chunks[(int) (position >>> CHUNK_BITS)].get((int) (position & CHUNK_MASK)) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Texto de qualquer coluna do arquivo de bolsa, no formato do arquivo.
+     *
+     * @param column Coluna do arquivo de bolsa.
+     * @param row    Numero da linha.
+     * @return Texto da coluna.
+     */
+    public String text(int column, long row) {
+        switch (COLUMN_KINDS[column]) {
+            case DICTIONARY:
+                return dictionaryValue(column, code(column, row));
+            case MONTH:
+                return formatMonth(month(column, row));
+            case STRING:
+                return string(column, row);
+            default:
+                if (column == BagFileScanner.NIS_COLUMN) {
+                    return BinaryIndex.unpackNis(nis(row));
+                }
+                if (column == BagFileScanner.VALUE_COLUMN) {
+                    return BagAggregator.formatCents(valueCents(row));
+                }
+                return Long.toString(longAt(column, row));
+        }
+    }
+
+    /**
+     * Monta o cadastro completo de uma linha.
+     * <p>
+     * O valor e formatado por {@link BagAggregator#formatCents(long)}, sempre com ponto de milhar e dois decimais,
+     * entao pode diferir do texto original quando o arquivo de bolsa nao segue esse formato.
+     *
+     * @param row Numero da linha.
+     * @return Cadastro de bolsa.
+     */
+    public FamilyBag familyBag(long row) {
+        return new FamilyBag(text(0, row), text(1, row), text(2, row), text(3, row), text(4, row), text(5, row),
+                text(6, row), text(7, row), text(8, row), text(9, row), text(10, row), text(11, row));
+    }
+
+    /**
+     * Converte o mes e ano do arquivo de bolsa (MM/AAAA) para o int AAAAMM.
+     *
+     * @param text Mes e ano no formato do arquivo de bolsa.
+     * @return Mes e ano como AAAAMM.
+     * @throws IllegalArgumentException se o texto nao estiver no formato MM/AAAA.
+     */
+    public static int parseMonth(String text) {
+        if (text.length() != 7 || text.charAt(2) != '/') {
+            throw new IllegalArgumentException("Mes invalido: " + text);
+        }
+        try {
+            int month = Integer.parseInt(text.substring(0, 2));
+            int year = Integer.parseInt(text.substring(3));
+            if (month < 1 || month > 12 || year < 0) {
+                throw new IllegalArgumentException("Mes invalido: " + text);
+            }
+            return year * 100 + month;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Mes invalido: " + text);
+        }
+    }
+
+    /**
+     * Converte o mes e ano AAAAMM para o formato do arquivo de bolsa.
+     *
+     * @param month Mes e ano como AAAAMM.
+     * @return Mes e ano no formato MM/AAAA.
+     */
+    public static String formatMonth(int month) {
+        return String.format("%02d/%04d", month % 100, month / 100);
+    }
+
+    /**
+     * Le um dicionario do arquivo.
+     *
+     * @param offset Posiçao do dicionario.
+     * @return Valores do dicionario, em ordem.
+     */
+    private String[] readDictionary(long offset) {
+        String[] values = new String[intAt(offset)];
+        long position = offset + Integer.BYTES;
+        for (int i = 0; i < values.length; i++) {
+            int length = (byteAt(position) & 0xFF) << 8 | byteAt(position + 1) & 0xFF;
+            position += Short.BYTES;
+            byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = byteAt(position++);
+            }
+            values[i] = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return values;
+    }
+
+    /**
+     * Le um byte do arquivo.
+     *
+     * @param position Posiçao no arquivo.
+     * @return Byte lido.
+     */
+    private byte byteAt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].get((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * Le um int do arquivo, alinhado em 4 bytes.
+     *
+     * @param position Posiçao no arquivo.
+     * @return Int lido.
+     */
+    private int intAt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getInt((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * Le um long do arquivo, alinhado em 8 bytes.
+     *
+     * @param position Posiçao no arquivo.
+     * @return Long lido.
+     */
+    private long longAt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+    }
+}
@@ -0,0 +1,571 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converte o arquivo de bolsa para o formato colunar de {@link ColumnarBag}, usando varias threads.
+ * <p>
+ * O arquivo e dividido em trechos como no {@link IndexBuilder} e cada thread le o seu trecho com o
+ * {@link BagFileScanner}, gravando cada coluna em um arquivo temporario proprio. As colunas de dicionario recebem
+ * numeros do dicionario da propria thread. No fim os dicionarios das threads sao unidos e ordenados, e os arquivos
+ * temporarios sao copiados em sequencia para o arquivo colunar, com os numeros trocados pelos do dicionario final.
+ * <p>
+ * As colunas de dicionario costumam repetir o valor da linha anterior, entao a coluna e comparada com esse valor
+ * direto nos bytes ({@link BagFileScanner#columnEquals(int, String)}) antes de se criar uma String.
+ */
+public class ColumnarBagBuilder {
+
+    /**
+     * Pasta dos arquivos temporarios.
+     */
+    private static final String TEMP_PATH = "src/temp";
+
+    /**
+     * Caminho do arquivo colunar gerado.
+     */
+    private static final String COLUMNAR_PATH = "src/bag.col";
+
+    /**
+     * Tamanho dos buffers de leitura e escrita dos arquivos temporarios e do arquivo colunar.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE = "Use <Caminho_do_Arquivo_de_Bolsa> [--threads=N]";
+
+    /**
+     * Pasta dos arquivos temporarios.
+     */
+    private final File tempDir;
+
+    /**
+     * Quantidade de threads de leitura.
+     */
+    private final int threads;
+
+    /**
+     * Construtor.
+     *
+     * @param tempDir {@link #tempDir}
+     * @param threads {@link #threads}
+     */
+    public ColumnarBagBuilder(File tempDir, int threads) {
+        this.tempDir = tempDir;
+        this.threads = threads;
+    }
+
+    /**
+     * Programa principal responsavel por gerar o arquivo colunar em src/bag.col.
+     *
+     * @param args Use <Caminho_do_Arquivo_de_Bolsa> [--threads=N]. Por padrao sao usadas tantas threads de leitura
+     *             quantos forem os processadores.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].startsWith("--threads="))) {
+            System.err.println("[ERRO] - Argumentos inconrretos: " + USAGE);
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length == 2) {
+            try {
+                threads = Integer.parseInt(args[1].substring("--threads=".length()));
+            } catch (NumberFormatException e) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                System.err.println("[ERRO] - O valor de --threads= deve ser um inteiro positivo: " + USAGE);
+                System.exit(1);
+            }
+        }
+
+        try (RandomAccessFile bagFile = new RandomAccessFile(args[0], "r")) {
+            long t1 = System.currentTimeMillis();
+            File columnarFile = new File(COLUMNAR_PATH);
+            File tempColumnarFile = new File(columnarFile.getPath() + ".tmp");
+            File path = new File(TEMP_PATH);
+            long rowCount = new ColumnarBagBuilder(path, threads).build(bagFile.getChannel(), tempColumnarFile);
+            path.delete();
+            Files.move(tempColumnarFile.toPath(), columnarFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            long duration = System.currentTimeMillis() - t1;
+            System.out.println("[INFO] - " + rowCount + " linhas convertidas em " + duration + " milissegundos.");
+            System.out.println("[INFO] - Arquivo colunar criado com sucesso: " + columnarFile.length() + " bytes.");
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Converte o arquivo de bolsa.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param file       Arquivo colunar de saida.
+     * @return Quantidade de linhas convertidas.
+     * @throws IOException
+     */
+    public long build(FileChannel bagChannel, File file) throws IOException {
+        if (!tempDir.exists()) {
+            tempDir.mkdirs();
+        }
+        long bagLength = bagChannel.size();
+        long[] limits = BagFile.splitRanges(bagChannel, BagFile.dataStart(bagChannel), bagLength, threads);
+        List<RangeColumns> ranges = new ArrayList<>();
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<RangeColumns>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                RangeColumns range = new RangeColumns(i);
+                ranges.add(range);
+                long rangeStart = limits[i];
+                long rangeEnd = limits[i + 1];
+                results.add(readers.submit(() -> readRange(bagChannel, rangeStart, rangeEnd, range)));
+            }
+            for (Future<RangeColumns> result : results) {
+                IndexBuilder.await(result);
+            }
+            return write(file, ranges, BinaryIndex.checksum(bagChannel, bagLength), bagLength);
+        } finally {
+            readers.shutdownNow();
+            for (RangeColumns range : ranges) {
+                range.delete();
+            }
+        }
+    }
+
+    /**
+     * Le um trecho do arquivo de bolsa, gravando as colunas nos arquivos temporarios do trecho.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param start      Inicio do trecho.
+     * @param end        Fim do trecho, exclusive.
+     * @param range      Colunas do trecho.
+     * @return As proprias colunas do trecho.
+     * @throws IOException
+     */
+    private RangeColumns readRange(FileChannel bagChannel, long start, long end, RangeColumns range)
+            throws IOException {
+        BagFileScanner scanner = new BagFileScanner(bagChannel, start, end);
+        int columnCount = ColumnarBag.COLUMN_KINDS.length;
+        DataOutputStream[] outs = new DataOutputStream[columnCount];
+        DataOutputStream nameLengths = null;
+        try {
+            for (int column = 0; column < columnCount; column++) {
+                outs[column] = openTemp(range.file(column));
+            }
+            nameLengths = openTemp(range.nameLengthsFile());
+            String[] lastValues = new String[columnCount];
+            int[] lastCodes = new int[columnCount];
+            byte[] name = new byte[1024];
+            while (scanner.next()) {
+                if (scanner.columnCount() < BagFileScanner.COLUMN_COUNT) {
+                    throw new IOException("Linha com menos de " + BagFileScanner.COLUMN_COUNT + " colunas na posiçao "
+                            + scanner.position() + ".");
+                }
+                for (int column = 0; column < columnCount; column++) {
+                    switch (ColumnarBag.COLUMN_KINDS[column]) {
+                        case ColumnarBag.DICTIONARY:
+                            if (lastValues[column] == null || !scanner.columnEquals(column, lastValues[column])) {
+                                lastValues[column] = scanner.column(column);
+                                lastCodes[column] = range.code(column, lastValues[column]);
+                            }
+                            outs[column].writeInt(lastCodes[column]);
+                            break;
+                        case ColumnarBag.MONTH:
+                            if (lastValues[column] == null || !scanner.columnEquals(column, lastValues[column])) {
+                                lastValues[column] = scanner.column(column);
+                                try {
+                                    lastCodes[column] = ColumnarBag.parseMonth(lastValues[column]);
+                                } catch (IllegalArgumentException e) {
+                                    throw new IOException(e.getMessage() + " na posiçao " + scanner.position() + ".");
+                                }
+                            }
+                            outs[column].writeInt(lastCodes[column]);
+                            break;
+                        case ColumnarBag.STRING:
+                            int length = scanner.copyColumn(column, name, 0);
+                            if (length < 0) {
+                                throw new IOException("Coluna " + column + " maior que " + name.length
+                                        + " bytes na posiçao " + scanner.position() + ".");
+                            }
+                            outs[column].write(name, 0, length);
+                            nameLengths.writeInt(length);
+                            break;
+                        default:
+                            if (column == BagFileScanner.NIS_COLUMN) {
+                                outs[column].writeLong(scanner.nis());
+                            } else if (column == BagFileScanner.VALUE_COLUMN) {
+                                outs[column].writeLong(scanner.valueCents());
+                            } else {
+                                outs[column].writeLong(scanner.position());
+                            }
+                    }
+                }
+                range.rowCount++;
+            }
+        } finally {
+            for (DataOutputStream out : outs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+            if (nameLengths != null) {
+                nameLengths.close();
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Grava o arquivo colunar a partir dos arquivos temporarios dos trechos.
+     *
+     * @param file           Arquivo de saida.
+     * @param ranges         Colunas de cada trecho, na ordem dos trechos.
+     * @param sourceChecksum Checksum do arquivo de bolsa.
+     * @param indexedLength  Tamanho do trecho convertido do arquivo de bolsa.
+     * @return Quantidade de linhas.
+     * @throws IOException
+     */
+    private static long write(File file, List<RangeColumns> ranges, long sourceChecksum, long indexedLength)
+            throws IOException {
+        int columnCount = ColumnarBag.COLUMN_KINDS.length;
+        long rowCount = 0;
+        for (RangeColumns range : ranges) {
+            rowCount += range.rowCount;
+        }
+        ByteBuffer header = ByteBuffer.allocate(ColumnarBag.HEADER_SIZE + columnCount
+                * ColumnarBag.DIRECTORY_ENTRY_SIZE);
+        header.putInt(ColumnarBag.MAGIC);
+        header.putInt(ColumnarBag.VERSION);
+        header.putLong(rowCount);
+        header.putLong(sourceChecksum);
+        header.putLong(indexedLength);
+        header.putInt(columnCount);
+        header.putInt(0);
+
+        try (PositionedOutput out = new PositionedOutput(file)) {
+            out.write(new byte[header.capacity()]);
+            for (int column = 0; column < columnCount; column++) {
+                int kind = ColumnarBag.COLUMN_KINDS[column];
+                out.align();
+                long dataOffset = out.position;
+                long auxiliaryOffset = 0;
+                int width;
+                if (kind == ColumnarBag.DICTIONARY) {
+                    // Unindo os dicionarios das threads em um dicionario ordenado.
+                    TreeSet<String> sorted = new TreeSet<>();
+                    for (RangeColumns range : ranges) {
+                        sorted.addAll(range.dictionaries.get(column).keySet());
+                    }
+                    Map<String, Integer> codes = new HashMap<>();
+                    for (String value : sorted) {
+                        codes.put(value, codes.size());
+                    }
+                    width = codes.size() <= 0x100 ? 1 : codes.size() <= 0x10000 ? 2 : Integer.BYTES;
+                    for (RangeColumns range : ranges) {
+                        int[] remap = new int[range.dictionaries.get(column).size()];
+                        for (Map.Entry<String, Integer> entry : range.dictionaries.get(column).entrySet()) {
+                            remap[entry.getValue()] = codes.get(entry.getKey());
+                        }
+                        try (DataInputStream in = openTempInput(range.file(column))) {
+                            for (long row = 0; row < range.rowCount; row++) {
+                                int code = remap[in.readInt()];
+                                if (width == 1) {
+                                    out.writeByte(code);
+                                } else if (width == 2) {
+                                    out.writeShort(code);
+                                } else {
+                                    out.writeInt(code);
+                                }
+                            }
+                        }
+                    }
+                    long dataLength = out.position - dataOffset;
+                    out.align();
+                    auxiliaryOffset = out.position;
+                    out.writeInt(sorted.size());
+                    for (String value : sorted) {
+                        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+                        out.writeShort(bytes.length);
+                        out.write(bytes);
+                    }
+                    putDirectoryEntry(header, column, kind, width, dataOffset, dataLength, auxiliaryOffset);
+                } else if (kind == ColumnarBag.STRING) {
+                    for (RangeColumns range : ranges) {
+                        out.copy(range.file(column));
+                    }
+                    long dataLength = out.position - dataOffset;
+                    out.align();
+                    auxiliaryOffset = out.position;
+                    long nameOffset = 0;
+                    out.writeLong(nameOffset);
+                    for (RangeColumns range : ranges) {
+                        try (DataInputStream in = openTempInput(range.nameLengthsFile())) {
+                            for (long row = 0; row < range.rowCount; row++) {
+                                nameOffset += in.readInt();
+                                out.writeLong(nameOffset);
+                            }
+                        }
+                    }
+                    putDirectoryEntry(header, column, kind, 0, dataOffset, dataLength, auxiliaryOffset);
+                } else {
+                    for (RangeColumns range : ranges) {
+                        out.copy(range.file(column));
+                    }
+                    width = kind == ColumnarBag.MONTH ? Integer.BYTES : Long.BYTES;
+                    putDirectoryEntry(header, column, kind, width, dataOffset, out.position - dataOffset, 0);
+                }
+            }
+        }
+
+        header.clear();
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = accessFile.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+        return rowCount;
+    }
+
+    /**
+     * Preenche a entrada de uma coluna no diretorio.
+     *
+     * @param header          Cabecalho com o diretorio.
+     * @param column          Numero da coluna.
+     * @param kind            Tipo da coluna.
+     * @param width           Largura de cada valor em bytes.
+     * @param dataOffset      Posiçao dos dados.
+     * @param dataLength      Tamanho dos dados.
+     * @param auxiliaryOffset Posiçao do trecho auxiliar, ou 0.
+     */
+    private static void putDirectoryEntry(ByteBuffer header, int column, int kind, int width, long dataOffset,
+                                          long dataLength, long auxiliaryOffset) {
+        int entry = ColumnarBag.HEADER_SIZE + column * ColumnarBag.DIRECTORY_ENTRY_SIZE;
+        header.putInt(entry, kind);
+        header.putInt(entry + 4, width);
+        header.putLong(entry + 8, dataOffset);
+        header.putLong(entry + 16, dataLength);
+        header.putLong(entry + 24, auxiliaryOffset);
+    }
+
+    /**
+     * Abre um arquivo temporario para escrita.
+     *
+     * @param file Arquivo temporario.
+     * @return Saida com buffer.
+     * @throws IOException
+     */
+    private static DataOutputStream openTemp(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * Abre um arquivo temporario para leitura.
+     *
+     * @param file Arquivo temporario.
+     * @return Entrada com buffer.
+     * @throws IOException
+     */
+    private static DataInputStream openTempInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * Colunas lidas por uma thread: os arquivos temporarios e o dicionario da thread de cada coluna.
+     */
+    private class RangeColumns {
+
+        /**
+         * Numero do trecho.
+         */
+        private final int range;
+
+        /**
+         * Numero de cada valor no dicionario da thread, por coluna. Vazio para as colunas que nao sao de dicionario.
+         */
+        private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+
+        /**
+         * Quantidade de linhas lidas.
+         */
+        private long rowCount;
+
+        /**
+         * Construtor.
+         *
+         * @param range {@link #range}
+         */
+        private RangeColumns(int range) {
+            this.range = range;
+            for (int i = 0; i < ColumnarBag.COLUMN_KINDS.length; i++) {
+                dictionaries.add(new HashMap<>());
+            }
+        }
+
+        /**
+         * Numero de um valor no dicionario da thread, acrescentando o valor se preciso.
+         *
+         * @param column Numero da coluna.
+         * @param value  Valor.
+         * @return Numero do valor.
+         */
+        private int code(int column, String value) {
+            Map<String, Integer> dictionary = dictionaries.get(column);
+            return dictionary.computeIfAbsent(value, v -> dictionary.size());
+        }
+
+        /**
+         * @param column Numero da coluna.
+         * @return Arquivo temporario da coluna.
+         */
+        private File file(int column) {
+            return new File(tempDir, "Columnar_" + range + "_" + column + "_.bin");
+        }
+
+        /**
+         * @return Arquivo temporario com o tamanho de cada nome do favorecido.
+         */
+        private File nameLengthsFile() {
+            return new File(tempDir, "Columnar_" + range + "_lengths_.bin");
+        }
+
+        /**
+         * Apaga os arquivos temporarios do trecho.
+         */
+        private void delete() {
+            for (int column = 0; column < ColumnarBag.COLUMN_KINDS.length; column++) {
+                file(column).delete();
+            }
+            nameLengthsFile().delete();
+        }
+    }
+
+    /**
+     * Saida sequencial do arquivo colunar que conta os bytes gravados, para o diretorio e o alinhamento dos trechos.
+     */
+    private static class PositionedOutput implements Closeable {
+
+        /**
+         * Saida com buffer.
+         */
+        private final DataOutputStream out;
+
+        /**
+         * Quantidade de bytes gravados.
+         */
+        private long position;
+
+        /**
+         * Construtor.
+         *
+         * @param file Arquivo de saida.
+         * @throws IOException
+         */
+        private PositionedOutput(File file) throws IOException {
+            this.out = openTemp(file);
+        }
+
+        /**
+         * @param value Byte gravado.
+         * @throws IOException
+         */
+        private void writeByte(int value) throws IOException {
+            out.writeByte(value);
+            position++;
+        }
+
+        /**
+         * @param value Short gravado.
+         * @throws IOException
+         */
+        private void writeShort(int value) throws IOException {
+            out.writeShort(value);
+            position += Short.BYTES;
+        }
+
+        /**
+         * @param value Int gravado.
+         * @throws IOException
+         */
+        private void writeInt(int value) throws IOException {
+            out.writeInt(value);
+            position += Integer.BYTES;
+        }
+
+        /**
+         * @param value Long gravado.
+         * @throws IOException
+         */
+        private void writeLong(long value) throws IOException {
+            out.writeLong(value);
+            position += Long.BYTES;
+        }
+
+        /**
+         * @param bytes Bytes gravados.
+         * @throws IOException
+         */
+        private void write(byte[] bytes) throws IOException {
+            write(bytes, bytes.length);
+        }
+
+        /**
+         * @param bytes  Bytes gravados.
+         * @param length Quantidade de bytes gravados, a partir do inicio.
+         * @throws IOException
+         */
+        private void write(byte[] bytes, int length) throws IOException {
+            out.write(bytes, 0, length);
+            position += length;
+        }
+
+        /**
+         * Completa a saida com zeros ate uma posiçao multipla de 8.
+         *
+         * @throws IOException
+         */
+        private void align() throws IOException {
+            while (position % Long.BYTES != 0) {
+                writeByte(0);
+            }
+        }
+
+        /**
+         * Copia um arquivo inteiro para a saida.
+         *
+         * @param file Arquivo copiado.
+         * @throws IOException
+         */
+        private void copy(File file) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    write(buffer, read);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buscador de cadastros de bolsa para muitas buscas simultaneas, com uma thread virtual por busca.
+ * <p>
+ * Cada busca e uma tarefa assincrona: a busca no indice mapeado ({@link BagSearcher#findPosition(long)}) e a leitura
+ * da linha com uma leitura posicional ({@link FileChannel#read(ByteBuffer, long)}), que nao disputa o ponteiro do
+ * arquivo com as outras buscas. Em uma JVM com threads virtuais (Java 21 ou superior) cada busca roda na sua propria
+ * thread virtual; nas versoes anteriores as buscas rodam em um pool fixo de threads.
+ * <p>
+ * O arquivo de bolsa e lido em blocos alinhados de {@link #BLOCK_SIZE} bytes. Buscas simultaneas que caem no mesmo
+ * bloco compartilham uma unica leitura em andamento: a primeira le o bloco e as outras esperam o seu resultado. O
+ * indice e mapeado em memoria, entao buscas simultaneas na mesma pagina do indice ja compartilham a leitura do
+ * sistema operacional.
+ * <p>
+ * A admissao e limitada: no maximo maxPending buscas ficam em andamento ou na fila ao mesmo tempo. Alem disso as
+ * buscas sao recusadas na hora, com {@link RejectedExecutionException}, para que o cliente reduza o ritmo em vez de
+ * acumular uma fila sem limite.
+ */
+public class ConcurrentBagSearcher implements Closeable {
+
+    /**
+     * Quantidade padrao de buscas em andamento ou na fila.
+     */
+    public static final int DEFAULT_MAX_PENDING = 10_000;
+
+    /**
+     * Tamanho dos blocos lidos do arquivo de bolsa, o de uma pagina de memoria.
+     */
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Buscador do indice.
+     */
+    private final BagSearcher searcher;
+
+    /**
+     * Canal do arquivo de bolsa, usado apenas com leituras posicionais.
+     */
+    private final FileChannel bagChannel;
+
+    /**
+     * Executor das buscas.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * true se as buscas rodam em threads virtuais.
+     */
+    private final boolean virtualThreads;
+
+    /**
+     * Quantidade maxima de buscas em andamento ou na fila.
+     */
+    private final int maxPending;
+
+    /**
+     * Vagas de admissao das buscas.
+     */
+    private final Semaphore admission;
+
+    /**
+     * Leituras de blocos em andamento, por numero do bloco.
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<byte[]>> inFlightReads = new ConcurrentHashMap<>();
+
+    /**
+     * Blocos lidos do arquivo de bolsa.
+     */
+    private final LongAdder blockReads = new LongAdder();
+
+    /**
+     * Buscas que aproveitaram a leitura em andamento de outra busca.
+     */
+    private final LongAdder sharedReads = new LongAdder();
+
+    /**
+     * Buscas recusadas pela admissao.
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Construtor.
+     *
+     * @param indexFile       Arquivo de indice, texto, binario ou em blocos.
+     * @param bagFile         Arquivo de bolsa.
+     * @param maxPending      Quantidade maxima de buscas em andamento ou na fila.
+     * @param fallbackThreads Quantidade de threads do pool usado quando nao ha threads virtuais.
+     * @throws IOException se os arquivos nao puderem ser abertos ou nao corresponderem.
+     */
+    public ConcurrentBagSearcher(File indexFile, File bagFile, int maxPending, int fallbackThreads)
+            throws IOException {
+        this.searcher = new BagSearcher(indexFile, bagFile);
+        this.bagChannel = new RandomAccessFile(bagFile, "r").getChannel();
+        this.maxPending = maxPending;
+        this.admission = new Semaphore(maxPending);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(fallbackThreads, runnable -> {
+            Thread thread = new Thread(runnable, "bag-searcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Busca a linha do arquivo de bolsa de um NIS, de forma assincrona.
+     *
+     * @param nis NIS empacotado.
+     * @return Linha encontrada, ou null se o NIS nao estiver no indice. Falha com
+     * {@link RejectedExecutionException} se a admissao estiver cheia, ou com {@link IOException} se a leitura falhar.
+     */
+    public CompletableFuture<String> findLine(long nis) {
+        if (!admission.tryAcquire()) {
+            rejected.increment();
+            CompletableFuture<String> refused = new CompletableFuture<>();
+            refused.completeExceptionally(new RejectedExecutionException("Limite de buscas simultaneas atingido."));
+            return refused;
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(readLine(nis));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return true se as buscas rodam em threads virtuais.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return Metricas das buscas.
+     */
+    public LookupMetrics getMetrics() {
+        return searcher.getMetrics();
+    }
+
+    /**
+     * @return Contadores de leituras e admissao em uma linha, para o log.
+     */
+    public String stats() {
+        return "leituras=" + blockReads.sum() + " leituras_compartilhadas=" + sharedReads.sum() + " recusadas="
+                + rejected.sum() + " em_andamento=" + (maxPending - admission.availablePermits());
+    }
+
+    /**
+     * @return Blocos lidos do arquivo de bolsa.
+     */
+    public long getBlockReads() {
+        return blockReads.sum();
+    }
+
+    /**
+     * @return Buscas que aproveitaram a leitura em andamento de outra busca.
+     */
+    public long getSharedReads() {
+        return sharedReads.sum();
+    }
+
+    /**
+     * @return Buscas recusadas pela admissao.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            searcher.close();
+        } finally {
+            bagChannel.close();
+        }
+    }
+
+    /**
+     * Busca o NIS no indice e le a sua linha do bloco do arquivo de bolsa.
+     *
+     * @param nis NIS empacotado.
+     * @return Linha encontrada, ou null se o NIS nao estiver no indice.
+     * @throws IOException
+     */
+    private String readLine(long nis) throws IOException {
+        long start = System.nanoTime();
+        long position = searcher.findPosition(nis);
+        String line = null;
+        if (position >= 0) {
+            long block = position / BLOCK_SIZE;
+            byte[] bytes = readBlock(block);
+            line = BagFile.lineAt(bytes, (int) (position - block * BLOCK_SIZE), bytes.length);
+            if (line == null) {
+                // Linha que passa do fim do bloco.
+                line = BagFile.readLine(bagChannel, position);
+            }
+        }
+        searcher.getMetrics().lookup(System.nanoTime() - start, line != null, line != null ? line.length() + 1 : 0);
+        return line;
+    }
+
+    /**
+     * Le um bloco do arquivo de bolsa, ou espera a leitura do mesmo bloco ja em andamento.
+     * <p>
+     * A leitura so fica registrada enquanto esta em andamento; o bloco nao e guardado depois, e o cache de paginas do
+     * sistema operacional atende as leituras seguintes.
+     *
+     * @param block Numero do bloco.
+     * @return Bytes do bloco, menos que {@link #BLOCK_SIZE} no fim do arquivo.
+     * @throws IOException
+     */
+    private byte[] readBlock(long block) throws IOException {
+        CompletableFuture<byte[]> read = new CompletableFuture<>();
+        CompletableFuture<byte[]> inFlight = inFlightReads.putIfAbsent(block, read);
+        if (inFlight != null) {
+            sharedReads.increment();
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException("Erro na leitura do arquivo de bolsa: " + e.getCause(), e.getCause());
+            }
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            long blockStart = block * BLOCK_SIZE;
+            while (buffer.hasRemaining() && bagChannel.read(buffer, blockStart + buffer.position()) >= 0) {
+                // Lendo o bloco inteiro.
+            }
+            byte[] bytes = Arrays.copyOf(buffer.array(), buffer.position());
+            blockReads.increment();
+            read.complete(bytes);
+            return bytes;
+        } catch (IOException | RuntimeException e) {
+            read.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightReads.remove(block, read);
+        }
+    }
+
+    /**
+     * Cria um executor com uma thread virtual por tarefa, se a JVM tiver threads virtuais. O metodo e chamado por
+     * reflexao para que o codigo continue compilando e rodando em versoes anteriores ao Java 21.
+     *
+     * @return Executor de threads virtuais, ou null se a JVM nao as tiver.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
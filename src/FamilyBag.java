@@ -96,6 +96,77 @@ public class FamilyBag {
         this.monthAndYear = monthAndYear;
     }
 
+    /**
+     * Cria o cadastro a partir de uma linha do arquivo de bolsa, com as colunas separadas por tabulaçao.
+     *
+     * @param line Linha do arquivo de bolsa.
+     * @return Cadastro de bolsa.
+     */
+    public static FamilyBag fromLine(String line) {
+        String[] coluns = line.split("\t");
+        return new FamilyBag(coluns[0], coluns[1], coluns[2], coluns[3], coluns[4],
+                coluns[5], coluns[6], coluns[7], coluns[8], coluns[9], coluns[10], coluns[11]);
+    }
+
+    /**
+     * Converte o cadastro para uma linha no formato do arquivo de bolsa, com as colunas separadas por tabulaçao.
+     *
+     * @return Linha sem a quebra de linha.
+     */
+    public String toTsv() {
+        return String.join("\t", uf, siafiCityCode, cityName, functionCode, subFunctionCode, programCode,
+                actionCode, favoredNis, favoredName, fontAndFinality, value, monthAndYear);
+    }
+
+    /**
+     * Converte o cadastro para um objeto JSON em uma unica linha. Os nomes dos campos sao os nomes dos atributos.
+     * <p>
+     * O JSON tem apenas caracteres ASCII: os caracteres acentuados do arquivo de bolsa (ISO-8859-1) e os de controle
+     * sao escapados no formato &#92;u00XX, entao a saida e valida em UTF-8 mesmo quando gravada em ISO-8859-1.
+     *
+     * @return Objeto JSON.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append('{');
+        appendJsonField(json, "uf", uf).append(',');
+        appendJsonField(json, "siafiCityCode", siafiCityCode).append(',');
+        appendJsonField(json, "cityName", cityName).append(',');
+        appendJsonField(json, "functionCode", functionCode).append(',');
+        appendJsonField(json, "subFunctionCode", subFunctionCode).append(',');
+        appendJsonField(json, "programCode", programCode).append(',');
+        appendJsonField(json, "actionCode", actionCode).append(',');
+        appendJsonField(json, "favoredNis", favoredNis).append(',');
+        appendJsonField(json, "favoredName", favoredName).append(',');
+        appendJsonField(json, "fontAndFinality", fontAndFinality).append(',');
+        appendJsonField(json, "value", value).append(',');
+        appendJsonField(json, "monthAndYear", monthAndYear);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Acrescenta um campo JSON do tipo texto, escapando o valor.
+     *
+     * @param json  JSON em construçao.
+     * @param name  Nome do campo.
+     * @param value Valor do campo.
+     * @return O proprio JSON em construçao.
+     */
+    private static StringBuilder appendJsonField(StringBuilder json, String name, String value) {
+        json.append('"').append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20 || c >= 0x80) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
     @Override
     public String toString() {
         return "----------------------" +
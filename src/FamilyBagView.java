@@ -0,0 +1,426 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Visao de um cadastro de bolsa sobre os bytes da sua linha, sem copiar nem decodificar os campos.
+ * <p>
+ * Ao contrario de {@link FamilyBag#fromLine(String)}, que cria 12 Strings por linha, a visao so guarda o buffer e a
+ * posiçao de cada coluna, localizadas em uma unica passada pelos bytes no primeiro acesso a um campo. Cada campo e
+ * decodificado apenas quando pedido, e os campos numericos tem acessores que convertem direto dos bytes
+ * ({@link #nisAsLong()}, {@link #valueCents()}). A saida em TSV ou JSON e escrita direto dos bytes em um
+ * {@link OutputStream}, sem Strings intermediarias.
+ * <p>
+ * A mesma instancia pode ser reaproveitada para varias linhas ({@link #wrap(ByteBuffer, int, int)}), como um
+ * flyweight. A visao so e valida enquanto os bytes do buffer nao mudarem, e nao pode ser usada por varias threads ao
+ * mesmo tempo; para guardar o cadastro, use {@link #toFamilyBag()}.
+ */
+public class FamilyBagView {
+
+    /**
+     * Quantidade de colunas de uma linha do arquivo de bolsa.
+     */
+    public static final int COLUMN_COUNT = 12;
+
+    /**
+     * Coluna do NIS do favorecido.
+     */
+    private static final int NIS_COLUMN = 7;
+
+    /**
+     * Coluna do valor.
+     */
+    private static final int VALUE_COLUMN = 10;
+
+    /**
+     * Nomes dos campos no JSON, os mesmos de {@link FamilyBag#toJson()}, ja com as aspas, os dois pontos e a virgula
+     * que separa do campo anterior.
+     */
+    private static final byte[][] JSON_NAMES = jsonNames("uf", "siafiCityCode", "cityName", "functionCode",
+            "subFunctionCode", "programCode", "actionCode", "favoredNis", "favoredName", "fontAndFinality", "value",
+            "monthAndYear");
+
+    /**
+     * Digitos hexadecimais dos escapes de caracteres de controle e acentuados no JSON.
+     */
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Rotulos dos campos em {@link #toString()}, os mesmos de {@link FamilyBag#toString()}.
+     */
+    private static final String[] LABELS = {"Unidade federativa", "Codigo SIAFI do municipio", "Nome do municipio",
+            "Codigo da funçao", "Codigo de subfunçao", "Codigo do programa", "Codigo de açao", "NIS do favorecido",
+            "Nome do favorecido", "Fonte-finalidade", "Valor", "Mes/ano"};
+
+    /**
+     * Buffer com os bytes da linha.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Posiçao no buffer do inicio da linha.
+     */
+    private int start;
+
+    /**
+     * Posiçao no buffer do fim da linha, exclusive, sem a quebra de linha.
+     */
+    private int end;
+
+    /**
+     * true se as colunas da linha atual ja foram localizadas.
+     */
+    private boolean located;
+
+    /**
+     * Posiçao no buffer do inicio de cada coluna. A posiçao seguinte a ultima coluna fica em [COLUMN_COUNT], entao a
+     * coluna i termina em columnStarts[i + 1] - 1.
+     */
+    private final int[] columnStarts = new int[COLUMN_COUNT + 1];
+
+    /**
+     * Posiciona a visao sobre uma linha, sem a quebra de linha. As colunas so sao localizadas no primeiro acesso a um
+     * campo, entao {@link #writeTsv(OutputStream)} nao percorre a linha.
+     *
+     * @param buffer Buffer com os bytes da linha, em ISO-8859-1. Nao e copiado nem alterado.
+     * @param offset Posiçao do inicio da linha no buffer.
+     * @param length Tamanho da linha, sem a quebra de linha.
+     * @return A propria visao.
+     */
+    public FamilyBagView wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.start = offset;
+        this.end = length > 0 && buffer.get(offset + length - 1) == '\r' ? offset + length - 1 : offset + length;
+        this.located = false;
+        return this;
+    }
+
+    /**
+     * Cria uma visao sobre uma linha ja lida como String.
+     *
+     * @param line Linha do arquivo de bolsa.
+     * @return Visao da linha.
+     */
+    public static FamilyBagView of(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        return new FamilyBagView().wrap(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * @return Unidade federativa.
+     */
+    public String uf() {
+        return column(0);
+    }
+
+    /**
+     * @return Codigo SIAFI do municipio.
+     */
+    public String siafiCityCode() {
+        return column(1);
+    }
+
+    /**
+     * @return Nome do municipio.
+     */
+    public String cityName() {
+        return column(2);
+    }
+
+    /**
+     * @return Codigo da funçao.
+     */
+    public String functionCode() {
+        return column(3);
+    }
+
+    /**
+     * @return Codigo de subfunçao.
+     */
+    public String subFunctionCode() {
+        return column(4);
+    }
+
+    /**
+     * @return Codigo do programa.
+     */
+    public String programCode() {
+        return column(5);
+    }
+
+    /**
+     * @return Codigo de açao.
+     */
+    public String actionCode() {
+        return column(6);
+    }
+
+    /**
+     * @return NIS do favorecido.
+     */
+    public String favoredNis() {
+        return column(NIS_COLUMN);
+    }
+
+    /**
+     * @return Nome do favorecido.
+     */
+    public String favoredName() {
+        return column(8);
+    }
+
+    /**
+     * @return Fonte-finalidade.
+     */
+    public String fontAndFinality() {
+        return column(9);
+    }
+
+    /**
+     * @return Valor, no formato do arquivo (1.234,56).
+     */
+    public String value() {
+        return column(VALUE_COLUMN);
+    }
+
+    /**
+     * @return Mes e ano.
+     */
+    public String monthAndYear() {
+        return column(11);
+    }
+
+    /**
+     * Converte o NIS direto dos bytes, sem criar String.
+     *
+     * @return NIS empacotado como em {@link BinaryIndex#packNis(CharSequence)}.
+     * @throws IllegalArgumentException se a linha tiver menos colunas que o esperado ou se o NIS nao tiver
+     *                                  {@link BinaryIndex#NIS_LENGTH} digitos.
+     */
+    public long nisAsLong() {
+        int[] starts = columnStarts();
+        int from = starts[NIS_COLUMN];
+        int to = starts[NIS_COLUMN + 1] - 1;
+        if (to - from != BinaryIndex.NIS_LENGTH) {
+            throw new IllegalArgumentException("NIS invalido: " + favoredNis());
+        }
+        long nis = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("NIS invalido: " + favoredNis());
+            }
+            nis = nis * 10 + digit;
+        }
+        return nis;
+    }
+
+    /**
+     * Converte o valor, no formato brasileiro (1.234,56), para centavos direto dos bytes, com as mesmas regras de
+     * {@link BagFileScanner#valueCents()}.
+     *
+     * @return Valor em centavos.
+     * @throws IllegalArgumentException se a linha tiver menos colunas que o esperado ou se o valor nao for valido.
+     */
+    public long valueCents() {
+        int[] starts = columnStarts();
+        int i = starts[VALUE_COLUMN];
+        int to = starts[VALUE_COLUMN + 1] - 1;
+        boolean negative = i < to && buffer.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long units = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                if (decimals >= 0) {
+                    decimals++;
+                }
+                units = units * 10 + (b - '0');
+                digits++;
+            } else if (b == ',' && decimals < 0) {
+                decimals = 0;
+            } else if (b != '.' || decimals >= 0) {
+                digits = 0;
+                break;
+            }
+        }
+        if (digits == 0 || digits > 17 || decimals > 2) {
+            throw new IllegalArgumentException("Valor invalido: " + value());
+        }
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            units *= 10;
+        }
+        return negative ? -units : units;
+    }
+
+    /**
+     * @return Cadastro com todos os campos decodificados, independente do buffer.
+     * @throws IllegalArgumentException se a linha tiver menos colunas que o esperado.
+     */
+    public FamilyBag toFamilyBag() {
+        return new FamilyBag(column(0), column(1), column(2), column(3), column(4), column(5), column(6),
+                column(7), column(8), column(9), column(10), column(11));
+    }
+
+    /**
+     * Escreve a linha como esta no arquivo de bolsa, sem a quebra de linha. Os bytes sao copiados de uma vez, sem
+     * localizar as colunas.
+     *
+     * @param out Destino, em ISO-8859-1.
+     * @throws IOException
+     */
+    public void writeTsv(OutputStream out) throws IOException {
+        writeBytes(out, start, end);
+    }
+
+    /**
+     * Escreve o cadastro como um objeto JSON em uma unica linha, igual a {@link FamilyBag#toJson()}, sem a quebra de
+     * linha. Os bytes acentuados (a partir de 0x80) sao escritos como escapes &#92;u00XX, o mesmo caractere em
+     * ISO-8859-1, e a saida e ASCII, valida tambem como UTF-8.
+     *
+     * @param out Destino.
+     * @throws IOException
+     * @throws IllegalArgumentException se a linha tiver menos colunas que o esperado.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        int[] starts = columnStarts();
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            out.write(JSON_NAMES[column]);
+            int to = starts[column + 1] - 1;
+            // Os trechos sem escape sao escritos de uma vez.
+            int pending = starts[column];
+            for (int i = pending; i < to; i++) {
+                int b = buffer.get(i) & 0xFF;
+                if (b == '"' || b == '\\' || b < 0x20 || b >= 0x80) {
+                    writeBytes(out, pending, i);
+                    out.write('\\');
+                    if (b < 0x20 || b >= 0x80) {
+                        out.write('u');
+                        out.write('0');
+                        out.write('0');
+                        out.write(HEX_DIGITS[b >>> 4]);
+                        out.write(HEX_DIGITS[b & 0xF]);
+                    } else {
+                        out.write(b);
+                    }
+                    pending = i + 1;
+                }
+            }
+            writeBytes(out, pending, to);
+            out.write('"');
+        }
+        out.write('}');
+    }
+
+    /**
+     * Mesmo texto de {@link FamilyBag#toString()}, montado direto dos bytes em um unico StringBuilder.
+     *
+     * @throws IllegalArgumentException se a linha tiver menos colunas que o esperado.
+     */
+    @Override
+    public String toString() {
+        int[] starts = columnStarts();
+        StringBuilder text = new StringBuilder(384 + end - start);
+        text.append("----------------------\nDados de bolsa\n----------------------");
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            text.append('\n').append(LABELS[column]).append(": '");
+            for (int i = starts[column]; i < starts[column + 1] - 1; i++) {
+                text.append((char) (buffer.get(i) & 0xFF));
+            }
+            text.append('\'');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Localiza as colunas da linha atual, em uma unica passada pelos bytes, se ainda nao foram localizadas.
+     * <p>
+     * As colunas alem da ultima esperada sao ignoradas, como em {@link FamilyBag#fromLine(String)}.
+     *
+     * @return {@link #columnStarts}
+     * @throws IllegalArgumentException se a linha tiver menos de {@link #COLUMN_COUNT} colunas.
+     */
+    private int[] columnStarts() {
+        if (located) {
+            return columnStarts;
+        }
+        columnStarts[0] = start;
+        int column = 1;
+        int i = start;
+        for (; i < end; i++) {
+            if (buffer.get(i) == '\t') {
+                if (column == COLUMN_COUNT) {
+                    break;
+                }
+                columnStarts[column++] = i + 1;
+            }
+        }
+        if (column < COLUMN_COUNT) {
+            throw new IllegalArgumentException("Linha com " + column + " colunas, esperadas " + COLUMN_COUNT + ".");
+        }
+        columnStarts[COLUMN_COUNT] = i + 1;
+        located = true;
+        return columnStarts;
+    }
+
+    /**
+     * Decodifica uma coluna.
+     *
+     * @param column Numero da coluna.
+     * @return Texto da coluna.
+     * @throws IllegalArgumentException se a linha tiver menos colunas que o esperado.
+     */
+    private String column(int column) {
+        int[] starts = columnStarts();
+        int from = starts[column];
+        int length = starts[column + 1] - 1 - from;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, StandardCharsets.ISO_8859_1);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Escreve um trecho do buffer. Buffers em heap sao escritos direto do seu vetor; os demais, byte a byte.
+     *
+     * @param out  Destino.
+     * @param from Inicio do trecho no buffer.
+     * @param to   Fim do trecho no buffer, exclusive.
+     * @throws IOException
+     */
+    private void writeBytes(OutputStream out, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + from, to - from);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            out.write(buffer.get(i));
+        }
+    }
+
+    /**
+     * Monta o prefixo de cada campo do JSON.
+     *
+     * @param names Nomes dos campos.
+     * @return Prefixos em ISO-8859-1: {"nome":" no primeiro campo e ,"nome":" nos seguintes.
+     */
+    private static byte[][] jsonNames(String... names) {
+        byte[][] prefixes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            prefixes[i] = ((i == 0 ? "{" : ",") + "\"" + names[i] + "\":\"").getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return prefixes;
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Indice esparso ("fence") carregado em memoria na frente do arquivo de indice.
+ * <p>
+ * O arquivo de indice e dividido em blocos de tamanho fixo e, para cada bloco, o fence guarda o NIS e o slot
+ * ({@link MappedIndex}) do primeiro item que começa nele. A busca binaria e feita primeiro no fence, em memoria, e
+ * depois apenas no trecho do indice entre dois fences, que ocupa cerca de um bloco. Assim uma busca com o cache frio
+ * le um ou dois blocos do indice, em vez de um bloco por passo da busca binaria.
+ * <p>
+ * O arquivo fica ao lado do indice, com o sufixo {@link #FILE_SUFFIX}, e tem um cabecalho de {@link #HEADER_SIZE}
+ * bytes:
+ * <p>
+ * - magic (int): {@link #MAGIC}.
+ * - versao (int): {@link #VERSION}.
+ * - tamanho do bloco (int).
+ * - reservado (int).
+ * - tamanho do arquivo de indice (long).
+ * - quantidade de entradas (long).
+ * - checksum do arquivo de indice (long), calculado por {@link BinaryIndex#checksum(FileChannel, long)} sobre o
+ * proprio indice. O cabecalho do indice binario, com o checksum do arquivo de bolsa e a quantidade de registros, entra
+ * no checksum. Com o tamanho, descarta um fence que nao corresponde mais ao indice, mesmo que o indice tenha sido
+ * gerado de novo com o mesmo tamanho. Na versao 1 este campo nao existia.
+ * <p>
+ * Ao carregar o fence, algumas entradas tambem sao conferidas contra o indice ({@link #SAMPLED_ENTRIES}), o que cobre
+ * o trecho do meio do indice, fora do checksum.
+ * <p>
+ * Em seguida vem as entradas, com o NIS empacotado e o slot, ambos long.
+ */
+public class FenceIndex {
+
+    /**
+     * Identificador do formato, "FBFN" em ASCII.
+     */
+    public static final int MAGIC = 0x4642464E;
+
+    /**
+     * Versao do formato.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Tamanho do cabecalho em bytes.
+     */
+    public static final int HEADER_SIZE = 40;
+
+    /**
+     * Sufixo do arquivo de fence, acrescentado ao caminho do indice.
+     */
+    public static final String FILE_SUFFIX = ".fence";
+
+    /**
+     * Quantidade de entradas conferidas contra o indice ao carregar o fence.
+     */
+    private static final int SAMPLED_ENTRIES = 16;
+
+    /**
+     * Primeiro NIS de cada bloco.
+     */
+    private final long[] keys;
+
+    /**
+     * Slot do primeiro item de cada bloco.
+     */
+    private final long[] slots;
+
+    /**
+     * Construtor.
+     *
+     * @param keys  {@link #keys}
+     * @param slots {@link #slots}
+     */
+    private FenceIndex(long[] keys, long[] slots) {
+        this.keys = keys;
+        this.slots = slots;
+    }
+
+    /**
+     * Arquivo de fence de um arquivo de indice.
+     *
+     * @param indexFile Arquivo de indice.
+     * @return Arquivo de fence.
+     */
+    public static File fileFor(File indexFile) {
+        return new File(indexFile.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Carrega o fence de um arquivo de indice, se ele existir e corresponder ao indice: mesmo tamanho, mesmo
+     * checksum e entradas conferidas com os NIS do indice.
+     *
+     * @param indexFile    Arquivo de indice.
+     * @param indexChannel Canal do arquivo de indice, usado no checksum.
+     * @param index        Indice mapeado.
+     * @return Fence carregado, ou null se nao houver um fence valido.
+     * @throws IOException
+     */
+    public static FenceIndex load(File indexFile, FileChannel indexChannel, MappedIndex index) throws IOException {
+        File fenceFile = fileFor(indexFile);
+        if (!fenceFile.exists() || fenceFile.length() < HEADER_SIZE) {
+            return null;
+        }
+        try (FileChannel channel = new RandomAccessFile(fenceFile, "r").getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            BinaryIndex.readFully(channel, header, 0);
+            long indexLength = indexChannel.size();
+            long count = header.getLong(24);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(16) != indexLength
+                    || count < 0 || channel.size() != HEADER_SIZE + count * 2 * Long.BYTES
+                    || header.getLong(32) != BinaryIndex.checksum(indexChannel, indexLength)) {
+                return null;
+            }
+            ByteBuffer entries = ByteBuffer.allocate((int) count * 2 * Long.BYTES);
+            BinaryIndex.readFully(channel, entries, HEADER_SIZE);
+            entries.flip();
+            long[] keys = new long[(int) count];
+            long[] slots = new long[(int) count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = entries.getLong();
+                slots[i] = entries.getLong();
+            }
+            FenceIndex fences = new FenceIndex(keys, slots);
+            return fences.matches(index) ? fences : null;
+        }
+    }
+
+    /**
+     * Confere algumas entradas, espalhadas pelo fence, e a ultima contra os NIS do indice.
+     *
+     * @param index Indice mapeado.
+     * @return true se todas as entradas conferidas apontam para um slot do indice com o mesmo NIS.
+     */
+    private boolean matches(MappedIndex index) {
+        int step = Math.max(1, keys.length / SAMPLED_ENTRIES);
+        for (int i = 0; i < keys.length; i += step) {
+            if (!matches(index, i)) {
+                return false;
+            }
+        }
+        return keys.length == 0 || matches(index, keys.length - 1);
+    }
+
+    /**
+     * Confere uma entrada contra o NIS do indice.
+     *
+     * @param index Indice mapeado.
+     * @param entry Numero da entrada.
+     * @return true se o slot da entrada esta no indice e tem o mesmo NIS.
+     */
+    private boolean matches(MappedIndex index, int entry) {
+        if (slots[entry] < index.first() || slots[entry] >= index.end()) {
+            return false;
+        }
+        try {
+            return index.keyAt(slots[entry]) == keys[entry];
+        } catch (IndexOutOfBoundsException e) {
+            // Slot de um indice texto diferente, perto do fim do arquivo.
+            return false;
+        }
+    }
+
+    /**
+     * Inicio do trecho do indice onde pode estar o primeiro item com o NIS: o slot do ultimo bloco que começa com um
+     * NIS menor que o procurado.
+     *
+     * @param nis     NIS empacotado.
+     * @param minimum Slot devolvido quando nenhum bloco começa com NIS menor.
+     * @return Slot inicial do trecho.
+     */
+    public long floorSlot(long nis, long minimum) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < nis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low == 0 ? minimum : Math.max(minimum, slots[low - 1]);
+    }
+
+    /**
+     * Fim do trecho do indice onde pode estar o primeiro item com o NIS: o slot do primeiro bloco que começa com um
+     * NIS maior que o procurado.
+     *
+     * @param nis     NIS empacotado.
+     * @param maximum Slot devolvido quando nenhum bloco começa com NIS maior.
+     * @return Slot final do trecho, exclusive.
+     */
+    public long ceilingSlot(long nis, long maximum) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] <= nis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low == keys.length ? maximum : Math.min(maximum, slots[low]);
+    }
+
+    /**
+     * Gera o fence enquanto o indice e escrito, repassando cada item para o escritor do indice.
+     */
+    public static class Writer implements IndexOutput {
+
+        /**
+         * Escritor do indice.
+         */
+        private final IndexOutput delegate;
+
+        /**
+         * Arquivo de indice escrito pelo delegate.
+         */
+        private final File indexFile;
+
+        /**
+         * Arquivo de fence.
+         */
+        private final File fenceFile;
+
+        /**
+         * Tamanho do bloco.
+         */
+        private final int blockSize;
+
+        /**
+         * <true>, se o indice esta no formato binario.
+         */
+        private final boolean binary;
+
+        /**
+         * Entradas do fence: NIS e slot intercalados.
+         */
+        private long[] entries = new long[1024];
+
+        /**
+         * Quantidade de posiçoes usadas em {@link #entries}.
+         */
+        private int size;
+
+        /**
+         * Posiçao no arquivo de indice do proximo item.
+         */
+        private long offset;
+
+        /**
+         * Quantidade de itens escritos.
+         */
+        private long count;
+
+        /**
+         * Posiçao no arquivo de indice do proximo inicio de bloco.
+         */
+        private long nextBlock;
+
+        /**
+         * <true>, se o fence ja foi gravado.
+         */
+        private boolean closed;
+
+        /**
+         * Construtor.
+         *
+         * @param delegate  {@link #delegate}
+         * @param indexFile Arquivo de indice escrito pelo delegate.
+         * @param blockSize {@link #blockSize}
+         * @param binary    {@link #binary}
+         */
+        public Writer(IndexOutput delegate, File indexFile, int blockSize, boolean binary) {
+            this.delegate = delegate;
+            this.indexFile = indexFile;
+            this.fenceFile = fileFor(indexFile);
+            this.blockSize = blockSize;
+            this.binary = binary;
+            this.offset = binary ? BinaryIndex.HEADER_SIZE : 0;
+        }
+
+        @Override
+        public void write(long nis, long position) throws IOException {
+            if (offset >= nextBlock) {
+                if (size == entries.length) {
+                    entries = Arrays.copyOf(entries, size * 2);
+                }
+                entries[size++] = nis;
+                entries[size++] = binary ? count : offset;
+                nextBlock = (offset / blockSize + 1) * blockSize;
+            }
+            delegate.write(nis, position);
+            offset += binary ? BinaryIndex.RECORD_SIZE : BinaryIndex.NIS_LENGTH + 2 + digits(position);
+            count++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            delegate.close();
+            long indexChecksum;
+            try (FileChannel indexChannel = new RandomAccessFile(indexFile, "r").getChannel()) {
+                indexChecksum = BinaryIndex.checksum(indexChannel, indexChannel.size());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size * Long.BYTES);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(blockSize);
+            buffer.putInt(0);
+            buffer.putLong(offset);
+            buffer.putLong(size / 2);
+            buffer.putLong(indexChecksum);
+            for (int i = 0; i < size; i++) {
+                buffer.putLong(entries[i]);
+            }
+            buffer.flip();
+            try (FileChannel channel = new RandomAccessFile(fenceFile, "rw").getChannel()) {
+                channel.truncate(0);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+
+        /**
+         * Quantidade de digitos decimais de um numero nao negativo.
+         *
+         * @param value Numero.
+         * @return Quantidade de digitos.
+         */
+        private static int digits(long value) {
+            int digits = 1;
+            while (value >= 10) {
+                value /= 10;
+                digits++;
+            }
+            return digits;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classe de execuçao para consulta de cadastros de bolsa por municipio, UF e mes usando o indice secundario.
+ * <p>
+ * Cada criterio e uma lista de posiçoes do {@link SecondaryIndex}. O resultado e a interseçao das listas, e apenas as
+ * linhas encontradas sao lidas do arquivo de bolsa, em ordem de posiçao e juntando as leituras de linhas proximas
+ * ({@link BagFile#readRecords}). A saida sai na ordem do arquivo de bolsa, escrita direto dos bytes lidos.
+ */
+public class FindBagQuery {
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE = "Use <Arquivo de indice secundario> <Arquivo de bolsa> <campo>=<valor>..."
+            + " [--count] [--format=tsv|json], com campo uf, city ou month. Exemplo: city=1234 month=03/2019";
+
+    /**
+     * Tamanho do buffer de escrita da saida.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Consulta os cadastros de bolsa que atendem a todos os criterios e exibe o resultado na saida, um cadastro por
+     * linha.
+     *
+     * @param args Use <Arquivo de indice secundario> <Arquivo de bolsa> <campo>=<valor>... [--count]
+     *             [--format=tsv|json]. O campo e uf, city (codigo SIAFI do municipio) ou month (MM/AAAA). Com --count
+     *             apenas a quantidade de cadastros e exibida, sem ler o arquivo de bolsa.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+        boolean count = false;
+        boolean json = false;
+        List<Integer> fields = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            if (args[i].equals("--count")) {
+                count = true;
+            } else if (args[i].equals("--format=json")) {
+                json = true;
+            } else if (args[i].equals("--format=tsv")) {
+                json = false;
+            } else if (separator > 0 && SecondaryIndex.fieldOf(args[i].substring(0, separator)) >= 0) {
+                fields.add(SecondaryIndex.fieldOf(args[i].substring(0, separator)));
+                values.add(args[i].substring(separator + 1));
+            } else {
+                System.err.println("[ERRO] - Argumento desconhecido '" + args[i] + "': " + USAGE);
+                System.exit(1);
+            }
+        }
+        if (fields.isEmpty()) {
+            System.err.println("[ERRO] - Informe ao menos um criterio: " + USAGE);
+            System.exit(1);
+        }
+
+        try (SecondaryIndex index = new SecondaryIndex(new File(args[0]));
+             FileChannel bagChannel = new RandomAccessFile(args[1], "r").getChannel()) {
+            long indexedLength = index.getIndexedLength();
+            if (indexedLength > bagChannel.size()
+                    || index.getSourceChecksum() != BinaryIndex.checksum(bagChannel, indexedLength)) {
+                System.err.println("[ERRO] - O indice secundario nao corresponde ao arquivo de bolsa.");
+                System.exit(2);
+            }
+
+            long t1 = System.currentTimeMillis();
+            List<SecondaryIndex.PostingCursor> cursors = new ArrayList<>();
+            for (int i = 0; i < fields.size(); i++) {
+                cursors.add(index.cursor(fields.get(i), values.get(i)));
+            }
+            long[] positions = SecondaryIndex.intersect(cursors);
+            if (!count) {
+                boolean jsonFormat = json;
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                        WRITE_BUFFER_SIZE);
+                BagFile.readRecords(bagChannel, positions, familyBag -> {
+                    if (jsonFormat) {
+                        familyBag.writeJson(out);
+                    } else {
+                        familyBag.writeTsv(out);
+                    }
+                    out.write('\n');
+                });
+                out.flush();
+            }
+            long duration = System.currentTimeMillis() - t1;
+            System.err.println("[INFO] - " + positions.length + " cadastros encontrados em " + duration
+                    + " milissegundos.");
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+}
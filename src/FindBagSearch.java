@@ -1,6 +1,8 @@
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Classe de execuçao para busca de bolsa usando o arquivo de indice criado.
@@ -9,14 +11,20 @@ public class FindBagSearch {
 
     /**
      * Realiza a busca de de um cadastro de bolsa familia de acordo com o NIS pssado e exibe o resultado na saida.
+     * <p>
+     * O formato do arquivo de indice e detectado automaticamente: texto, gerado por padrao pelo {@link IndexCreator},
+     * ou binario ({@link BinaryIndex}), gerado com a opçao --binary. Para varias buscas no mesmo processo, use
+     * {@link BagSearcher} ou o {@link LookupServer}.
      *
-     * @param args Use <Arquivo de indice> <Arquivo de bolsa> <nis>
+     * @param args Use <Arquivo de indice> <Arquivo de bolsa> <nis> [--all]. Com --all sao exibidos todos os pagamentos
+     *             do NIS, em ordem de posiçao no arquivo de bolsa, em vez de apenas o primeiro.
      */
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.err.println("[ERRO] - Erro de argumento: Use <Arquivo de indice> <Arquivo de bolsa> <nis>");
+        if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].equals("--all"))) {
+            System.err.println("[ERRO] - Erro de argumento: Use <Arquivo de indice> <Arquivo de bolsa> <nis> [--all]");
             System.exit(1);
         }
+        boolean all = args.length == 4;
         String indexFilePath = args[0];
         String bagFilePath = args[1];
         String nis = args[2];
@@ -25,76 +33,50 @@ public class FindBagSearch {
             System.exit(2);
         }
 
-        RandomAccessFile indexFile = null;
-        RandomAccessFile bagFile = null;
+        BagSearcher searcher = null;
         try {
-            indexFile = new RandomAccessFile(indexFilePath, "r");
-            bagFile = new RandomAccessFile(bagFilePath, "r");
+            searcher = new BagSearcher(new File(indexFilePath), new File(bagFilePath));
         } catch (FileNotFoundException e) {
             System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
             System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
         }
 
-        String line = null;
-        long bagPosition = -1;
+        // As linhas so sao interpretadas na exibiçao, por uma visao sobre os seus bytes.
+        List<String> lines = new ArrayList<>();
         try {
-            bagPosition = getBagDataPosition(indexFile, nis);
-            bagFile.seek(bagPosition);
-            line = bagFile.readLine();
+            long packedNis = BinaryIndex.packNis(nis);
+            if (all) {
+                searcher.findAll(packedNis, lines::add);
+            } else {
+                String line = searcher.findLine(packedNis);
+                if (line != null) {
+                    lines.add(line);
+                }
+            }
+            searcher.close();
+        } catch (IllegalArgumentException e) {
+            System.err.println("[ERRO] - O Valor de NIS deve conter 14 digitos.");
+            System.exit(2);
         } catch (IOException e) {
             System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
             System.exit(2);
         }
 
-        if (line != null) {
-            String[] coluns = line.split("\t");
-            FamilyBag familyBag = new FamilyBag(coluns[0], coluns[1], coluns[2], coluns[3], coluns[4],
-                    coluns[5], coluns[6], coluns[7], coluns[8], coluns[9], coluns[10], coluns[11]);
-            System.out.println(familyBag);
+        if (lines.isEmpty()) {
+            System.out.println("[INFO] - NIS nao encontrado.");
         }
-    }
-
-    /**
-     * Captura o valor de posiçao da informaçao no arquivo de bolsa usando o arquivo de indice e o NIS.
-     *
-     * @param indexFile Arquivo de indice.
-     * @param nis       NIS.
-     * @return valor de posiçao desejada.
-     * @throws IOException
-     */
-    private static long getBagDataPosition(RandomAccessFile indexFile, String nis) throws IOException {
-        long initialPosition = indexFile.getFilePointer();
-        long finalPosition = indexFile.length();
-        return binarySearch(initialPosition, finalPosition, indexFile, nis);
-    }
-
-    /**
-     * Realiza a busca binaria no arquico de indice recursivamente ate encontrar o NIS desejado.
-     *
-     * @param initialPosition Posiçao inicial.
-     * @param finalPosition Posiçao final.
-     * @param indexFile Arquivo de indice.
-     * @param nis NIS
-     * @return valor de posiçao desejada.
-     * @throws IOException
-     */
-    private static long binarySearch(long initialPosition, long finalPosition, RandomAccessFile indexFile, String nis) throws IOException {
-        long middlePosition = (initialPosition + finalPosition) / 2;
-        indexFile.seek(middlePosition);
-
-        indexFile.readLine();
-        String line = indexFile.readLine();
-        String[] column = line.split("\t");
-        String foundNis = column[0];
-
-        // NIS solicitado menor que o NIS encontrado na arvore.
-        if (nis.compareTo(foundNis) < 0) {
-            return binarySearch(initialPosition, middlePosition, indexFile, nis);
-        } else if (nis.compareTo(foundNis) > 0) {
-            return binarySearch(middlePosition + 1, finalPosition, indexFile, nis);
+        for (String line : lines) {
+            System.out.println(FamilyBagView.of(line));
         }
-
-        return Long.parseLong(column[1]);
+        if (all && !lines.isEmpty()) {
+            System.out.println("[INFO] - " + lines.size() + " pagamentos encontrados.");
+        }
+        LookupMetrics metrics = searcher.getMetrics();
+        System.out.println("[INFO] - Busca concluida em " + metrics.getLatency().getSum() / 1000 + " microssegundos: "
+                + metrics.getProbeCounter().sum() + " sondagens no indice, " + metrics.getBytesRead()
+                + " bytes lidos do arquivo de bolsa.");
     }
-
 }
@@ -0,0 +1,138 @@
+/**
+ * Estimativa aproximada de quantas vezes cada NIS foi buscado recentemente (count-min sketch), usada pela politica de
+ * admissao do {@link BagCache}.
+ * <p>
+ * Cada NIS incrementa quatro contadores de 4 bits, escolhidos por funçoes de hash diferentes, e a frequencia estimada e
+ * o menor deles. Os contadores ficam em um vetor de long, 16 por posiçao. Depois de um numero de incrementos
+ * proporcional ao tamanho da tabela todos os contadores sao divididos por dois, assim NIS que deixam de ser buscados
+ * perdem frequencia com o tempo.
+ */
+public class FrequencySketch {
+
+    /**
+     * Valor maximo de um contador.
+     */
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * Mascara que zera o bit mais alto de cada contador depois do deslocamento da divisao por dois.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * Sementes das funçoes de hash.
+     */
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /**
+     * Contadores, 16 por posiçao.
+     */
+    private final long[] table;
+
+    /**
+     * Mascara do indice na tabela.
+     */
+    private final int tableMask;
+
+    /**
+     * Quantidade de incrementos que dispara a divisao dos contadores por dois.
+     */
+    private final int sampleSize;
+
+    /**
+     * Incrementos desde a ultima divisao.
+     */
+    private int additions;
+
+    /**
+     * Construtor.
+     *
+     * @param maximumSize Quantidade maxima de itens do cache.
+     */
+    public FrequencySketch(int maximumSize) {
+        int size = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 26)) - 1) << 1;
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Frequencia estimada de um NIS.
+     *
+     * @param key NIS empacotado.
+     * @return Frequencia, de 0 a 15.
+     */
+    public int frequency(long key) {
+        long hash = spread(key);
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, (int) (table[indexOf(hash, i)] >>> offsetOf(hash, i)) & MAX_COUNT);
+        }
+        return frequency;
+    }
+
+    /**
+     * Registra uma busca do NIS.
+     *
+     * @param key NIS empacotado.
+     */
+    public void increment(long key) {
+        long hash = spread(key);
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            if (((table[index] >>> offset) & MAX_COUNT) < MAX_COUNT) {
+                table[index] += 1L << offset;
+            }
+        }
+        if (++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Divide todos os contadores por dois.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Espalha os bits do NIS, ja que NIS proximos diferem apenas nos bits baixos.
+     *
+     * @param key NIS empacotado.
+     * @return Hash do NIS.
+     */
+    private static long spread(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * Posiçao na tabela do contador de uma das funçoes de hash.
+     *
+     * @param hash Hash do NIS.
+     * @param i    Numero da funçao de hash.
+     * @return Indice na tabela.
+     */
+    private int indexOf(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    /**
+     * Deslocamento, dentro da posiçao da tabela, do contador de uma das funçoes de hash.
+     *
+     * @param hash Hash do NIS.
+     * @param i    Numero da funçao de hash.
+     * @return Deslocamento em bits.
+     */
+    private static int offsetOf(long hash, int i) {
+        return (int) ((hash >>> (i << 3)) & 15) << 2;
+    }
+}
@@ -0,0 +1,205 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Tabela hash de grupos de agregaçao com tipos primitivos, sem um objeto por grupo nem por linha.
+ * <p>
+ * A chave de um grupo e uma sequencia de bytes, copiada uma unica vez para {@link #keys} quando o grupo e criado. A
+ * tabela usa endereçamento aberto com sondagem linear em {@link #slots}, que guarda em um long o hash da chave e o
+ * numero do grupo mais um (0 e vazio), assim uma posiçao ocupada por outra chave e descartada sem outro acesso a
+ * memoria. Os dados de cada grupo ficam juntos em {@link #groups}: posiçao e tamanho da chave, soma e quantidade.
+ * Somar uma linha a um grupo existente le no maximo tres linhas de cache e nao aloca memoria.
+ */
+public class GroupTable {
+
+    /**
+     * Capacidade inicial da tabela.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Quantidade de longs de cada grupo em {@link #groups}.
+     */
+    private static final int GROUP_STRIDE = 3;
+
+    /**
+     * Hash da chave nos 32 bits altos e numero do grupo mais um nos 32 bits baixos, em cada posiçao da tabela, ou 0 se
+     * a posiçao estiver vazia. O tamanho e potencia de 2 e a tabela fica no maximo meio cheia.
+     */
+    private long[] slots = new long[INITIAL_CAPACITY];
+
+    /**
+     * Dados dos grupos, {@link #GROUP_STRIDE} longs por grupo: posiçao da chave em {@link #keys} nos 32 bits altos e
+     * tamanho da chave nos 32 bits baixos, soma dos valores e quantidade de linhas.
+     */
+    private long[] groups = new long[INITIAL_CAPACITY / 2 * GROUP_STRIDE];
+
+    /**
+     * Bytes das chaves de todos os grupos, em sequencia.
+     */
+    private byte[] keys = new byte[16 * 1024];
+
+    /**
+     * Tamanho usado de {@link #keys}.
+     */
+    private int keysSize;
+
+    /**
+     * Quantidade de grupos.
+     */
+    private int size;
+
+    /**
+     * Soma um valor ao grupo de uma chave, criando o grupo se preciso.
+     *
+     * @param key    Bytes da chave.
+     * @param length Tamanho da chave.
+     * @param value  Valor somado.
+     * @param count  Quantidade de linhas somadas.
+     */
+    public void add(byte[] key, int length, long value, long count) {
+        int hash = hash(key, length);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        long entry;
+        while ((entry = slots[slot]) != 0) {
+            if ((int) (entry >>> 32) == hash) {
+                int base = ((int) entry - 1) * GROUP_STRIDE;
+                if (keyEquals(groups[base], key, length)) {
+                    groups[base + 1] += value;
+                    groups[base + 2] += count;
+                    return;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if ((size + 1) * 2 > slots.length) {
+            grow();
+            add(key, length, value, count);
+            return;
+        }
+        if (keysSize + length > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysSize + length));
+        }
+        System.arraycopy(key, 0, keys, keysSize, length);
+        int base = size * GROUP_STRIDE;
+        groups[base] = (long) keysSize << 32 | length;
+        groups[base + 1] = value;
+        groups[base + 2] = count;
+        keysSize += length;
+        size++;
+        slots[slot] = (long) hash << 32 | size;
+    }
+
+    /**
+     * Soma todos os grupos de outra tabela a esta.
+     *
+     * @param other Tabela somada. Nao e alterada.
+     */
+    public void addAll(GroupTable other) {
+        for (int group = 0; group < other.size; group++) {
+            byte[] key = other.keyBytesAt(group);
+            add(key, key.length, other.sumAt(group), other.countAt(group));
+        }
+    }
+
+    /**
+     * @return Quantidade de grupos.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param group Numero do grupo, de 0 a {@link #size()} - 1, na ordem de criaçao.
+     * @return Chave do grupo, com os bytes convertidos um a um para caracteres (ISO-8859-1).
+     */
+    public String keyAt(int group) {
+        long key = groups[group * GROUP_STRIDE];
+        return new String(keys, (int) (key >>> 32), (int) key, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param group Numero do grupo.
+     * @return Copia dos bytes da chave do grupo.
+     */
+    public byte[] keyBytesAt(int group) {
+        long key = groups[group * GROUP_STRIDE];
+        return Arrays.copyOfRange(keys, (int) (key >>> 32), (int) (key >>> 32) + (int) key);
+    }
+
+    /**
+     * @param group Numero do grupo.
+     * @return Soma dos valores do grupo.
+     */
+    public long sumAt(int group) {
+        return groups[group * GROUP_STRIDE + 1];
+    }
+
+    /**
+     * @param group Numero do grupo.
+     * @return Quantidade de linhas do grupo.
+     */
+    public long countAt(int group) {
+        return groups[group * GROUP_STRIDE + 2];
+    }
+
+    /**
+     * Compara a chave de um grupo com uma sequencia de bytes.
+     *
+     * @param groupKey Posiçao e tamanho da chave do grupo, como em {@link #groups}.
+     * @param key      Bytes comparados.
+     * @param length   Tamanho dos bytes comparados.
+     * @return <true>, se forem iguais.
+     */
+    private boolean keyEquals(long groupKey, byte[] key, int length) {
+        if ((int) groupKey != length) {
+            return false;
+        }
+        int keyOffset = (int) (groupKey >>> 32);
+        for (int i = 0; i < length; i++) {
+            if (keys[keyOffset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dobra a capacidade da tabela e dos dados dos grupos, reposicionando os grupos pelos hashes guardados.
+     */
+    private void grow() {
+        long[] oldSlots = slots;
+        slots = new long[oldSlots.length * 2];
+        groups = Arrays.copyOf(groups, slots.length / 2 * GROUP_STRIDE);
+        int mask = slots.length - 1;
+        for (long entry : oldSlots) {
+            if (entry != 0) {
+                int slot = (int) (entry >>> 32) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = entry;
+            }
+        }
+    }
+
+    /**
+     * Hash FNV-1a dos bytes, com os bits misturados no fim para que os bits baixos, usados na tabela, dependam de todos
+     * os bytes.
+     *
+     * @param bytes  Bytes.
+     * @param length Tamanho, a partir do inicio.
+     * @return Hash.
+     */
+    private static int hash(byte[] bytes, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ bytes[i]) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        return hash ^ (hash >>> 13);
+    }
+}
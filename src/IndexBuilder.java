@@ -0,0 +1,462 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Gera o indice do arquivo de bolsa usando varias threads.
+ * <p>
+ * A geraçao tem tres etapas que acontecem ao mesmo tempo:
+ * <p>
+ * - Leitura: o arquivo de bolsa e dividido em trechos que começam no inicio de uma linha
+ * ({@link BagFile#splitRanges}) e cada trecho e lido por uma thread, que extrai o NIS e a posiçao de cada linha
+ * direto dos bytes ({@link BagFileScanner}).
+ * - Ordenaçao: os itens de cada thread sao acumulados em um {@link RunBuffer}, cujo tamanho vem do limite de memoria
+ * de ordenaçao dividido entre as threads. Cada thread tem dois blocos: quando um enche, ele e entregue a uma thread de
+ * escrita, que o ordena e grava um arquivo temporario de nivel 0 no formato binario do indice, enquanto a leitura
+ * continua no outro bloco. A leitura so espera se o outro bloco ainda estiver sendo gravado.
+ * - Merge: uma thread separada mescla os arquivos temporarios em grupos de fanIn assim que eles ficam prontos, gerando
+ * arquivos do nivel seguinte. Quando a leitura termina, os arquivos restantes sao mesclados no indice final.
+ * <p>
+ * Os arquivos temporarios podem ser espalhados por varias pastas, uma por disco, em rodizio. No merge, cada arquivo e
+ * lido com leitura antecipada ({@link RunMerger}), entao os discos sao lidos em paralelo.
+ * <p>
+ * Os itens sao ordenados por NIS e, para NIS iguais, pela posiçao ({@link RunMerger}). Essa ordem nao depende de como o
+ * arquivo foi dividido, entao o indice gerado e identico para qualquer quantidade de threads.
+ * <p>
+ * Cada arquivo temporario completo e registrado no {@link RunManifest}, com o trecho do arquivo de bolsa ja lido e o
+ * CRC32 dos registros. Se a geraçao for interrompida, a proxima geraçao do mesmo trecho continua a leitura de cada
+ * trecho do ponto registrado e mescla os arquivos que ja estavam prontos, em vez de recomeçar do zero. O trecho e
+ * identificado pelo CRC32 de todo o arquivo de bolsa ate o seu fim, lido antes de cada geraçao.
+ */
+public class IndexBuilder {
+
+    /**
+     * Quantidade minima de itens por bloco de ordenaçao.
+     */
+    private static final int MIN_RUN_SIZE = 1024;
+
+    /**
+     * Quantidade maxima de itens por bloco de ordenaçao, limitada pelo tamanho maximo de um vetor.
+     */
+    private static final int MAX_RUN_SIZE = 1 << 30;
+
+    /**
+     * Tamanho do buffer direto de escrita dos arquivos temporarios de nivel 0, reaproveitado em cada trecho.
+     */
+    private static final int RUN_WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Marca de fim da fila de arquivos temporarios.
+     */
+    private static final RunManifest.Run END_OF_RUNS = new RunManifest.Run(null, -1, 0, 0, 0);
+
+    /**
+     * Quantidade de threads de leitura antecipada do merge por pasta de arquivos temporarios.
+     */
+    private static final int PREFETCH_THREADS_PER_DIR = 2;
+
+    /**
+     * Pastas dos arquivos temporarios, usadas em rodizio.
+     */
+    private final List<File> tempDirs;
+
+    /**
+     * Quantidade de threads de leitura.
+     */
+    private final int threads;
+
+    /**
+     * Quantidade maxima de arquivos mesclados de uma vez.
+     */
+    private final int fanIn;
+
+    /**
+     * Tamanho do buffer de leitura de cada arquivo no merge.
+     */
+    private final int mergeBufferSize;
+
+    /**
+     * Quantidade de itens por bloco de ordenaçao. Cada thread de leitura usa ate dois blocos.
+     */
+    private final int runSize;
+
+    /**
+     * Quantidade de linhas lidas do arquivo de bolsa, incluindo as da geraçao retomada.
+     */
+    private final AtomicLong lineCount = new AtomicLong();
+
+    /**
+     * Quantidade de linhas que ja estavam nos arquivos temporarios de uma geraçao retomada.
+     */
+    private long resumedLineCount;
+
+    /**
+     * Diario da geraçao em andamento.
+     */
+    private RunManifest manifest;
+
+    /**
+     * Threads de leitura antecipada do merge da geraçao em andamento.
+     */
+    private ExecutorService prefetcher;
+
+    /**
+     * Metricas das geraçoes feitas por este objeto.
+     */
+    private final BuildMetrics metrics = new BuildMetrics();
+
+    /**
+     * Construtor com uma unica pasta de arquivos temporarios e o buffer de merge padrao.
+     *
+     * @param tempDir    Pasta dos arquivos temporarios.
+     * @param threads    {@link #threads}
+     * @param fanIn      {@link #fanIn}
+     * @param sortMemory Memoria em bytes para os blocos de ordenaçao, somando todas as threads.
+     */
+    public IndexBuilder(File tempDir, int threads, int fanIn, long sortMemory) {
+        this(Collections.singletonList(tempDir), threads, fanIn, sortMemory, RunMerger.DEFAULT_READ_BUFFER_SIZE);
+    }
+
+    /**
+     * Construtor.
+     *
+     * @param tempDirs        {@link #tempDirs}
+     * @param threads         {@link #threads}
+     * @param fanIn           {@link #fanIn}
+     * @param sortMemory      Memoria em bytes para os blocos de ordenaçao, somando todas as threads.
+     * @param mergeBufferSize {@link #mergeBufferSize}
+     */
+    public IndexBuilder(List<File> tempDirs, int threads, int fanIn, long sortMemory, int mergeBufferSize) {
+        this.tempDirs = new ArrayList<>(tempDirs);
+        this.threads = threads;
+        this.fanIn = fanIn;
+        this.mergeBufferSize = mergeBufferSize;
+        long entries = sortMemory / threads / 2 / RunBuffer.BYTES_PER_ENTRY;
+        this.runSize = (int) Math.max(MIN_RUN_SIZE, Math.min(MAX_RUN_SIZE, entries));
+    }
+
+    /**
+     * Gera o indice do arquivo de bolsa.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param output     Destino do indice. E fechado ao final.
+     * @return Quantidade de linhas indexadas.
+     * @throws IOException
+     */
+    public long build(FileChannel bagChannel, IndexOutput output) throws IOException {
+        return build(bagChannel, BagFile.dataStart(bagChannel), bagChannel.size(), null, output);
+    }
+
+    /**
+     * Gera o indice de um trecho do arquivo de bolsa, mesclado a um indice ja existente.
+     * <p>
+     * Usado para indexar apenas as linhas acrescentadas ao arquivo de bolsa: o trecho novo gera os seus proprios
+     * arquivos temporarios e o indice existente entra no merge final como mais um arquivo ordenado, sem ser alterado.
+     * Como todas as posiçoes do trecho novo sao maiores que as do indice existente, o resultado e igual ao de uma
+     * geraçao completa.
+     * <p>
+     * Se a pasta dos arquivos temporarios tiver o diario de uma geraçao interrompida do mesmo trecho, a geraçao e
+     * retomada. Se a geraçao falhar, os arquivos temporarios e o diario sao mantidos para a proxima tentativa.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param start      Inicio do trecho, no inicio de uma linha.
+     * @param end        Fim do trecho, exclusive.
+     * @param baseIndex  Indice binario existente, ou null.
+     * @param output     Destino do indice. E fechado ao final.
+     * @return Quantidade de linhas indexadas do trecho.
+     * @throws IOException
+     */
+    public long build(FileChannel bagChannel, long start, long end, File baseIndex, IndexOutput output)
+            throws IOException {
+        for (File tempDir : tempDirs) {
+            if (!tempDir.exists()) {
+                tempDir.mkdirs();
+            }
+        }
+        // O CRC32 cobre todo o arquivo ate o fim do trecho: com uma amostra, uma linha alterada no meio do arquivo, sem
+        // mudar o tamanho, retomaria arquivos temporarios com os NIS antigos.
+        CRC32 bagCrc = new CRC32();
+        BinaryIndex.updateFullChecksum(bagCrc, bagChannel, 0, end);
+        String key = start + ":" + end + ":" + bagCrc.getValue();
+        manifest = RunManifest.open(tempDirs, key, BagFile.splitRanges(bagChannel, start, end, threads));
+        // Uma geraçao retomada mantem os trechos de leitura registrados, mesmo que a quantidade de threads mude.
+        long[] limits = manifest.getLimits();
+        resumedLineCount = manifest.getPendingRecordCount();
+        lineCount.set(resumedLineCount);
+
+        BlockingQueue<RunManifest.Run> completedRuns = new LinkedBlockingQueue<>();
+        ExecutorService merger = Executors.newSingleThreadExecutor();
+        List<RunManifest.Run> resumedRuns = manifest.getPendingRuns();
+        Future<List<RunManifest.Run>> pendingRuns = merger.submit(() -> mergeWhileReading(resumedRuns,
+                completedRuns));
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        prefetcher = Executors.newFixedThreadPool(tempDirs.size() * PREFETCH_THREADS_PER_DIR);
+        boolean completed = false;
+        long scanStart = System.nanoTime();
+        try {
+            List<Future<Void>> readResults = new ArrayList<>();
+            for (int i = 0; i < limits.length - 1; i++) {
+                int range = i;
+                long rangeEnd = limits[i + 1];
+                readResults.add(readers.submit(() -> {
+                    readRange(bagChannel, range, manifest.getResumePosition(range), rangeEnd, writers,
+                            completedRuns);
+                    return null;
+                }));
+            }
+            for (Future<Void> readResult : readResults) {
+                await(readResult);
+            }
+            completedRuns.add(END_OF_RUNS);
+            metrics.scanFinished(System.nanoTime() - scanStart);
+
+            List<RunManifest.Run> finalRuns = mergeToFanIn(await(pendingRuns),
+                    baseIndex != null ? fanIn - 1 : fanIn);
+            List<File> mergedRuns = finalRuns.stream().map(RunManifest.Run::getFile).collect(Collectors.toList());
+            if (baseIndex != null) {
+                mergedRuns.add(baseIndex);
+            }
+            long mergeStart = System.nanoTime();
+            RunMerger.merge(mergedRuns, output, mergeBufferSize, prefetcher);
+            metrics.finalMerged(System.nanoTime() - mergeStart);
+            completed = true;
+        } finally {
+            readers.shutdownNow();
+            writers.shutdownNow();
+            merger.shutdownNow();
+            prefetcher.shutdownNow();
+            output.close();
+            if (completed) {
+                manifest.finish();
+            } else {
+                manifest.close();
+            }
+        }
+        return lineCount.get();
+    }
+
+    /**
+     * @return Quantidade de linhas que ja estavam nos arquivos temporarios de uma geraçao retomada pelo ultimo
+     * {@link #build}, ou 0 se ela comecou do zero.
+     */
+    public long getResumedLineCount() {
+        return resumedLineCount;
+    }
+
+    /**
+     * @return Metricas das geraçoes feitas por este objeto, atualizadas durante a geraçao.
+     */
+    public BuildMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Le um trecho do arquivo de bolsa, gravando um arquivo temporario ordenado a cada {@link #runSize} linhas.
+     * <p>
+     * A ordenaçao e a gravaçao de um bloco cheio acontecem em uma thread de escrita, enquanto a leitura continua no
+     * segundo bloco. Um trecho tem no maximo uma gravaçao em andamento, entao os arquivos sao registrados no diario na
+     * ordem de leitura. O bloco cheio so e entregue quando a linha seguinte e lida, para registrar no diario a posiçao
+     * dessa linha como o ponto de onde a leitura do trecho continua.
+     *
+     * @param bagChannel    Canal do arquivo de bolsa.
+     * @param range         Numero do trecho.
+     * @param start         Inicio da leitura, no inicio de uma linha.
+     * @param end           Fim do trecho, exclusive.
+     * @param writers       Threads de escrita dos blocos cheios.
+     * @param completedRuns Fila onde os arquivos gravados sao entregues para o merge.
+     * @throws IOException
+     */
+    private void readRange(FileChannel bagChannel, int range, long start, long end, ExecutorService writers,
+                           BlockingQueue<RunManifest.Run> completedRuns) throws IOException {
+        BagFileScanner scanner = new BagFileScanner(bagChannel, start, end);
+        ByteBuffer writeBuffer = null;
+        RunBuffer run = null;
+        RunBuffer writingRun = null;
+        Future<RunManifest.Run> writing = null;
+        try {
+            while (scanner.next()) {
+                if (run == null) {
+                    // Alocados so na primeira linha, para nao reservar memoria para trechos vazios.
+                    run = new RunBuffer(runSize);
+                    writeBuffer = ByteBuffer.allocateDirect(RUN_WRITE_BUFFER_SIZE);
+                } else if (run.isFull()) {
+                    RunBuffer freeRun;
+                    if (writing != null) {
+                        completedRuns.add(await(writing));
+                        freeRun = writingRun;
+                        freeRun.clear();
+                    } else {
+                        freeRun = new RunBuffer(runSize);
+                    }
+                    RunBuffer fullRun = run;
+                    ByteBuffer buffer = writeBuffer;
+                    long runEnd = scanner.position();
+                    writingRun = fullRun;
+                    writing = writers.submit(() -> createRunFile(fullRun, buffer, range, runEnd));
+                    run = freeRun;
+                }
+                run.add(scanner.nis(), scanner.position());
+            }
+            if (writing != null) {
+                completedRuns.add(await(writing));
+                writing = null;
+            }
+            if (run != null && run.size() > 0) {
+                completedRuns.add(createRunFile(run, writeBuffer, range, end));
+            }
+        } finally {
+            if (writing != null) {
+                writing.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Ordena um bloco de itens e grava um arquivo temporario de nivel 0.
+     * <p>
+     * A ordenaçao e estavel e os itens foram lidos em ordem de posiçao, entao NIS iguais ficam em ordem de posiçao.
+     *
+     * @param run         Bloco de itens lidos.
+     * @param writeBuffer Buffer direto de escrita do trecho.
+     * @param range       Numero do trecho lido.
+     * @param end         Posiçao do arquivo de bolsa onde a leitura do trecho parou, exclusive.
+     * @return Arquivo criado, ja registrado no diario.
+     * @throws IOException
+     */
+    private RunManifest.Run createRunFile(RunBuffer run, ByteBuffer writeBuffer, int range, long end)
+            throws IOException {
+        long sortStart = System.nanoTime();
+        run.sort();
+        long writeStart = System.nanoTime();
+        long id = manifest.newFileId();
+        BinaryIndexWriter out = new BinaryIndexWriter(manifest.pendingFile(id, 0), 0, 0, writeBuffer);
+        try {
+            for (int i = 0; i < run.size(); i++) {
+                out.write(run.nisAt(i), run.positionAt(i));
+            }
+        } finally {
+            out.close();
+        }
+        lineCount.addAndGet(run.size());
+        metrics.runWritten(run.size(), BinaryIndex.HEADER_SIZE + (long) run.size() * BinaryIndex.RECORD_SIZE,
+                writeStart - sortStart, System.nanoTime() - writeStart);
+        return manifest.runCompleted(id, range, end, run.size(), out.getRecordsChecksum());
+    }
+
+    /**
+     * Mescla os arquivos temporarios em grupos de fanIn enquanto a leitura acontece. Cada nivel acumula arquivos ate
+     * completar um grupo, que e mesclado em um arquivo do nivel seguinte.
+     *
+     * @param resumedRuns   Arquivos prontos de uma geraçao retomada, de qualquer nivel.
+     * @param completedRuns Fila de arquivos de nivel 0, terminada por {@link #END_OF_RUNS}.
+     * @return Arquivos que ainda nao foram mesclados, de todos os niveis.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private List<RunManifest.Run> mergeWhileReading(List<RunManifest.Run> resumedRuns,
+                                                    BlockingQueue<RunManifest.Run> completedRuns)
+            throws IOException, InterruptedException {
+        List<List<RunManifest.Run>> levels = new ArrayList<>();
+        for (RunManifest.Run run : resumedRuns) {
+            while (levels.size() <= run.getLevel()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(run.getLevel()).add(run);
+        }
+        RunManifest.Run run;
+        while ((run = completedRuns.take()) != END_OF_RUNS) {
+            int level = 0;
+            while (run != null) {
+                if (levels.size() == level) {
+                    levels.add(new ArrayList<>());
+                }
+                List<RunManifest.Run> pending = levels.get(level);
+                pending.add(run);
+                run = null;
+                if (pending.size() >= fanIn) {
+                    run = mergeGroup(pending, level + 1);
+                    pending.clear();
+                    level++;
+                }
+            }
+        }
+
+        List<RunManifest.Run> remaining = new ArrayList<>();
+        for (List<RunManifest.Run> pending : levels) {
+            remaining.addAll(pending);
+        }
+        return remaining;
+    }
+
+    /**
+     * Mescla os arquivos em grupos de fanIn ate sobrarem no maximo limit arquivos.
+     *
+     * @param runs  Arquivos temporarios.
+     * @param limit Quantidade maxima de arquivos restantes.
+     * @return Arquivos restantes, prontos para o merge final.
+     * @throws IOException
+     */
+    private List<RunManifest.Run> mergeToFanIn(List<RunManifest.Run> runs, int limit) throws IOException {
+        int level = 1;
+        while (runs.size() > limit) {
+            List<RunManifest.Run> nextRuns = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<RunManifest.Run> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                nextRuns.add(group.size() == 1 ? group.get(0) : mergeGroup(group, level));
+            }
+            runs = nextRuns;
+            level++;
+        }
+        return runs;
+    }
+
+    /**
+     * Mescla um grupo de arquivos temporarios em um novo arquivo temporario. Os arquivos do grupo sao apagados depois
+     * que o novo arquivo e registrado no diario.
+     *
+     * @param group Arquivos a serem mesclados.
+     * @param level Nivel do arquivo gerado.
+     * @return Arquivo gerado.
+     * @throws IOException
+     */
+    private RunManifest.Run mergeGroup(List<RunManifest.Run> group, int level) throws IOException {
+        long start = System.nanoTime();
+        long id = manifest.newFileId();
+        BinaryIndexWriter out = new BinaryIndexWriter(manifest.pendingFile(id, level), 0);
+        long recordCount = RunMerger.merge(group.stream().map(RunManifest.Run::getFile).collect(Collectors.toList()),
+                out, mergeBufferSize, prefetcher);
+        metrics.merged(BinaryIndex.HEADER_SIZE + recordCount * BinaryIndex.RECORD_SIZE, System.nanoTime() - start);
+        return manifest.mergeCompleted(id, level, recordCount, out.getRecordsChecksum(), new ArrayList<>(group));
+    }
+
+    /**
+     * Espera o resultado de uma tarefa, repassando o seu erro.
+     *
+     * @param future Tarefa.
+     * @param <T>    Tipo do resultado.
+     * @return Resultado da tarefa.
+     * @throws IOException
+     */
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Geraçao do indice interrompida.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Erro na geraçao do indice: " + e.getCause(), e.getCause());
+        }
+    }
+}
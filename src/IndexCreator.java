@@ -1,80 +1,349 @@
 import java.io.*;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
 
 /**
  * Classe geradora de arquivo de indice.
  * Algumas definições:
  * <p>
  * - Nivel de arquivo: este numero estara no nome do arquivo, representando o grau do merge ja realizado nele.
- * Ou seja, se um arquivo ainda nao foi mesclado a outro, seu nivel sera 0. Ao realizar o merge entre dois arquivos,
+ * Ou seja, se um arquivo ainda nao foi mesclado a outro, seu nivel sera 0. Ao mesclar um grupo de arquivos,
  * um novo sera gerado com 1 nivel acima dos arquivos lidos.
  * <p>
- * - forceMerge: A regra aplicada ao metodo de merge criado nesta classe define que 2 arquivos de mesmo nivel serao
- * juntados em um terceiro com 1 nivel acima. Porem, a ultima operaçao a ser realizada de merge nao garante
- * essa regra pois os arquivos criados podem ainda nao estar na configuraçao necessaria. Sendo assim, o forceMerge
- * e responsavel por permitir que o merge seja realizado sem considerar essa regra.
+ * - fanIn: quantidade maxima de arquivos temporarios abertos ao mesmo tempo em um merge. Enquanto houver mais arquivos
+ * do que o fanIn, eles sao mesclados em grupos para o nivel seguinte. O ultimo merge gera diretamente o arquivo de
+ * indice.
+ * <p>
+ * A leitura, a ordenaçao e o merge sao feitos em paralelo pelo {@link IndexBuilder}.
+ * <p>
+ * O indice e gravado em um arquivo temporario ao lado do indice final e so substitui o indice anterior ao final, com
+ * uma troca atomica de nome. Assim quem esta buscando nunca ve um indice pela metade.
+ * <p>
+ * No modo incremental, o indice binario existente registra ate onde o arquivo de bolsa foi indexado. Se o arquivo de
+ * bolsa apenas recebeu linhas novas no fim desde entao, so essas linhas sao lidas e mescladas ao indice existente.
+ * Como o checksum gravado no indice so cobre o inicio e o fim do arquivo de bolsa, o modo incremental grava ao lado do
+ * indice um CRC32 de todo o trecho indexado ({@link #FULL_CHECKSUM_SUFFIX}) e confere o trecho inteiro antes de
+ * aproveitar o indice existente. Linhas alteradas no meio do arquivo levam a geraçao completa do indice.
+ * <p>
+ * Se a geraçao for interrompida, os arquivos temporarios e o diario da geraçao ({@link RunManifest}) ficam na pasta
+ * temporaria. Executar o programa de novo com o mesmo arquivo de bolsa retoma a geraçao do ultimo arquivo temporario
+ * registrado.
+ * <p>
+ * Por padrao o indice e gravado em src e os arquivos temporarios em src/temp. Com --output-dir e --temp-dirs eles podem
+ * ficar em outros discos, e com varias pastas temporarias os arquivos temporarios sao distribuidos entre elas.
  */
 public class IndexCreator {
 
     /**
-     * Quantidade de linhas a serem lidas por bloco de ordenaçao.
+     * Quantidade padrao de arquivos mesclados de uma vez.
+     */
+    static final int DEFAULT_FAN_IN = 64;
+
+    /**
+     * Memoria padrao, em bytes, dos blocos de ordenaçao.
+     */
+    private static final long DEFAULT_SORT_MEMORY = 256L * 1024 * 1024;
+
+    /**
+     * Tamanho padrao, em bytes, de cada bloco do indice amostrado no {@link FenceIndex}.
+     */
+    static final int DEFAULT_FENCE_BLOCK = 4096;
+
+    /**
+     * Pasta padrao dos arquivos temporarios.
+     */
+    private static final String DEFAULT_TEMP_PATH = "src/temp";
+
+    /**
+     * Pasta padrao dos arquivos de indice gerados.
+     */
+    private static final String DEFAULT_OUTPUT_PATH = "src";
+
+    /**
+     * Nome do arquivo de indice gerado no formato texto.
+     */
+    private static final String INDEX_NAME = "index.csv";
+
+    /**
+     * Nome do arquivo de indice gerado no formato binario.
+     */
+    private static final String BINARY_INDEX_NAME = "index.bin";
+
+    /**
+     * Nome do arquivo de indice gerado no formato comprimido em blocos.
+     */
+    private static final String BLOCK_INDEX_NAME = "index.blk";
+
+    /**
+     * Nome do indice secundario por municipio, UF e mes.
+     */
+    private static final String SECONDARY_INDEX_NAME = "secondary.idx";
+
+    /**
+     * Sufixo do arquivo com o CRC32 de todo o trecho indexado do arquivo de bolsa, gravado no modo incremental ao
+     * lado do indice binario. O arquivo tem o tamanho do trecho indexado e o CRC32, ambos long.
+     */
+    private static final String FULL_CHECKSUM_SUFFIX = ".crc";
+
+    /**
+     * Maior buffer de leitura aceito para cada arquivo no merge.
+     */
+    private static final long MAX_MERGE_BUFFER = 1024 * 1024 * 1024;
+
+    /**
+     * Forma correta de uso do programa.
      */
-    private static final long LINE_PER_FILE = 100000;
+    private static final String USAGE =
+            "Use <Caminho_do_Arquivo_de_Bolsa> [--fan-in=N] [--threads=N] [--sort-memory=N[k|m|g]] [--fence-block=N]"
+            + " [--binary [--incremental] | --compressed [--block-size=N]] [--secondary] [--output-dir=pasta]"
+            + " [--temp-dirs=pasta1,pasta2] [--merge-buffer=N[k|m|g]] [--metrics-port=N] [--shards=N"
+            + " [--shard-by=hash|range]] [--bloom-filter[=taxa]]";
 
     /**
      * Programa principal responsavel por gerar o arquivo de indice ordenado.
      *
-     * @param args Use <Caminho_do_Arquivo_de_Bolsa>.
+     * @param args Use <Caminho_do_Arquivo_de_Bolsa> [--fan-in=N] [--threads=N] [--sort-memory=N[k|m|g]]
+     *             [--fence-block=N] [--binary [--incremental] | --compressed [--block-size=N]] [--secondary]
+     *             [--output-dir=pasta] [--temp-dirs=pasta1,pasta2] [--merge-buffer=N[k|m|g]] [--metrics-port=N]
+     *             [--shards=N [--shard-by=hash|range]] [--bloom-filter[=taxa]]. Com --binary o indice e gerado no
+     *             formato de {@link BinaryIndex}, em src/index.bin. Com --compressed o indice e gerado no formato
+     *             comprimido em blocos de {@link BlockIndex}, em src/index.blk, com blocos de --block-size bytes; esse
+     *             formato tem o seu proprio diretorio de blocos e dispensa o fence. Por padrao sao usadas tantas
+     *             threads de leitura quantos forem os processadores. O --sort-memory limita a memoria dos blocos de
+     *             ordenaçao, somando todas as threads, e define o tamanho de cada bloco. O --fence-block define o
+     *             tamanho dos blocos do {@link FenceIndex} gerado ao lado do indice; com 0 o fence nao e gerado. Com
+     *             --incremental apenas as linhas acrescentadas ao arquivo de bolsa desde a ultima geraçao sao
+     *             indexadas, depois de conferir o CRC32 de todo o trecho ja indexado; se isso nao for possivel, o
+     *             indice e gerado por completo. Com --secondary tambem e gerado
+     *             o {@link SecondaryIndex} por municipio, UF e mes, em src/secondary.idx, sempre por completo, para
+     *             consultas com o {@link FindBagQuery}. O --output-dir troca a pasta src dos indices gerados. O
+     *             --temp-dirs recebe as pastas dos arquivos temporarios, separadas por virgula, de preferencia uma por
+     *             disco; os arquivos temporarios sao distribuidos entre elas em rodizio. O --merge-buffer define o
+     *             buffer de leitura de cada arquivo no merge; cada arquivo usa dois buffers, um deles lido
+     *             antecipadamente. As metricas da geraçao ficam no JMX como FindBag:type=Build e, com --metrics-port,
+     *             tambem em http://127.0.0.1:N/metrics no formato do Prometheus enquanto a geraçao durar. Com --shards
+     *             o indice gerado tambem e dividido em N indices binarios por NIS, com o mapa em src/shards.map
+     *             ({@link ShardMap}), para buscas distribuidas pelo {@link ShardRouter}; o --shard-by escolhe a divisao
+     *             por hash do NIS (padrao) ou por intervalos de NIS. Com --bloom-filter tambem e gerado o
+     *             {@link BloomFilter} dos NIS ao lado do indice e de cada shard, com a taxa de falsos positivos
+     *             informada (padrao 0.01), para que as buscas por NIS ausentes terminem sem ler o indice.
      */
     public static void main(String[] args) {
         // Validando argumentos.
-        if (args.length != 1) {
-            System.err.println("[ERRO] - Argumentos inconrretos: Use <Caminho_do_Arquivo_de_Bolsa>");
+        if (args.length < 1) {
+            System.err.println("[ERRO] - Argumentos inconrretos: " + USAGE);
+            System.exit(1);
+        }
+        int fanIn = DEFAULT_FAN_IN;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long sortMemory = DEFAULT_SORT_MEMORY;
+        int fenceBlock = DEFAULT_FENCE_BLOCK;
+        boolean binary = false;
+        boolean incremental = false;
+        boolean compressed = false;
+        int blockSize = BlockIndex.DEFAULT_BLOCK_SIZE;
+        boolean secondary = false;
+        File outputDir = new File(DEFAULT_OUTPUT_PATH);
+        List<File> tempDirs = new ArrayList<>();
+        long mergeBuffer = RunMerger.DEFAULT_READ_BUFFER_SIZE;
+        int metricsPort = 0;
+        int shards = 0;
+        boolean shardByRange = false;
+        double bloomFalsePositiveRate = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--fan-in=")) {
+                fanIn = parseIntOption(args[i], "--fan-in=", 2);
+            } else if (args[i].startsWith("--threads=")) {
+                threads = parseIntOption(args[i], "--threads=", 1);
+            } else if (args[i].startsWith("--sort-memory=")) {
+                sortMemory = parseSizeOption(args[i], "--sort-memory=");
+            } else if (args[i].startsWith("--fence-block=")) {
+                fenceBlock = parseIntOption(args[i], "--fence-block=", 0);
+            } else if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--incremental")) {
+                incremental = true;
+            } else if (args[i].equals("--compressed")) {
+                compressed = true;
+            } else if (args[i].startsWith("--block-size=")) {
+                blockSize = parseIntOption(args[i], "--block-size=", 64);
+            } else if (args[i].equals("--secondary")) {
+                secondary = true;
+            } else if (args[i].startsWith("--output-dir=") && args[i].length() > "--output-dir=".length()) {
+                outputDir = new File(args[i].substring("--output-dir=".length()));
+            } else if (args[i].startsWith("--temp-dirs=")) {
+                for (String dir : args[i].substring("--temp-dirs=".length()).split(",")) {
+                    if (!dir.isEmpty()) {
+                        tempDirs.add(new File(dir));
+                    }
+                }
+            } else if (args[i].startsWith("--merge-buffer=")) {
+                mergeBuffer = parseSizeOption(args[i], "--merge-buffer=");
+            } else if (args[i].startsWith("--metrics-port=")) {
+                metricsPort = parseIntOption(args[i], "--metrics-port=", 1);
+            } else if (args[i].startsWith("--shards=")) {
+                shards = parseIntOption(args[i], "--shards=", 1);
+            } else if (args[i].equals("--shard-by=" + ShardMap.PARTITION_RANGE)) {
+                shardByRange = true;
+            } else if (args[i].equals("--shard-by=" + ShardMap.PARTITION_HASH)) {
+                shardByRange = false;
+            } else if (args[i].equals("--bloom-filter")) {
+                bloomFalsePositiveRate = BloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+            } else if (args[i].startsWith("--bloom-filter=")) {
+                bloomFalsePositiveRate = parseRateOption(args[i], "--bloom-filter=");
+            } else {
+                System.err.println("[ERRO] - Argumento desconhecido '" + args[i] + "': " + USAGE);
+                System.exit(1);
+            }
+        }
+        if (incremental && !binary) {
+            System.err.println("[ERRO] - O modo incremental exige o indice binario: " + USAGE);
+            System.exit(1);
+        }
+        if (binary && compressed) {
+            System.err.println("[ERRO] - Escolha apenas um formato de indice: " + USAGE);
+            System.exit(1);
+        }
+        if (compressed) {
+            fenceBlock = 0;
+        }
+        if (shards > ShardMap.MAX_SHARDS) {
+            System.err.println("[ERRO] - O valor de --shards deve ser no maximo " + ShardMap.MAX_SHARDS + ": "
+                    + USAGE);
+            System.exit(1);
+        }
+        if (tempDirs.isEmpty()) {
+            tempDirs.add(new File(DEFAULT_TEMP_PATH));
+        }
+        if (mergeBuffer < BinaryIndex.RECORD_SIZE || mergeBuffer > MAX_MERGE_BUFFER) {
+            System.err.println("[ERRO] - O valor de --merge-buffer deve estar entre " + BinaryIndex.RECORD_SIZE
+                    + " bytes e 1g: " + USAGE);
             System.exit(1);
         }
-
-        // Inicializando as variaveis.
-        String filePath = args[0];
-        String line;
-        String[] columns;
-        String nis;
-        long position;
 
         // Abrindo arquivo de bolsa para leitura.
+        String filePath = args[0];
         RandomAccessFile bagFile = openReadingFile(filePath);
         if (bagFile != null) {
-            List<IndexItem> indexItemList = new ArrayList<>();
             try {
-                System.out.println("[INFO] - Lendo arquivo de bolsa.");
-                bagFile.readLine();
+                System.out.println("[INFO] - Gerando indice com " + threads + " threads de leitura.");
                 long t1 = System.currentTimeMillis();
-                while (bagFile.getFilePointer() < bagFile.length()) {
-                    position = bagFile.getFilePointer();
-                    line = bagFile.readLine();
-                    columns = line.split("\t");
-                    nis = columns[7];
-
-                    IndexItem indexItem = new IndexItem(nis, position);
-                    indexItemList.add(indexItem);
+                FileChannel bagChannel = bagFile.getChannel();
+                long bagLength = bagChannel.size();
+                outputDir.mkdirs();
+                File indexFile = new File(outputDir,
+                        binary ? BINARY_INDEX_NAME : compressed ? BLOCK_INDEX_NAME : INDEX_NAME);
+                long start = BagFile.dataStart(bagChannel);
+                File baseIndex = null;
+                CRC32 bagCrc = new CRC32();
+                if (incremental) {
+                    long indexedLength = indexedLength(bagChannel, indexFile, bagCrc);
+                    if (indexedLength == bagLength) {
+                        System.out.println("[INFO] - O indice ja esta atualizado.");
+                        bagFile.close();
+                        if (secondary) {
+                            createSecondaryIndex(filePath, outputDir, threads);
+                        }
+                        return;
+                    }
+                    if (indexedLength > 0) {
+                        System.out.println("[INFO] - Indexando os " + (bagLength - indexedLength)
+                                + " bytes acrescentados ao arquivo de bolsa.");
+                        start = indexedLength;
+                        baseIndex = indexFile;
+                    }
+                }
 
-                    // Realizando o merge entre os arquivos temporarios ja criados, caso seja possivel.
-                    boolean lastLine = bagFile.getFilePointer() == bagFile.length();
-                    if (indexItemList.size() % LINE_PER_FILE == 0 || lastLine) {
-                        createFileAndMerge(indexItemList, lastLine);
-                        indexItemList.clear();
+                File tempIndexFile = new File(indexFile.getPath() + ".tmp");
+                long sourceChecksum = BinaryIndex.checksum(bagChannel, bagLength);
+                IndexOutput output;
+                if (binary) {
+                    output = new BinaryIndexWriter(tempIndexFile, sourceChecksum, bagLength);
+                } else if (compressed) {
+                    output = new BlockIndexWriter(tempIndexFile, sourceChecksum, bagLength, blockSize);
+                } else {
+                    output = new TextIndexWriter(tempIndexFile);
+                }
+                if (fenceBlock > 0) {
+                    output = new FenceIndex.Writer(output, tempIndexFile, fenceBlock, binary);
+                }
+                IndexBuilder builder = new IndexBuilder(tempDirs, threads, fanIn, sortMemory, (int) mergeBuffer);
+                MetricsServer.registerMBean("Build", builder.getMetrics());
+                MetricsServer metricsServer = null;
+                if (metricsPort > 0) {
+                    metricsServer = new MetricsServer(metricsPort, Collections.singletonList(builder.getMetrics()));
+                    System.out.println("[INFO] - Metricas da geraçao em http://127.0.0.1:" + metricsServer.getPort()
+                            + MetricsServer.PATH);
+                }
+                long lineCount;
+                try {
+                    lineCount = builder.build(bagChannel, start, bagLength, baseIndex, output);
+                } finally {
+                    if (metricsServer != null) {
+                        metricsServer.close();
                     }
                 }
+                long fullChecksum = 0;
+                if (incremental) {
+                    // O CRC32 do trecho ja indexado foi calculado na conferencia; falta o trecho novo.
+                    if (baseIndex == null) {
+                        bagCrc.reset();
+                    }
+                    BinaryIndex.updateFullChecksum(bagCrc, bagChannel, baseIndex != null ? start : 0, bagLength);
+                    fullChecksum = bagCrc.getValue();
+                }
                 bagFile.close();
-                long readingDuration = System.currentTimeMillis() - t1;
-                System.out.println("[INFO] - Leitura concluida em " + readingDuration + " milissegundos.");
-
-                System.out.println("[INFO] - Movendo arquivo de indice para a pasta padrao e deletando a pasta temporaria.");
-                File path = new File("src/temp");
-                File indexFile = path.listFiles()[0];
-                indexFile.renameTo(new File("src/index.csv"));
-                path.deleteOnExit();
+                System.out.println("[INFO] - " + builder.getMetrics().summary());
+                if (builder.getResumedLineCount() > 0) {
+                    System.out.println("[INFO] - Geraçao interrompida retomada: " + builder.getResumedLineCount()
+                            + " linhas ja estavam nos arquivos temporarios.");
+                }
+                for (File tempDir : tempDirs) {
+                    tempDir.delete();
+                }
 
+                // O fence e trocado antes do indice: ate a troca do indice ele nao corresponde ao checksum do indice
+                // anterior e e ignorado pelas buscas.
+                if (fenceBlock > 0) {
+                    replace(FenceIndex.fileFor(tempIndexFile), FenceIndex.fileFor(indexFile));
+                } else {
+                    FenceIndex.fileFor(indexFile).delete();
+                }
+                BloomFilter.fileFor(indexFile).delete();
+                replace(tempIndexFile, indexFile);
+                if (incremental) {
+                    writeFullChecksum(indexFile, bagLength, fullChecksum);
+                } else {
+                    fullChecksumFile(indexFile).delete();
+                }
+                long duration = System.currentTimeMillis() - t1;
+                System.out.println("[INFO] - " + lineCount + " linhas indexadas em " + duration + " milissegundos.");
                 System.out.println("[INFO] - Arquivo de indice criado com sucesso.");
+
+                if (bloomFalsePositiveRate > 0) {
+                    createBloomFilter(indexFile, bloomFalsePositiveRate);
+                }
+                if (shards > 0) {
+                    ShardMap map = createShards(indexFile, outputDir, shards, shardByRange, sourceChecksum,
+                            bagLength);
+                    for (int i = 0; i < map.getShardCount(); i++) {
+                        if (bloomFalsePositiveRate > 0) {
+                            BloomFilter.create(map.getIndexFile(i), bloomFalsePositiveRate);
+                        } else {
+                            BloomFilter.fileFor(map.getIndexFile(i)).delete();
+                        }
+                    }
+                }
+
+                if (secondary) {
+                    createSecondaryIndex(filePath, outputDir, threads);
+                }
             } catch (IOException e) {
                 System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
             }
@@ -82,277 +351,281 @@ public class IndexCreator {
     }
 
     /**
-     * Cria um arquivo de temporario indice ordenado com {@link #LINE_PER_FILE} linhas e realiza o merge,
-     * caso seja possivel.
-     * <p>
-     * Para fazer Merge entre os arquivos, e preciso que haja na pasta temporaria pelo menos um arquivo.
-     * O Merge ira mesclar arquivos que possuem o mesmo nivel, ou seja, a mesma quantidade de linhas. Isso so nao
-     * acontecera quando a ultima linha do arquivo de bolsas for lido. Neste caso, sera feito um merge forçado, que
-     * se trata de um merge feito unindo todos os arquivos temporarios, independente dos seus niveis.
+     * Gera o indice secundario por municipio, UF e mes, substituindo o anterior ao final.
      *
-     * @param indexItemList Lista de itens para o arquivo de indice.
-     * @param forceMerge    <true> se for desejado forçar o merge.
+     * @param filePath  Caminho do arquivo de bolsa.
+     * @param outputDir Pasta dos indices gerados.
+     * @param threads   Quantidade de threads de leitura.
      * @throws IOException
      */
-    private static void createFileAndMerge(List<IndexItem> indexItemList, boolean forceMerge) throws IOException {
-        File path = new File("src/temp");
-        if (!path.exists()) {
-            path.mkdir();
+    private static void createSecondaryIndex(String filePath, File outputDir, int threads) throws IOException {
+        long t1 = System.currentTimeMillis();
+        File secondaryFile = new File(outputDir, SECONDARY_INDEX_NAME);
+        File tempSecondaryFile = new File(secondaryFile.getPath() + ".tmp");
+        long lineCount;
+        try (RandomAccessFile bagFile = new RandomAccessFile(filePath, "r")) {
+            lineCount = new SecondaryIndexBuilder(threads).build(bagFile.getChannel(), tempSecondaryFile);
         }
-        File[] fileList = path.listFiles();
-        long level = 0;
-        long fileId = getIdFileGivenLevel(fileList, level);
+        replace(tempSecondaryFile, secondaryFile);
+        long duration = System.currentTimeMillis() - t1;
+        System.out.println("[INFO] - Indice secundario de " + lineCount + " linhas criado em " + duration
+                + " milissegundos.");
+    }
 
-        // Cria arquivo
-        FileOutputStream newFile = createWritingFile(
-                "src/temp/ExternalMergeSort_" + level + "_" + fileId + "_.csv");
-        Collections.sort(indexItemList);
-        for (IndexItem i : indexItemList) {
-            newFile.write(i.toString().getBytes());
+    /**
+     * Divide o indice gerado em shards por NIS e grava o mapa dos shards.
+     *
+     * @param indexFile      Indice gerado.
+     * @param outputDir      Pasta dos indices gerados.
+     * @param shards         Quantidade de shards.
+     * @param byRange        true para dividir por intervalos de NIS, false para dividir por hash do NIS.
+     * @param sourceChecksum Checksum do arquivo de bolsa.
+     * @param bagLength      Tamanho do arquivo de bolsa indexado.
+     * @return Mapa dos shards gerados.
+     * @throws IOException
+     */
+    private static ShardMap createShards(File indexFile, File outputDir, int shards, boolean byRange,
+                                         long sourceChecksum, long bagLength) throws IOException {
+        long t1 = System.currentTimeMillis();
+        ShardMap map = ShardMap.create(indexFile, new File(outputDir, ShardMap.FILE_NAME), shards, byRange,
+                sourceChecksum, bagLength);
+        long largest = 0;
+        for (int i = 0; i < map.getShardCount(); i++) {
+            largest = Math.max(largest, map.getRecordCount(i));
         }
-        newFile.close();
+        long duration = System.currentTimeMillis() - t1;
+        System.out.println("[INFO] - Indice dividido em " + shards + " shards por "
+                + (byRange ? ShardMap.PARTITION_RANGE : ShardMap.PARTITION_HASH) + " em " + duration
+                + " milissegundos; o maior shard tem " + largest + " itens.");
+        return map;
+    }
 
-        // Posso fazer createFileAndMerge se a quantidade de arquivos for maior que 1.
-        fileList = path.listFiles();
-        if (fileList.length > 1) {
-            performMerge(fileList, forceMerge);
-        }
+    /**
+     * Gera o filtro de Bloom dos NIS do indice.
+     *
+     * @param indexFile         Indice gerado.
+     * @param falsePositiveRate Taxa de falsos positivos.
+     * @throws IOException
+     */
+    private static void createBloomFilter(File indexFile, double falsePositiveRate) throws IOException {
+        long t1 = System.currentTimeMillis();
+        long distinct = BloomFilter.create(indexFile, falsePositiveRate);
+        long duration = System.currentTimeMillis() - t1;
+        long size = BloomFilter.fileFor(indexFile).length();
+        System.out.println("[INFO] - Filtro de Bloom de " + distinct + " NIS (" + size / 1024 + " KB) criado em "
+                + duration + " milissegundos.");
     }
 
     /**
-     * Realiza o merge, caso seja possivel. Os seguintes passos sao realizados:
-     * - Verificar se tem merge para fazer. O merge e feito de 2 em 2 arquivos, preferencialmente que estejam no
-     * mesmo nivel, ou seja, possuamm o mesmo numero de linhas.
-     * - Caso tenha, faça.
-     * - Ao final do merge, verifique se a nova configuraçao da pasta temporaria permite realizar um novo merge.
-     * - Caso tenha, refaça os processos acima novamente. Esta funçao e recursiva. Seu objetivo e entregar um merge
-     * tao pequeno quanto possivel.
+     * Confere se o indice binario existente pode ser atualizado apenas com as linhas acrescentadas ao arquivo de
+     * bolsa: o trecho ja indexado deve estar intacto e terminar em uma quebra de linha. O trecho e lido por inteiro e
+     * comparado com o CRC32 gravado na geraçao anterior ({@link #FULL_CHECKSUM_SUFFIX}).
      *
-     * @param fileList   Lista de arquivos da pasta temporaria.
-     * @param forceMerge <true> se for necessario realizar o merge desconsiderando os niveis entre os arquivos.
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param indexFile  Indice existente.
+     * @param bagCrc     Recebe o CRC32 do trecho ja indexado, para ser continuado com o trecho novo. So e valido se
+     *                   o retorno for maior que 0.
+     * @return Tamanho do trecho ja indexado, ou 0 se o indice precisar ser gerado por completo.
      * @throws IOException
      */
-    private static void performMerge(File[] fileList, boolean forceMerge) throws IOException {
-        // Verificando se tem chance de ocorrer merge. O Merge pode ocorrer caso haja arquivos de mesmo nivel ou caso o
-        // forceMerge for verdadeiro.
-        boolean hasMergeToDo = forceMerge;
-        if (!hasMergeToDo) {
-            for (File file1 : fileList) {
-                for (File file2 : fileList) {
-                    if (file1.exists() && file2.exists() && !file1.getName().equals(file2.getName()) &&
-                            (isAtSameLevel(file1, file2))) {
-                        hasMergeToDo = true;
-                        break;
-                    }
-                }
-                if (hasMergeToDo) {
-                    break;
-                }
-            }
+    private static long indexedLength(FileChannel bagChannel, File indexFile, CRC32 bagCrc) throws IOException {
+        if (!indexFile.exists() || !BinaryIndex.isBinaryIndex(indexFile)) {
+            System.out.println("[INFO] - Indice binario anterior nao encontrado, gerando o indice completo.");
+            return 0;
         }
-
-        // Se tem merge pra fazer, faça.
-        if (hasMergeToDo) {
-            List<File> filesToDelete = new ArrayList<>();
-            for (File firstFile : fileList) {
-                if (firstFile.exists() && !filesToDelete.contains(firstFile)) {
-                    for (File secondFile : fileList) {
-                        if (secondFile.exists() && !filesToDelete.contains(secondFile) &&
-                                !firstFile.getName().equals(secondFile.getName()) &&
-                                (isAtSameLevel(firstFile, secondFile) || forceMerge)) {
-                            List<IndexItem> mergeIndexItemList = new ArrayList<>();
-
-                            RandomAccessFile firstAccessFile = openReadingFile(firstFile);
-                            mergeIndexItemList.addAll(convertFileToIndexList(firstAccessFile));
-                            firstAccessFile.close();
-                            filesToDelete.add(firstFile);
-
-                            RandomAccessFile secondAccessFile = openReadingFile(secondFile);
-                            mergeIndexItemList.addAll(convertFileToIndexList(secondAccessFile));
-                            secondAccessFile.close();
-                            filesToDelete.add(secondFile);
-
-                            Collections.sort(mergeIndexItemList);
-
-                            long level;
-                            if (forceMerge) {
-                                long levelOfFirstFile = getLevel(firstFile) + 1;
-                                long levelOfSecondFile = getLevel(secondFile) + 1;
-                                level = levelOfFirstFile > levelOfSecondFile ? levelOfFirstFile : levelOfSecondFile;
-                            } else {
-                                level = getLevel(firstFile) + 1;
-                            }
-                            long fileId = getIdFileGivenLevel(fileList, level);
-                            String filePath = "src/temp/ExternalMergeSort_"
-                                    + level + "_" + fileId + "_.csv";
-                            FileOutputStream outFile = createWritingFile(filePath);
-                            for (IndexItem indexItem : mergeIndexItemList) {
-                                outFile.write(indexItem.toString().getBytes());
-                            }
-                            outFile.close();
-
-                            break;
-                        }
-                    }
-                }
-            }
-
-            // Apagando os arquivos ja usados.
-            for (File file : filesToDelete) {
-                if (file.exists()) {
-                    file.delete();
-                }
-            }
-
-            // Ja que teve merge pra fazer, vou tentar fazer novamente.
-            File path = new File("src/temp");
-            if (path.listFiles().length > 1) {
-                performMerge(path.listFiles(), forceMerge);
-            }
+        long indexedLength;
+        long sourceChecksum;
+        try (FileChannel indexChannel = new RandomAccessFile(indexFile, "r").getChannel()) {
+            indexedLength = BinaryIndex.readIndexedLength(indexChannel);
+            sourceChecksum = BinaryIndex.readSourceChecksum(indexChannel);
         }
-
-        // Se o codigo chegou aqui, e porque nao tem mais merge pra fazer.
+        if (indexedLength == 0) {
+            System.out.println("[INFO] - O indice anterior nao registra o trecho indexado, gerando o indice completo.");
+            return 0;
+        }
+        if (indexedLength > bagChannel.size()
+                || BinaryIndex.checksum(bagChannel, indexedLength) != sourceChecksum) {
+            System.out.println("[INFO] - O trecho ja indexado do arquivo de bolsa mudou, gerando o indice completo.");
+            return 0;
+        }
+        ByteBuffer lastByte = ByteBuffer.allocate(1);
+        BinaryIndex.readFully(bagChannel, lastByte, indexedLength - 1);
+        if (lastByte.get(0) != '\n') {
+            System.out.println("[INFO] - O trecho ja indexado nao termina em uma linha completa, gerando o indice"
+                    + " completo.");
+            return 0;
+        }
+        long[] fullChecksum = readFullChecksum(indexFile);
+        if (fullChecksum == null || fullChecksum[0] != indexedLength) {
+            System.out.println("[INFO] - O indice anterior nao tem o CRC32 do trecho indexado, gerando o indice"
+                    + " completo.");
+            return 0;
+        }
+        BinaryIndex.updateFullChecksum(bagCrc, bagChannel, 0, indexedLength);
+        if (bagCrc.getValue() != fullChecksum[1]) {
+            System.out.println("[INFO] - O trecho ja indexado do arquivo de bolsa mudou, gerando o indice completo.");
+            return 0;
+        }
+        return indexedLength;
     }
 
     /**
-     * Verifica se os arquivos estao no mesmo nivel.
+     * Arquivo com o CRC32 do trecho indexado de um indice.
      *
-     * @param file1 Arquivo 1.
-     * @param file2 Arquivo 2.
-     * @return <true>, se os arquivos estiverem no mesmo nivel.
+     * @param indexFile Arquivo de indice.
+     * @return Arquivo do CRC32.
      */
-    private static boolean isAtSameLevel(File file1, File file2) {
-        String name1 = file1.getName();
-        String[] name1Colums = name1.split("_");
-        String level1 = name1Colums[1];
-
-        String name2 = file2.getName();
-        String[] name2Colums = name2.split("_");
-        String level2 = name2Colums[1];
-
-        return level1.equals(level2);
+    private static File fullChecksumFile(File indexFile) {
+        return new File(indexFile.getPath() + FULL_CHECKSUM_SUFFIX);
     }
 
     /**
-     * Captura o nivel de um dado arquivo.
+     * Le o CRC32 do trecho indexado gravado ao lado do indice.
      *
-     * @param file Arquivo de onde deve ser abstraido o nivel.
-     * @return Valor do nivel do arquivo dado.
+     * @param indexFile Arquivo de indice.
+     * @return Tamanho do trecho indexado e CRC32, ou null se o arquivo nao existir ou for invalido.
+     * @throws IOException
      */
-    private static long getLevel(File file) {
-        String name = file.getName();
-        String[] name1Colums = name.split("_");
-        return Long.parseLong(name1Colums[1]);
+    private static long[] readFullChecksum(File indexFile) throws IOException {
+        File checksumFile = fullChecksumFile(indexFile);
+        if (checksumFile.length() != 2 * Long.BYTES) {
+            return null;
+        }
+        try (FileChannel channel = new RandomAccessFile(checksumFile, "r").getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(2 * Long.BYTES);
+            BinaryIndex.readFully(channel, buffer, 0);
+            return new long[]{buffer.getLong(0), buffer.getLong(Long.BYTES)};
+        }
     }
 
     /**
-     * Gera um ID para um novo arquivo, a fim de evitar repetiçao na criaçao de arquivos.
+     * Grava o CRC32 do trecho indexado ao lado do indice, com uma troca atomica de nome.
      *
-     * @param files Lista de arquivos existentes.
-     * @param level Nivel do arquivo. Isso e capturado porque a possibilidade de repetiçao entre arquivos so ocorre
-     *              quando eles estao no mesmo nivel.
-     * @return ID do arquivo a ser criado.
+     * @param indexFile     Arquivo de indice.
+     * @param indexedLength Tamanho do trecho indexado.
+     * @param checksum      CRC32 de todo o trecho indexado.
+     * @throws IOException
      */
-    private static long getIdFileGivenLevel(File[] files, long level) {
-        long currentId = -1;
-        if (files != null) {
-            for (File file : files) {
-                String name = file.getName();
-                String[] name1Colums = name.split("_");
-                long foundLevel = Long.parseLong(name1Colums[1]);
-                long foundId = Long.parseLong(name1Colums[2]);
-                if (foundLevel == level && foundId >= currentId) {
-                    currentId = foundId;
-                }
+    private static void writeFullChecksum(File indexFile, long indexedLength, long checksum) throws IOException {
+        File checksumFile = fullChecksumFile(indexFile);
+        File tempFile = new File(checksumFile.getPath() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Long.BYTES);
+        buffer.putLong(indexedLength);
+        buffer.putLong(checksum);
+        buffer.flip();
+        try (FileChannel channel = new RandomAccessFile(tempFile, "rw").getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
         }
-        return currentId + 1;
+        replace(tempFile, checksumFile);
     }
 
     /**
-     * Abre arquivo para leitura dado seu caminho.
+     * Substitui um arquivo por outro com uma troca atomica de nome.
      *
-     * @param filePath Caminho do arquivo.
-     * @return Instância de leitura de arquivo.
+     * @param source Arquivo novo.
+     * @param target Arquivo substituido.
+     * @throws IOException
      */
-    private static RandomAccessFile openReadingFile(String filePath) {
-        RandomAccessFile inFile = null;
+    private static void replace(File source, File target) throws IOException {
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Le o valor inteiro de um argumento.
+     *
+     * @param arg     Argumento no formato <nome>N.
+     * @param name    Nome do argumento, incluindo o '='.
+     * @param minimum Valor minimo aceito.
+     * @return Valor do argumento.
+     */
+    private static int parseIntOption(String arg, String name, int minimum) {
+        int value = minimum - 1;
         try {
-            inFile = new RandomAccessFile(filePath, "r");
-        } catch (FileNotFoundException e) {
-            System.err.println("[INFO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
-            System.exit(2);
+            value = Integer.parseInt(arg.substring(name.length()));
+        } catch (NumberFormatException e) {
+            value = minimum - 1;
         }
-        return inFile;
+        if (value < minimum) {
+            System.err.println("[ERRO] - O valor de " + name + " deve ser um inteiro maior ou igual a " + minimum
+                    + ": " + USAGE);
+            System.exit(1);
+        }
+        return value;
     }
 
     /**
-     * Abre arquivo para leitura dado seu caminho.
+     * Le o valor de um argumento de taxa, maior que 0 e menor que 1.
      *
-     * @param file Arquivo.
-     * @return Instância de leitura de arquivo.
-     * @throws IOException
+     * @param arg  Argumento no formato <nome>taxa.
+     * @param name Nome do argumento, incluindo o '='.
+     * @return Taxa.
      */
-    private static RandomAccessFile openReadingFile(File file) {
-        RandomAccessFile inFile = null;
+    private static double parseRateOption(String arg, String name) {
+        double rate = 0;
         try {
-            if (file.exists()) {
-                inFile = new RandomAccessFile(file, "r");
-            }
-        } catch (FileNotFoundException e) {
-            System.err.println("[INFO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
-            System.exit(2);
+            rate = Double.parseDouble(arg.substring(name.length()));
+        } catch (NumberFormatException e) {
+            rate = 0;
         }
-        return inFile;
+        if (!(rate > 0 && rate < 1)) {
+            System.err.println("[ERRO] - O valor de " + name + " deve ser uma taxa maior que 0 e menor que 1: "
+                    + USAGE);
+            System.exit(1);
+        }
+        return rate;
     }
 
     /**
-     * Cria arquivo para escrita.
+     * Le o valor de um argumento de tamanho em bytes, aceitando os sufixos k, m e g.
      *
-     * @param filePath Caminho do arquivos de escrita.
-     * @return Instância de escrita de arquivo.
-     * @throws IOException
+     * @param arg  Argumento no formato <nome>N[k|m|g].
+     * @param name Nome do argumento, incluindo o '='.
+     * @return Tamanho em bytes.
      */
-    private static FileOutputStream createWritingFile(String filePath) {
-        FileOutputStream outFile = null;
+    private static long parseSizeOption(String arg, String name) {
+        String value = arg.substring(name.length()).toLowerCase();
+        long multiplier = 1;
+        if (value.endsWith("k")) {
+            multiplier = 1024;
+        } else if (value.endsWith("m")) {
+            multiplier = 1024 * 1024;
+        } else if (value.endsWith("g")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        long size = 0;
         try {
-            File file = new File(filePath);
-            outFile = new FileOutputStream(file);
-        } catch (FileNotFoundException e) {
-            System.err.println("[ERRO] - Erro ao tentar criar o arquivo de indice: " + e.getMessage());
-            System.exit(3);
+            size = Long.parseLong(value) * multiplier;
+        } catch (NumberFormatException e) {
+            size = 0;
+        }
+        if (size <= 0) {
+            System.err.println("[ERRO] - O valor de " + name + " deve ser um tamanho positivo: " + USAGE);
+            System.exit(1);
         }
-        return outFile;
+        return size;
     }
 
     /**
-     * Converte um arquivo de indice para uma lista de indice.
+     * Abre arquivo para leitura dado seu caminho.
      *
-     * @param file Arquivo de indice.
-     * @return Lista de indice.
+     * @param filePath Caminho do arquivo.
+     * @return Instância de leitura de arquivo.
      */
-    private static List<IndexItem> convertFileToIndexList(RandomAccessFile file) throws IOException {
-        List<IndexItem> indexItemList = new ArrayList<>();
-
-        if (file.length() > 0) {
-            String line = file.readLine();
-            while (file.getFilePointer() < file.length()) {
-                String[] column = line.split("\t");
-
-                String nis = column[0];
-                long position = Long.parseLong(column[1]);
-                IndexItem indexItem = new IndexItem(nis, position);
-                indexItemList.add(indexItem);
-                line = file.readLine();
-            }
-
-            String[] column = line.split("\t");
-            String nis = column[0];
-            long position = Long.parseLong(column[1]);
-            IndexItem indexItem = new IndexItem(nis, position);
-            indexItemList.add(indexItem);
+    private static RandomAccessFile openReadingFile(String filePath) {
+        RandomAccessFile inFile = null;
+        try {
+            inFile = new RandomAccessFile(filePath, "r");
+        } catch (FileNotFoundException e) {
+            System.err.println("[INFO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(2);
         }
-
-        return indexItemList;
-}
+        return inFile;
+    }
 }
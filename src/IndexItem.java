@@ -1,14 +1,16 @@
-import java.util.Objects;
-
 /**
  * Modelo de item de um arquivo de indice.
+ * <p>
+ * O NIS e guardado empacotado em um long ({@link BinaryIndex#packNis(CharSequence)}), sem String, para que cada item
+ * seja um unico objeto pequeno. Um NIS aparece em varias linhas do arquivo de bolsa, entao a chave do item e o par NIS
+ * e posiçao, na mesma ordem do indice.
  */
 public class IndexItem implements Comparable<IndexItem> {
 
     /**
-     * NIS.
+     * NIS empacotado.
      */
-    private String nis;
+    private long nis;
 
     /**
      * Posiçao das informações no de bolsa.
@@ -21,32 +23,56 @@ public class IndexItem implements Comparable<IndexItem> {
      * @param nis      {@link #nis}
      * @param position {@link #position}
      */
-    public IndexItem(String nis, long position) {
+    public IndexItem(long nis, long position) {
         this.nis = nis;
         this.position = position;
     }
 
+    /**
+     * Construtor a partir do NIS com 14 digitos.
+     *
+     * @param nis      NIS com 14 digitos.
+     * @param position {@link #position}
+     */
+    public IndexItem(String nis, long position) {
+        this(BinaryIndex.packNis(nis), position);
+    }
+
+    /**
+     * @return {@link #nis}
+     */
+    public long getNis() {
+        return nis;
+    }
+
+    /**
+     * @return {@link #position}
+     */
+    public long getPosition() {
+        return position;
+    }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         IndexItem indexItem = (IndexItem) o;
-        return Objects.equals(nis, indexItem.nis);
+        return nis == indexItem.nis && position == indexItem.position;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(nis);
+        return 31 * Long.hashCode(nis) + Long.hashCode(position);
     }
 
     @Override
     public String toString() {
-        return nis + "\t" + position + "\n";
+        return BinaryIndex.unpackNis(nis) + "\t" + position + "\n";
     }
 
     @Override
     public int compareTo(IndexItem o) {
-        return this.nis.compareTo(o.nis);
+        int result = Long.compare(this.nis, o.nis);
+        return result != 0 ? result : Long.compare(this.position, o.position);
     }
 }
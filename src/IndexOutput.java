@@ -0,0 +1,17 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destino dos itens de indice gerados pelo merge, ja em ordem de NIS.
+ */
+public interface IndexOutput extends Closeable {
+
+    /**
+     * Escreve um item de indice.
+     *
+     * @param nis      NIS empacotado ({@link BinaryIndex#packNis(CharSequence)}).
+     * @param position Posiçao da linha no arquivo de bolsa.
+     * @throws IOException
+     */
+    void write(long nis, long position) throws IOException;
+}
@@ -0,0 +1,146 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias com erro relativo limitado, no estilo do HdrHistogram, seguro para varias threads.
+ * <p>
+ * Os valores ate 2 * {@link #SUB_BUCKETS} ficam cada um no seu proprio balde. Acima disso, cada potencia de 2 e
+ * dividida em {@link #SUB_BUCKETS} baldes iguais, entao o valor informado por um percentil difere do valor real em
+ * menos de 1 / {@link #SUB_BUCKETS} (1,6%). Todos os valores de um long cabem em menos de 4 mil baldes, um vetor fixo
+ * de 30 KB.
+ * <p>
+ * Registrar um valor e um calculo de bits e um incremento atomico, sem alocaçao e sem trava. Os percentis sao
+ * calculados na leitura, percorrendo os baldes.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Quantidade de bits dos sub-baldes de cada potencia de 2.
+     */
+    private static final int SUB_BUCKET_BITS = 6;
+
+    /**
+     * Quantidade de sub-baldes de cada potencia de 2.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Quantidade de valores pequenos com balde proprio.
+     */
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+
+    /**
+     * Quantidade total de baldes, suficiente para qualquer long positivo.
+     */
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    /**
+     * Quantidade de valores de cada balde.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Quantidade de valores registrados.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Soma dos valores registrados.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Registra um valor. Valores negativos contam como 0.
+     *
+     * @param value Valor, em geral uma duraçao em nanossegundos.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * @return Quantidade de valores registrados.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return Soma dos valores registrados.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Calcula um percentil dos valores registrados.
+     * <p>
+     * Com registros acontecendo ao mesmo tempo, o resultado corresponde a algum momento durante a leitura dos baldes.
+     *
+     * @param percentile Percentil, de 0 a 100.
+     * @return Maior valor do balde onde o percentil cai, ou 0 se nao houver valores.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return Maior valor registrado, com a precisao do seu balde, ou 0 se nao houver valores.
+     */
+    public long getMax() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return highestValueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param value Valor nao negativo.
+     * @return Balde do valor.
+     */
+    private static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // value >> shift fica entre SUB_BUCKETS e 2 * SUB_BUCKETS - 1.
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @param bucket Balde.
+     * @return Maior valor que cai no balde.
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        long lowest = subBucket << shift;
+        long highest = lowest + (1L << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
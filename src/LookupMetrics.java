@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metricas das buscas do {@link BagSearcher}: quantidade, sondagens no indice, bytes lidos do arquivo de bolsa e
+ * latencia.
+ * <p>
+ * A latencia vai para um {@link LatencyHistogram}, de onde saem os percentis 50, 99 e 99,9. Cada busca custa duas
+ * leituras do relogio, alguns incrementos de {@link LongAdder} e um incremento atomico no histograma, entao as metricas
+ * podem ficar sempre ligadas. As sondagens sao contadas pelo proprio {@link MappedIndex}, no contador de
+ * {@link #getProbeCounter()}.
+ */
+public class LookupMetrics implements LookupMetricsMXBean, MetricsSource {
+
+    /**
+     * Percentis expostos no formato do Prometheus.
+     */
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * Buscas feitas.
+     */
+    private final LongAdder lookups = new LongAdder();
+
+    /**
+     * Buscas de NIS que nao estavam no indice.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Sondagens no indice: NIS do indice comparados com o procurado.
+     */
+    private final LongAdder probes = new LongAdder();
+
+    /**
+     * Bytes das linhas lidas do arquivo de bolsa.
+     */
+    private final LongAdder bytesRead = new LongAdder();
+
+    /**
+     * Latencia das buscas, em nanossegundos.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Registra uma busca.
+     *
+     * @param nanos Duraçao da busca, em nanossegundos.
+     * @param found <true>, se o NIS estava no indice.
+     * @param bytes Bytes das linhas lidas do arquivo de bolsa.
+     */
+    public void lookup(long nanos, boolean found, long bytes) {
+        lookups.increment();
+        if (!found) {
+            misses.increment();
+        }
+        bytesRead.add(bytes);
+        latency.record(nanos);
+    }
+
+    /**
+     * @return Contador de sondagens, compartilhado com o {@link MappedIndex} das buscas.
+     */
+    public LongAdder getProbeCounter() {
+        return probes;
+    }
+
+    /**
+     * @return Histograma da latencia das buscas, em nanossegundos.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getProbesPerLookup() {
+        long count = lookups.sum();
+        return count > 0 ? (double) probes.sum() / count : 0;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return latency.getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return latency.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return latency.getValueAtPercentile(99.9) / 1e3;
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return latency.getMax() / 1e3;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        MetricsServer.appendMetric(out, "findbag_lookup_misses_total", "counter",
+                "Buscas de NIS que nao estavam no indice.", getMisses());
+        MetricsServer.appendMetric(out, "findbag_lookup_probes_total", "counter",
+                "Sondagens no indice: NIS do indice comparados com o procurado.", probes.sum());
+        MetricsServer.appendMetric(out, "findbag_lookup_read_bytes_total", "counter",
+                "Bytes das linhas lidas do arquivo de bolsa.", getBytesRead());
+        out.append("# HELP findbag_lookup_latency_seconds Latencia das buscas.\n");
+        out.append("# TYPE findbag_lookup_latency_seconds summary\n");
+        for (double quantile : QUANTILES) {
+            out.append("findbag_lookup_latency_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(latency.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+        }
+        out.append("findbag_lookup_latency_seconds_sum ").append(latency.getSum() / 1e9).append('\n');
+        out.append("findbag_lookup_latency_seconds_count ").append(latency.getCount()).append('\n');
+    }
+}
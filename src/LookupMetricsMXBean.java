@@ -0,0 +1,45 @@
+/**
+ * Metricas das buscas expostas por JMX. Ver {@link LookupMetrics}.
+ */
+public interface LookupMetricsMXBean {
+
+    /**
+     * @return Quantidade de buscas.
+     */
+    long getLookups();
+
+    /**
+     * @return Quantidade de buscas de NIS que nao estavam no indice.
+     */
+    long getMisses();
+
+    /**
+     * @return Media de sondagens no indice por busca.
+     */
+    double getProbesPerLookup();
+
+    /**
+     * @return Bytes das linhas lidas do arquivo de bolsa.
+     */
+    long getBytesRead();
+
+    /**
+     * @return Latencia mediana das buscas, em microssegundos.
+     */
+    double getLatencyP50Micros();
+
+    /**
+     * @return Percentil 99 da latencia das buscas, em microssegundos.
+     */
+    double getLatencyP99Micros();
+
+    /**
+     * @return Percentil 99,9 da latencia das buscas, em microssegundos.
+     */
+    double getLatencyP999Micros();
+
+    /**
+     * @return Maior latencia das buscas, em microssegundos.
+     */
+    double getLatencyMaxMicros();
+}
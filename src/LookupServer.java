@@ -0,0 +1,245 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Servidor de buscas de bolsa de longa duraçao.
+ * <p>
+ * Os arquivos sao abertos uma unica vez ({@link BagCache}) e cada busca custa apenas a busca no indice mapeado e
+ * uma leitura do arquivo de bolsa, sem a partida de uma JVM por NIS. Os NIS mais buscados sao respondidos pelo cache,
+ * que e esvaziado quando o indice ou o arquivo de bolsa mudam. O servidor escuta apenas na interface local e
+ * usa um protocolo de linhas (ISO-8859-1), com um comando por linha e uma linha de resposta por comando:
+ * <p>
+ * - GET <nis>: responde "OK\t<linha do arquivo de bolsa>" ou "NOT_FOUND".
+ * - ALL <nis>: responde "OK\t<quantidade>" seguido de uma linha do arquivo de bolsa por pagamento do NIS, em ordem
+ * de posiçao no arquivo, ou "NOT_FOUND".
+ * - STATS: responde "OK\t<contadores do cache>" ({@link BagCache#stats()}).
+ * - INFO: responde "OK\t<identificaçao do indice>" ({@link BagSearcher#indexInfo()}), usada pelo {@link ShardRouter}
+ * para conferir se o servidor atende o shard esperado.
+ * - QUIT: encerra a conexao.
+ * <p>
+ * Comandos invalidos sao respondidos com "ERROR <mensagem>". Os comandos podem ser enviados em sequencia sem esperar
+ * as respostas, que saem na mesma ordem.
+ * <p>
+ * As metricas das buscas que chegam ao indice ({@link LookupMetrics}) ficam no JMX como FindBag:type=Lookup e podem
+ * ser expostas no formato do Prometheus por um {@link MetricsServer}.
+ */
+public class LookupServer {
+
+    /**
+     * Quantidade padrao de conexoes atendidas ao mesmo tempo.
+     */
+    private static final int DEFAULT_THREADS = 64;
+
+    /**
+     * Quantidade maxima padrao de NIS no cache.
+     */
+    private static final int DEFAULT_CACHE_ENTRIES = 100_000;
+
+    /**
+     * Memoria maxima padrao, em bytes, do cache.
+     */
+    private static final long DEFAULT_CACHE_MEMORY = 64L * 1024 * 1024;
+
+    /**
+     * Tamanho dos buffers de leitura e escrita de cada conexao.
+     */
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE = "Use <Arquivo de indice> <Arquivo de bolsa> <porta> [--threads=N]"
+            + " [--cache-entries=N] [--cache-memory=N[k|m|g]] [--metrics-port=N]";
+
+    /**
+     * Buscador com cache compartilhado entre as conexoes.
+     */
+    private final BagCache searcher;
+
+    /**
+     * Construtor.
+     *
+     * @param searcher {@link #searcher}
+     */
+    public LookupServer(BagCache searcher) {
+        this.searcher = searcher;
+    }
+
+    /**
+     * Inicia o servidor de buscas.
+     *
+     * @param args Use <Arquivo de indice> <Arquivo de bolsa> <porta> [--threads=N] [--cache-entries=N]
+     *             [--cache-memory=N[k|m|g]] [--metrics-port=N]. Com --cache-entries=0 o cache e desligado. Com
+     *             --metrics-port as metricas sao servidas em http://127.0.0.1:N/metrics.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+        int port = -1;
+        int threads = DEFAULT_THREADS;
+        int cacheEntries = DEFAULT_CACHE_ENTRIES;
+        long cacheMemory = DEFAULT_CACHE_MEMORY;
+        int metricsPort = 0;
+        try {
+            port = Integer.parseInt(args[2]);
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].startsWith("--threads=")) {
+                    threads = Integer.parseInt(args[i].substring("--threads=".length()));
+                } else if (args[i].startsWith("--cache-entries=")) {
+                    cacheEntries = Integer.parseInt(args[i].substring("--cache-entries=".length()));
+                } else if (args[i].startsWith("--cache-memory=")) {
+                    cacheMemory = parseSize(args[i].substring("--cache-memory=".length()));
+                } else if (args[i].startsWith("--metrics-port=")) {
+                    metricsPort = Integer.parseInt(args[i].substring("--metrics-port=".length()));
+                } else {
+                    throw new NumberFormatException(args[i]);
+                }
+            }
+            if (threads < 1 || cacheEntries < 0 || cacheMemory < 0 || metricsPort < 0) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+
+        BagCache searcher = null;
+        try {
+            searcher = new BagCache(new File(args[0]), new File(args[1]), cacheEntries, cacheMemory);
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+
+        try {
+            MetricsServer.registerMBean("Lookup", searcher.getMetrics());
+            if (metricsPort > 0) {
+                MetricsServer metricsServer = new MetricsServer(metricsPort,
+                        Collections.singletonList(searcher.getMetrics()));
+                System.out.println("[INFO] - Metricas das buscas em http://127.0.0.1:" + metricsServer.getPort()
+                        + MetricsServer.PATH);
+            }
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao expor as metricas: " + e.getMessage());
+            System.exit(4);
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            System.out.println("[INFO] - Servidor de buscas escutando na porta " + serverSocket.getLocalPort() + ".");
+            new LookupServer(searcher).serve(serverSocket, Executors.newFixedThreadPool(threads));
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro no servidor de buscas: " + e.getMessage());
+            System.exit(4);
+        }
+    }
+
+    /**
+     * Le um tamanho em bytes, aceitando os sufixos k, m e g.
+     *
+     * @param value Tamanho no formato N[k|m|g].
+     * @return Tamanho em bytes.
+     * @throws NumberFormatException se o tamanho for invalido.
+     */
+    private static long parseSize(String value) {
+        value = value.toLowerCase();
+        int shift = value.endsWith("k") ? 10 : value.endsWith("m") ? 20 : value.endsWith("g") ? 30 : 0;
+        if (shift > 0) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) << shift;
+    }
+
+    /**
+     * Aceita conexoes ate o socket ser fechado. Cada conexao e atendida por uma thread do executor.
+     *
+     * @param serverSocket Socket do servidor.
+     * @param executor     Executor das conexoes.
+     * @throws IOException
+     */
+    public void serve(ServerSocket serverSocket, ExecutorService executor) throws IOException {
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handleConnection(socket));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Atende uma conexao ate o cliente enviar QUIT ou fechar a conexao.
+     *
+     * @param socket Conexao do cliente.
+     */
+    private void handleConnection(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     client.getInputStream(), StandardCharsets.ISO_8859_1), SOCKET_BUFFER_SIZE);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                     client.getOutputStream(), StandardCharsets.ISO_8859_1), SOCKET_BUFFER_SIZE)) {
+            client.setTcpNoDelay(true);
+            String command;
+            while ((command = reader.readLine()) != null) {
+                if (command.trim().equals("QUIT")) {
+                    break;
+                }
+                writer.write(execute(command));
+                writer.write('\n');
+                // So envia quando nao ha mais comandos ja recebidos, assim varios comandos seguidos saem juntos.
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro na conexao com o cliente: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Executa um comando do protocolo.
+     *
+     * @param command Linha de comando recebida.
+     * @return Linha de resposta, sem a quebra de linha.
+     */
+    String execute(String command) {
+        String[] parts = command.trim().split(" +");
+        if (parts.length == 1 && parts[0].equals("STATS")) {
+            return "OK\t" + searcher.stats();
+        }
+        if (parts.length == 1 && parts[0].equals("INFO")) {
+            try {
+                return "OK\t" + searcher.indexInfo();
+            } catch (IOException e) {
+                return "ERROR Erro ao tentar ler o arquivo: " + e.getMessage();
+            }
+        }
+        if (parts.length != 2 || !(parts[0].equals("GET") || parts[0].equals("ALL"))) {
+            return "ERROR Comando invalido. Use GET <nis>, ALL <nis>, STATS, INFO ou QUIT.";
+        }
+        try {
+            if (parts[0].equals("ALL")) {
+                StringBuilder lines = new StringBuilder();
+                int count = searcher.findAll(BinaryIndex.packNis(parts[1]), line -> lines.append('\n').append(line));
+                return count > 0 ? "OK\t" + count + lines : "NOT_FOUND";
+            }
+            String line = searcher.findLine(BinaryIndex.packNis(parts[1]));
+            return line != null ? "OK\t" + line : "NOT_FOUND";
+        } catch (IllegalArgumentException e) {
+            return "ERROR O Valor de NIS deve conter 14 digitos.";
+        } catch (IOException e) {
+            return "ERROR Erro ao tentar ler o arquivo: " + e.getMessage();
+        }
+    }
+}
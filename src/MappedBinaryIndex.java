@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Indice binario ({@link BinaryIndex}) mapeado em memoria. O slot e o numero do registro.
+ */
+public class MappedBinaryIndex extends MappedIndex {
+
+    /**
+     * Quantidade de registros.
+     */
+    private final long recordCount;
+
+    /**
+     * Checksum do arquivo de bolsa gravado no cabecalho.
+     */
+    private final long sourceChecksum;
+
+    /**
+     * Tamanho do trecho indexado do arquivo de bolsa, ou 0 se o indice for da versao 1.
+     */
+    private final long indexedLength;
+
+    /**
+     * Construtor.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @throws IOException
+     */
+    public MappedBinaryIndex(FileChannel channel) throws IOException {
+        super(channel);
+        this.recordCount = BinaryIndex.readRecordCount(channel);
+        this.sourceChecksum = BinaryIndex.readSourceChecksum(channel);
+        this.indexedLength = BinaryIndex.readIndexedLength(channel);
+        if (BinaryIndex.HEADER_SIZE + recordCount * BinaryIndex.RECORD_SIZE > length) {
+            throw new IOException("Arquivo de indice binario truncado.");
+        }
+    }
+
+    @Override
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    @Override
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    @Override
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public long first() {
+        return 0;
+    }
+
+    @Override
+    public long end() {
+        return recordCount;
+    }
+
+    @Override
+    public long next(long slot) {
+        return slot + 1;
+    }
+
+    @Override
+    public long keyAt(long slot) {
+        return longAt(BinaryIndex.HEADER_SIZE + slot * BinaryIndex.RECORD_SIZE);
+    }
+
+    @Override
+    public long positionAt(long slot) {
+        return longAt(BinaryIndex.HEADER_SIZE + slot * BinaryIndex.RECORD_SIZE + 8);
+    }
+
+    @Override
+    public long lowerBound(long nis, long from, long to) {
+        long low = from;
+        long high = to;
+        int probes = 0;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            probes++;
+            if (keyAt(middle) < nis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        countProbes(probes);
+        return low;
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Indice comprimido em blocos ({@link BlockIndex}) mapeado em memoria. O slot e o numero do registro.
+ * <p>
+ * O diretorio de blocos fica em memoria. A busca binaria e feita primeiro no diretorio, depois nos pontos de reinicio
+ * do unico bloco onde o NIS pode estar, e por fim nos itens de um grupo de {@link BlockIndex#RESTART_INTERVAL} itens,
+ * que e o unico trecho decodificado. Cada thread guarda o ultimo grupo decodificado, assim a leitura dos itens
+ * seguintes ao encontrado, como em {@link BagSearcher#findAllPositions(long)}, nao decodifica o grupo de novo.
+ */
+public class MappedBlockIndex extends MappedIndex {
+
+    /**
+     * Quantidade de registros.
+     */
+    private final long recordCount;
+
+    /**
+     * Checksum do arquivo de bolsa gravado no cabecalho.
+     */
+    private final long sourceChecksum;
+
+    /**
+     * Tamanho do trecho indexado do arquivo de bolsa.
+     */
+    private final long indexedLength;
+
+    /**
+     * Primeiro NIS de cada bloco.
+     */
+    private final long[] blockKeys;
+
+    /**
+     * Numero do primeiro registro de cada bloco, com um elemento a mais valendo {@link #recordCount}.
+     */
+    private final long[] blockRecords;
+
+    /**
+     * Posiçao de cada bloco no arquivo, com um elemento a mais valendo a posiçao do diretorio.
+     */
+    private final long[] blockOffsets;
+
+    /**
+     * Menor posiçao no arquivo de bolsa de cada bloco.
+     */
+    private final long[] blockBases;
+
+    /**
+     * Ultimo grupo decodificado por cada thread.
+     */
+    private final ThreadLocal<DecodedGroup> decodedGroups = ThreadLocal.withInitial(DecodedGroup::new);
+
+    /**
+     * Construtor. Carrega o diretorio de blocos.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @throws IOException
+     */
+    public MappedBlockIndex(FileChannel channel) throws IOException {
+        super(channel);
+        ByteBuffer header = BlockIndex.readHeader(channel);
+        this.recordCount = header.getLong(8);
+        this.sourceChecksum = header.getLong(16);
+        this.indexedLength = header.getLong(24);
+        long directoryOffset = header.getLong(32);
+        int blockCount = header.getInt(40);
+        if (directoryOffset + (long) blockCount * BlockIndex.DIRECTORY_ENTRY_SIZE > length) {
+            throw new IOException("Arquivo de indice em blocos truncado.");
+        }
+
+        ByteBuffer directory = ByteBuffer.allocate(blockCount * BlockIndex.DIRECTORY_ENTRY_SIZE);
+        BinaryIndex.readFully(channel, directory, directoryOffset);
+        directory.flip();
+        LongBuffer entries = directory.asLongBuffer();
+        this.blockKeys = new long[blockCount];
+        this.blockRecords = new long[blockCount + 1];
+        this.blockOffsets = new long[blockCount + 1];
+        this.blockBases = new long[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blockKeys[i] = entries.get();
+            blockRecords[i] = entries.get();
+            blockOffsets[i] = entries.get();
+            blockBases[i] = entries.get();
+        }
+        blockRecords[blockCount] = recordCount;
+        blockOffsets[blockCount] = directoryOffset;
+    }
+
+    @Override
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    @Override
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    @Override
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public long first() {
+        return 0;
+    }
+
+    @Override
+    public long end() {
+        return recordCount;
+    }
+
+    @Override
+    public long next(long slot) {
+        return slot + 1;
+    }
+
+    @Override
+    public long keyAt(long slot) {
+        DecodedGroup group = groupOf(slot);
+        return group.keys[(int) (slot - group.firstRecord)];
+    }
+
+    @Override
+    public long positionAt(long slot) {
+        DecodedGroup group = groupOf(slot);
+        return group.positions[(int) (slot - group.firstRecord)];
+    }
+
+    @Override
+    public long lowerBound(long nis, long from, long to) {
+        if (from >= to) {
+            return to;
+        }
+        // O primeiro item com NIS maior ou igual esta no ultimo bloco que começa com NIS menor, ou logo depois dele. O
+        // mesmo vale para os grupos dentro do bloco.
+        int block = lastBelow(nis, blockKeys.length, -1);
+        long slot;
+        if (block < 0) {
+            slot = 0;
+        } else {
+            int group = lastBelow(nis, groupCount(block), block);
+            DecodedGroup decoded = decode(block, group);
+            int index = 0;
+            while (index < decoded.count && decoded.keys[index] < nis) {
+                index++;
+            }
+            countProbes(Math.min(index + 1, decoded.count));
+            slot = decoded.firstRecord + index;
+        }
+        return Math.max(from, Math.min(to, slot));
+    }
+
+    /**
+     * Busca binaria pelo ultimo bloco, ou pelo ultimo grupo de um bloco, cujo primeiro NIS e menor que o procurado.
+     *
+     * @param nis   NIS empacotado.
+     * @param count Quantidade de blocos, ou de grupos do bloco.
+     * @param block Bloco dos grupos, ou -1 para buscar nos blocos.
+     * @return Numero do bloco ou do grupo, ou -1 se nenhum começa com NIS menor.
+     */
+    private int lastBelow(long nis, int count, int block) {
+        int low = 0;
+        int high = count;
+        int probes = 0;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long key = block < 0 ? blockKeys[middle] : groupKey(block, middle);
+            probes++;
+            if (key < nis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        countProbes(probes);
+        return low - 1;
+    }
+
+    /**
+     * @param block Numero do bloco.
+     * @return Quantidade de grupos do bloco.
+     */
+    private int groupCount(int block) {
+        long count = blockRecords[block + 1] - blockRecords[block];
+        return (int) ((count + BlockIndex.RESTART_INTERVAL - 1) / BlockIndex.RESTART_INTERVAL);
+    }
+
+    /**
+     * Posiçao no arquivo do inicio de um grupo, lida da tabela de pontos de reinicio no fim do bloco.
+     *
+     * @param block Numero do bloco.
+     * @param group Numero do grupo.
+     * @return Posiçao no arquivo.
+     */
+    private long groupOffset(int block, int group) {
+        long restarts = blockOffsets[block + 1] - (long) groupCount(block) * Integer.BYTES;
+        return blockOffsets[block] + intAt(restarts + (long) group * Integer.BYTES);
+    }
+
+    /**
+     * Primeiro NIS de um grupo, sem decodificar o grupo.
+     *
+     * @param block Numero do bloco.
+     * @param group Numero do grupo.
+     * @return NIS empacotado.
+     */
+    private long groupKey(int block, int group) {
+        long position = groupOffset(block, group);
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = byteAt(position++);
+            delta |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return blockKeys[block] + delta;
+    }
+
+    /**
+     * Grupo decodificado que contem um slot.
+     *
+     * @param slot Slot valido.
+     * @return Grupo decodificado.
+     */
+    private DecodedGroup groupOf(long slot) {
+        DecodedGroup cached = decodedGroups.get();
+        if (cached.block >= 0 && slot >= cached.firstRecord && slot < cached.firstRecord + cached.count) {
+            return cached;
+        }
+        int low = 0;
+        int high = blockKeys.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockRecords[middle] <= slot) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return decode(low, (int) ((slot - blockRecords[low]) / BlockIndex.RESTART_INTERVAL));
+    }
+
+    /**
+     * Decodifica um grupo, reaproveitando o ultimo grupo decodificado pela thread.
+     *
+     * @param block Numero do bloco.
+     * @param group Numero do grupo.
+     * @return Grupo decodificado.
+     */
+    private DecodedGroup decode(int block, int group) {
+        DecodedGroup decoded = decodedGroups.get();
+        if (decoded.block == block && decoded.group == group) {
+            return decoded;
+        }
+        long firstRecord = blockRecords[block] + (long) group * BlockIndex.RESTART_INTERVAL;
+        int count = (int) Math.min(BlockIndex.RESTART_INTERVAL, blockRecords[block + 1] - firstRecord);
+        long position = groupOffset(block, group);
+        long key = blockKeys[block];
+        long base = blockBases[block];
+        for (int i = 0; i < count; i++) {
+            // Dois numeros de tamanho variavel por item: diferença de NIS e posiçao relativa a base do bloco.
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = byteAt(position++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            long offset = 0;
+            shift = 0;
+            do {
+                b = byteAt(position++);
+                offset |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            key += delta;
+            decoded.keys[i] = key;
+            decoded.positions[i] = base + offset;
+        }
+        decoded.block = block;
+        decoded.group = group;
+        decoded.firstRecord = firstRecord;
+        decoded.count = count;
+        return decoded;
+    }
+
+    /**
+     * Grupo decodificado, reaproveitado entre as decodificaçoes de uma thread.
+     */
+    private static class DecodedGroup {
+
+        /**
+         * Numero do bloco, ou -1 se nenhum grupo foi decodificado.
+         */
+        private int block = -1;
+
+        /**
+         * Numero do grupo dentro do bloco.
+         */
+        private int group;
+
+        /**
+         * Numero do primeiro registro do grupo.
+         */
+        private long firstRecord;
+
+        /**
+         * Quantidade de itens do grupo.
+         */
+        private int count;
+
+        /**
+         * NIS dos itens.
+         */
+        private final long[] keys = new long[BlockIndex.RESTART_INTERVAL];
+
+        /**
+         * Posiçoes dos itens.
+         */
+        private final long[] positions = new long[BlockIndex.RESTART_INTERVAL];
+    }
+}
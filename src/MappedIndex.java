@@ -0,0 +1,284 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Arquivo de indice mapeado em memoria com {@link FileChannel#map}.
+ * <p>
+ * O arquivo e mapeado em pedaços de {@link #CHUNK_SIZE} bytes, ja que um unico mapeamento nao pode passar de 2 GB.
+ * Cada pedaço avança {@link #CHUNK_OVERLAP} bytes sobre o seguinte, assim qualquer leitura curta que comece dentro de
+ * um pedaço (uma linha do indice texto ou um registro do indice binario) termina dentro dele.
+ * <p>
+ * As entradas do indice sao acessadas por um "slot", cujo significado depende do formato: o inicio da linha no indice
+ * texto e o numero do registro no indice binario. Os slots validos vao de {@link #first()} ate {@link #end()},
+ * exclusive, e estao em ordem de NIS. Todas as leituras sao absolutas, entao uma mesma instancia pode ser usada por
+ * varias threads ao mesmo tempo.
+ * <p>
+ * Se houver um {@link FenceIndex} valido ao lado do arquivo, ele e carregado por {@link #open(File)} e limita cada
+ * busca a um bloco do indice. Da mesma forma, um {@link BloomFilter} valido e carregado e recusa a maior parte dos NIS
+ * ausentes antes da busca ({@link #mightContain(long)}).
+ * <p>
+ * Com um contador de sondagens ({@link #setProbeCounter(LongAdder)}), cada busca soma a ele quantos NIS do indice
+ * comparou com o procurado. O contador e atualizado ao fim de cada busca binaria, nao a cada comparaçao.
+ */
+public abstract class MappedIndex {
+
+    /**
+     * Quantidade de bits do tamanho de cada pedaço mapeado.
+     */
+    private static final int CHUNK_BITS = 30;
+
+    /**
+     * Tamanho de cada pedaço mapeado.
+     */
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    /**
+     * Mascara da posiçao dentro de um pedaço.
+     */
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Quantidade de bytes que cada pedaço avança sobre o seguinte. Maior que a maior linha do indice texto.
+     */
+    private static final int CHUNK_OVERLAP = 64;
+
+    /**
+     * Pedaços mapeados do arquivo.
+     */
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * Tamanho do arquivo.
+     */
+    protected final long length;
+
+    /**
+     * Fence do indice, ou null se nao houver.
+     */
+    private FenceIndex fences;
+
+    /**
+     * Filtro de Bloom dos NIS do indice, ou null se nao houver.
+     */
+    private BloomFilter bloomFilter;
+
+    /**
+     * Contador de sondagens das buscas, ou null.
+     */
+    private volatile LongAdder probeCounter;
+
+    /**
+     * Construtor. Mapeia o arquivo inteiro.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @throws IOException
+     */
+    protected MappedIndex(FileChannel channel) throws IOException {
+        this.length = channel.size();
+        int chunkCount = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        this.chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long start = (long) i << CHUNK_BITS;
+            long size = Math.min(length - start, CHUNK_SIZE + CHUNK_OVERLAP);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    /**
+     * Abre e mapeia um arquivo de indice, detectando o seu formato.
+     *
+     * @param file Arquivo de indice.
+     * @return Indice mapeado.
+     * @throws IOException
+     */
+    public static MappedIndex open(File file) throws IOException {
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "r")) {
+            MappedIndex index;
+            if (BinaryIndex.isBinaryIndex(accessFile)) {
+                index = new MappedBinaryIndex(accessFile.getChannel());
+            } else if (BlockIndex.isBlockIndex(accessFile)) {
+                index = new MappedBlockIndex(accessFile.getChannel());
+            } else {
+                index = new MappedTextIndex(accessFile.getChannel());
+            }
+            index.fences = FenceIndex.load(file, accessFile.getChannel(), index);
+            index.bloomFilter = BloomFilter.load(file, accessFile.getChannel());
+            return index;
+        }
+    }
+
+    /**
+     * @return Checksum do arquivo de bolsa gravado no indice, ou -1 se o formato nao o registra.
+     */
+    public long getSourceChecksum() {
+        return -1;
+    }
+
+    /**
+     * @return Tamanho do trecho indexado do arquivo de bolsa gravado no indice, ou 0 se o formato nao o registra.
+     */
+    public long getIndexedLength() {
+        return 0;
+    }
+
+    /**
+     * @return Quantidade de registros gravada no indice, ou -1 se o formato nao a registra.
+     */
+    public long getRecordCount() {
+        return -1;
+    }
+
+    /**
+     * @return Primeiro slot do indice.
+     */
+    public abstract long first();
+
+    /**
+     * @return Slot logo apos o ultimo item do indice.
+     */
+    public abstract long end();
+
+    /**
+     * Slot seguinte a um slot valido.
+     *
+     * @param slot Slot valido.
+     * @return Slot seguinte, ou {@link #end()}.
+     */
+    public abstract long next(long slot);
+
+    /**
+     * NIS de um slot valido.
+     *
+     * @param slot Slot valido.
+     * @return NIS empacotado como em {@link BinaryIndex#packNis(CharSequence)}.
+     */
+    public abstract long keyAt(long slot);
+
+    /**
+     * Posiçao no arquivo de bolsa de um slot valido.
+     *
+     * @param slot Slot valido.
+     * @return Posiçao da linha no arquivo de bolsa.
+     */
+    public abstract long positionAt(long slot);
+
+    /**
+     * Busca binaria pelo primeiro slot, entre from e to, cujo NIS e maior ou igual ao NIS procurado.
+     *
+     * @param nis  NIS empacotado.
+     * @param from Slot inicial da busca.
+     * @param to   Slot final da busca, exclusive.
+     * @return Primeiro slot com NIS maior ou igual, ou to se nao houver.
+     */
+    public abstract long lowerBound(long nis, long from, long to);
+
+    /**
+     * Busca o primeiro slot, a partir de from, cujo NIS e maior ou igual ao NIS procurado. Com fence, a busca binaria
+     * fica restrita ao bloco onde o NIS pode estar.
+     *
+     * @param nis  NIS empacotado.
+     * @param from Slot inicial da busca.
+     * @return Primeiro slot com NIS maior ou igual, ou {@link #end()} se nao houver.
+     */
+    public long lowerBound(long nis, long from) {
+        long to = end();
+        if (fences != null) {
+            from = fences.floorSlot(nis, from);
+            to = fences.ceilingSlot(nis, to);
+            if (to < from) {
+                return from;
+            }
+        }
+        return lowerBound(nis, from, to);
+    }
+
+    /**
+     * Procura o NIS no indice.
+     *
+     * @param nis NIS empacotado.
+     * @return Posiçao da linha no arquivo de bolsa, ou -1 se o NIS nao estiver no indice.
+     */
+    public long find(long nis) {
+        if (!mightContain(nis)) {
+            return -1;
+        }
+        long end = end();
+        long slot = lowerBound(nis, first());
+        if (slot < end && keyAt(slot) == nis) {
+            return positionAt(slot);
+        }
+        return -1;
+    }
+
+    /**
+     * Confere no filtro de Bloom se o NIS pode estar no indice, sem acessar o arquivo.
+     *
+     * @param nis NIS empacotado.
+     * @return false se o NIS certamente nao esta no indice; true se pode estar ou se nao ha filtro.
+     */
+    public boolean mightContain(long nis) {
+        return bloomFilter == null || bloomFilter.mightContain(nis);
+    }
+
+    /**
+     * @return true se um filtro de Bloom valido foi carregado com o indice.
+     */
+    public boolean hasBloomFilter() {
+        return bloomFilter != null;
+    }
+
+    /**
+     * Define o contador onde as buscas somam as suas sondagens.
+     *
+     * @param probeCounter Contador, ou null para nao contar.
+     */
+    public void setProbeCounter(LongAdder probeCounter) {
+        this.probeCounter = probeCounter;
+    }
+
+    /**
+     * Soma as sondagens de uma busca ao contador, se houver.
+     *
+     * @param probes NIS do indice comparados com o procurado.
+     */
+    protected final void countProbes(int probes) {
+        LongAdder counter = probeCounter;
+        if (counter != null) {
+            counter.add(probes);
+        }
+    }
+
+    /**
+     * Le um byte do arquivo.
+     *
+     * @param position Posiçao no arquivo.
+     * @return Byte lido.
+     */
+    protected final byte byteAt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].get((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * Le um int do arquivo.
+     *
+     * @param position Posiçao no arquivo.
+     * @return Int lido.
+     */
+    protected final int intAt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getInt((int) (position & CHUNK_MASK));
+    }
+
+    /**
+     * Le um long do arquivo.
+     *
+     * @param position Posiçao no arquivo.
+     * @return Long lido.
+     */
+    protected final long longAt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Indice texto (linhas <nis>\t<posiçao>) mapeado em memoria. O slot e a posiçao do inicio da linha no arquivo.
+ * <p>
+ * O NIS e lido direto dos bytes mapeados, sem criar String. A busca binaria sorteia um byte no meio do intervalo e
+ * volta ate o inicio da linha que o contem, entao nunca descarta linhas.
+ */
+public class MappedTextIndex extends MappedIndex {
+
+    /**
+     * Construtor.
+     *
+     * @param channel Canal do arquivo de indice.
+     * @throws IOException
+     */
+    public MappedTextIndex(FileChannel channel) throws IOException {
+        super(channel);
+    }
+
+    @Override
+    public long first() {
+        return 0;
+    }
+
+    @Override
+    public long end() {
+        return length;
+    }
+
+    @Override
+    public long next(long slot) {
+        long position = slot;
+        while (position < length && byteAt(position) != '\n') {
+            position++;
+        }
+        return Math.min(position + 1, length);
+    }
+
+    @Override
+    public long keyAt(long slot) {
+        long nis = 0;
+        for (int i = 0; i < BinaryIndex.NIS_LENGTH; i++) {
+            nis = nis * 10 + (byteAt(slot + i) - '0');
+        }
+        return nis;
+    }
+
+    @Override
+    public long positionAt(long slot) {
+        long position = 0;
+        long i = slot + BinaryIndex.NIS_LENGTH + 1;
+        byte b;
+        while (i < length && (b = byteAt(i)) >= '0' && b <= '9') {
+            position = position * 10 + (b - '0');
+            i++;
+        }
+        return position;
+    }
+
+    @Override
+    public long lowerBound(long nis, long from, long to) {
+        long low = from;
+        long high = to;
+        int probes = 0;
+        while (low < high) {
+            long slot = lineStart((low + high) >>> 1, low);
+            probes++;
+            if (keyAt(slot) < nis) {
+                low = next(slot);
+            } else {
+                high = slot;
+            }
+        }
+        countProbes(probes);
+        return low;
+    }
+
+    /**
+     * Volta ate o inicio da linha que contem a posiçao.
+     *
+     * @param position Posiçao dentro de uma linha.
+     * @param limit    Inicio de linha conhecido antes da posiçao, onde a volta para.
+     * @return Inicio da linha.
+     */
+    private long lineStart(long position, long limit) {
+        while (position > limit && byteAt(position - 1) != '\n') {
+            position--;
+        }
+        return position;
+    }
+}
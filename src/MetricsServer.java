@@ -0,0 +1,117 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposiçao das metricas por JMX e por um endpoint HTTP no formato texto do Prometheus.
+ * <p>
+ * O endpoint escuta apenas no endereço local, em {@link #PATH}, e monta o texto a cada requisiçao a partir das
+ * {@link MetricsSource}. Nada e calculado entre as requisiçoes, entao o servidor nao custa nada para as buscas e a
+ * geraçao alem dos contadores que elas ja atualizam.
+ */
+public class MetricsServer implements Closeable {
+
+    /**
+     * Caminho do endpoint de metricas.
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * Dominio dos nomes JMX das metricas.
+     */
+    private static final String JMX_DOMAIN = "FindBag";
+
+    /**
+     * Tipo de conteudo do formato texto do Prometheus.
+     */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Servidor HTTP.
+     */
+    private final HttpServer server;
+
+    /**
+     * Construtor. Inicia o servidor em uma thread propria.
+     *
+     * @param port    Porta local, ou 0 para uma porta livre.
+     * @param sources Fontes das metricas.
+     * @throws IOException se a porta nao puder ser aberta.
+     */
+    public MetricsServer(int port, List<MetricsSource> sources) throws IOException {
+        List<MetricsSource> metricsSources = new ArrayList<>(sources);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext(PATH, exchange -> {
+            StringBuilder text = new StringBuilder();
+            for (MetricsSource source : metricsSources) {
+                source.writePrometheus(text);
+            }
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        this.server.start();
+    }
+
+    /**
+     * @return Porta em que o servidor escuta.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Registra um MXBean no servidor JMX da plataforma como FindBag:type=tipo, substituindo um registro anterior do
+     * mesmo tipo.
+     *
+     * @param type Tipo das metricas, como Build ou Lookup.
+     * @param bean Objeto que implementa uma interface MXBean.
+     * @throws IOException se o registro falhar.
+     */
+    public static void registerMBean(String type, Object bean) throws IOException {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=" + type);
+            if (mbeanServer.isRegistered(name)) {
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(bean, name);
+        } catch (JMException e) {
+            throw new IOException("Erro ao registrar as metricas no JMX: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Escreve uma metrica sem rotulos no formato texto do Prometheus.
+     *
+     * @param out   Destino do texto.
+     * @param name  Nome da metrica.
+     * @param type  Tipo da metrica: counter ou gauge.
+     * @param help  Descriçao da metrica.
+     * @param value Valor.
+     */
+    static void appendMetric(StringBuilder out, String name, String type, String help, Number value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
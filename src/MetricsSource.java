@@ -0,0 +1,12 @@
+/**
+ * Fonte de metricas exposta pelo {@link MetricsServer}.
+ */
+public interface MetricsSource {
+
+    /**
+     * Escreve as metricas no formato texto do Prometheus: linhas "# HELP", "# TYPE" e "nome valor".
+     *
+     * @param out Destino do texto.
+     */
+    void writePrometheus(StringBuilder out);
+}
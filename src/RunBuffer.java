@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+/**
+ * Bloco de itens de indice em memoria, guardado em vetores de long em vez de objetos.
+ * <p>
+ * Cada item ocupa {@link #BYTES_PER_ENTRY} bytes: o NIS empacotado, a posiçao, e os dois vetores auxiliares da
+ * ordenaçao. A ordenaçao e um radix sort LSD sobre o NIS, que e estavel: como os itens sao acrescentados em ordem de
+ * posiçao, NIS iguais ficam em ordem de posiçao.
+ */
+public class RunBuffer {
+
+    /**
+     * Bytes de memoria usados por item, contando os vetores auxiliares da ordenaçao.
+     */
+    public static final int BYTES_PER_ENTRY = 4 * Long.BYTES;
+
+    /**
+     * Quantidade de bits ordenados a cada passada do radix sort.
+     */
+    private static final int RADIX_BITS = 16;
+
+    /**
+     * Quantidade de valores de cada digito do radix sort.
+     */
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    /**
+     * NIS empacotados.
+     */
+    private long[] keys;
+
+    /**
+     * Posiçoes no arquivo de bolsa.
+     */
+    private long[] positions;
+
+    /**
+     * Vetor auxiliar de NIS da ordenaçao.
+     */
+    private long[] scratchKeys;
+
+    /**
+     * Vetor auxiliar de posiçoes da ordenaçao.
+     */
+    private long[] scratchPositions;
+
+    /**
+     * Contagem de cada digito da passada atual da ordenaçao.
+     */
+    private final int[] counts = new int[RADIX];
+
+    /**
+     * Quantidade de itens.
+     */
+    private int size;
+
+    /**
+     * Construtor.
+     *
+     * @param capacity Quantidade maxima de itens.
+     */
+    public RunBuffer(int capacity) {
+        this.keys = new long[capacity];
+        this.positions = new long[capacity];
+        this.scratchKeys = new long[capacity];
+        this.scratchPositions = new long[capacity];
+    }
+
+    /**
+     * Acrescenta um item.
+     *
+     * @param nis      NIS empacotado.
+     * @param position Posiçao da linha no arquivo de bolsa.
+     */
+    public void add(long nis, long position) {
+        keys[size] = nis;
+        positions[size] = position;
+        size++;
+    }
+
+    /**
+     * @return <true>, se nao cabem mais itens.
+     */
+    public boolean isFull() {
+        return size == keys.length;
+    }
+
+    /**
+     * @return Quantidade de itens.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove todos os itens.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * NIS de um item.
+     *
+     * @param i Indice do item.
+     * @return NIS empacotado.
+     */
+    public long nisAt(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Posiçao de um item.
+     *
+     * @param i Indice do item.
+     * @return Posiçao no arquivo de bolsa.
+     */
+    public long positionAt(int i) {
+        return positions[i];
+    }
+
+    /**
+     * Ordena os itens por NIS com um radix sort LSD de {@link #RADIX_BITS} bits por passada. Passadas acima do maior
+     * bit usado pelos NIS, e passadas em que todos os itens tem o mesmo digito, sao puladas.
+     */
+    public void sort() {
+        long usedBits = 0;
+        for (int i = 0; i < size; i++) {
+            usedBits |= keys[i];
+        }
+        int bits = 64 - Long.numberOfLeadingZeros(usedBits);
+        for (int shift = 0; shift < bits; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+            }
+            if (counts[(int) (keys[0] >>> shift) & (RADIX - 1)] == size) {
+                continue;
+            }
+            int offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int count = counts[digit];
+                counts[digit] = offset;
+                offset += count;
+            }
+            for (int i = 0; i < size; i++) {
+                int target = counts[(int) (keys[i] >>> shift) & (RADIX - 1)]++;
+                scratchKeys[target] = keys[i];
+                scratchPositions[target] = positions[i];
+            }
+            long[] swap = keys;
+            keys = scratchKeys;
+            scratchKeys = swap;
+            swap = positions;
+            positions = scratchPositions;
+            scratchPositions = swap;
+        }
+    }
+}
@@ -0,0 +1,571 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Diario da geraçao do indice, que permite retomar uma geraçao interrompida do ultimo ponto gravado.
+ * <p>
+ * O diario fica na primeira pasta dos arquivos temporarios, em {@link #FILE_NAME}. Os arquivos temporarios sao
+ * espalhados pelas pastas em rodizio, pelo ID, para dividir as leituras e escritas entre discos diferentes. O diario e
+ * um arquivo texto ao qual so se acrescentam linhas, cada uma gravada no disco antes de a geraçao seguir. Os campos sao
+ * separados por tabulaçao e o ultimo campo e o CRC32 do restante da linha, para que uma linha cortada por uma queda
+ * seja descartada:
+ * <p>
+ * - BUILD chave limites: primeira linha. A chave identifica o trecho indexado do arquivo de bolsa e o seu CRC32. Os
+ * limites sao os inicios dos trechos lidos por cada thread, separados por virgula ({@link BagFile#splitRanges}).
+ * - RUN id trecho fim registros crc: arquivo temporario de nivel 0 completo, com as linhas do trecho ate a posiçao fim,
+ * exclusive. O fim do ultimo RUN de um trecho e o ponto de onde a leitura do trecho continua.
+ * - MERGE id nivel registros crc entradas: arquivo temporario gerado pelo merge dos arquivos de IDs entradas,
+ * separados por virgula.
+ * <p>
+ * Os arquivos temporarios sao gravados com um nome provisorio e renomeados atomicamente quando completos. So depois a
+ * linha e gravada no diario, e so depois da linha de MERGE os arquivos de entrada sao apagados. Assim todo arquivo
+ * citado no diario esta completo, e qualquer outro arquivo temporario da geraçao e uma sobra que pode ser apagada.
+ * <p>
+ * Ao retomar, os arquivos citados sao conferidos pelo tamanho, pela quantidade de registros e pelo CRC32 dos
+ * registros. Se a chave mudou, ou algum arquivo nao confere, a geraçao recomeça do zero.
+ */
+public class RunManifest {
+
+    /**
+     * Nome do arquivo do diario, dentro da pasta dos arquivos temporarios.
+     */
+    public static final String FILE_NAME = "ExternalMergeSort.manifest";
+
+    /**
+     * Prefixo do nome dos arquivos temporarios da geraçao.
+     */
+    private static final String RUN_FILE_PREFIX = "ExternalMergeSort_";
+
+    /**
+     * Sufixo do nome provisorio de um arquivo temporario ainda em escrita.
+     */
+    private static final String PENDING_SUFFIX = ".tmp";
+
+    /**
+     * Tamanho do buffer de leitura usado na conferencia dos arquivos.
+     */
+    private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Pastas dos arquivos temporarios. O diario fica na primeira.
+     */
+    private final List<File> tempDirs;
+
+    /**
+     * Canal de escrita do diario.
+     */
+    private FileChannel journal;
+
+    /**
+     * Inicio do trecho lido por cada thread e o fim do ultimo trecho.
+     */
+    private final long[] limits;
+
+    /**
+     * Posiçao de onde a leitura de cada trecho continua.
+     */
+    private final long[] resumePositions;
+
+    /**
+     * Arquivos temporarios completos e ainda nao mesclados, por ID.
+     */
+    private final Map<Long, Run> pendingRuns = new TreeMap<>();
+
+    /**
+     * Proximo ID de arquivo temporario, unico entre todos os niveis.
+     */
+    private long nextFileId;
+
+    /**
+     * Indica se a geraçao foi retomada de um diario anterior.
+     */
+    private boolean resumed;
+
+    /**
+     * Construtor. Use {@link #open(List, String, long[])}.
+     *
+     * @param tempDirs {@link #tempDirs}
+     * @param journal  {@link #journal}
+     * @param limits   {@link #limits}
+     */
+    private RunManifest(List<File> tempDirs, FileChannel journal, long[] limits) {
+        this.tempDirs = tempDirs;
+        this.journal = journal;
+        this.limits = limits;
+        this.resumePositions = new long[limits.length - 1];
+        System.arraycopy(limits, 0, resumePositions, 0, resumePositions.length);
+    }
+
+    /**
+     * Abre o diario da pasta dos arquivos temporarios. Se houver um diario de uma geraçao interrompida com a mesma
+     * chave e todos os seus arquivos conferirem, a geraçao e retomada; senao os arquivos temporarios da geraçao sao
+     * apagados e um diario novo e criado.
+     *
+     * @param tempDirs Pastas dos arquivos temporarios, na mesma ordem da geraçao interrompida.
+     * @param key      Identificaçao do trecho indexado do arquivo de bolsa.
+     * @param limits   Limites dos trechos de leitura, usados se a geraçao nao for retomada.
+     * @return Diario aberto.
+     * @throws IOException
+     */
+    public static RunManifest open(List<File> tempDirs, String key, long[] limits) throws IOException {
+        File file = new File(tempDirs.get(0), FILE_NAME);
+        if (file.exists()) {
+            RunManifest manifest = replay(tempDirs, file, key);
+            if (manifest != null) {
+                return manifest;
+            }
+        }
+
+        deleteRunFiles(tempDirs, new ArrayList<>());
+        FileChannel journal = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        RunManifest manifest = new RunManifest(tempDirs, journal, limits.clone());
+        StringBuilder line = new StringBuilder("BUILD\t").append(key).append('\t');
+        for (int i = 0; i < limits.length; i++) {
+            line.append(i == 0 ? "" : ",").append(limits[i]);
+        }
+        manifest.append(line.toString());
+        return manifest;
+    }
+
+    /**
+     * Le o diario de uma geraçao interrompida e confere os arquivos citados.
+     *
+     * @param tempDirs Pastas dos arquivos temporarios.
+     * @param file     Arquivo do diario.
+     * @param key      Identificaçao esperada do trecho indexado.
+     * @return Diario pronto para continuar a geraçao, ou null se a geraçao precisar recomeçar.
+     * @throws IOException
+     */
+    private static RunManifest replay(List<File> tempDirs, File file, String key) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        RunManifest manifest = null;
+        long maxId = -1;
+        int validLength = 0;
+        int lineStart = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            String[] fields = checkedFields(new String(content, lineStart, i - lineStart,
+                    StandardCharsets.ISO_8859_1));
+            if (fields == null) {
+                break;
+            }
+            try {
+                if (manifest == null) {
+                    if (!fields[0].equals("BUILD") || !fields[1].equals(key)) {
+                        return null;
+                    }
+                    manifest = new RunManifest(tempDirs, null, parseNumbers(fields[2]));
+                } else if (fields[0].equals("RUN")) {
+                    long id = Long.parseLong(fields[1]);
+                    int range = Integer.parseInt(fields[2]);
+                    manifest.resumePositions[range] = Long.parseLong(fields[3]);
+                    manifest.pendingRuns.put(id, new Run(manifest.runFile(0, id), id, 0, Long.parseLong(fields[4]),
+                            Long.parseLong(fields[5])));
+                    maxId = Math.max(maxId, id);
+                } else if (fields[0].equals("MERGE")) {
+                    long id = Long.parseLong(fields[1]);
+                    int level = Integer.parseInt(fields[2]);
+                    for (long input : parseNumbers(fields[5])) {
+                        if (manifest.pendingRuns.remove(input) == null) {
+                            return null;
+                        }
+                    }
+                    manifest.pendingRuns.put(id, new Run(manifest.runFile(level, id), id, level,
+                            Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+                    maxId = Math.max(maxId, id);
+                } else {
+                    return null;
+                }
+            } catch (RuntimeException e) {
+                return null;
+            }
+            validLength = i + 1;
+            lineStart = i + 1;
+        }
+        if (manifest == null) {
+            return null;
+        }
+        for (Run run : manifest.pendingRuns.values()) {
+            if (!verify(run)) {
+                return null;
+            }
+        }
+
+        List<File> keep = new ArrayList<>();
+        for (Run run : manifest.pendingRuns.values()) {
+            keep.add(run.getFile());
+        }
+        deleteRunFiles(tempDirs, keep);
+        // Uma linha cortada no fim do diario e removida antes de novas linhas serem acrescentadas.
+        FileChannel journal = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        journal.truncate(validLength);
+        journal.position(validLength);
+        manifest.journal = journal;
+        manifest.nextFileId = maxId + 1;
+        manifest.resumed = true;
+        return manifest;
+    }
+
+    /**
+     * @return <true>, se a geraçao foi retomada de um diario anterior.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return Inicio do trecho lido por cada thread e, na ultima posiçao, o fim do ultimo trecho.
+     */
+    public long[] getLimits() {
+        return limits.clone();
+    }
+
+    /**
+     * @param range Numero do trecho.
+     * @return Posiçao de onde a leitura do trecho continua, no inicio de uma linha.
+     */
+    public synchronized long getResumePosition(int range) {
+        return resumePositions[range];
+    }
+
+    /**
+     * @return Arquivos temporarios completos e ainda nao mesclados, em ordem de criaçao.
+     */
+    public synchronized List<Run> getPendingRuns() {
+        return new ArrayList<>(pendingRuns.values());
+    }
+
+    /**
+     * @return Quantidade de registros dos arquivos temporarios ainda nao mesclados.
+     */
+    public synchronized long getPendingRecordCount() {
+        long count = 0;
+        for (Run run : pendingRuns.values()) {
+            count += run.getRecordCount();
+        }
+        return count;
+    }
+
+    /**
+     * Reserva o ID de um novo arquivo temporario.
+     *
+     * @return ID reservado.
+     */
+    public synchronized long newFileId() {
+        return nextFileId++;
+    }
+
+    /**
+     * @param id    ID do arquivo temporario.
+     * @param level Nivel do arquivo.
+     * @return Nome provisorio do arquivo, usado enquanto ele e escrito.
+     */
+    public File pendingFile(long id, int level) {
+        return new File(runFile(level, id).getPath() + PENDING_SUFFIX);
+    }
+
+    /**
+     * Registra um arquivo temporario de nivel 0 ja escrito no nome provisorio.
+     *
+     * @param id          ID do arquivo.
+     * @param range       Trecho de leitura do arquivo.
+     * @param end         Posiçao do arquivo de bolsa onde a leitura do trecho parou, exclusive.
+     * @param recordCount Quantidade de registros do arquivo.
+     * @param checksum    CRC32 dos registros do arquivo.
+     * @return Arquivo registrado, ja com o nome definitivo.
+     * @throws IOException
+     */
+    public synchronized Run runCompleted(long id, int range, long end, long recordCount, long checksum)
+            throws IOException {
+        Run run = commit(id, 0, recordCount, checksum);
+        append("RUN\t" + id + "\t" + range + "\t" + end + "\t" + recordCount + "\t" + checksum);
+        resumePositions[range] = end;
+        pendingRuns.put(id, run);
+        return run;
+    }
+
+    /**
+     * Registra um arquivo temporario gerado por merge e ja escrito no nome provisorio. Os arquivos de entrada sao
+     * apagados depois do registro.
+     *
+     * @param id          ID do arquivo.
+     * @param level       Nivel do arquivo.
+     * @param recordCount Quantidade de registros do arquivo.
+     * @param checksum    CRC32 dos registros do arquivo.
+     * @param inputs      Arquivos mesclados.
+     * @return Arquivo registrado, ja com o nome definitivo.
+     * @throws IOException
+     */
+    public synchronized Run mergeCompleted(long id, int level, long recordCount, long checksum, List<Run> inputs)
+            throws IOException {
+        Run run = commit(id, level, recordCount, checksum);
+        StringBuilder line = new StringBuilder("MERGE\t").append(id).append('\t').append(level).append('\t')
+                .append(recordCount).append('\t').append(checksum).append('\t');
+        for (int i = 0; i < inputs.size(); i++) {
+            line.append(i == 0 ? "" : ",").append(inputs.get(i).getId());
+        }
+        append(line.toString());
+        for (Run input : inputs) {
+            pendingRuns.remove(input.getId());
+            input.getFile().delete();
+        }
+        pendingRuns.put(id, run);
+        return run;
+    }
+
+    /**
+     * Encerra a geraçao concluida: apaga os arquivos temporarios restantes e o diario.
+     *
+     * @throws IOException
+     */
+    public synchronized void finish() throws IOException {
+        for (Run run : pendingRuns.values()) {
+            run.getFile().delete();
+        }
+        pendingRuns.clear();
+        journal.close();
+        new File(tempDirs.get(0), FILE_NAME).delete();
+    }
+
+    /**
+     * Fecha o diario sem apaga-lo, mantendo a geraçao pronta para ser retomada.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Troca o nome provisorio de um arquivo temporario pelo definitivo, com uma troca atomica de nome.
+     *
+     * @param id          ID do arquivo.
+     * @param level       Nivel do arquivo.
+     * @param recordCount Quantidade de registros do arquivo.
+     * @param checksum    CRC32 dos registros do arquivo.
+     * @return Arquivo com o nome definitivo.
+     * @throws IOException
+     */
+    private Run commit(long id, int level, long recordCount, long checksum) throws IOException {
+        File file = runFile(level, id);
+        try (FileChannel channel = FileChannel.open(pendingFile(id, level).toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(pendingFile(id, level).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return new Run(file, id, level, recordCount, checksum);
+    }
+
+    /**
+     * Acrescenta uma linha ao diario, seguida do seu CRC32, e espera a gravaçao no disco.
+     *
+     * @param line Linha sem o CRC32 e sem a quebra de linha.
+     * @throws IOException
+     */
+    private void append(String line) throws IOException {
+        byte[] bytes = (line + "\t" + lineChecksum(line) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        journal.force(false);
+    }
+
+    /**
+     * Separa os campos de uma linha do diario, conferindo o seu CRC32.
+     *
+     * @param line Linha sem a quebra de linha.
+     * @return Campos da linha sem o CRC32, ou null se a linha estiver incompleta ou corrompida.
+     */
+    private static String[] checkedFields(String line) {
+        int separator = line.lastIndexOf('\t');
+        if (separator < 0 || !line.substring(separator + 1).equals(lineChecksum(line.substring(0, separator)))) {
+            return null;
+        }
+        return line.substring(0, separator).split("\t");
+    }
+
+    /**
+     * @param line Linha do diario sem o CRC32.
+     * @return CRC32 da linha em hexadecimal.
+     */
+    private static String lineChecksum(String line) {
+        CRC32 crc = new CRC32();
+        crc.update(line.getBytes(StandardCharsets.ISO_8859_1));
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * @param text Numeros separados por virgula.
+     * @return Numeros lidos.
+     */
+    private static long[] parseNumbers(String text) {
+        String[] parts = text.split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Long.parseLong(parts[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Confere se um arquivo temporario registrado esta completo: tamanho, quantidade de registros do cabecalho e CRC32
+     * dos registros.
+     *
+     * @param run Arquivo registrado.
+     * @return <true>, se o arquivo confere com o registro.
+     * @throws IOException
+     */
+    private static boolean verify(Run run) throws IOException {
+        File file = run.getFile();
+        if (!file.exists()
+                || file.length() != BinaryIndex.HEADER_SIZE + run.getRecordCount() * BinaryIndex.RECORD_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            if (!BinaryIndex.isBinaryIndex(file) || BinaryIndex.readRecordCount(channel) != run.getRecordCount()) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(VERIFY_BUFFER_SIZE);
+            long position = BinaryIndex.HEADER_SIZE;
+            while (position < file.length()) {
+                buffer.clear();
+                buffer.limit((int) Math.min(VERIFY_BUFFER_SIZE, file.length() - position));
+                BinaryIndex.readFully(channel, buffer, position);
+                position += buffer.position();
+                buffer.flip();
+                crc.update(buffer);
+            }
+            return crc.getValue() == run.getChecksum();
+        }
+    }
+
+    /**
+     * Apaga os arquivos temporarios da geraçao, com nome definitivo ou provisorio, que nao estao na lista.
+     *
+     * @param tempDirs Pastas dos arquivos temporarios.
+     * @param keep     Arquivos mantidos.
+     */
+    private static void deleteRunFiles(List<File> tempDirs, List<File> keep) {
+        for (File tempDir : tempDirs) {
+            File[] files = tempDir.listFiles((dir, name) -> name.startsWith(RUN_FILE_PREFIX));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (!keep.contains(file)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param level Nivel do arquivo.
+     * @param id    ID do arquivo.
+     * @return Nome definitivo do arquivo temporario, na pasta escolhida pelo ID.
+     */
+    private File runFile(int level, long id) {
+        File tempDir = tempDirs.get((int) (id % tempDirs.size()));
+        return new File(tempDir, RUN_FILE_PREFIX + level + "_" + id + "_.bin");
+    }
+
+    /**
+     * Arquivo temporario completo, registrado no diario.
+     */
+    public static class Run {
+
+        /**
+         * Arquivo, com o nome definitivo.
+         */
+        private final File file;
+
+        /**
+         * ID do arquivo.
+         */
+        private final long id;
+
+        /**
+         * Nivel do arquivo.
+         */
+        private final int level;
+
+        /**
+         * Quantidade de registros.
+         */
+        private final long recordCount;
+
+        /**
+         * CRC32 dos registros.
+         */
+        private final long checksum;
+
+        /**
+         * Construtor.
+         *
+         * @param file        {@link #file}
+         * @param id          {@link #id}
+         * @param level       {@link #level}
+         * @param recordCount {@link #recordCount}
+         * @param checksum    {@link #checksum}
+         */
+        Run(File file, long id, int level, long recordCount, long checksum) {
+            this.file = file;
+            this.id = id;
+            this.level = level;
+            this.recordCount = recordCount;
+            this.checksum = checksum;
+        }
+
+        /**
+         * @return {@link #file}
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return {@link #id}
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return {@link #level}
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return {@link #recordCount}
+         */
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * @return {@link #checksum}
+         */
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+}
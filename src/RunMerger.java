@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Realiza o merge externo de arquivos temporarios ja ordenados.
+ * <p>
+ * Os arquivos temporarios estao no formato binario do indice ({@link BinaryIndex}). Todos os arquivos recebidos sao
+ * mesclados em uma unica passada: cada arquivo e lido por um buffer proprio e o item corrente de cada um fica em uma
+ * fila de prioridade. A memoria usada e constante por arquivo aberto, independente da quantidade de itens.
+ * <p>
+ * Com uma thread de leitura antecipada, cada arquivo tem dois buffers: enquanto o merge consome um, o trecho seguinte
+ * do arquivo e lido no outro. Com os arquivos espalhados por varios discos, as leituras dos arquivos acontecem em
+ * paralelo em vez de uma de cada vez, quando o buffer de cada arquivo acaba.
+ */
+public class RunMerger {
+
+    /**
+     * Tamanho padrao do buffer de leitura de cada arquivo aberto durante o merge.
+     */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Mescla os arquivos ordenados em um unico arquivo ordenado, lendo cada arquivo so quando o seu buffer acaba.
+     *
+     * @param runs   Arquivos ordenados a serem mesclados.
+     * @param output Destino dos itens mesclados. E fechado ao final.
+     * @return Quantidade de itens escritos.
+     * @throws IOException
+     */
+    public static long merge(List<File> runs, IndexOutput output) throws IOException {
+        return merge(runs, output, DEFAULT_READ_BUFFER_SIZE, null);
+    }
+
+    /**
+     * Mescla os arquivos ordenados em um unico arquivo ordenado.
+     * <p>
+     * Itens com o mesmo NIS saem em ordem de posiçao. Assim o resultado nao depende da ordem dos arquivos na lista.
+     *
+     * @param runs           Arquivos ordenados a serem mesclados.
+     * @param output         Destino dos itens mesclados. E fechado ao final.
+     * @param readBufferSize Tamanho do buffer de leitura de cada arquivo, arredondado para baixo para registros
+     *                       inteiros.
+     * @param prefetcher     Threads de leitura antecipada, ou null para ler cada arquivo so quando o buffer acaba.
+     * @return Quantidade de itens escritos.
+     * @throws IOException
+     */
+    public static long merge(List<File> runs, IndexOutput output, int readBufferSize, ExecutorService prefetcher)
+            throws IOException {
+        int bufferSize = Math.max(BinaryIndex.RECORD_SIZE,
+                readBufferSize / BinaryIndex.RECORD_SIZE * BinaryIndex.RECORD_SIZE);
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>(Math.max(1, runs.size()));
+        long count = 0;
+        // Cursor fora da fila, recem aberto ou retirado dela, que tambem precisa ser fechado se houver erro.
+        RunCursor current = null;
+        try (IndexOutput writer = output) {
+            try {
+                for (File run : runs) {
+                    current = new RunCursor(run, bufferSize, prefetcher);
+                    if (current.advance()) {
+                        queue.add(current);
+                    } else {
+                        current.close();
+                    }
+                    current = null;
+                }
+
+                while (!queue.isEmpty()) {
+                    current = queue.poll();
+                    writer.write(current.nis, current.position);
+                    count++;
+                    if (current.advance()) {
+                        queue.add(current);
+                    } else {
+                        current.close();
+                    }
+                    current = null;
+                }
+            } finally {
+                if (current != null) {
+                    current.close();
+                }
+                for (RunCursor cursor : queue) {
+                    cursor.close();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Cursor de leitura de um arquivo ordenado. Mantem em memoria um buffer de leitura, ou dois com a leitura
+     * antecipada.
+     */
+    private static class RunCursor implements Comparable<RunCursor> {
+
+        /**
+         * Canal do arquivo.
+         */
+        private final FileChannel channel;
+
+        /**
+         * Tamanho de cada buffer de leitura.
+         */
+        private final int bufferSize;
+
+        /**
+         * Threads de leitura antecipada, ou null.
+         */
+        private final ExecutorService prefetcher;
+
+        /**
+         * Buffer de leitura consumido pelo merge.
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * Buffer preenchido pela leitura antecipada, ou null sem leitura antecipada.
+         */
+        private ByteBuffer nextBuffer;
+
+        /**
+         * Leitura antecipada em andamento para {@link #nextBuffer}, ou null.
+         */
+        private Future<Void> prefetch;
+
+        /**
+         * Posiçao no arquivo da proxima leitura.
+         */
+        private long readPosition = BinaryIndex.HEADER_SIZE;
+
+        /**
+         * Quantidade de itens ainda nao lidos do arquivo.
+         */
+        private long unread;
+
+        /**
+         * Quantidade de itens ainda nao consumidos pelo merge.
+         */
+        private long remaining;
+
+        /**
+         * NIS do item corrente.
+         */
+        private long nis;
+
+        /**
+         * Posiçao do item corrente.
+         */
+        private long position;
+
+        /**
+         * Construtor. Com leitura antecipada, a leitura do primeiro trecho ja começa aqui.
+         *
+         * @param file       Arquivo ordenado.
+         * @param bufferSize {@link #bufferSize}
+         * @param prefetcher {@link #prefetcher}
+         * @throws IOException
+         */
+        RunCursor(File file, int bufferSize, ExecutorService prefetcher) throws IOException {
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+            this.bufferSize = bufferSize;
+            this.prefetcher = prefetcher;
+            try {
+                this.remaining = BinaryIndex.readRecordCount(channel);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            this.unread = remaining;
+            this.buffer = ByteBuffer.allocate((int) Math.min(bufferSize, remaining * BinaryIndex.RECORD_SIZE));
+            this.buffer.limit(0);
+            if (prefetcher != null && unread > 0) {
+                this.nextBuffer = ByteBuffer.allocate(buffer.capacity());
+                startPrefetch();
+            }
+        }
+
+        /**
+         * Avança para o proximo item do arquivo.
+         *
+         * @return <true> se ainda havia item para ler.
+         * @throws IOException
+         */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            if (!buffer.hasRemaining()) {
+                if (prefetch != null) {
+                    IndexBuilder.await(prefetch);
+                    prefetch = null;
+                    ByteBuffer filled = nextBuffer;
+                    nextBuffer = buffer;
+                    buffer = filled;
+                    if (unread > 0) {
+                        startPrefetch();
+                    }
+                } else {
+                    fill(buffer);
+                }
+            }
+            nis = buffer.getLong();
+            position = buffer.getLong();
+            remaining--;
+            return true;
+        }
+
+        /**
+         * Começa a leitura do proximo trecho do arquivo em {@link #nextBuffer}.
+         */
+        private void startPrefetch() {
+            ByteBuffer target = nextBuffer;
+            prefetch = prefetcher.submit(() -> {
+                fill(target);
+                return null;
+            });
+        }
+
+        /**
+         * Le o proximo trecho do arquivo.
+         *
+         * @param target Buffer preenchido, pronto para leitura ao final.
+         * @throws IOException
+         */
+        private void fill(ByteBuffer target) throws IOException {
+            target.clear();
+            target.limit((int) Math.min(bufferSize, unread * BinaryIndex.RECORD_SIZE));
+            BinaryIndex.readFully(channel, target, readPosition);
+            readPosition += target.position();
+            unread -= target.position() / BinaryIndex.RECORD_SIZE;
+            target.flip();
+        }
+
+        /**
+         * Fecha o arquivo.
+         *
+         * @throws IOException
+         */
+        void close() throws IOException {
+            if (prefetch != null) {
+                prefetch.cancel(false);
+            }
+            channel.close();
+        }
+
+        @Override
+        public int compareTo(RunCursor o) {
+            int result = Long.compare(nis, o.nis);
+            return result != 0 ? result : Long.compare(position, o.position);
+        }
+    }
+}
@@ -0,0 +1,471 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indice secundario do arquivo de bolsa por municipio, UF e mes, com listas de posiçoes.
+ * <p>
+ * Para cada valor de cada campo indexado ({@link #FIELD_NAMES}) o indice guarda a lista das posiçoes, em ordem
+ * crescente, das linhas do arquivo de bolsa com aquele valor. Uma consulta por varios campos e a interseçao das listas
+ * ({@link #intersect(List)}), e apenas as linhas do resultado sao lidas do arquivo de bolsa.
+ * <p>
+ * Cada lista e gravada como diferenças entre posiçoes consecutivas, com numeros de tamanho variavel
+ * ({@link BlockIndex#putVarLong(byte[], int, long)}). Como as linhas de um mesmo municipio ou mes costumam estar
+ * proximas no arquivo, a maioria das diferenças ocupa 1 ou 2 bytes. Depois dos dados vem a tabela de saltos: para cada
+ * {@link #SKIP_INTERVAL} itens, a posiçao do item e o tamanho dos dados ate ele, ambos long. Com ela a interseçao pula
+ * trechos inteiros de uma lista longa sem decodifica-los.
+ * <p>
+ * O arquivo comeca com um cabecalho de {@link #HEADER_SIZE} bytes:
+ * <p>
+ * - magic (int): {@link #MAGIC}.
+ * - versao (int): {@link #VERSION}.
+ * - checksum do arquivo de bolsa (long), como em {@link BinaryIndex}.
+ * - tamanho do trecho indexado do arquivo de bolsa (long).
+ * - posiçao do dicionario (long).
+ * - quantidade de termos do dicionario (int).
+ * - reservado (int).
+ * <p>
+ * Em seguida vem as listas e, no fim do arquivo, o dicionario, com um termo por valor de campo: o numero do campo
+ * (byte), o tamanho do valor (short), o valor em ISO-8859-1, a quantidade de posiçoes (long), a posiçao da lista no
+ * arquivo (long) e o tamanho dos dados da lista (long). O dicionario e pequeno, um termo por municipio, UF ou mes, e e
+ * carregado em memoria.
+ */
+public class SecondaryIndex implements Closeable {
+
+    /**
+     * Identificador do formato, "FBSI" em ASCII.
+     */
+    public static final int MAGIC = 0x46425349;
+
+    /**
+     * Versao do formato.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Tamanho do cabecalho em bytes.
+     */
+    public static final int HEADER_SIZE = 40;
+
+    /**
+     * Quantidade de itens de uma lista entre duas entradas da tabela de saltos.
+     */
+    public static final int SKIP_INTERVAL = 128;
+
+    /**
+     * Nomes dos campos indexados, usados nas consultas. O numero do campo e a sua posiçao neste vetor.
+     */
+    public static final String[] FIELD_NAMES = {"uf", "city", "month"};
+
+    /**
+     * Coluna do arquivo de bolsa de cada campo indexado: UF, codigo SIAFI do municipio e mes e ano.
+     */
+    public static final int[] FIELD_COLUMNS = {0, 1, 11};
+
+    /**
+     * Tamanho do buffer de leitura de cada lista.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Canal do arquivo de indice.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Checksum do arquivo de bolsa gravado no cabecalho.
+     */
+    private final long sourceChecksum;
+
+    /**
+     * Tamanho do trecho indexado do arquivo de bolsa.
+     */
+    private final long indexedLength;
+
+    /**
+     * Termos do dicionario de cada campo, pelo valor.
+     */
+    private final List<Map<String, Term>> dictionary;
+
+    /**
+     * Construtor. Abre o arquivo e carrega o dicionario.
+     *
+     * @param file Arquivo do indice secundario.
+     * @throws IOException se o arquivo nao puder ser aberto ou nao for um indice secundario.
+     */
+    public SecondaryIndex(File file) throws IOException {
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Arquivo de indice secundario invalido.");
+            }
+            BinaryIndex.readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Arquivo de indice secundario invalido.");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Versao de indice secundario nao suportada: " + header.getInt(4));
+            }
+            this.sourceChecksum = header.getLong(8);
+            this.indexedLength = header.getLong(16);
+            long dictionaryOffset = header.getLong(24);
+            int termCount = header.getInt(32);
+            if (dictionaryOffset < HEADER_SIZE || dictionaryOffset > channel.size()) {
+                throw new IOException("Arquivo de indice secundario truncado.");
+            }
+
+            ByteBuffer entries = ByteBuffer.allocate((int) (channel.size() - dictionaryOffset));
+            BinaryIndex.readFully(channel, entries, dictionaryOffset);
+            entries.flip();
+            this.dictionary = new ArrayList<>();
+            for (int i = 0; i < FIELD_NAMES.length; i++) {
+                dictionary.add(new HashMap<>());
+            }
+            for (int i = 0; i < termCount; i++) {
+                int field = entries.get();
+                byte[] value = new byte[entries.getShort()];
+                entries.get(value);
+                Term term = new Term(entries.getLong(), entries.getLong(), entries.getLong());
+                dictionary.get(field).put(new String(value, StandardCharsets.ISO_8859_1), term);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Arquivo de indice secundario invalido.", e);
+        }
+    }
+
+    /**
+     * @return {@link #sourceChecksum}
+     */
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    /**
+     * @return {@link #indexedLength}
+     */
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    /**
+     * Numero de um campo pelo nome.
+     *
+     * @param name Nome do campo, um de {@link #FIELD_NAMES}.
+     * @return Numero do campo, ou -1 se o nome for desconhecido.
+     */
+    public static int fieldOf(String name) {
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            if (FIELD_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Quantidade de linhas com um valor de campo, sem ler a lista.
+     *
+     * @param field Numero do campo.
+     * @param value Valor do campo.
+     * @return Quantidade de linhas, 0 se o valor nao estiver no indice.
+     */
+    public long count(int field, String value) {
+        Term term = dictionary.get(field).get(value);
+        return term != null ? term.count : 0;
+    }
+
+    /**
+     * Abre a lista de posiçoes de um valor de campo.
+     *
+     * @param field Numero do campo.
+     * @param value Valor do campo.
+     * @return Cursor da lista, ou null se o valor nao estiver no indice.
+     */
+    public PostingCursor cursor(int field, String value) {
+        Term term = dictionary.get(field).get(value);
+        return term != null ? new PostingCursor(term) : null;
+    }
+
+    /**
+     * Interseçao de varias listas de posiçoes.
+     * <p>
+     * A lista mais curta conduz a interseçao: cada posiçao dela e procurada nas outras com
+     * {@link PostingCursor#advance(long)}, que usa a tabela de saltos. Quando outra lista passa da posiçao procurada, a
+     * busca continua a partir da posiçao dela. Assim o custo depende da lista mais curta, e nao da mais longa.
+     *
+     * @param cursors Cursores ainda nao lidos. Um cursor null e uma lista vazia.
+     * @return Posiçoes presentes em todas as listas, em ordem crescente.
+     * @throws IOException
+     */
+    public static long[] intersect(List<PostingCursor> cursors) throws IOException {
+        if (cursors.isEmpty() || cursors.contains(null)) {
+            return new long[0];
+        }
+        PostingCursor[] sorted = cursors.toArray(new PostingCursor[0]);
+        Arrays.sort(sorted, Comparator.comparingLong(PostingCursor::count));
+        long[] positions = new long[(int) Math.min(1024, sorted[0].count())];
+        int size = 0;
+        long target = 0;
+        search:
+        while (sorted[0].advance(target)) {
+            target = sorted[0].value();
+            for (int i = 1; i < sorted.length; i++) {
+                if (!sorted[i].advance(target)) {
+                    break search;
+                }
+                if (sorted[i].value() > target) {
+                    target = sorted[i].value();
+                    continue search;
+                }
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = target;
+            target++;
+        }
+        return Arrays.copyOf(positions, size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Entrada do dicionario.
+     */
+    private static class Term {
+
+        /**
+         * Quantidade de posiçoes da lista.
+         */
+        private final long count;
+
+        /**
+         * Posiçao da lista no arquivo de indice.
+         */
+        private final long offset;
+
+        /**
+         * Tamanho dos dados da lista, sem a tabela de saltos que vem logo depois.
+         */
+        private final long dataLength;
+
+        /**
+         * Construtor.
+         *
+         * @param count      {@link #count}
+         * @param offset     {@link #offset}
+         * @param dataLength {@link #dataLength}
+         */
+        private Term(long count, long offset, long dataLength) {
+            this.count = count;
+            this.offset = offset;
+            this.dataLength = dataLength;
+        }
+    }
+
+    /**
+     * Leitor de uma lista de posiçoes, sempre para frente.
+     * <p>
+     * Os dados sao lidos do arquivo em trechos de {@link #READ_BUFFER_SIZE} bytes. A tabela de saltos so e lida no
+     * primeiro {@link #advance(long)} que pode usa-la.
+     */
+    public class PostingCursor {
+
+        /**
+         * Entrada do dicionario da lista.
+         */
+        private final Term term;
+
+        /**
+         * Numero do item atual, ou -1 antes do primeiro.
+         */
+        private long index = -1;
+
+        /**
+         * Posiçao do item atual.
+         */
+        private long value;
+
+        /**
+         * Posiçao nos dados da lista do proximo byte a decodificar.
+         */
+        private long dataPosition;
+
+        /**
+         * Trecho dos dados lido do arquivo.
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * Posiçao nos dados da lista do primeiro byte do buffer.
+         */
+        private long bufferStart;
+
+        /**
+         * Posiçao do item de cada entrada da tabela de saltos. A entrada k se refere ao item
+         * {@code (k + 1) * SKIP_INTERVAL - 1}.
+         */
+        private long[] skipValues;
+
+        /**
+         * Tamanho dos dados ate o fim do item de cada entrada da tabela de saltos.
+         */
+        private long[] skipOffsets;
+
+        /**
+         * Construtor.
+         *
+         * @param term {@link #term}
+         */
+        private PostingCursor(Term term) {
+            this.term = term;
+        }
+
+        /**
+         * @return Quantidade de posiçoes da lista.
+         */
+        public long count() {
+            return term.count;
+        }
+
+        /**
+         * @return Posiçao do item atual.
+         */
+        public long value() {
+            return value;
+        }
+
+        /**
+         * Avança para o proximo item.
+         *
+         * @return <true>, se ha um proximo item, ou <false> no fim da lista.
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            if (index + 1 >= term.count) {
+                index = term.count;
+                return false;
+            }
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = readByte();
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            value += delta;
+            index++;
+            return true;
+        }
+
+        /**
+         * Avança ate o primeiro item com posiçao maior ou igual a procurada, sem voltar. Os trechos da lista que
+         * terminam antes da posiçao procurada sao pulados pela tabela de saltos.
+         *
+         * @param target Posiçao procurada.
+         * @return <true>, se o item foi encontrado, ou <false> se a lista acabou.
+         * @throws IOException
+         */
+        public boolean advance(long target) throws IOException {
+            if (index >= 0 && index < term.count && value >= target) {
+                return true;
+            }
+            if (term.count - index > SKIP_INTERVAL) {
+                skipTo(target);
+            }
+            while (next()) {
+                if (value >= target) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Pula para a ultima entrada da tabela de saltos com posiçao menor que a procurada, se ela estiver a frente do
+         * item atual.
+         *
+         * @param target Posiçao procurada.
+         * @throws IOException
+         */
+        private void skipTo(long target) throws IOException {
+            if (skipValues == null) {
+                loadSkips();
+            }
+            int low = 0;
+            int high = skipValues.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (skipValues[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            int skip = low - 1;
+            long skipIndex = (long) (skip + 1) * SKIP_INTERVAL - 1;
+            if (skip >= 0 && skipIndex > index) {
+                index = skipIndex;
+                value = skipValues[skip];
+                dataPosition = skipOffsets[skip];
+            }
+        }
+
+        /**
+         * Le a tabela de saltos, que fica logo depois dos dados da lista.
+         *
+         * @throws IOException
+         */
+        private void loadSkips() throws IOException {
+            int skipCount = (int) (term.count / SKIP_INTERVAL);
+            ByteBuffer skips = ByteBuffer.allocate(skipCount * 2 * Long.BYTES);
+            BinaryIndex.readFully(channel, skips, term.offset + term.dataLength);
+            skips.flip();
+            skipValues = new long[skipCount];
+            skipOffsets = new long[skipCount];
+            for (int i = 0; i < skipCount; i++) {
+                skipValues[i] = skips.getLong();
+                skipOffsets[i] = skips.getLong();
+            }
+        }
+
+        /**
+         * Le o proximo byte dos dados da lista, lendo um novo trecho do arquivo quando preciso.
+         *
+         * @return Byte lido.
+         * @throws IOException
+         */
+        private byte readByte() throws IOException {
+            if (buffer == null || dataPosition < bufferStart || dataPosition >= bufferStart + buffer.limit()) {
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_SIZE, term.dataLength));
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), term.dataLength - dataPosition));
+                bufferStart = dataPosition;
+                BinaryIndex.readFully(channel, buffer, term.offset + bufferStart);
+                buffer.flip();
+            }
+            return buffer.get((int) (dataPosition++ - bufferStart));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Gera o indice secundario ({@link SecondaryIndex}) do arquivo de bolsa usando varias threads.
+ * <p>
+ * O arquivo e dividido em trechos como no {@link IndexBuilder} e cada thread le o seu trecho com o
+ * {@link BagFileScanner}, acumulando em memoria, para cada valor de campo, as posiçoes das suas linhas ja codificadas
+ * como diferenças de tamanho variavel. Como cada trecho e lido em ordem, as listas de uma thread ja estao ordenadas, e
+ * a lista final de um valor e a concatenaçao das listas das threads na ordem dos trechos, sem ordenaçao.
+ * <p>
+ * A memoria usada e a do indice final: cerca de 1 a 3 bytes por linha e campo.
+ */
+public class SecondaryIndexBuilder {
+
+    /**
+     * Tamanho do buffer de escrita.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Quantidade de threads de leitura.
+     */
+    private final int threads;
+
+    /**
+     * Construtor.
+     *
+     * @param threads {@link #threads}
+     */
+    public SecondaryIndexBuilder(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Gera o indice secundario do arquivo de bolsa.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param file       Arquivo de saida.
+     * @return Quantidade de linhas indexadas.
+     * @throws IOException
+     */
+    public long build(FileChannel bagChannel, File file) throws IOException {
+        long bagLength = bagChannel.size();
+        long[] limits = BagFile.splitRanges(bagChannel, BagFile.dataStart(bagChannel), bagLength, threads);
+        List<RangePostings> ranges = new ArrayList<>();
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<RangePostings>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                long rangeStart = limits[i];
+                long rangeEnd = limits[i + 1];
+                results.add(readers.submit(() -> readRange(bagChannel, rangeStart, rangeEnd)));
+            }
+            for (Future<RangePostings> result : results) {
+                ranges.add(IndexBuilder.await(result));
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+
+        long lineCount = 0;
+        for (RangePostings range : ranges) {
+            lineCount += range.lineCount;
+        }
+        write(file, ranges, BinaryIndex.checksum(bagChannel, bagLength), bagLength);
+        return lineCount;
+    }
+
+    /**
+     * Le um trecho do arquivo de bolsa, acumulando as posiçoes de cada valor de campo.
+     * <p>
+     * O arquivo de bolsa costuma estar agrupado por UF, municipio e mes, entao o valor de um campo quase sempre e
+     * igual ao da linha anterior. Nesse caso a lista da linha anterior e reaproveitada, sem criar String nem consultar
+     * o mapa.
+     *
+     * @param bagChannel Canal do arquivo de bolsa.
+     * @param start      Inicio do trecho.
+     * @param end        Fim do trecho, exclusive.
+     * @return Listas do trecho.
+     * @throws IOException
+     */
+    private static RangePostings readRange(FileChannel bagChannel, long start, long end) throws IOException {
+        BagFileScanner scanner = new BagFileScanner(bagChannel, start, end);
+        int fieldCount = SecondaryIndex.FIELD_NAMES.length;
+        RangePostings range = new RangePostings(fieldCount);
+        String[] lastValues = new String[fieldCount];
+        PostingBuffer[] lastBuffers = new PostingBuffer[fieldCount];
+        while (scanner.next()) {
+            for (int field = 0; field < fieldCount; field++) {
+                int column = SecondaryIndex.FIELD_COLUMNS[field];
+                if (lastValues[field] == null || !scanner.columnEquals(column, lastValues[field])) {
+                    String value = scanner.column(column);
+                    if (value == null) {
+                        throw new IOException("Linha sem a coluna " + column + " na posiçao " + scanner.position()
+                                + ".");
+                    }
+                    lastValues[field] = value;
+                    lastBuffers[field] = range.postings.get(field).computeIfAbsent(value, v -> new PostingBuffer());
+                }
+                lastBuffers[field].add(scanner.position());
+            }
+            range.lineCount++;
+        }
+        return range;
+    }
+
+    /**
+     * Grava o arquivo do indice secundario: as listas, em ordem de campo e valor, o dicionario e por fim o cabecalho.
+     *
+     * @param file           Arquivo de saida.
+     * @param ranges         Listas de cada trecho, na ordem dos trechos.
+     * @param sourceChecksum Checksum do arquivo de bolsa.
+     * @param indexedLength  Tamanho do trecho indexado do arquivo de bolsa.
+     * @throws IOException
+     */
+    private static void write(File file, List<RangePostings> ranges, long sourceChecksum, long indexedLength)
+            throws IOException {
+        ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+        DataOutputStream dictionary = new DataOutputStream(dictionaryBytes);
+        int termCount = 0;
+        long offset = SecondaryIndex.HEADER_SIZE;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                WRITE_BUFFER_SIZE))) {
+            out.write(new byte[SecondaryIndex.HEADER_SIZE]);
+            byte[] encoded = new byte[BlockIndex.MAX_VAR_LONG_SIZE];
+            for (int field = 0; field < SecondaryIndex.FIELD_NAMES.length; field++) {
+                TreeSet<String> values = new TreeSet<>();
+                for (RangePostings range : ranges) {
+                    values.addAll(range.postings.get(field).keySet());
+                }
+                for (String value : values) {
+                    // Concatenando as listas dos trechos. A primeira posiçao de cada trecho foi codificada como
+                    // diferença para 0 e e recodificada como diferença para a ultima posiçao do trecho anterior.
+                    long count = 0;
+                    long dataLength = 0;
+                    long previous = 0;
+                    long[] skips = new long[0];
+                    int skipSize = 0;
+                    for (RangePostings range : ranges) {
+                        PostingBuffer buffer = range.postings.get(field).get(value);
+                        if (buffer == null) {
+                            continue;
+                        }
+                        int position = 0;
+                        long current = 0;
+                        while (position < buffer.size) {
+                            long delta = 0;
+                            int shift = 0;
+                            byte b;
+                            do {
+                                b = buffer.data[position++];
+                                delta |= (long) (b & 0x7F) << shift;
+                                shift += 7;
+                            } while (b < 0);
+                            current += delta;
+                            int size = BlockIndex.putVarLong(encoded, 0, current - previous);
+                            out.write(encoded, 0, size);
+                            dataLength += size;
+                            previous = current;
+                            count++;
+                            if (count % SecondaryIndex.SKIP_INTERVAL == 0) {
+                                if (skipSize + 2 > skips.length) {
+                                    skips = Arrays.copyOf(skips, Math.max(16, skips.length * 2));
+                                }
+                                skips[skipSize++] = current;
+                                skips[skipSize++] = dataLength;
+                            }
+                        }
+                    }
+                    for (int i = 0; i < skipSize; i++) {
+                        out.writeLong(skips[i]);
+                    }
+
+                    byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
+                    dictionary.writeByte(field);
+                    dictionary.writeShort(valueBytes.length);
+                    dictionary.write(valueBytes);
+                    dictionary.writeLong(count);
+                    dictionary.writeLong(offset);
+                    dictionary.writeLong(dataLength);
+                    termCount++;
+                    offset += dataLength + (long) skipSize * Long.BYTES;
+                }
+            }
+            dictionary.flush();
+            dictionaryBytes.writeTo(out);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(SecondaryIndex.HEADER_SIZE);
+        header.putInt(SecondaryIndex.MAGIC);
+        header.putInt(SecondaryIndex.VERSION);
+        header.putLong(sourceChecksum);
+        header.putLong(indexedLength);
+        header.putLong(offset);
+        header.putInt(termCount);
+        header.putInt(0);
+        header.flip();
+        try (RandomAccessFile accessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = accessFile.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    /**
+     * Listas de posiçoes lidas por uma thread.
+     */
+    private static class RangePostings {
+
+        /**
+         * Lista de cada valor de cada campo.
+         */
+        private final List<Map<String, PostingBuffer>> postings = new ArrayList<>();
+
+        /**
+         * Quantidade de linhas lidas.
+         */
+        private long lineCount;
+
+        /**
+         * Construtor.
+         *
+         * @param fieldCount Quantidade de campos indexados.
+         */
+        private RangePostings(int fieldCount) {
+            for (int i = 0; i < fieldCount; i++) {
+                postings.add(new HashMap<>());
+            }
+        }
+    }
+
+    /**
+     * Lista de posiçoes em construçao, codificada como diferenças de tamanho variavel. A primeira posiçao e a diferença
+     * para 0.
+     */
+    private static class PostingBuffer {
+
+        /**
+         * Dados codificados.
+         */
+        private byte[] data = new byte[64];
+
+        /**
+         * Tamanho dos dados.
+         */
+        private int size;
+
+        /**
+         * Ultima posiçao acrescentada.
+         */
+        private long last;
+
+        /**
+         * Acrescenta uma posiçao maior que a ultima.
+         *
+         * @param position Posiçao da linha.
+         */
+        private void add(long position) {
+            if (size + BlockIndex.MAX_VAR_LONG_SIZE > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            size = BlockIndex.putVarLong(data, size, position - last);
+            last = position;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Mapa de um indice particionado por NIS em shards, para dividir as buscas entre varios servidores.
+ * <p>
+ * Cada shard e um indice binario completo ({@link BinaryIndex}) com os itens de uma parte dos NIS, apontando para o
+ * mesmo arquivo de bolsa; todos os pagamentos de um NIS ficam no mesmo shard. A divisao e feita a partir do indice ja
+ * gerado, filtrando os itens em uma unica passada, entao cada shard continua ordenado por NIS e posiçao. Ha dois
+ * criterios de divisao:
+ * <p>
+ * - hash: o shard e escolhido por um hash do NIS ({@link #hashShard(long, int)}). Os shards ficam com tamanhos
+ * parecidos mesmo que os NIS nao sejam uniformes.
+ * - range: cada shard tem um intervalo continuo de NIS, com limites escolhidos para dividir os itens em partes
+ * iguais. Um lote ordenado de NIS cai em poucos shards, em trechos continuos.
+ * <p>
+ * O mapa e um arquivo texto (ISO-8859-1), com campos separados por tabulaçao:
+ * <p>
+ * - FBSM versao shards criterio: primeira linha.
+ * - SOURCE tamanho checksum: trecho indexado do arquivo de bolsa e o seu checksum, os mesmos gravados nos shards.
+ * - SHARD numero arquivo registros menor_nis: um por shard, em ordem. O arquivo e relativo a pasta do mapa. O menor NIS
+ * e o limite inferior do intervalo do shard no criterio range, e 0 no criterio hash.
+ * <p>
+ * Os shards sao gravados antes do mapa, e todos os arquivos sao trocados atomicamente.
+ */
+public class ShardMap {
+
+    /**
+     * Nome padrao do arquivo do mapa.
+     */
+    public static final String FILE_NAME = "shards.map";
+
+    /**
+     * Criterio de divisao por hash do NIS.
+     */
+    public static final String PARTITION_HASH = "hash";
+
+    /**
+     * Criterio de divisao por intervalos de NIS.
+     */
+    public static final String PARTITION_RANGE = "range";
+
+    /**
+     * Quantidade maxima de shards.
+     */
+    public static final int MAX_SHARDS = 1024;
+
+    /**
+     * Primeiro campo da primeira linha do mapa.
+     */
+    private static final String MAGIC = "FBSM";
+
+    /**
+     * Versao do formato do mapa.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Tamanho do buffer de escrita de cada shard, menor que o padrao porque todos os shards sao gravados ao mesmo
+     * tempo.
+     */
+    private static final int SHARD_WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Pasta do mapa, onde ficam os shards.
+     */
+    private final File dir;
+
+    /**
+     * true para o criterio range, false para o criterio hash.
+     */
+    private final boolean byRange;
+
+    /**
+     * Tamanho do trecho indexado do arquivo de bolsa.
+     */
+    private final long indexedLength;
+
+    /**
+     * Checksum do arquivo de bolsa ({@link BinaryIndex#checksum}).
+     */
+    private final long sourceChecksum;
+
+    /**
+     * Nome do arquivo de indice de cada shard.
+     */
+    private final String[] indexNames;
+
+    /**
+     * Quantidade de itens de cada shard.
+     */
+    private final long[] recordCounts;
+
+    /**
+     * Menor NIS de cada shard, no criterio range. Em ordem crescente; shards vazios repetem o limite do seguinte.
+     */
+    private final long[] lowerKeys;
+
+    /**
+     * Construtor.
+     *
+     * @param dir            {@link #dir}
+     * @param byRange        {@link #byRange}
+     * @param indexedLength  {@link #indexedLength}
+     * @param sourceChecksum {@link #sourceChecksum}
+     * @param indexNames     {@link #indexNames}
+     * @param recordCounts   {@link #recordCounts}
+     * @param lowerKeys      {@link #lowerKeys}
+     */
+    private ShardMap(File dir, boolean byRange, long indexedLength, long sourceChecksum, String[] indexNames,
+                     long[] recordCounts, long[] lowerKeys) {
+        this.dir = dir;
+        this.byRange = byRange;
+        this.indexedLength = indexedLength;
+        this.sourceChecksum = sourceChecksum;
+        this.indexNames = indexNames;
+        this.recordCounts = recordCounts;
+        this.lowerKeys = lowerKeys;
+    }
+
+    /**
+     * Divide um indice em shards e grava o mapa.
+     *
+     * @param indexFile      Indice completo, em qualquer formato.
+     * @param mapFile        Arquivo do mapa. Os shards sao gravados na mesma pasta.
+     * @param shardCount     Quantidade de shards, de 1 a {@link #MAX_SHARDS}.
+     * @param byRange        true para o criterio range, false para o criterio hash.
+     * @param sourceChecksum Checksum do arquivo de bolsa, gravado nos shards.
+     * @param indexedLength  Tamanho do trecho indexado do arquivo de bolsa, gravado nos shards.
+     * @return Mapa gravado.
+     * @throws IOException
+     */
+    public static ShardMap create(File indexFile, File mapFile, int shardCount, boolean byRange, long sourceChecksum,
+                                  long indexedLength) throws IOException {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Quantidade de shards invalida: " + shardCount);
+        }
+        File dir = mapFile.getAbsoluteFile().getParentFile();
+        String baseName = mapFile.getName().endsWith(".map")
+                ? mapFile.getName().substring(0, mapFile.getName().length() - ".map".length()) : mapFile.getName();
+        String[] indexNames = new String[shardCount];
+        File[] tempFiles = new File[shardCount];
+        BinaryIndexWriter[] writers = new BinaryIndexWriter[shardCount];
+        long[] recordCounts = new long[shardCount];
+        long[] lowerKeys = new long[shardCount];
+        MappedIndex index = MappedIndex.open(indexFile);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                indexNames[i] = baseName + "." + i + ".bin";
+                tempFiles[i] = new File(dir, indexNames[i] + ".tmp");
+                writers[i] = new BinaryIndexWriter(tempFiles[i], sourceChecksum, indexedLength,
+                        ByteBuffer.allocateDirect(SHARD_WRITE_BUFFER_SIZE));
+            }
+            long total = byRange ? countRecords(index) : 0;
+            long written = 0;
+            int shard = 0;
+            long previousKey = -1;
+            long end = index.end();
+            for (long slot = index.first(); slot < end; slot = index.next(slot)) {
+                long nis = index.keyAt(slot);
+                if (!byRange) {
+                    shard = hashShard(nis, shardCount);
+                } else if (nis != previousKey) {
+                    // O shard so avança na troca de NIS, para que os pagamentos de um NIS nao se dividam.
+                    int target = (int) Math.min(shardCount - 1, written * shardCount / total);
+                    while (shard < target) {
+                        lowerKeys[++shard] = nis;
+                    }
+                    previousKey = nis;
+                }
+                writers[shard].write(nis, index.positionAt(slot));
+                recordCounts[shard]++;
+                written++;
+            }
+            if (byRange) {
+                // Shards que ficaram vazios no fim herdam um limite acima de qualquer NIS ja gravado.
+                for (int i = shard + 1; i < shardCount; i++) {
+                    lowerKeys[i] = previousKey + 1;
+                }
+            }
+        } finally {
+            for (BinaryIndexWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+
+        for (int i = 0; i < shardCount; i++) {
+            Files.move(tempFiles[i].toPath(), new File(dir, indexNames[i]).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        ShardMap map = new ShardMap(dir, byRange, indexedLength, sourceChecksum, indexNames, recordCounts, lowerKeys);
+        map.write(mapFile);
+        return map;
+    }
+
+    /**
+     * Le um mapa de shards.
+     *
+     * @param mapFile Arquivo do mapa.
+     * @return Mapa lido.
+     * @throws IOException se o arquivo nao puder ser lido ou nao for um mapa de shards valido.
+     */
+    public static ShardMap load(File mapFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mapFile),
+                StandardCharsets.ISO_8859_1))) {
+            String[] header = fields(reader.readLine(), 4);
+            if (!header[0].equals(MAGIC) || Integer.parseInt(header[1]) != VERSION
+                    || !(header[3].equals(PARTITION_HASH) || header[3].equals(PARTITION_RANGE))) {
+                throw new IOException("Formato de mapa de shards nao suportado: " + mapFile);
+            }
+            int shardCount = Integer.parseInt(header[2]);
+            if (shardCount < 1 || shardCount > MAX_SHARDS) {
+                throw new IOException("Quantidade de shards invalida no mapa: " + shardCount);
+            }
+            String[] source = fields(reader.readLine(), 3);
+            String[] indexNames = new String[shardCount];
+            long[] recordCounts = new long[shardCount];
+            long[] lowerKeys = new long[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                String[] shard = fields(reader.readLine(), 5);
+                if (!shard[0].equals("SHARD") || Integer.parseInt(shard[1]) != i) {
+                    throw new IOException("Mapa de shards corrompido: " + mapFile);
+                }
+                indexNames[i] = shard[2];
+                recordCounts[i] = Long.parseLong(shard[3]);
+                lowerKeys[i] = Long.parseLong(shard[4]);
+            }
+            return new ShardMap(mapFile.getAbsoluteFile().getParentFile(), header[3].equals(PARTITION_RANGE),
+                    Long.parseLong(source[1]), Long.parseLong(source[2]), indexNames, recordCounts, lowerKeys);
+        } catch (NumberFormatException e) {
+            throw new IOException("Mapa de shards corrompido: " + mapFile, e);
+        }
+    }
+
+    /**
+     * Escolhe o shard de um NIS no criterio hash.
+     * <p>
+     * O NIS passa pela mistura final do MurmurHash3, para que NIS proximos caiam em shards diferentes.
+     *
+     * @param nis        NIS empacotado.
+     * @param shardCount Quantidade de shards.
+     * @return Numero do shard.
+     */
+    public static int hashShard(long nis, int shardCount) {
+        long hash = nis;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) Long.remainderUnsigned(hash, shardCount);
+    }
+
+    /**
+     * @param nis NIS empacotado.
+     * @return Numero do shard onde o NIS esta, se estiver no indice.
+     */
+    public int shardOf(long nis) {
+        if (!byRange) {
+            return hashShard(nis, indexNames.length);
+        }
+        // Ultimo shard com limite inferior menor ou igual ao NIS.
+        int low = 0;
+        int high = lowerKeys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lowerKeys[middle] <= nis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+
+    /**
+     * @return Quantidade de shards.
+     */
+    public int getShardCount() {
+        return indexNames.length;
+    }
+
+    /**
+     * @return true para o criterio range, false para o criterio hash.
+     */
+    public boolean isByRange() {
+        return byRange;
+    }
+
+    /**
+     * @param shard Numero do shard.
+     * @return Arquivo de indice do shard.
+     */
+    public File getIndexFile(int shard) {
+        return new File(dir, indexNames[shard]);
+    }
+
+    /**
+     * @param shard Numero do shard.
+     * @return Quantidade de itens do shard.
+     */
+    public long getRecordCount(int shard) {
+        return recordCounts[shard];
+    }
+
+    /**
+     * @return Tamanho do trecho indexado do arquivo de bolsa.
+     */
+    public long getIndexedLength() {
+        return indexedLength;
+    }
+
+    /**
+     * @return Checksum do arquivo de bolsa.
+     */
+    public long getSourceChecksum() {
+        return sourceChecksum;
+    }
+
+    /**
+     * Grava o mapa em um arquivo temporario e o troca atomicamente pelo arquivo do mapa.
+     *
+     * @param mapFile Arquivo do mapa.
+     * @throws IOException
+     */
+    private void write(File mapFile) throws IOException {
+        File tempFile = new File(mapFile.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile),
+                StandardCharsets.ISO_8859_1))) {
+            out.write(MAGIC + "\t" + VERSION + "\t" + indexNames.length + "\t"
+                    + (byRange ? PARTITION_RANGE : PARTITION_HASH) + "\n");
+            out.write("SOURCE\t" + indexedLength + "\t" + sourceChecksum + "\n");
+            for (int i = 0; i < indexNames.length; i++) {
+                out.write("SHARD\t" + i + "\t" + indexNames[i] + "\t" + recordCounts[i] + "\t" + lowerKeys[i] + "\n");
+            }
+        }
+        Files.move(tempFile.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Conta os itens de um indice.
+     *
+     * @param index Indice.
+     * @return Quantidade de itens.
+     */
+    private static long countRecords(MappedIndex index) {
+        long count = 0;
+        long end = index.end();
+        for (long slot = index.first(); slot < end; slot = index.next(slot)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Separa os campos de uma linha do mapa.
+     *
+     * @param line  Linha lida, ou null no fim do arquivo.
+     * @param count Quantidade esperada de campos.
+     * @return Campos da linha.
+     * @throws IOException se a linha faltar ou tiver outra quantidade de campos.
+     */
+    private static String[] fields(String line, int count) throws IOException {
+        String[] fields = line != null ? line.split("\t", -1) : new String[0];
+        if (fields.length != count) {
+            throw new IOException("Mapa de shards corrompido: linha " + (line != null ? "'" + line + "'" : "ausente")
+                    + ".");
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,568 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Roteador de buscas de um indice dividido em shards ({@link ShardMap}).
+ * <p>
+ * Cada busca por NIS vai direto ao shard do NIS. As buscas em lote sao separadas por shard e enviadas a todos os
+ * shards ao mesmo tempo, uma thread por shard; o resultado volta na ordem da entrada. Os shards podem ser locais, um
+ * {@link BagSearcher} por indice de shard, ou remotos, um {@link LookupServer} por shard em qualquer maquina com uma
+ * copia do arquivo de bolsa. Para testar em uma maquina so, basta um {@link LookupServer} por shard em portas
+ * diferentes:
+ * <p>
+ * java IndexCreator bolsa.csv --binary --shards=4
+ * java LookupServer src/shards.0.bin bolsa.csv 7000 (e assim por diante ate src/shards.3.bin na porta 7003)
+ * java ShardRouter src/shards.map --servers=127.0.0.1:7000,127.0.0.1:7001,127.0.0.1:7002,127.0.0.1:7003 nis.txt
+ */
+public class ShardRouter implements Closeable {
+
+    /**
+     * Forma correta de uso do programa.
+     */
+    private static final String USAGE = "Use <Mapa de shards> <Arquivo de bolsa | --servers=host:porta,...>"
+            + " <Arquivo de NIS ou - para a entrada padrao>";
+
+    /**
+     * Tamanho do buffer de escrita da saida.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Mapa dos shards.
+     */
+    private final ShardMap map;
+
+    /**
+     * Shards, na ordem do mapa.
+     */
+    private final List<Shard> shards;
+
+    /**
+     * Threads das buscas em lote, uma por shard.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Construtor.
+     *
+     * @param map    {@link #map}
+     * @param shards {@link #shards}
+     */
+    public ShardRouter(ShardMap map, List<Shard> shards) {
+        if (shards.size() != map.getShardCount()) {
+            throw new IllegalArgumentException("O mapa tem " + map.getShardCount() + " shards, mas foram informados "
+                    + shards.size() + ".");
+        }
+        this.map = map;
+        this.shards = new ArrayList<>(shards);
+        this.executor = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "shard-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Abre os indices dos shards localmente.
+     *
+     * @param map     Mapa dos shards.
+     * @param bagFile Arquivo de bolsa.
+     * @return Roteador dos shards locais.
+     * @throws IOException se algum indice nao puder ser aberto ou nao corresponder ao arquivo de bolsa.
+     */
+    public static ShardRouter local(ShardMap map, File bagFile) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        try {
+            for (int i = 0; i < map.getShardCount(); i++) {
+                shards.add(new LocalShard(new BagSearcher(map.getIndexFile(i), bagFile)));
+            }
+            checkShards(map, shards);
+        } catch (IOException e) {
+            closeAll(shards);
+            throw e;
+        }
+        return new ShardRouter(map, shards);
+    }
+
+    /**
+     * Conecta aos servidores dos shards.
+     *
+     * @param map     Mapa dos shards.
+     * @param servers Endereço do {@link LookupServer} de cada shard, na ordem do mapa.
+     * @return Roteador dos shards remotos.
+     * @throws IOException se algum servidor nao aceitar a conexao ou nao atender o shard que o mapa lhe atribui.
+     */
+    public static ShardRouter remote(ShardMap map, List<InetSocketAddress> servers) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        try {
+            for (InetSocketAddress server : servers) {
+                shards.add(new RemoteShard(server));
+            }
+            checkShards(map, shards);
+        } catch (IOException e) {
+            closeAll(shards);
+            throw e;
+        }
+        return new ShardRouter(map, shards);
+    }
+
+    /**
+     * Busca a linha do arquivo de bolsa de um NIS no seu shard.
+     *
+     * @param nis NIS empacotado.
+     * @return Linha encontrada, ou null se o NIS nao estiver no indice.
+     * @throws IOException
+     */
+    public String findLine(long nis) throws IOException {
+        return shards.get(map.shardOf(nis)).findLines(new long[]{nis})[0];
+    }
+
+    /**
+     * Busca todas as linhas do arquivo de bolsa de um NIS no seu shard, em ordem de posiçao.
+     *
+     * @param nis NIS empacotado.
+     * @return Linhas encontradas, vazio se o NIS nao estiver no indice.
+     * @throws IOException
+     */
+    public List<String> findAll(long nis) throws IOException {
+        return shards.get(map.shardOf(nis)).findAll(nis);
+    }
+
+    /**
+     * Busca varios NIS de uma vez, enviando a cada shard apenas os seus NIS, todos os shards ao mesmo tempo.
+     *
+     * @param nisList NIS empacotados, em qualquer ordem.
+     * @return Linha de cada NIS, na mesma ordem, ou null para os NIS que nao estao no indice.
+     * @throws IOException
+     */
+    public String[] findLines(long[] nisList) throws IOException {
+        int shardCount = shards.size();
+        int[] counts = new int[shardCount];
+        int[] shardOf = new int[nisList.length];
+        for (int i = 0; i < nisList.length; i++) {
+            shardOf[i] = map.shardOf(nisList[i]);
+            counts[shardOf[i]]++;
+        }
+        long[][] shardNis = new long[shardCount][];
+        int[][] shardSlots = new int[shardCount][];
+        for (int s = 0; s < shardCount; s++) {
+            shardNis[s] = new long[counts[s]];
+            shardSlots[s] = new int[counts[s]];
+        }
+        int[] filled = new int[shardCount];
+        for (int i = 0; i < nisList.length; i++) {
+            int s = shardOf[i];
+            shardNis[s][filled[s]] = nisList[i];
+            shardSlots[s][filled[s]++] = i;
+        }
+
+        List<Future<String[]>> results = new ArrayList<>();
+        for (int s = 0; s < shardCount; s++) {
+            Shard shard = shards.get(s);
+            long[] nis = shardNis[s];
+            results.add(nis.length > 0 ? executor.submit(() -> shard.findLines(nis)) : null);
+        }
+        String[] lines = new String[nisList.length];
+        IOException error = null;
+        for (int s = 0; s < shardCount; s++) {
+            if (results.get(s) == null) {
+                continue;
+            }
+            // Espera todos os shards, mesmo depois de um erro, para nao deixar uma conexao no meio de um lote.
+            try {
+                String[] shardLines = IndexBuilder.await(results.get(s));
+                for (int k = 0; k < shardLines.length; k++) {
+                    lines[shardSlots[s][k]] = shardLines[k];
+                }
+            } catch (IOException e) {
+                error = error != null ? error : new IOException("Erro no shard " + s + ": " + e.getMessage(), e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return lines;
+    }
+
+    /**
+     * @return Mapa dos shards.
+     */
+    public ShardMap getMap() {
+        return map;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        closeAll(shards);
+    }
+
+    /**
+     * Busca os cadastros de uma lista de NIS nos shards e exibe as linhas encontradas na saida, na ordem da entrada.
+     *
+     * @param args Use <Mapa de shards> <Arquivo de bolsa | --servers=host:porta,...> <Arquivo de NIS ou ->. Com o
+     *             arquivo de bolsa os indices dos shards sao abertos localmente; com --servers cada shard e buscado
+     *             no {@link LookupServer} informado, na ordem do mapa.
+     */
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        }
+
+        ShardRouter router = null;
+        try {
+            ShardMap map = ShardMap.load(new File(args[0]));
+            if (args[1].startsWith("--servers=")) {
+                List<InetSocketAddress> servers = new ArrayList<>();
+                for (String server : args[1].substring("--servers=".length()).split(",")) {
+                    int colon = server.lastIndexOf(':');
+                    servers.add(new InetSocketAddress(server.substring(0, colon),
+                            Integer.parseInt(server.substring(colon + 1))));
+                }
+                if (servers.size() != map.getShardCount()) {
+                    System.err.println("[ERRO] - O mapa tem " + map.getShardCount() + " shards e foram informados "
+                            + servers.size() + " servidores: " + USAGE);
+                    System.exit(1);
+                }
+                router = remote(map, servers);
+            } else {
+                router = local(map, new File(args[1]));
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.err.println("[ERRO] - Erro de argumento: " + USAGE);
+            System.exit(1);
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar abrir os shards: " + e.getMessage());
+            System.exit(2);
+        }
+
+        try {
+            long t1 = System.currentTimeMillis();
+            AtomicInteger invalid = new AtomicInteger();
+            long[] nisList = BatchLookup.readNisList(args[2], invalid);
+            if (invalid.get() > 0) {
+                System.err.println("[INFO] - " + invalid + " NIS invalidos ignorados.");
+            }
+            String[] lines = router.findLines(nisList);
+            int found = 0;
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(FileDescriptor.out), StandardCharsets.ISO_8859_1), WRITE_BUFFER_SIZE)) {
+                for (String line : lines) {
+                    if (line != null) {
+                        out.write(line);
+                        out.write('\n');
+                        found++;
+                    }
+                }
+            }
+            router.close();
+
+            long duration = System.currentTimeMillis() - t1;
+            System.err.println("[INFO] - " + nisList.length + " NIS buscados em " + router.getMap().getShardCount()
+                    + " shards, " + found + " encontrados, em " + duration + " milissegundos.");
+        } catch (FileNotFoundException e) {
+            System.err.println("[ERRO] - Erro ao tentar encontrar o arquivo: " + e.getMessage());
+            System.exit(3);
+        } catch (IOException e) {
+            System.err.println("[ERRO] - Erro ao tentar ler o arquivo: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Confere se cada shard tem o indice que o mapa lhe atribui ({@link Shard#indexInfo()}): o mesmo checksum e
+     * trecho indexado do arquivo de bolsa, a mesma quantidade de registros e um menor NIS que pertence ao shard. Assim
+     * uma lista de servidores fora de ordem ou um servidor com um indice antigo sao recusados na abertura, em vez de
+     * responder NOT_FOUND para NIS de outro shard.
+     *
+     * @param map    Mapa dos shards.
+     * @param shards Shards, na ordem do mapa.
+     * @throws IOException se algum shard nao corresponder ao mapa.
+     */
+    private static void checkShards(ShardMap map, List<Shard> shards) throws IOException {
+        for (int i = 0; i < shards.size(); i++) {
+            String info = shards.get(i).indexInfo();
+            String[] fields = info.split("\t");
+            boolean matches;
+            try {
+                long firstNis = fields.length == 4 ? Long.parseLong(fields[3]) : -1;
+                matches = fields.length == 4 && Long.parseLong(fields[0]) == map.getSourceChecksum()
+                        && Long.parseLong(fields[1]) == map.getIndexedLength()
+                        && Long.parseLong(fields[2]) == map.getRecordCount(i)
+                        && (map.getRecordCount(i) == 0 || map.shardOf(firstNis) == i);
+            } catch (NumberFormatException e) {
+                matches = false;
+            }
+            if (!matches) {
+                throw new IOException("O shard " + i + " nao corresponde ao mapa: indice " + info.replace('\t', ' ')
+                        + ", esperado " + map.getSourceChecksum() + " " + map.getIndexedLength() + " "
+                        + map.getRecordCount(i) + ".");
+            }
+        }
+    }
+
+    /**
+     * Fecha todos os shards, mesmo que algum falhe.
+     *
+     * @param shards Shards abertos.
+     * @throws IOException com o primeiro erro.
+     */
+    private static void closeAll(List<Shard> shards) throws IOException {
+        IOException error = null;
+        for (Shard shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                error = error != null ? error : e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Um shard do indice, local ou remoto.
+     */
+    public interface Shard extends Closeable {
+
+        /**
+         * Busca varios NIS no shard.
+         *
+         * @param nisList NIS empacotados, em qualquer ordem.
+         * @return Linha de cada NIS, na mesma ordem, ou null para os NIS que nao estao no shard.
+         * @throws IOException
+         */
+        String[] findLines(long[] nisList) throws IOException;
+
+        /**
+         * Busca todas as linhas de um NIS no shard.
+         *
+         * @param nis NIS empacotado.
+         * @return Linhas encontradas, em ordem de posiçao, vazio se o NIS nao estiver no shard.
+         * @throws IOException
+         */
+        List<String> findAll(long nis) throws IOException;
+
+        /**
+         * Identificaçao do indice do shard, no formato de {@link BagSearcher#indexInfo()}.
+         *
+         * @return Identificaçao do indice.
+         * @throws IOException
+         */
+        String indexInfo() throws IOException;
+    }
+
+    /**
+     * Shard aberto localmente.
+     */
+    static class LocalShard implements Shard {
+
+        /**
+         * Buscador do indice do shard.
+         */
+        private final BagSearcher searcher;
+
+        /**
+         * Construtor.
+         *
+         * @param searcher {@link #searcher}
+         */
+        LocalShard(BagSearcher searcher) {
+            this.searcher = searcher;
+        }
+
+        /**
+         * Resolve os NIS em uma unica passada pelo indice, em ordem de NIS, e le as linhas em ordem de posiçao, como o
+         * {@link BatchLookup}.
+         */
+        @Override
+        public String[] findLines(long[] nisList) throws IOException {
+            long[] sortedNis = nisList.clone();
+            Arrays.sort(sortedNis);
+            long[] positions = searcher.findPositions(sortedNis);
+            long[] sortedPositions = Arrays.stream(positions).filter(p -> p >= 0).sorted().distinct().toArray();
+            String[] positionLines = new String[sortedPositions.length];
+            int[] read = new int[1];
+            searcher.readLines(sortedPositions, line -> positionLines[read[0]++] = line);
+
+            String[] lines = new String[nisList.length];
+            for (int i = 0; i < nisList.length; i++) {
+                long position = positions[Arrays.binarySearch(sortedNis, nisList[i])];
+                if (position >= 0) {
+                    lines[i] = positionLines[Arrays.binarySearch(sortedPositions, position)];
+                }
+            }
+            return lines;
+        }
+
+        @Override
+        public List<String> findAll(long nis) throws IOException {
+            List<String> lines = new ArrayList<>();
+            searcher.findAll(nis, lines::add);
+            return lines;
+        }
+
+        @Override
+        public String indexInfo() {
+            return searcher.indexInfo();
+        }
+
+        @Override
+        public void close() throws IOException {
+            searcher.close();
+        }
+    }
+
+    /**
+     * Shard buscado em um {@link LookupServer}, por uma conexao usada por uma busca de cada vez.
+     * <p>
+     * Os lotes sao enviados em janelas de {@link #WINDOW} comandos seguidos, sem esperar cada resposta; a janela
+     * limita o que fica pendente nos buffers dos sockets, para que o servidor nunca fique bloqueado escrevendo
+     * respostas enquanto o cliente ainda esta escrevendo comandos.
+     */
+    static class RemoteShard implements Shard {
+
+        /**
+         * Quantidade de comandos enviados antes de ler as respostas.
+         */
+        private static final int WINDOW = 1024;
+
+        /**
+         * Tamanho dos buffers de leitura e escrita da conexao.
+         */
+        private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+        /**
+         * Conexao com o servidor.
+         */
+        private final Socket socket;
+
+        /**
+         * Leitura das respostas.
+         */
+        private final BufferedReader reader;
+
+        /**
+         * Escrita dos comandos.
+         */
+        private final Writer writer;
+
+        /**
+         * Construtor. Abre a conexao.
+         *
+         * @param server Endereço do servidor.
+         * @throws IOException se o servidor nao aceitar a conexao.
+         */
+        RemoteShard(InetSocketAddress server) throws IOException {
+            this.socket = new Socket(server.getAddress(), server.getPort());
+            this.socket.setTcpNoDelay(true);
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1), SOCKET_BUFFER_SIZE);
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                    StandardCharsets.ISO_8859_1), SOCKET_BUFFER_SIZE);
+        }
+
+        @Override
+        public synchronized String[] findLines(long[] nisList) throws IOException {
+            String[] lines = new String[nisList.length];
+            for (int start = 0; start < nisList.length; start += WINDOW) {
+                int end = Math.min(nisList.length, start + WINDOW);
+                for (int i = start; i < end; i++) {
+                    writer.write("GET " + BinaryIndex.unpackNis(nisList[i]) + "\n");
+                }
+                writer.flush();
+                // Le todas as respostas da janela, mesmo depois de um erro, para a conexao continuar sincronizada.
+                String error = null;
+                for (int i = start; i < end; i++) {
+                    String response = readLine();
+                    if (response.startsWith("ERROR")) {
+                        error = error != null ? error : response;
+                    }
+                    lines[i] = response.startsWith("OK\t") ? response.substring("OK\t".length()) : null;
+                }
+                checkError(error);
+            }
+            return lines;
+        }
+
+        @Override
+        public synchronized List<String> findAll(long nis) throws IOException {
+            writer.write("ALL " + BinaryIndex.unpackNis(nis) + "\n");
+            writer.flush();
+            String response = readLine();
+            checkError(response);
+            if (!response.startsWith("OK\t")) {
+                return Collections.emptyList();
+            }
+            int count = Integer.parseInt(response.substring("OK\t".length()));
+            List<String> lines = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                lines.add(readLine());
+            }
+            return lines;
+        }
+
+        @Override
+        public synchronized String indexInfo() throws IOException {
+            writer.write("INFO\n");
+            writer.flush();
+            String response = readLine();
+            checkError(response);
+            if (!response.startsWith("OK\t")) {
+                throw new IOException("Resposta invalida do servidor do shard: " + response);
+            }
+            return response.substring("OK\t".length());
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                writer.write("QUIT\n");
+                writer.flush();
+            } finally {
+                socket.close();
+            }
+        }
+
+        /**
+         * Le uma linha de resposta do servidor.
+         *
+         * @return Linha lida.
+         * @throws IOException se a conexao fechar.
+         */
+        private String readLine() throws IOException {
+            String response = reader.readLine();
+            if (response == null) {
+                throw new EOFException("Conexao com o servidor do shard fechada.");
+            }
+            return response;
+        }
+
+        /**
+         * Repassa uma resposta de erro do servidor.
+         *
+         * @param response Resposta do servidor, ou null.
+         * @throws IOException se a resposta for de erro.
+         */
+        private static void checkError(String response) throws IOException {
+            if (response != null && response.startsWith("ERROR")) {
+                throw new IOException("Erro no servidor do shard: " + response.substring("ERROR".length()).trim());
+            }
+        }
+    }
+}
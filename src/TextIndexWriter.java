@@ -0,0 +1,61 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Escreve o indice no formato texto, uma linha <nis>\t<posiçao> por item.
+ */
+public class TextIndexWriter implements IndexOutput {
+
+    /**
+     * Tamanho do buffer de escrita.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Arquivo de saida.
+     */
+    private final Writer writer;
+
+    /**
+     * Linha em montagem, reaproveitada entre os itens: 14 digitos do NIS, tabulaçao, ate 19 digitos da posiçao e a
+     * quebra de linha.
+     */
+    private final char[] line = new char[BinaryIndex.NIS_LENGTH + 21];
+
+    /**
+     * Construtor.
+     *
+     * @param file Arquivo de saida.
+     * @throws IOException
+     */
+    public TextIndexWriter(File file) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.ISO_8859_1), WRITE_BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(long nis, long position) throws IOException {
+        for (int i = BinaryIndex.NIS_LENGTH - 1; i >= 0; i--) {
+            line[i] = (char) ('0' + nis % 10);
+            nis /= 10;
+        }
+        line[BinaryIndex.NIS_LENGTH] = '\t';
+
+        // Escrevendo os digitos da posiçao do fim para o inicio.
+        int end = line.length - 1;
+        int start = end;
+        do {
+            line[--start] = (char) ('0' + position % 10);
+            position /= 10;
+        } while (position > 0);
+        int length = end - start;
+        System.arraycopy(line, start, line, BinaryIndex.NIS_LENGTH + 1, length);
+        line[BinaryIndex.NIS_LENGTH + 1 + length] = '\n';
+        writer.write(line, 0, BinaryIndex.NIS_LENGTH + 2 + length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}